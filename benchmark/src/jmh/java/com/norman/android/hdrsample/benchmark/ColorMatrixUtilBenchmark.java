@@ -0,0 +1,34 @@
+package com.norman.android.hdrsample.benchmark;
+
+import com.norman.android.hdrsample.player.color.ColorRange;
+import com.norman.android.hdrsample.util.ColorMatrixUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ColorMatrixUtil按位数和范围查找YUV转RGB矩阵，每次设置Buffer格式都会调用
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ColorMatrixUtilBenchmark {
+
+    @Param({"8", "10", "12"})
+    public int bitDepth;
+
+    @Param({"" + ColorRange.LIMITED, "" + ColorRange.FULL})
+    public int colorRange;
+
+    @Benchmark
+    public float[] getYuvToRgbMatrix() {
+        return ColorMatrixUtil.getYuvToRgbMatrix(bitDepth, colorRange);
+    }
+}
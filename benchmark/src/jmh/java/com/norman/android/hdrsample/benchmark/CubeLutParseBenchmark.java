@@ -0,0 +1,128 @@
+package com.norman.android.hdrsample.benchmark;
+
+import com.norman.android.hdrsample.transform.CubeLutParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 解析assets/lut下每个Cube文件的耗时，和CubeLutBuffer一样把文件映射成MappedByteBuffer再解析
+ * parallelMinLength是0表示多线程解析，是Integer.MAX_VALUE表示单线程解析，对比两者可以确定多线程的阈值
+ * 只测解析，不包括asset读取和缓存文件，这两部分依赖Android
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CubeLutParseBenchmark {
+
+    /**
+     * 相对assets/lut的路径，新加了LUT要加到这里，漏了setup会报错
+     */
+    @Param({
+            "hlg2sdr/LinearTransformation.cube",
+            "hlg2sdr/NBCU_DaVinci_DL_VRT_v1.1.cube",
+            "hlg2sdr/NBCU_FinalCut_DL_Adobe_v1.1.cube",
+            "hlg2sdr/NBCU_Hardware_DL_v1.1.cube",
+            "pq2sdr/ACES_1.3_1000nit_ReferenceGamutCompress.cube",
+            "pq2sdr/LinearTransformation_v2.cube",
+            "pq2sdr/NBCU_FinalCut_DL_Adobe_v1.cube",
+            "pq2sdr/NBCU_Hardware_DL_v1.cube",
+            "pq2sdr/NBCU_RESOLVE-DL_VRT.cube",
+            "sdr2hlg/NBCU_Davinci_DL_VRT_v1.1.cube",
+            "sdr2hlg/NBCU_Davinci_SL_VRT.cube",
+            "sdr2hlg/NBCU_FinalCut_DL_Adobe_v1.1.cube",
+            "sdr2hlg/NBCU_FinalCut_SL_Adobe_v1.cube",
+            "sdr2hlg/NBCU_Hardware_DL_v1.1.cube",
+            "sdr2hlg/NBCU_Hardware_SL_v1.cube",
+            "sdr2pq/LinearTransformation.cube",
+            "sdr2pq/NBCU_FinalCut_DL_Adobe_v1.cube",
+            "sdr2pq/NBCU_Hardware_SDR2PQ_DL_v1.cube",
+            "sdr2pq/NBCU_RESOLVE_DL_VRT.cube",
+    })
+    public String assetName;
+
+    @Param({"0", "2147483647"})
+    public int parallelMinLength;
+
+    private MappedByteBuffer cubeBuffer;
+
+    @Setup
+    public void setup() throws IOException, NoSuchFieldException {
+        File lutDir = getLutDir();
+        checkAllAssetsCovered(lutDir);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(new File(lutDir, assetName), "r")) {
+            cubeBuffer = randomAccessFile.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        }
+        cubeBuffer.load();//先读到内存，不把缺页的时间算到解析里
+        CubeLutParser parser = CubeLutParser.parse(cubeBuffer, parallelMinLength);
+        if (parser.rgbBuffer.hasRemaining()) {
+            throw new IllegalStateException(assetName + " rgb data is not complete");
+        }
+        parser.release();
+    }
+
+    /**
+     * 和CubeLutBuffer一样解析完放回缓存池，测的是缓存池复用内存时的解析耗时
+     */
+    @Benchmark
+    public int parse() {
+        CubeLutParser parser = CubeLutParser.parse(cubeBuffer, parallelMinLength);
+        int position = parser.rgbBuffer.position();
+        parser.release();
+        return position;
+    }
+
+    static File getLutDir() {
+        String lutDir = System.getProperty("hdrsample.lutDir");
+        if (lutDir == null) {
+            throw new IllegalStateException("run with -Dhdrsample.lutDir=<sample/src/main/assets/lut>");
+        }
+        return new File(lutDir);
+    }
+
+    /**
+     * 保证assets/lut下每个文件都在assetName的参数中
+     */
+    private static void checkAllAssetsCovered(File lutDir) throws NoSuchFieldException {
+        List<String> paramList = Arrays.asList(CubeLutParseBenchmark.class
+                .getField("assetName").getAnnotation(Param.class).value());
+        List<String> assetList = new ArrayList<>();
+        listCubeFiles(lutDir, "", assetList);
+        for (String asset : assetList) {
+            if (!paramList.contains(asset)) {
+                throw new IllegalStateException(asset + " is not in assetName params");
+            }
+        }
+    }
+
+    private static void listCubeFiles(File dir, String prefix, List<String> assetList) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                listCubeFiles(file, prefix + file.getName() + "/", assetList);
+            } else if (file.getName().endsWith(".cube")) {
+                assetList.add(prefix + file.getName());
+            }
+        }
+    }
+}
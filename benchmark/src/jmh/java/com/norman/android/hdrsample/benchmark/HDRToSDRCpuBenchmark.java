@@ -0,0 +1,89 @@
+package com.norman.android.hdrsample.benchmark;
+
+import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.transform.cpu.HDRToSDRCpuEngine;
+import com.norman.android.hdrsample.transform.shader.HDRToSDRShader;
+import com.norman.android.hdrsample.transform.shader.chromacorrect.ChromaCorrection;
+import com.norman.android.hdrsample.transform.shader.gamma.GammaOETF;
+import com.norman.android.hdrsample.transform.shader.gamutmap.GamutMap;
+import com.norman.android.hdrsample.transform.shader.tonemap.ToneMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HDRToSDRCpuEngine的整个CPU转换流程：EOTF -> 色度矫正 -> 色调映射 -> 色域映射 -> OETF
+ * pixelCount是每次转换的像素个数，33^3和HDRToSDRCpuEngine.createLutRgbBuffer(33)一样，1920*1080是一帧1080P
+ * 转换是原地修改，每次转换前恢复输入，恢复的时间很短，对结果影响不大
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HDRToSDRCpuBenchmark {
+
+    @Param({"35937", "2073600"})
+    public int pixelCount;
+
+    @Param({"PQ", "HLG"})
+    public String colorSpace;
+
+    @Param({"ANDROID13", "BT2446A", "HDR10_PLUS"})
+    public String toneMap;
+
+    private HDRToSDRCpuEngine engine;
+
+    private float[] sourcePixels;
+
+    private float[] pixels;
+
+    @Setup
+    public void setup() {
+        int videoColorSpace = "PQ".equals(colorSpace) ? ColorSpace.VIDEO_BT2020_PQ : ColorSpace.VIDEO_BT2020_HLG;
+        HDRToSDRShader shader = new HDRToSDRShader(videoColorSpace,
+                ChromaCorrection.BT2446C,
+                getToneMap(toneMap),
+                GamutMap.ADAPTIVE_L0_CUSP,
+                GammaOETF.BT709,
+                true);
+        engine = new HDRToSDRCpuEngine(shader);
+        engine.setMaxDisplayLuminance(500);
+        Random random = new Random(0);
+        sourcePixels = new float[pixelCount * 3];
+        for (int i = 0; i < sourcePixels.length; i++) {
+            sourcePixels[i] = random.nextFloat();
+        }
+        pixels = new float[sourcePixels.length];
+    }
+
+    @Setup(Level.Invocation)
+    public void resetPixels() {
+        System.arraycopy(sourcePixels, 0, pixels, 0, pixels.length);
+    }
+
+    @Benchmark
+    public float[] process() {
+        engine.process(pixels, 0, pixelCount, 3);
+        return pixels;
+    }
+
+    private static ToneMap getToneMap(String name) {
+        switch (name) {
+            case "BT2446A":
+                return ToneMap.BT2446A;
+            case "HDR10_PLUS":
+                return ToneMap.HDR10_PLUS;
+            default:
+                return ToneMap.ANDROID13;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.norman.android.hdrsample.benchmark;
+
+import com.norman.android.hdrsample.util.HalfFloatUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * float和半精度互相转换，LUT按FP16上传和CPU转换输出半精度时每个通道都要转一次
+ * valueCount是107811对应33的LUT，823875对应65的LUT
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HalfFloatUtilBenchmark {
+
+    @Param({"107811", "823875"})
+    public int valueCount;
+
+    private float[] floatArray;
+
+    private short[] halfArray;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        floatArray = new float[valueCount];
+        halfArray = new short[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            floatArray[i] = random.nextFloat() * 1.2f - 0.1f;//LUT里会有一点超出0到1的值
+            halfArray[i] = HalfFloatUtil.toHalf(floatArray[i]);
+        }
+    }
+
+    @Benchmark
+    public short[] toHalf() {
+        for (int i = 0; i < valueCount; i++) {
+            halfArray[i] = HalfFloatUtil.toHalf(floatArray[i]);
+        }
+        return halfArray;
+    }
+
+    @Benchmark
+    public float[] toFloat() {
+        for (int i = 0; i < valueCount; i++) {
+            floatArray[i] = HalfFloatUtil.toFloat(halfArray[i]);
+        }
+        return floatArray;
+    }
+}
@@ -0,0 +1,62 @@
+package com.norman.android.hdrsample.benchmark;
+
+import com.norman.android.hdrsample.player.color.YUV420Type;
+import com.norman.android.hdrsample.transform.cpu.YUV420CpuConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * YUV420CpuConverter转换一帧1080P的耗时，对比单线程和分块多线程，8位NV12和10位P010
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class YUV420CpuConverterBenchmark {
+
+    private static final int WIDTH = 1920;
+
+    private static final int HEIGHT = 1080;
+
+    @Param({"8", "10"})
+    public int bitDepth;
+
+    @Param({"true", "false"})
+    public boolean parallel;
+
+    private YUV420CpuConverter converter;
+
+    private ByteBuffer yuvBuffer;
+
+    private ByteBuffer rgbBuffer;
+
+    @Setup
+    public void setup() {
+        int strideWidth = bitDepth > 8 ? WIDTH * 2 : WIDTH;
+        converter = new YUV420CpuConverter();
+        converter.setParallelEnable(parallel);
+        converter.setBufferFormat(strideWidth, HEIGHT, bitDepth, 0, 0, WIDTH, HEIGHT, YUV420Type.NV12);
+        byte[] data = new byte[converter.getBufferSize()];
+        new Random(0).nextBytes(data);
+        yuvBuffer = ByteBuffer.allocateDirect(data.length);
+        yuvBuffer.put(data);
+        yuvBuffer.clear();
+        rgbBuffer = ByteBuffer.allocateDirect(converter.getOutputBufferSize(YUV420CpuConverter.OutputFormat.HALF_FLOAT));
+    }
+
+    @Benchmark
+    public ByteBuffer convert() {
+        converter.convert(yuvBuffer, rgbBuffer, YUV420CpuConverter.OutputFormat.HALF_FLOAT);
+        return rgbBuffer;
+    }
+}
@@ -25,6 +25,7 @@ import com.norman.android.hdrsample.player.color.ColorTransfer;
 import com.norman.android.hdrsample.player.source.AssetFileSource;
 import com.norman.android.hdrsample.player.source.FileSource;
 import com.norman.android.hdrsample.transform.CubeLutVideoTransform;
+import com.norman.android.hdrsample.transform.HDRToSDRQualityGovernor;
 import com.norman.android.hdrsample.transform.HDRToSDRVideoTransform;
 import com.norman.android.hdrsample.transform.shader.chromacorrect.ChromaCorrection;
 import com.norman.android.hdrsample.transform.shader.gamma.GammaOETF;
@@ -36,6 +37,7 @@ import com.norman.android.hdrsample.util.GLESUtil;
 import com.norman.android.hdrsample.util.MediaFormatUtil;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -53,7 +55,8 @@ public class HDRPlayActivity extends AppCompatActivity implements View.OnClickLi
             new Item("BT2446A", ToneMap.BT2446A),
             new Item("BT2446A1", ToneMap.BT2446A1),
             new Item("BT2446C", ToneMap.BT2446C),
-            new Item("Hable", ToneMap.HABLE)
+            new Item("Hable", ToneMap.HABLE),
+            new Item("HDR10+", ToneMap.HDR10_PLUS)
     });
 
     private static final List<Item<GamutMap>> GAMUT_MAP_MENU_LIST = Arrays.asList(new Item[]{
@@ -116,7 +119,7 @@ public class HDRPlayActivity extends AppCompatActivity implements View.OnClickLi
                 colorSpace = space;
                 List<String> assetList = colorSpace == ColorSpace.VIDEO_BT2020_PQ ? pq2sdrCubeList : hlg2sdrCubeList;
                 cubeLutAsset = assetList.get(0);
-                cubeLutVideoTransform.setCubeLut(cubeLutAsset);
+                cubeLutVideoTransform.setCubeLutAsync(cubeLutAsset);
             }
             showVideoInfo(outputFormat);
         }
@@ -197,6 +200,14 @@ public class HDRPlayActivity extends AppCompatActivity implements View.OnClickLi
         hdrToSDRShaderTransform.setGamutMap(GamutMap.CLIP);
         hdrToSDRShaderTransform.setToneMap(ToneMap.ANDROID13);
         hdrToSDRShaderTransform.setChromaCorrection(ChromaCorrection.BT2446C);
+        // 菜单里的ToneMap、GamutMap组合都提前编译，切换时不会卡顿
+        List<HDRToSDRQualityGovernor.Level> prewarmVariantList = new ArrayList<>();
+        for (Item<ToneMap> toneMapItem : TONE_MAP_MENU_LIST) {
+            for (Item<GamutMap> gamutMapItem : GAMUT_MAP_MENU_LIST) {
+                prewarmVariantList.add(new HDRToSDRQualityGovernor.Level(toneMapItem.value, gamutMapItem.value, false));
+            }
+        }
+        hdrToSDRShaderTransform.setPrewarmVariants(prewarmVariantList);
     }
 
 
@@ -356,7 +367,7 @@ public class HDRPlayActivity extends AppCompatActivity implements View.OnClickLi
             public boolean onMenuItemClick(MenuItem item) {
                 int id = item.getItemId();
                 cubeLutAsset = id < 0 ? null : assetList.get(id);
-                cubeLutVideoTransform.setCubeLut(cubeLutAsset);
+                cubeLutVideoTransform.setCubeLutAsync(cubeLutAsset);
                 return true;
             }
         });
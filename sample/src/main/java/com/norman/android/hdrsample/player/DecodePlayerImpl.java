@@ -34,6 +34,16 @@ abstract class DecodePlayerImpl<D extends Decoder,E extends Extractor> extends P
 
     private volatile  float currentTime;
 
+    /**
+     * 解码器最后输出的帧时间，不管有没有渲染，flush以后是-1
+     */
+    private volatile long lastOutputTimeUs = -1;
+
+    /**
+     * seek的目标帧时间
+     */
+    private volatile long seekFrameTimeUs = -1;
+
 
     public DecodePlayerImpl(D decoder, E extractor, String threadName) {
         super(threadName);
@@ -106,9 +116,32 @@ abstract class DecodePlayerImpl<D extends Decoder,E extends Extractor> extends P
         decoder.start();
     }
 
+    /**
+     * 有sample索引时seek到目标时间所在的那一帧
+     * 目标帧在已经解码的位置后面，并且中间没有关键帧时，不flush继续往后解码，其余情况从前面的关键帧开始解码
+     * 目标帧之前解码出来的帧由子类丢弃不渲染
+     * @param presentationTimeUs
+     */
     protected void onPlaySeek(long presentationTimeUs) {
+        long frameTimeUs = extractor.getFrameTimeUs(presentationTimeUs);
+        long syncTimeUs = extractor.getPreSyncTimeUs(frameTimeUs);
+        long outputTimeUs = lastOutputTimeUs;
+        seekFrameTimeUs = frameTimeUs;
+        if (syncTimeUs >= 0 && outputTimeUs >= 0
+                && outputTimeUs < frameTimeUs && syncTimeUs <= outputTimeUs) {
+            return;
+        }
+        lastOutputTimeUs = -1;
         decoder.flush();//seek时清空解码信息
-        extractor.seekPreSync(presentationTimeUs);
+        extractor.seekPreSync(frameTimeUs);
+    }
+
+    /**
+     * 最近一次seek的目标帧时间，没有sample索引时就是seek的时间
+     * @return
+     */
+    protected long getSeekFrameTimeUs() {
+        return seekFrameTimeUs;
     }
 
     protected void onPlayResume() {
@@ -122,6 +155,8 @@ abstract class DecodePlayerImpl<D extends Decoder,E extends Extractor> extends P
 
     protected void onPlayStop() {
         decoder.destroy();
+        lastOutputTimeUs = -1;
+        seekFrameTimeUs = -1;
         extractor.seekPreSync(0);//停止以后把时间重新设置到0，方便后续重新start
     }
 
@@ -147,8 +182,14 @@ abstract class DecodePlayerImpl<D extends Decoder,E extends Extractor> extends P
             return bufferInfo;
         }
 
+        @Override
+        public long getOutputBufferDelayNs(long presentationTimeUs) {
+            return DecodePlayerImpl.this.getOutputBufferDelayNs(presentationTimeUs);
+        }
+
         @Override
         public boolean onOutputBufferAvailable(ByteBuffer outputBuffer, long presentationTimeUs) {
+            lastOutputTimeUs = presentationTimeUs;
             return  DecodePlayerImpl.this.onOutputBufferAvailable(outputBuffer,presentationTimeUs);
         }
 
@@ -186,6 +227,8 @@ abstract class DecodePlayerImpl<D extends Decoder,E extends Extractor> extends P
     protected abstract void onOutputFormatChanged(MediaFormat outputFormat);
 
 
+    protected abstract long getOutputBufferDelayNs(long presentationTimeUs);
+
     protected abstract boolean onOutputBufferAvailable(ByteBuffer outputBuffer, long presentationTimeUs);
 
     protected abstract void onOutputBufferRender(long presentationTimeUs);
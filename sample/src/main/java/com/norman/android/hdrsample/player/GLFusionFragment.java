@@ -0,0 +1,41 @@
+package com.norman.android.hdrsample.player;
+
+import com.norman.android.hdrsample.player.color.ColorSpace;
+
+/**
+ * GLVideoTransform合并渲染时提供的片元代码
+ * declareCode是uniform、宏定义和函数的声明，methodName是处理颜色的函数名，函数签名必须是vec3 methodName(vec3 rgb)
+ * 多个Transform的代码会按顺序拼在同一个GLSL 300 es的片元shader里，所以不能用texture2D、gl_FragColor等旧的写法
+ * 代码没变时要返回同一个对象，GLVideoOutputImpl根据对象是否相同来判断要不要重新生成shader
+ */
+public class GLFusionFragment {
+
+    private final String declareCode;
+
+    private final String methodName;
+
+    private final @ColorSpace int outputColorSpace;
+
+    /**
+     * @param declareCode      uniform、宏定义和函数声明
+     * @param methodName       处理颜色的函数名
+     * @param outputColorSpace 经过函数处理后的颜色空间
+     */
+    public GLFusionFragment(String declareCode, String methodName, @ColorSpace int outputColorSpace) {
+        this.declareCode = declareCode;
+        this.methodName = methodName;
+        this.outputColorSpace = outputColorSpace;
+    }
+
+    public String getDeclareCode() {
+        return declareCode;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public @ColorSpace int getOutputColorSpace() {
+        return outputColorSpace;
+    }
+}
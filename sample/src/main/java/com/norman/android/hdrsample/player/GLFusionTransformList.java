@@ -0,0 +1,74 @@
+package com.norman.android.hdrsample.player;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 合并渲染的Transform和对应的片元代码，给GLTextureRenderer和GLYUV420Renderer共用
+ * 渲染器把片元代码拼到自己的shader里，再在program变化和渲染时通知每个Transform设置自己的uniform
+ */
+class GLFusionTransformList {
+
+    private final List<GLVideoTransform> transformList = new ArrayList<>();
+
+    private List<GLFusionFragment> fragmentList = Collections.emptyList();
+
+    /**
+     * 更新合并的Transform，Transform要先调用prepareFusion得到片元代码
+     *
+     * @param requestTransformList
+     * @return Transform或者片元代码是否有变化，有变化要重新生成shader
+     */
+    boolean update(List<GLVideoTransform> requestTransformList) {
+        boolean change = requestTransformList.size() != transformList.size();
+        for (int i = 0; !change && i < requestTransformList.size(); i++) {
+            GLVideoTransform videoTransform = requestTransformList.get(i);
+            change = videoTransform != transformList.get(i)
+                    || videoTransform.fusionFragment != fragmentList.get(i);
+        }
+        if (!change) {
+            return false;
+        }
+        transformList.clear();
+        List<GLFusionFragment> requestFragmentList = new ArrayList<>();
+        for (GLVideoTransform videoTransform : requestTransformList) {
+            transformList.add(videoTransform);
+            requestFragmentList.add(videoTransform.fusionFragment);
+        }
+        fragmentList = Collections.unmodifiableList(requestFragmentList);//shader会持有这个列表，不能再修改
+        return true;
+    }
+
+    /**
+     * 按顺序的片元代码
+     *
+     * @return
+     */
+    List<GLFusionFragment> getFragmentList() {
+        return fragmentList;
+    }
+
+    void programChange(int programId) {
+        for (int i = 0; i < transformList.size(); i++) {
+            transformList.get(i).fusionProgramChange(programId);
+        }
+    }
+
+    /**
+     * 设置每个Transform的uniform和纹理
+     *
+     * @param textureUnit 可以使用的第一个纹理单元
+     */
+    void render(int textureUnit) {
+        for (int i = 0; i < transformList.size(); i++) {
+            textureUnit += transformList.get(i).fusionRender(textureUnit);
+        }
+    }
+
+    void renderFinish() {
+        for (int i = 0; i < transformList.size(); i++) {
+            transformList.get(i).fusionRenderFinish();
+        }
+    }
+}
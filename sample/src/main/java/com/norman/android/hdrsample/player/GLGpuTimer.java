@@ -0,0 +1,193 @@
+package com.norman.android.hdrsample.player;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.norman.android.hdrsample.util.FrameTimingProfiler;
+import com.norman.android.hdrsample.util.GLESUtil;
+
+/**
+ * 用GL_EXT_disjoint_timer_query统计GPU实际执行的耗时
+ * 查询结果要等GPU执行完才有，这里用几个query轮流使用，每次开始前只检查已经完成的结果，不会等待GPU
+ * 结果一般在二到三帧以后拿到，所有query都没完成时这一帧不统计
+ * GPU频率变化或者被抢占时扩展会报告disjoint，这时候还没读取的结果都不可信，直接丢弃
+ * 拿到的结果同时记录到FrameTimingProfiler，必须在OpenGL线程调用
+ */
+class GLGpuTimer {
+
+    static final String EXTENSION_DISJOINT_TIMER_QUERY = "GL_EXT_disjoint_timer_query";
+
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_QUERY_RESULT_EXT = 0x8866;
+    private static final int GL_QUERY_RESULT_AVAILABLE_EXT = 0x8867;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+    /**
+     * 同时在GPU执行的query个数
+     */
+    private static final int QUERY_COUNT = 4;
+
+    /**
+     * 耗时的平滑系数
+     */
+    private static final float SMOOTH_FACTOR = 0.1f;
+
+    private final String timingStage;
+
+    private final int[] queryIds = new int[QUERY_COUNT];
+
+    private final int[] queryResult = new int[1];
+
+    /**
+     * 最早提交还没读取结果的query
+     */
+    private int pendingHead;
+
+    private int pendingCount;
+
+    private boolean querying;
+
+    /**
+     * 0没有检查，1支持，-1不支持
+     */
+    private int support;
+
+    private long lastTimeNs = -1;
+
+    private long averageTimeNs = -1;
+
+    private long resultCount;
+
+    /**
+     * @param timingStage 记录到FrameTimingProfiler的阶段名称
+     */
+    GLGpuTimer(String timingStage) {
+        this.timingStage = timingStage;
+    }
+
+    /**
+     * 开始统计，和{@link #end()}成对调用，不支持或者query都在使用中返回false，这时不需要调用end
+     * @return
+     */
+    boolean begin() {
+        if (!isSupport()) {
+            return false;
+        }
+        if (queryIds[0] == 0) {
+            GLES30.glGenQueries(QUERY_COUNT, queryIds, 0);
+        }
+        collectResult();
+        if (pendingCount == QUERY_COUNT) {
+            return false;
+        }
+        int index = (pendingHead + pendingCount) % QUERY_COUNT;
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, queryIds[index]);
+        querying = true;
+        return true;
+    }
+
+    void end() {
+        if (!querying) {
+            return;
+        }
+        querying = false;
+        GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+        pendingCount++;
+    }
+
+    /**
+     * 按提交顺序读取已经完成的结果，遇到没完成的就停止
+     */
+    private void collectResult() {
+        if (pendingCount == 0) {
+            return;
+        }
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, queryResult, 0);
+        if (queryResult[0] != 0) {
+            // 这段时间内的计时都不准确，读取结果把query空出来，不使用
+            while (pendingCount > 0 && isResultAvailable(queryIds[pendingHead])) {
+                GLES30.glGetQueryObjectuiv(queryIds[pendingHead], GL_QUERY_RESULT_EXT, queryResult, 0);
+                popPending();
+            }
+            return;
+        }
+        while (pendingCount > 0 && isResultAvailable(queryIds[pendingHead])) {
+            GLES30.glGetQueryObjectuiv(queryIds[pendingHead], GL_QUERY_RESULT_EXT, queryResult, 0);
+            popPending();
+            long timeNs = queryResult[0] & 0xFFFFFFFFL;
+            onResult(timeNs);
+            FrameTimingProfiler.record(timingStage, timeNs);
+        }
+    }
+
+    private boolean isResultAvailable(int queryId) {
+        GLES30.glGetQueryObjectuiv(queryId, GL_QUERY_RESULT_AVAILABLE_EXT, queryResult, 0);
+        return queryResult[0] != 0;
+    }
+
+    private void popPending() {
+        pendingHead = (pendingHead + 1) % QUERY_COUNT;
+        pendingCount--;
+    }
+
+    private synchronized void onResult(long timeNs) {
+        lastTimeNs = timeNs;
+        averageTimeNs = averageTimeNs < 0 ? timeNs : (long) (averageTimeNs + (timeNs - averageTimeNs) * SMOOTH_FACTOR);
+        resultCount++;
+    }
+
+    private boolean isSupport() {
+        if (support == 0) {
+            support = GLESUtil.isSupportExtension(EXTENSION_DISJOINT_TIMER_QUERY) ? 1 : -1;
+        }
+        return support > 0;
+    }
+
+    /**
+     * 最近一次拿到的GPU耗时
+     * @return 还没有结果返回-1
+     */
+    synchronized long getLastTimeNs() {
+        return lastTimeNs;
+    }
+
+    /**
+     * 平滑后的GPU耗时
+     * @return 还没有结果返回-1
+     */
+    synchronized long getAverageTimeNs() {
+        return averageTimeNs;
+    }
+
+    synchronized long getResultCount() {
+        return resultCount;
+    }
+
+    /**
+     * 清空统计结果，query保留
+     */
+    synchronized void reset() {
+        lastTimeNs = -1;
+        averageTimeNs = -1;
+        resultCount = 0;
+    }
+
+    /**
+     * 删除query，必须在创建query的OpenGL环境调用
+     */
+    void release() {
+        if (querying) {
+            GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+            querying = false;
+        }
+        if (queryIds[0] != 0) {
+            GLES30.glDeleteQueries(QUERY_COUNT, queryIds, 0);
+            for (int i = 0; i < QUERY_COUNT; i++) {
+                queryIds[i] = 0;
+            }
+        }
+        pendingHead = 0;
+        pendingCount = 0;
+        support = 0;
+    }
+}
@@ -0,0 +1,176 @@
+package com.norman.android.hdrsample.player;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+
+import com.norman.android.hdrsample.util.GLESUtil;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 已经编译链接好的program缓存，按当前线程的EGLContext区分
+ * 譬如HDRToSDRVideoTransform切换ToneMap、GamutMap后又切回来，直接复用之前的program，不需要重新编译链接
+ * key是顶点和片元shader的源码，源码一样就是同一个program
+ * 正在使用的program不会被删除，没人用的program超过上限时按LRU删除最久没用的
+ * 所有方法都必须在有OpenGL环境的线程调用
+ */
+public class GLProgramCache {
+
+    /**
+     * 每个EGLContext最多保留没人使用的program个数
+     */
+    private static final int MAX_IDLE_PROGRAM_COUNT = 16;
+
+    private static final Map<EGLContext, LinkedHashMap<String, ProgramEntry>> CONTEXT_PROGRAM_MAP = new HashMap<>();
+
+    /**
+     * 获取program，缓存中没有就编译链接一个新的，用完要调用{@link #releaseProgram(int)}
+     * @param vertexCode
+     * @param frameCode
+     * @return
+     */
+    public static synchronized int obtainProgram(String vertexCode, String frameCode) {
+        LinkedHashMap<String, ProgramEntry> programMap = getProgramMap(true);
+        String key = vertexCode + '\u0000' + frameCode;
+        ProgramEntry programEntry = programMap.get(key);
+        // EGLContext销毁后新创建的可能和原来的相等，用glIsProgram确认program还是有效的
+        if (programEntry != null && !GLES20.glIsProgram(programEntry.programId)) {
+            programMap.remove(key);
+            programEntry = null;
+        }
+        if (programEntry == null) {
+            programEntry = new ProgramEntry(GLESUtil.createProgramId(vertexCode, frameCode));
+            programMap.put(key, programEntry);
+        }
+        programEntry.refCount++;
+        return programEntry.programId;
+    }
+
+    /**
+     * 在和targetContext共享的EGLContext线程中提前编译program，放到targetContext的缓存里
+     * 编译时不持有锁，不会卡住渲染线程获取program；编译完glFinish，保证渲染线程使用时已经链接完成
+     * 提前编译的program放进缓存时没人使用，和其他没人用的program一样超过上限时按LRU删除
+     * @param targetContext 使用program的EGLContext
+     * @param vertexCode
+     * @param frameCode
+     * @return false表示已经有了或者targetContext已经释放
+     */
+    static boolean prewarmProgram(EGLContext targetContext, String vertexCode, String frameCode) {
+        String key = vertexCode + '\u0000' + frameCode;
+        synchronized (GLProgramCache.class) {
+            LinkedHashMap<String, ProgramEntry> programMap = CONTEXT_PROGRAM_MAP.get(targetContext);
+            if (programMap == null || programMap.containsKey(key)) {
+                return false;
+            }
+        }
+        int programId = GLESUtil.createProgramId(vertexCode, frameCode);
+        GLES20.glFinish();
+        synchronized (GLProgramCache.class) {
+            LinkedHashMap<String, ProgramEntry> programMap = CONTEXT_PROGRAM_MAP.get(targetContext);
+            // 编译的时候渲染线程已经编译了同样的program，或者已经释放了
+            if (programMap == null || programMap.containsKey(key)) {
+                GLESUtil.delProgramId(programId);
+                return false;
+            }
+            programMap.put(key, new ProgramEntry(programId));
+            // 删除的是共享的program，在共享EGLContext的线程删除也可以
+            trimIdlePrograms(programMap);
+            return true;
+        }
+    }
+
+    /**
+     * 当前EGLContext的缓存不存在就创建，提前编译之前要在渲染线程调用
+     */
+    static synchronized void prepareContext() {
+        getProgramMap(true);
+    }
+
+    /**
+     * 不再使用program，没人用了也不会马上删除，留着下次复用
+     * @param programId
+     */
+    public static synchronized void releaseProgram(int programId) {
+        if (programId <= 0) {
+            return;
+        }
+        LinkedHashMap<String, ProgramEntry> programMap = getProgramMap(false);
+        if (programMap == null) {
+            GLESUtil.delProgramId(programId);
+            return;
+        }
+        boolean found = false;
+        for (ProgramEntry programEntry : programMap.values()) {
+            if (programEntry.programId == programId && programEntry.refCount > 0) {
+                programEntry.refCount--;
+                found = true;
+            }
+        }
+        if (!found) {//不是缓存创建的直接删除
+            GLESUtil.delProgramId(programId);
+            return;
+        }
+        trimIdlePrograms(programMap);
+    }
+
+    /**
+     * 没人用的program超过上限时删除最久没用的
+     * @param programMap
+     */
+    private static void trimIdlePrograms(LinkedHashMap<String, ProgramEntry> programMap) {
+        int idleCount = 0;
+        for (ProgramEntry programEntry : programMap.values()) {
+            if (programEntry.refCount == 0) {
+                idleCount++;
+            }
+        }
+        Iterator<ProgramEntry> iterator = programMap.values().iterator();
+        while (idleCount > MAX_IDLE_PROGRAM_COUNT && iterator.hasNext()) {
+            ProgramEntry programEntry = iterator.next();
+            if (programEntry.refCount == 0) {
+                GLESUtil.delProgramId(programEntry.programId);
+                iterator.remove();
+                idleCount--;
+            }
+        }
+    }
+
+    /**
+     * 删除当前EGLContext缓存的所有program，在EGLContext销毁前调用
+     */
+    static synchronized void releaseContext() {
+        EGLContext eglContext = EGL14.eglGetCurrentContext();
+        LinkedHashMap<String, ProgramEntry> programMap = CONTEXT_PROGRAM_MAP.remove(eglContext);
+        if (programMap == null) {
+            return;
+        }
+        for (ProgramEntry programEntry : programMap.values()) {
+            GLESUtil.delProgramId(programEntry.programId);
+        }
+    }
+
+    private static LinkedHashMap<String, ProgramEntry> getProgramMap(boolean create) {
+        EGLContext eglContext = EGL14.eglGetCurrentContext();
+        LinkedHashMap<String, ProgramEntry> programMap = CONTEXT_PROGRAM_MAP.get(eglContext);
+        if (programMap == null && create) {
+            // accessOrder为true，遍历的顺序就是从最久没用到最近使用
+            programMap = new LinkedHashMap<>(16, 0.75f, true);
+            CONTEXT_PROGRAM_MAP.put(eglContext, programMap);
+        }
+        return programMap;
+    }
+
+    private static class ProgramEntry {
+        final int programId;
+
+        int refCount;
+
+        ProgramEntry(int programId) {
+            this.programId = programId;
+        }
+    }
+}
@@ -13,6 +13,7 @@ import android.opengl.GLES20;
 import android.opengl.GLES30;
 
 import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.player.color.HDR10PlusMetadata;
 import com.norman.android.hdrsample.util.GLESUtil;
 
 
@@ -30,6 +31,11 @@ class GLRenderTextureTarget extends GLRenderTarget {
     int maxFrameAverageLuminance;
     int maxMasteringLuminance;
 
+    /**
+     * 当前帧的HDR10+动态元数据，没有是null
+     */
+    HDR10PlusMetadata hdr10PlusMetadata;
+
     void setBitDepth(int bitDepth) {
         if (this.bitDepth != bitDepth) {
             this.bitDepth = bitDepth;
@@ -54,6 +60,10 @@ class GLRenderTextureTarget extends GLRenderTarget {
         this.maxMasteringLuminance = maxMasteringLuminance;
     }
 
+    protected void setHDR10PlusMetadata(HDR10PlusMetadata hdr10PlusMetadata) {
+        this.hdr10PlusMetadata = hdr10PlusMetadata;
+    }
+
     /**
      * 根据位数和宽高创建纹理并绑定到frameBuffer
      */
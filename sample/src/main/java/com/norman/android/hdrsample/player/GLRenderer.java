@@ -7,6 +7,8 @@ import androidx.annotation.NonNull;
 import com.norman.android.hdrsample.opengl.GLShaderCode;
 import com.norman.android.hdrsample.util.GLESUtil;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 abstract class GLRenderer {
@@ -24,6 +26,11 @@ abstract class GLRenderer {
 
     boolean renderSuccess;
 
+    /**
+     * 提前编译好的program，一直持有引用不会被缓存删除，之后切换shader时直接从缓存取
+     */
+    private final List<Integer> prewarmProgramList = new ArrayList<>();
+
     /**
      * 渲染到目标
      *
@@ -38,6 +45,9 @@ abstract class GLRenderer {
     }
 
 
+    /**
+     * 只回调onCreate，不会获取program，program在第一次单独渲染时才从缓存获取
+     */
     synchronized void create(){
         if (!create) {//没有创建会创建
             create = true;
@@ -50,12 +60,23 @@ abstract class GLRenderer {
         if (create){
             create = false;
             renderSuccess = false;
-            GLESUtil.delProgramId(programId);
+            GLProgramCache.releaseProgram(programId);
             programId =0;
+            releasePrewarmPrograms();
             onDestroy();
         }
     }
 
+    /**
+     * 不再持有单独渲染的program，放回缓存留着之后复用，下次单独渲染时重新获取
+     */
+    synchronized void releaseProgram() {
+        if (programId > 0) {
+            GLProgramCache.releaseProgram(programId);
+            programId = 0;
+        }
+    }
+
     protected void onCreate() {
 
     }
@@ -76,11 +97,12 @@ abstract class GLRenderer {
         }
         if (requestProgram) {
             requestProgram = false;
-            GLESUtil.delProgramId(programId);
+            GLProgramCache.releaseProgram(programId);
             programId = 0;
             if (vertexShader != null
                     && frameShader != null){
-                programId = GLESUtil.createProgramId(vertexShader.getCode(),frameShader.getCode());
+                // 同样的shader之前编译过就直接复用
+                programId = GLProgramCache.obtainProgram(vertexShader.getCode(),frameShader.getCode());
                 onProgramChange(programId);
             }
         }
@@ -131,6 +153,42 @@ abstract class GLRenderer {
        });
     }
 
+    synchronized GLShaderCode getVertexShader() {
+        return vertexShader;
+    }
+
+    synchronized GLShaderCode getFrameShader() {
+        return frameShader;
+    }
+
+    /**
+     * 把片元代码换成fragmentList后的合并shader，只生成源码，用来提前编译合并渲染的变体
+     * @param fragmentList
+     * @return 不支持合并渲染返回null
+     */
+    GLShaderCode createFusionFrameShader(List<GLFusionFragment> fragmentList) {
+        return null;
+    }
+
+    /**
+     * 提前编译之后可能切换到的shader，必须在OpenGL线程调用
+     * @param vertexCode
+     * @param frameCode
+     */
+    protected final synchronized void prewarmProgram(String vertexCode, String frameCode) {
+        prewarmProgramList.add(GLProgramCache.obtainProgram(vertexCode, frameCode));
+    }
+
+    /**
+     * 不再持有提前编译的program，必须在OpenGL线程调用
+     */
+    protected final synchronized void releasePrewarmPrograms() {
+        for (int prewarmProgramId : prewarmProgramList) {
+            GLProgramCache.releaseProgram(prewarmProgramId);
+        }
+        prewarmProgramList.clear();
+    }
+
     protected abstract void onProgramChange(int programId);
 
     abstract void onRender();
@@ -6,14 +6,17 @@ import android.opengl.GLES20;
 import androidx.annotation.CallSuper;
 
 import com.norman.android.hdrsample.opengl.GLMatrix;
+import com.norman.android.hdrsample.opengl.GLShaderCode;
 import com.norman.android.hdrsample.player.shader.TextureFragmentShader;
 import com.norman.android.hdrsample.player.shader.TextureVertexShader;
 import com.norman.android.hdrsample.util.GLESUtil;
 
 import java.nio.FloatBuffer;
+import java.util.List;
 
 /**
  * 支持3种格式 2D OES Y2Y渲染到frameBuffer上
+ * 设置了合并的Transform时，采样后直接在同一个shader里做Transform的处理
  */
 class GLTextureRenderer extends GLRenderer {
 
@@ -33,6 +36,11 @@ class GLTextureRenderer extends GLRenderer {
 
     private final @TextureFragmentShader.TextureType int textureType;
 
+    /**
+     * 合并渲染的Transform
+     */
+    private final GLFusionTransformList fusionTransformList = new GLFusionTransformList();
+
 
     public GLTextureRenderer(@TextureFragmentShader.TextureType int type) {
         textureType = type;
@@ -52,6 +60,25 @@ class GLTextureRenderer extends GLRenderer {
         return textureMatrix;
     }
 
+    /**
+     * 设置合并渲染的Transform，Transform要先调用prepareFusion得到片元代码，传空列表就恢复成普通的纹理渲染
+     * Transform和片元代码都没变时不会重新生成shader
+     *
+     * @param transformList
+     */
+    synchronized void setFusionTransforms(List<GLVideoTransform> transformList) {
+        if (!fusionTransformList.update(transformList)) {
+            return;
+        }
+        setFrameShader(new TextureFragmentShader(textureType, fusionTransformList.getFragmentList()));
+        requestProgram = true;//shader相同但Transform变了，也要让新的Transform获取uniform的位置
+    }
+
+    @Override
+    GLShaderCode createFusionFrameShader(List<GLFusionFragment> fragmentList) {
+        return new TextureFragmentShader(textureType, fragmentList);
+    }
+
     @CallSuper
     @Override
     protected void onProgramChange(int programId) {
@@ -59,6 +86,7 @@ class GLTextureRenderer extends GLRenderer {
         textureMatrixUniform = GLES20.glGetUniformLocation(programId, TextureVertexShader.TEXTURE_MATRIX);
         textureCoordinateAttribute = GLES20.glGetAttribLocation(programId, TextureVertexShader.INPUT_TEXTURE_COORDINATE);
         textureUnitUniform = GLES20.glGetUniformLocation(programId, TextureFragmentShader.INPUT_IMAGE_TEXTURE);
+        fusionTransformList.programChange(programId);
     }
 
     @Override
@@ -89,8 +117,11 @@ class GLTextureRenderer extends GLRenderer {
         }
         GLES20.glUniform1i(textureUnitUniform, 0);
         GLES20.glUniformMatrix4fv(textureMatrixUniform, 1, false, textureMatrix, 0);
+        fusionTransformList.render(1);//0是输入纹理
         onTextureRender();
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        fusionTransformList.renderFinish();
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glDisableVertexAttribArray(positionCoordinateAttribute);
         GLES20.glDisableVertexAttribArray(textureCoordinateAttribute);
         if (textureType != TextureFragmentShader.TYPE_TEXTURE_2D) {
@@ -84,6 +84,25 @@ public abstract class GLVideoOutput extends VideoOutput {
 
     public abstract void addVideoTransform(GLVideoTransform videoTransform);
 
+    /**
+     * 开启后支持合并的Transform会和输入纹理的采样合成一个shader直接渲染到屏幕上，省去中转纹理，默认开启
+     * 有Transform不支持合并时自动回退到逐个渲染
+     * 合并后各个Transform没有单独的耗时，只能统计整个合并绘制的耗时(FrameTimingProfiler的fusionRender和gpuFusionRender)，
+     * 要看单个Transform的耗时需要关闭合并
+     * @param enable
+     */
+    public abstract void setTransformFusionEnable(boolean enable);
+
+    public abstract boolean isTransformFusionEnable();
+
+    /**
+     * 开启后准备时在共享EGLContext的后台线程提前编译Transform声明的shader，切换shader时不用在渲染线程编译，默认开启
+     * @param enable
+     */
+    public abstract void setShaderPrewarmEnable(boolean enable);
+
+    public abstract boolean isShaderPrewarmEnable();
+
 
 
 
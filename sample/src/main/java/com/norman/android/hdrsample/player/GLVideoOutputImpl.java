@@ -2,6 +2,7 @@ package com.norman.android.hdrsample.player;
 
 import android.graphics.Rect;
 import android.media.MediaFormat;
+import android.opengl.EGLContext;
 import android.os.Build;
 import android.view.Surface;
 
@@ -11,12 +12,17 @@ import com.norman.android.hdrsample.opengl.GLEnvConfigSimpleChooser;
 import com.norman.android.hdrsample.opengl.GLEnvContext;
 import com.norman.android.hdrsample.opengl.GLEnvContextManager;
 import com.norman.android.hdrsample.opengl.GLEnvDisplay;
+import com.norman.android.hdrsample.opengl.GLEnvThreadManager;
 import com.norman.android.hdrsample.opengl.GLEnvWindowSurface;
+import com.norman.android.hdrsample.opengl.GLShaderCode;
 import com.norman.android.hdrsample.opengl.GLTextureSurface;
 import com.norman.android.hdrsample.player.color.ColorRange;
 import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.player.color.HDR10PlusMetadata;
 import com.norman.android.hdrsample.player.decode.VideoDecoder;
+import com.norman.android.hdrsample.util.FrameTimingProfiler;
 import com.norman.android.hdrsample.util.GLESUtil;
+import com.norman.android.hdrsample.util.LogUtil;
 import com.norman.android.hdrsample.util.MediaFormatUtil;
 import com.norman.android.hdrsample.util.TimeUtil;
 
@@ -24,6 +30,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -31,6 +38,8 @@ import java.util.regex.Pattern;
 /**
  * GLVideoOutput的具体实现，先通过外部纹理(OES或Y2Y)或YUV420 Buffer转成2D纹理，然后再用frontTarget和backTarget对纹理
  * 作Transform输出一个最终纹理，然后把纹理上屏， 如果最终纹理是PQ或者HLG传递函数，上屏的Surface要配置对应的色域
+ * 开启合并渲染并且所有Transform都支持合并时，Transform的处理直接合并到纹理采样的shader里一次上屏，不需要frontTarget和backTarget
+ * Buffer模式下连YUV420 Buffer转成的2D纹理也不需要，YUV转RGB和Transform在同一个shader里完成
  * 注意TextureView在Android13以下配置对应的色域是无效的，只有SurfaceView或者Android以上才有效，这个时候可以转成SDR解决
  */
 class GLVideoOutputImpl extends GLVideoOutput {
@@ -94,6 +103,45 @@ class GLVideoOutputImpl extends GLVideoOutput {
 
     private GLRenderTextureTarget backTarget = new GLRenderTextureTarget();
 
+    /**
+     * 合并渲染时用来传递颜色空间和亮度信息，不会创建纹理
+     */
+    private GLRenderTextureTarget fusionFrontTarget = new GLRenderTextureTarget();
+
+    private GLRenderTextureTarget fusionBackTarget = new GLRenderTextureTarget();
+
+    /**
+     * 本帧参与合并渲染的Transform
+     */
+    private final List<GLVideoTransform> fusionTransformList = new ArrayList<>();
+
+    /**
+     * 合并渲染时整个绘制的GPU计时，合并的Transform有一个开启GPU计时就统计
+     */
+    private final String fusionGpuTimingStage = FrameTimingProfiler.createInstanceStage(FrameTimingProfiler.STAGE_GPU_FUSION_RENDER);
+
+    private final GLGpuTimer fusionGpuTimer = new GLGpuTimer(fusionGpuTimingStage);
+
+    /**
+     * 是否合并Transform渲染
+     */
+    private boolean transformFusionEnable = true;
+
+    /**
+     * 是否提前编译Transform声明的shader
+     */
+    private boolean shaderPrewarmEnable = true;
+
+    /**
+     * 提前编译shader的线程，和渲染线程的EGLContext共享，合并渲染的变体在播放中才生成，所以停止播放时才释放
+     */
+    private GLEnvThreadManager prewarmThreadManager;
+
+    /**
+     * 上次提前编译合并变体时屏幕渲染的shader，变化了才重新生成变体
+     */
+    private GLShaderCode fusionPrewarmShader;
+
     /**
      * buffer转纹理模式
      */
@@ -114,6 +162,21 @@ class GLVideoOutputImpl extends GLVideoOutput {
     private int maxFrameAverageLuminance;
     private int maxMasteringLuminance;
 
+    /**
+     * 解码器在输出格式里给的HDR10+元数据，Android 10以上部分解码器支持
+     */
+    private HDR10PlusMetadata codecHDR10PlusMetadata;
+
+    /**
+     * VideoExtractor按帧时间拷贝出来的HDR10+元数据，复用同一个对象
+     */
+    private final HDR10PlusMetadata extractorHDR10PlusMetadata = new HDR10PlusMetadata();
+
+    /**
+     * 当前帧用的HDR10+元数据，有的帧没有元数据时沿用上一帧的(元数据一般只在场景切换时出现)
+     */
+    private HDR10PlusMetadata hdr10PlusMetadata;
+
     private @ColorRange int colorRange;
 
 
@@ -140,6 +203,16 @@ class GLVideoOutputImpl extends GLVideoOutput {
         for (GLVideoTransform videoTransform : transformList) {
             videoTransform.destroy();
         }
+        fusionGpuTimer.release();
+        FrameTimingProfiler.remove(fusionGpuTimingStage);
+        if (prewarmThreadManager != null) {
+            prewarmThreadManager.release();
+            prewarmThreadManager = null;
+        }
+        fusionPrewarmShader = null;
+        GLProgramCache.releaseContext();
+        codecHDR10PlusMetadata = null;
+        hdr10PlusMetadata = null;
         outputSurface.release();
         envContextManager.detach();
         if (videoSurface != null) {
@@ -195,6 +268,7 @@ class GLVideoOutputImpl extends GLVideoOutput {
         envContextManager = GLEnvContextManager.create(glEnvDisplay, envConfig);
         envContextManager.attach();
         envContext = envContextManager.getEnvContext();
+        startShaderPrewarm(MediaFormatUtil.parseColorSpace(inputFormat));
         if (textureSource == TextureSource.AUTO) {
             // 支持10位YUV420Buffer就用Buffer模式，不然就用外部纹理模式
             bufferMode = profile10Bit &&
@@ -214,6 +288,169 @@ class GLVideoOutputImpl extends GLVideoOutput {
         }
     }
 
+    /**
+     * 在共享EGLContext的线程编译Transform声明的shader，编译好的program放到渲染线程EGLContext的缓存中
+     * @param colorSpace 根据输入格式判断的颜色空间，和解码输出的不一样时提前编译的shader用不上，不影响播放
+     */
+    private void startShaderPrewarm(@ColorSpace int colorSpace) {
+        List<GLVideoTransform.PrewarmShader> prewarmShaderList = new ArrayList<>();
+        synchronized (this) {
+            if (!shaderPrewarmEnable) {
+                return;
+            }
+            for (GLVideoTransform videoTransform : transformList) {
+                prewarmShaderList.addAll(videoTransform.collectPrewarmShader(colorSpace));
+            }
+        }
+        postShaderPrewarm(prewarmShaderList);
+    }
+
+    /**
+     * 合并渲染时Transform切换片元代码(譬如画质调节切换等级)会生成新的合并shader，在后台线程提前编译这些变体
+     * 每个Transform声明的片元代码替换合并列表中自己的那一个，其他Transform不变，屏幕渲染的shader变化了才重新生成
+     * @param screenRenderer 合并渲染的屏幕渲染器
+     */
+    private void prewarmFusionVariants(GLRenderer screenRenderer) {
+        GLShaderCode frameShader = screenRenderer.getFrameShader();
+        if (!shaderPrewarmEnable || frameShader == fusionPrewarmShader) {
+            return;
+        }
+        fusionPrewarmShader = frameShader;
+        List<GLFusionFragment> fragmentList = new ArrayList<>();
+        List<List<GLFusionFragment>> candidateList = new ArrayList<>();
+        for (GLVideoTransform videoTransform : fusionTransformList) {
+            fragmentList.add(videoTransform.fusionFragment);
+            candidateList.add(videoTransform.collectPrewarmFusionFragment(videoTransform.inputTarget.colorSpace));
+        }
+        String vertexCode = screenRenderer.getVertexShader().getCode();
+        List<GLVideoTransform.PrewarmShader> prewarmShaderList = new ArrayList<>();
+        for (List<GLFusionFragment> variantList : createFusionVariantList(fragmentList, candidateList)) {
+            GLShaderCode variantShader = screenRenderer.createFusionFrameShader(variantList);
+            if (variantShader != null) {
+                prewarmShaderList.add(new GLVideoTransform.PrewarmShader(vertexCode, variantShader.getCode()));
+            }
+        }
+        postShaderPrewarm(prewarmShaderList);
+    }
+
+    /**
+     * 解码输出格式确定后就知道合并渲染用哪个屏幕渲染器，用每个Transform声明的第一个片元代码拼出合并shader，
+     * 和之后可能切换的变体一起提前编译，第一帧合并渲染时不需要在渲染线程编译
+     * 没有声明片元代码的Transform当作不参与合并；还不知道输出大小，YUV420渲染器插值和不插值的都编译
+     */
+    private void startFusionShaderPrewarm() {
+        List<GLVideoTransform.PrewarmShader> prewarmShaderList = new ArrayList<>();
+        synchronized (this) {
+            if (!shaderPrewarmEnable || !transformFusionEnable) {
+                return;
+            }
+            List<GLFusionFragment> fragmentList = new ArrayList<>();
+            List<List<GLFusionFragment>> candidateList = new ArrayList<>();
+            int fusionColorSpace = colorSpace;
+            for (GLVideoTransform videoTransform : transformList) {
+                if (!videoTransform.enable) {
+                    continue;
+                }
+                List<GLFusionFragment> candidate = videoTransform.collectPrewarmFusionFragment(fusionColorSpace);
+                if (candidate.isEmpty()) {
+                    continue;
+                }
+                fragmentList.add(candidate.get(0));
+                candidateList.add(candidate);
+                fusionColorSpace = candidate.get(0).getOutputColorSpace();
+            }
+            if (fragmentList.isEmpty()) {
+                return;
+            }
+            List<List<GLFusionFragment>> variantList = createFusionVariantList(fragmentList, candidateList);
+            if (bufferMode) {
+                String vertexCode = bufferYUV420Renderer.getVertexShader().getCode();
+                for (List<GLFusionFragment> variant : variantList) {
+                    prewarmShaderList.add(new GLVideoTransform.PrewarmShader(vertexCode,
+                            bufferYUV420Renderer.createFusionFrameShader(variant, false).getCode()));
+                    prewarmShaderList.add(new GLVideoTransform.PrewarmShader(vertexCode,
+                            bufferYUV420Renderer.createFusionFrameShader(variant, true).getCode()));
+                }
+            } else {
+                GLTextureRenderer textureRenderer = textureY2YMode ? y2yExtTextureRenderer : externalTextureRenderer;
+                String vertexCode = textureRenderer.getVertexShader().getCode();
+                for (List<GLFusionFragment> variant : variantList) {
+                    prewarmShaderList.add(new GLVideoTransform.PrewarmShader(vertexCode,
+                            textureRenderer.createFusionFrameShader(variant).getCode()));
+                }
+            }
+        }
+        postShaderPrewarm(prewarmShaderList);
+    }
+
+    /**
+     * 每个Transform的候选片元代码替换合并列表中自己的那一个，其他Transform不变
+     * @param fragmentList 合并列表的片元代码
+     * @param candidateList 每个Transform的候选片元代码，和fragmentList一一对应
+     * @return 第一个是fragmentList本身
+     */
+    private static List<List<GLFusionFragment>> createFusionVariantList(List<GLFusionFragment> fragmentList,
+                                                                        List<List<GLFusionFragment>> candidateList) {
+        List<List<GLFusionFragment>> variantList = new ArrayList<>();
+        variantList.add(fragmentList);
+        for (int i = 0; i < fragmentList.size(); i++) {
+            for (GLFusionFragment fusionFragment : candidateList.get(i)) {
+                if (fusionFragment == fragmentList.get(i)) {
+                    continue;
+                }
+                List<GLFusionFragment> variant = new ArrayList<>(fragmentList);
+                variant.set(i, fusionFragment);
+                variantList.add(variant);
+            }
+        }
+        return variantList;
+    }
+
+    /**
+     * 在共享EGLContext的线程编译，已经在缓存里的program会跳过，必须在渲染线程调用
+     * @param prewarmShaderList
+     */
+    private void postShaderPrewarm(List<GLVideoTransform.PrewarmShader> prewarmShaderList) {
+        if (prewarmShaderList.isEmpty()) {
+            return;
+        }
+        EGLContext targetContext = envContext.getEGLContext();
+        GLProgramCache.prepareContext();
+        if (prewarmThreadManager == null) {
+            prewarmThreadManager = new GLEnvThreadManager.Builder(envContext.getEnvDisplay(),
+                    envContext.getEnvConfig(), targetContext).build();
+        }
+        GLEnvThreadManager threadManager = prewarmThreadManager;
+        threadManager.post(() -> {
+            long startTimeNs = System.nanoTime();
+            int prewarmCount = 0;
+            for (GLVideoTransform.PrewarmShader prewarmShader : prewarmShaderList) {
+                if (threadManager.isRelease()) {//已经停止播放
+                    return;
+                }
+                try {
+                    if (GLProgramCache.prewarmProgram(targetContext, prewarmShader.vertexCode, prewarmShader.frameCode)) {
+                        prewarmCount++;
+                    }
+                } catch (RuntimeException e) {
+                    LogUtil.w("prewarm program fail " + e.getMessage());
+                }
+            }
+            LogUtil.d("prewarm " + prewarmCount + " programs cost "
+                    + TimeUtil.microToMill(TimeUtil.nanoToMicro(System.nanoTime() - startTimeNs)) + "ms");
+        });
+    }
+
+    @Override
+    public synchronized void setShaderPrewarmEnable(boolean enable) {
+        this.shaderPrewarmEnable = enable;
+    }
+
+    @Override
+    public synchronized boolean isShaderPrewarmEnable() {
+        return shaderPrewarmEnable;
+    }
+
     @Override
     public synchronized void setTextureSource(@TextureSource int textureSource) {
         if (isPlayerPrepared()){
@@ -251,12 +488,27 @@ class GLVideoOutputImpl extends GLVideoOutput {
         transformList.add(videoTransform);
     }
 
+    @Override
+    public synchronized void setTransformFusionEnable(boolean enable) {
+        this.transformFusionEnable = enable;
+    }
+
+    @Override
+    public synchronized boolean isTransformFusionEnable() {
+        return transformFusionEnable;
+    }
+
     @Override
     protected void onOutputFormatChanged(MediaFormat outputFormat) {
         super.onOutputFormatChanged(outputFormat);
         colorRange = MediaFormatUtil.getColorRange(outputFormat);
         colorSpace = MediaFormatUtil.getColorSpace(outputFormat);
-        //MediaExtractor不兼容KEY_HDR10_PLUS_INFO，不论HDR10还是HDR10+出来的都是KEY_HDR_STATIC_INFO，后续看看怎么解决
+        // MediaExtractor不会输出KEY_HDR10_PLUS_INFO，HDR10+的动态元数据由VideoExtractor从SEI里解析，
+        // 解码器支持时也会在输出格式里带上，两个都有时优先用VideoExtractor按帧时间对应的
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            ByteBuffer hdr10PlusInfo = MediaFormatUtil.getByteBuffer(outputFormat, MediaFormat.KEY_HDR10_PLUS_INFO);
+            codecHDR10PlusMetadata = hdr10PlusInfo != null ? HDR10PlusMetadata.parse(hdr10PlusInfo) : null;
+        }
         ByteBuffer hdrStaticInfo = MediaFormatUtil.getByteBuffer(outputFormat, MediaFormat.KEY_HDR_STATIC_INFO);
         if (hdrStaticInfo != null) {
             hdrStaticInfo.clear();
@@ -301,6 +553,7 @@ class GLVideoOutputImpl extends GLVideoOutput {
                 y2yExtTextureRenderer.setColorRange(colorRange);
             }
         }
+        startFusionShaderPrewarm();
     }
 
     @Override
@@ -312,66 +565,54 @@ class GLVideoOutputImpl extends GLVideoOutput {
     }
 
     @Override
-    protected synchronized boolean onOutputBufferRender(long presentationTimeUs) {
+    protected synchronized boolean onOutputBufferRender(long presentationTimeUs, long presentTimeNs) {
         if (!outputSurface.isValid()) {
             return false;
         }
-        GLTextureRenderer textureRenderer;
-        if (bufferMode) {
-            // buffer通过bufferYUV420Renderer转成2D纹理，2D纹理再去后续处理就能重采样，虽然消耗了一点性能但是方便
-            // 注意bufferYUV420Renderer是通过texelFetch获取量化数据的不能重采样，要确保yuv420的图像大小和yuv420TextureTarget图像大小一样
-            textureRenderer = texture2DRenderer;
-            yuv420TextureTarget.setRenderSize(videoWidth, videoHeight);
-            bufferYUV420Renderer.renderToTarget(yuv420TextureTarget);
-            textureRenderer.setTextureId(yuv420TextureTarget.textureId);
-        } else {//两种扩展纹理 OES或Y2Y
+        GLTextureRenderer textureRenderer = null;
+        if (!bufferMode) {//两种扩展纹理 OES或Y2Y
             textureRenderer = textureY2YMode ? y2yExtTextureRenderer : externalTextureRenderer;
             videoSurface.updateTexImage();
             videoSurface.getTransformMatrix(textureRenderer.getTextureMatrix());//纹理矩阵能解决绿边问题
         }
 
-        GLTextureRenderer screenRenderer;
+        hdr10PlusMetadata = findHDR10PlusMetadata(presentationTimeUs);
+
+        boolean fusion;
         int finalColorSpace = colorSpace;
-        if (transformList.isEmpty()) {//没有transform直接输出到screen
-            screenRenderer = textureRenderer;
+        if (transformList.isEmpty()) {
+            fusionTransformList.clear();
+            fusion = true;
         } else {
-            // 前面得到的纹理输出到frontTarget上
-            int targetBitDepth = 8;
-            if (profile10Bit){
-                if (hdrDisplayBitDepth == HdrBitDepth.BIT_DEPTH_8){
-                    targetBitDepth =  8;
-                }else if (hdrDisplayBitDepth == HdrBitDepth.BIT_DEPTH_10){
-                    targetBitDepth =  10;
-                }else if (hdrDisplayBitDepth == HdrBitDepth.BIT_DEPTH_16){
-                    targetBitDepth =  16;
-                }
+            fusion = prepareFusionTransform();
+            if (fusion) {
+                finalColorSpace = fusionFrontTarget.colorSpace;
             }
-            frontTarget.setBitDepth(targetBitDepth);
-            backTarget.setBitDepth(targetBitDepth);
-            frontTarget.setRenderSize(videoWidth, videoHeight);
-            backTarget.setRenderSize(videoWidth, videoHeight);
-
-            // 标记frontTarget的属性，方便后续处理
-            frontTarget.setColorSpace(colorSpace);
-            frontTarget.setMaxContentLuminance(maxContentLuminance);
-            frontTarget.setMaxFrameAverageLuminance(maxFrameAverageLuminance);
-            frontTarget.setMaxMasteringLuminance(maxMasteringLuminance);
-            //把前面的数据渲染到新的纹理上面
-            textureRenderer.renderToTarget(frontTarget);
-
-            //用frontTarget和backTarget做中转做Transform的处理
-            for (GLVideoTransform videoTransform : transformList) {
-                videoTransform.renderToTarget(frontTarget, backTarget);
-                if (videoTransform.renderSuccess) {//如果绘制成功了，才中转纹理
-                    GLRenderTextureTarget temp = frontTarget;
-                    frontTarget = backTarget;
-                    backTarget = temp;
-                }
+        }
+
+        GLRenderer screenRenderer;
+        if (bufferMode && fusion && transformFusionEnable) {
+            // YUV平面直接采样并做Transform的处理后上屏，不需要yuv420TextureTarget中转
+            // 屏幕和视频大小不一样时bufferYUV420Renderer会在shader里手动双线性插值
+            bufferYUV420Renderer.setFusionTransforms(fusionTransformList);
+            screenRenderer = bufferYUV420Renderer;
+        } else {
+            if (bufferMode) {
+                // buffer通过bufferYUV420Renderer转成2D纹理，2D纹理再去后续处理就能重采样，虽然消耗了一点性能但是方便
+                // 注意bufferYUV420Renderer是通过texelFetch获取量化数据的，yuv420的图像大小和yuv420TextureTarget图像大小一样时才不用插值
+                textureRenderer = texture2DRenderer;
+                yuv420TextureTarget.setRenderSize(videoWidth, videoHeight);
+                bufferYUV420Renderer.setFusionTransforms(Collections.emptyList());
+                bufferYUV420Renderer.renderToTarget(yuv420TextureTarget);
+                textureRenderer.setTextureId(yuv420TextureTarget.textureId);
+            }
+            if (fusion) {//没有transform或者所有Transform都合并到纹理渲染的shader里，直接输出到screen
+                textureRenderer.setFusionTransforms(fusionTransformList);
+                screenRenderer = textureRenderer;
+            } else {
+                screenRenderer = renderTransform(textureRenderer);
+                finalColorSpace = frontTarget.colorSpace;
             }
-            // 获得最终纹理
-            texture2DRenderer.setTextureId(frontTarget.textureId);
-            finalColorSpace = frontTarget.colorSpace;//
-            screenRenderer = texture2DRenderer;
         }
         GLEnvWindowSurface windowSurface = outputSurface.getWindowSurface(finalColorSpace);
         if (windowSurface == null) {
@@ -381,13 +622,162 @@ class GLVideoOutputImpl extends GLVideoOutput {
         envContext.makeCurrent(windowSurface);
         screenTarget.setRenderSize(windowSurface.getWidth(), windowSurface.getHeight());
         screenTarget.clearColor();
+        boolean fusionRender = fusion && !fusionTransformList.isEmpty();
+        long fusionGpuResultCount = fusionGpuTimer.getResultCount();
+        boolean fusionGpuTiming = fusionRender && isFusionGpuTimingEnable() && fusionGpuTimer.begin();
+        if (fusionGpuTimer.getResultCount() != fusionGpuResultCount) {//begin时拿到了之前帧的结果，合并的Transform单独计时拿不到耗时
+            long fusionGpuTimeNs = fusionGpuTimer.getLastTimeNs();
+            for (GLVideoTransform videoTransform : fusionTransformList) {
+                videoTransform.fusionGpuTime(fusionGpuTimeNs);
+            }
+        }
+        long startTimeNs = System.nanoTime();
         screenRenderer.renderToTarget(screenTarget);
-        windowSurface.setPresentationTime(TimeUtil.microToNano(presentationTimeUs));
+        long renderFinishTimeNs = System.nanoTime();
+        if (fusionGpuTiming) {
+            fusionGpuTimer.end();
+        }
+        FrameTimingProfiler.record(FrameTimingProfiler.STAGE_SCREEN_RENDER, renderFinishTimeNs - startTimeNs);
+        if (fusionRender) {
+            FrameTimingProfiler.record(FrameTimingProfiler.STAGE_FUSION_RENDER, renderFinishTimeNs - startTimeNs);
+        }
+        windowSurface.setPresentationTime(presentTimeNs);
         windowSurface.swapBuffers();
+        FrameTimingProfiler.record(FrameTimingProfiler.STAGE_SWAP_BUFFERS, System.nanoTime() - renderFinishTimeNs);
+        if (fusionRender) {
+            prewarmFusionVariants(screenRenderer);
+        }
+        return true;
+    }
+
+    /**
+     * 用frontTarget和backTarget做中转逐个渲染Transform
+     *
+     * @param textureRenderer 输入的纹理
+     * @return 最终纹理的渲染器
+     */
+    private GLTextureRenderer renderTransform(GLTextureRenderer textureRenderer) {
+        textureRenderer.setFusionTransforms(Collections.emptyList());
+        // 前面得到的纹理输出到frontTarget上
+        int targetBitDepth = getTargetBitDepth();
+        frontTarget.setBitDepth(targetBitDepth);
+        backTarget.setBitDepth(targetBitDepth);
+        frontTarget.setRenderSize(videoWidth, videoHeight);
+        backTarget.setRenderSize(videoWidth, videoHeight);
+
+        // 标记frontTarget的属性，方便后续处理
+        frontTarget.setColorSpace(colorSpace);
+        frontTarget.setMaxContentLuminance(maxContentLuminance);
+        frontTarget.setMaxFrameAverageLuminance(maxFrameAverageLuminance);
+        frontTarget.setMaxMasteringLuminance(maxMasteringLuminance);
+        frontTarget.setHDR10PlusMetadata(hdr10PlusMetadata);
+        //把前面的数据渲染到新的纹理上面
+        textureRenderer.renderToTarget(frontTarget);
+
+        //用frontTarget和backTarget做中转做Transform的处理
+        for (GLVideoTransform videoTransform : transformList) {
+            long startTimeNs = System.nanoTime();
+            videoTransform.renderToTarget(frontTarget, backTarget);
+            FrameTimingProfiler.record(videoTransform.getTimingStage(), System.nanoTime() - startTimeNs);
+            if (videoTransform.renderSuccess) {//如果绘制成功了，才中转纹理
+                GLRenderTextureTarget temp = frontTarget;
+                frontTarget = backTarget;
+                backTarget = temp;
+            }
+        }
+        // 获得最终纹理
+        texture2DRenderer.setTextureId(frontTarget.textureId);
+        return texture2DRenderer;
+    }
+
+    private int getTargetBitDepth() {
+        int targetBitDepth = 8;
+        if (profile10Bit){
+            if (hdrDisplayBitDepth == HdrBitDepth.BIT_DEPTH_8){
+                targetBitDepth =  8;
+            }else if (hdrDisplayBitDepth == HdrBitDepth.BIT_DEPTH_10){
+                targetBitDepth =  10;
+            }else if (hdrDisplayBitDepth == HdrBitDepth.BIT_DEPTH_16){
+                targetBitDepth =  16;
+            }
+        }
+        return targetBitDepth;
+    }
+
+    /**
+     * 找到这一帧的HDR10+元数据，只有PQ视频才有
+     * @param presentationTimeUs
+     * @return
+     */
+    private HDR10PlusMetadata findHDR10PlusMetadata(long presentationTimeUs) {
+        if (colorSpace != ColorSpace.VIDEO_BT2020_PQ) {
+            return null;
+        }
+        if (videoExtractor != null && videoExtractor.getHDR10PlusMetadata(presentationTimeUs, extractorHDR10PlusMetadata)) {
+            return extractorHDR10PlusMetadata;
+        }
+        return codecHDR10PlusMetadata != null ? codecHDR10PlusMetadata : hdr10PlusMetadata;
+    }
+
+    /**
+     * 按顺序准备所有Transform的合并渲染，结果放在fusionTransformList里
+     * 有Transform需要处理但是不支持合并，或者同一个类的Transform有多个(片元代码的函数和uniform会重名)就不能合并
+     *
+     * @return 是否可以合并渲染
+     */
+    private boolean prepareFusionTransform() {
+        fusionTransformList.clear();
+        for (GLVideoTransform videoTransform : transformList) {
+            videoTransform.clearTransformStart();
+        }
+        if (!transformFusionEnable) {
+            return false;
+        }
+        fusionFrontTarget.setRenderSize(videoWidth, videoHeight);
+        fusionFrontTarget.setBitDepth(getTargetBitDepth());
+        fusionFrontTarget.setColorSpace(colorSpace);
+        fusionFrontTarget.setMaxContentLuminance(maxContentLuminance);
+        fusionFrontTarget.setMaxFrameAverageLuminance(maxFrameAverageLuminance);
+        fusionFrontTarget.setMaxMasteringLuminance(maxMasteringLuminance);
+        fusionFrontTarget.setHDR10PlusMetadata(hdr10PlusMetadata);
+        fusionBackTarget.setRenderSize(videoWidth, videoHeight);
+        for (GLVideoTransform videoTransform : transformList) {
+            if (!videoTransform.prepareFusion(fusionFrontTarget, fusionBackTarget)) {
+                continue;
+            }
+            if (videoTransform.fusionFragment == null) {
+                fusionTransformList.clear();
+                return false;
+            }
+            for (GLVideoTransform fusionTransform : fusionTransformList) {
+                if (fusionTransform.getClass() == videoTransform.getClass()) {
+                    fusionTransformList.clear();
+                    return false;
+                }
+            }
+            fusionTransformList.add(videoTransform);
+            GLRenderTextureTarget temp = fusionFrontTarget;
+            fusionFrontTarget = fusionBackTarget;
+            fusionBackTarget = temp;
+        }
         return true;
     }
 
 
+    /**
+     * 合并的Transform有一个开启了GPU计时就统计整个合并绘制的GPU耗时
+     * @return
+     */
+    private boolean isFusionGpuTimingEnable() {
+        for (GLVideoTransform videoTransform : fusionTransformList) {
+            if (videoTransform.isGpuTimingEnable()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
     class OutputSurface {
         private GLEnvWindowSurface windowSurface;
 
@@ -1,9 +1,18 @@
 package com.norman.android.hdrsample.player;
 
+import androidx.annotation.NonNull;
+
 import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.player.color.HDR10PlusMetadata;
+import com.norman.android.hdrsample.util.FrameTimingProfiler;
+
+import java.util.Collections;
+import java.util.List;
 
 /**
  * 视频图像处理，如果需要输出到新的纹理需要调用success
+ * 如果处理只和单个像素的颜色有关，可以重写onFusionFragment支持合并渲染，
+ * 合并后多个Transform和输入纹理的采样在同一个shader里完成，不需要中转纹理
  */
 public abstract class GLVideoTransform extends GLRenderer {
 
@@ -12,6 +21,31 @@ public abstract class GLVideoTransform extends GLRenderer {
 
     boolean enable;
 
+    /**
+     * 合并渲染时使用的片元代码，为空表示不支持合并
+     */
+    GLFusionFragment fusionFragment;
+
+    /**
+     * 统计耗时用的阶段名称，提前拼好避免每帧创建字符串，每个实例单独统计
+     */
+    private final String timingStage = FrameTimingProfiler.createInstanceStage(
+            FrameTimingProfiler.STAGE_TRANSFORM_PREFIX + getClass().getSimpleName());
+
+    private final String gpuTimingStage = FrameTimingProfiler.createInstanceStage(
+            FrameTimingProfiler.STAGE_GPU_TRANSFORM_PREFIX + getClass().getSimpleName());
+
+    private final GLGpuTimer gpuTimer = new GLGpuTimer(gpuTimingStage);
+
+    private boolean gpuTimingEnable;
+
+    /**
+     * 这一帧prepareFusion已经调用过onTransformStart，回退到单独渲染时直接用结果，保证每帧只调用一次
+     */
+    private boolean transformStarted;
+
+    private boolean transformStartResult;
+
 
     protected final int getInputWidth() {
         return inputTarget.width;
@@ -57,6 +91,14 @@ public abstract class GLVideoTransform extends GLRenderer {
         return inputTarget.maxMasteringLuminance;
     }
 
+    /**
+     * 当前帧的HDR10+动态元数据
+     * @return 没有返回null
+     */
+    protected final HDR10PlusMetadata getInputHDR10PlusMetadata() {
+        return inputTarget.hdr10PlusMetadata;
+    }
+
 
     protected final int getOutputWidth() {
         return outputTarget.width;
@@ -72,19 +114,107 @@ public abstract class GLVideoTransform extends GLRenderer {
     }
 
 
+    final String getTimingStage() {
+        return timingStage;
+    }
+
     synchronized void renderToTarget(GLRenderTextureTarget inputTarget, GLRenderTextureTarget outputTarget) {
         if (!enable){
             renderSuccess = false;
             return;
         }
+        setTarget(inputTarget, outputTarget);
+        super.renderToTarget(outputTarget);
+    }
+
+    @Override
+    synchronized void destroy() {
+        gpuTimer.release();
+        FrameTimingProfiler.remove(timingStage);
+        FrameTimingProfiler.remove(gpuTimingStage);
+        super.destroy();
+    }
+
+    synchronized List<PrewarmShader> collectPrewarmShader(@ColorSpace int colorSpace) {
+        return onPrewarmShader(colorSpace);
+    }
+
+    synchronized List<GLFusionFragment> collectPrewarmFusionFragment(@ColorSpace int colorSpace) {
+        return onPrewarmFusionFragment(colorSpace);
+    }
+
+    /**
+     * 合并绘制的GPU耗时，开启了GPU计时才回调onGpuTime
+     * @param timeNs
+     */
+    synchronized void fusionGpuTime(long timeNs) {
+        if (gpuTimingEnable) {
+            onGpuTime(timeNs);
+        }
+    }
+
+    /**
+     * 合并渲染前的准备，调用这一帧的onTransformStart，但是不会渲染也不会获取单独渲染的program
+     * 这时inputTarget和outputTarget只用来传递颜色空间、亮度等信息，没有纹理
+     * 不能合并回退到单独渲染时renderToTarget直接用这里onTransformStart的结果，不会再调用一次
+     *
+     * @param inputTarget
+     * @param outputTarget
+     * @return false表示没有开启或者不需要处理，true时fusionFragment为空表示需要处理但是不支持合并
+     */
+    synchronized boolean prepareFusion(GLRenderTextureTarget inputTarget, GLRenderTextureTarget outputTarget) {
+        fusionFragment = null;
+        renderSuccess = false;
+        transformStarted = false;
+        if (!enable) {
+            return false;
+        }
+        setTarget(inputTarget, outputTarget);
+        create();
+        transformStartResult = onTransformStart();
+        transformStarted = true;
+        if (!transformStartResult) {
+            return false;
+        }
+        fusionFragment = onFusionFragment();
+        if (fusionFragment != null) {
+            setOutputColorSpace(fusionFragment.getOutputColorSpace());
+        }
+        return true;
+    }
+
+    synchronized void fusionProgramChange(int programId) {
+        onFusionProgramChange(programId);
+    }
+
+    synchronized int fusionRender(int textureUnit) {
+        return onFusionRender(textureUnit);
+    }
+
+    synchronized void fusionRenderFinish() {
+        onFusionRenderFinish();
+        renderSuccess = true;
+        transformStarted = false;
+        // 合并渲染时不需要单独渲染的program，放回缓存
+        releaseProgram();
+    }
+
+    /**
+     * 每帧开始时清掉上一帧prepareFusion的结果，避免上一帧没有渲染时这一帧用了旧的结果
+     */
+    synchronized void clearTransformStart() {
+        transformStarted = false;
+    }
+
+    private void setTarget(GLRenderTextureTarget inputTarget, GLRenderTextureTarget outputTarget) {
         this.inputTarget = inputTarget;
         this.outputTarget = outputTarget;
         outputTarget.setColorSpace(inputTarget.colorSpace);
         outputTarget.setMaxContentLuminance(inputTarget.maxContentLuminance);
         outputTarget.setMaxFrameAverageLuminance(inputTarget.maxFrameAverageLuminance);
         outputTarget.setMaxMasteringLuminance(inputTarget.maxMasteringLuminance);
+        outputTarget.setHDR10PlusMetadata(inputTarget.hdr10PlusMetadata);
         outputTarget.setBitDepth(inputTarget.bitDepth);
-        super.renderToTarget(outputTarget);
     }
 
     @Override
@@ -98,6 +228,7 @@ public abstract class GLVideoTransform extends GLRenderer {
             outputTarget.setMaxContentLuminance(0);
             outputTarget.setMaxFrameAverageLuminance(0);
             outputTarget.setMaxMasteringLuminance(0);
+            outputTarget.setHDR10PlusMetadata(null);
         }
     }
 
@@ -109,16 +240,67 @@ public abstract class GLVideoTransform extends GLRenderer {
         enable = false;
     }
 
+    /**
+     * 开启GPU计时，设备不支持GL_EXT_disjoint_timer_query时没有效果
+     * 只统计单独渲染的耗时，合并渲染时多个Transform在同一次绘制中完成，整个合并的绘制记录在
+     * {@link FrameTimingProfiler#STAGE_GPU_FUSION_RENDER}，要统计单个Transform需要关闭合并
+     * 合并渲染时onGpuTime收到的是整个合并绘制的耗时，包括输入纹理的采样和其他合并的Transform
+     * @param enable
+     */
+    public synchronized void setGpuTimingEnable(boolean enable) {
+        if (!enable) {
+            gpuTimer.reset();
+        }
+        gpuTimingEnable = enable;
+    }
+
+    public synchronized boolean isGpuTimingEnable() {
+        return gpuTimingEnable;
+    }
+
+    /**
+     * 平滑后的GPU耗时，结果会延迟几帧
+     * @return 单位毫秒，还没有结果返回-1
+     */
+    public float getGpuTimeMs() {
+        long timeNs = gpuTimer.getAverageTimeNs();
+        return timeNs < 0 ? -1 : timeNs / 1000_000f;
+    }
+
+    /**
+     * 最近一帧的GPU耗时
+     * @return 单位毫秒，还没有结果返回-1
+     */
+    public float getLastGpuTimeMs() {
+        long timeNs = gpuTimer.getLastTimeNs();
+        return timeNs < 0 ? -1 : timeNs / 1000_000f;
+    }
+
 
     @Override
     final boolean onRenderStart() {
+        if (transformStarted) {
+            transformStarted = false;
+            return transformStartResult;
+        }
         return onTransformStart();
     }
 
 
+    /**
+     * GPU计时只包住onTransform，onTransformStart返回false或者没有program的帧没有绘制，不计时
+     */
     @Override
     final void onRender() {
+        long gpuResultCount = gpuTimer.getResultCount();
+        boolean gpuTiming = gpuTimingEnable && gpuTimer.begin();
+        if (gpuTimer.getResultCount() != gpuResultCount) {//begin时拿到了之前帧的结果
+            onGpuTime(gpuTimer.getLastTimeNs());
+        }
         onTransform();
+        if (gpuTiming) {
+            gpuTimer.end();
+        }
     }
 
     @Override
@@ -133,4 +315,84 @@ public abstract class GLVideoTransform extends GLRenderer {
     protected  void onTransformFinish(){
 
     }
+
+    /**
+     * 之后可能切换到的shader，GLVideoOutput准备时在后台线程提前编译，切换时不需要在渲染线程编译
+     * 在渲染线程调用，只需要生成源码
+     * @param colorSpace 视频的颜色空间
+     * @return
+     */
+    protected List<PrewarmShader> onPrewarmShader(@ColorSpace int colorSpace) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * 之后可能切换到的片元代码，合并渲染时GLVideoOutput在后台线程提前编译替换成这些片元代码的合并shader
+     * 在渲染线程调用，只需要生成源码
+     * @param colorSpace 合并渲染时这个Transform的输入颜色空间
+     * @return
+     */
+    protected List<GLFusionFragment> onPrewarmFusionFragment(@ColorSpace int colorSpace) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * 开启GPU计时后拿到新的GPU耗时，结果是几帧之前的，在渲染前调用
+     * 合并渲染时是整个合并绘制的耗时
+     * @param timeNs
+     */
+    protected void onGpuTime(long timeNs) {
+
+    }
+
+    /**
+     * 支持合并渲染就返回片元代码，在onTransformStart返回true之后调用
+     * 代码没变时要返回同一个对象，默认不支持合并
+     *
+     * @return
+     */
+    protected GLFusionFragment onFusionFragment() {
+        return null;
+    }
+
+    /**
+     * 合并后的program变化了，在这里获取片元代码中uniform的位置
+     *
+     * @param programId
+     */
+    protected void onFusionProgramChange(int programId) {
+
+    }
+
+    /**
+     * 合并渲染时设置片元代码用到的uniform和纹理
+     *
+     * @param textureUnit 可以使用的第一个纹理单元，前面的已经被输入纹理和其他Transform占用
+     * @return 使用了几个纹理单元
+     */
+    protected int onFusionRender(int textureUnit) {
+        return 0;
+    }
+
+    /**
+     * 合并渲染完成，解绑onFusionRender绑定的纹理
+     */
+    protected void onFusionRenderFinish() {
+
+    }
+
+    /**
+     * 需要提前编译的顶点和片元shader
+     */
+    public static final class PrewarmShader {
+
+        final String vertexCode;
+
+        final String frameCode;
+
+        public PrewarmShader(@NonNull String vertexCode, @NonNull String frameCode) {
+            this.vertexCode = vertexCode;
+            this.frameCode = frameCode;
+        }
+    }
 }
@@ -4,21 +4,28 @@ import android.graphics.Rect;
 import android.opengl.GLES20;
 import android.opengl.GLES30;
 
+import com.norman.android.hdrsample.opengl.GLShaderCode;
 import com.norman.android.hdrsample.player.color.ColorRange;
 import com.norman.android.hdrsample.player.color.YUV420Type;
 import com.norman.android.hdrsample.player.shader.YUV420FragmentShader;
 import com.norman.android.hdrsample.player.shader.YUV420VertexShader;
 import com.norman.android.hdrsample.util.ColorMatrixUtil;
 import com.norman.android.hdrsample.util.GLESUtil;
+import com.norman.android.hdrsample.util.LogUtil;
+import com.norman.android.hdrsample.util.TimeUtil;
 
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.util.List;
 import java.util.Objects;
 
 /**
  * YUV420四种格式转纹理
  * https://juejin.cn/post/7206577654933520444   解码10位YUV纹理
  * https://juejin.cn/post/7206577654933520444   不同YUV420格式转纹理的计算方式，下方代码是文章的优化版
+ * 设置了合并的Transform时，YUV转RGB后直接在同一个shader里做Transform的处理，可以不经过中转纹理直接渲染到屏幕
+ * 平面数据默认通过PBO上传，CPU只需要把数据拷贝到映射的内存，纹理的传输由驱动异步完成，不会阻塞渲染线程等待拷贝
+ * PBO不可用时自动回退到glTexSubImage2D直接上传
  */
 class GLYUV420Renderer extends GLRenderer {
 
@@ -121,6 +128,49 @@ class GLYUV420Renderer extends GLRenderer {
 
     private @ColorRange int colorRange = ColorRange.LIMITED;
 
+    /**
+     * 开启上传对比时每隔多少帧用直接上传采样一次耗时，作为PBO节省时间的对比
+     */
+    private static final int DIRECT_UPLOAD_SAMPLE_INTERVAL = 120;
+
+    /**
+     * 每隔多少帧输出一次上传耗时
+     */
+    private static final int UPLOAD_LOG_INTERVAL = 600;
+
+    /**
+     * 是否用PBO上传
+     */
+    private volatile boolean pixelBufferEnable = true;
+
+    /**
+     * 是否定期用直接上传对比PBO的耗时，直接上传要等数据拷贝完，会让采样的那一帧变慢，只在调试时开启
+     */
+    private volatile boolean uploadCompareEnable;
+
+    /**
+     * PBO映射失败等情况下设置为false，之后都直接上传
+     */
+    private boolean pixelBufferSupport = true;
+
+    private int uploadFrameCount;
+
+    private long pixelBufferUploadTimeNs;
+    private int pixelBufferUploadCount;
+
+    private long directUploadTimeNs;
+    private int directUploadCount;
+
+    /**
+     * 输出大小和图像大小不一样时，需要在shader里手动双线性插值
+     */
+    private boolean linearFilter;
+
+    /**
+     * 合并渲染的Transform
+     */
+    private final GLFusionTransformList fusionTransformList = new GLFusionTransformList();
+
     public GLYUV420Renderer() {
         positionCoordinateBuffer = GLESUtil.createPositionFlatBuffer();
         textureCoordinateBuffer = GLESUtil.createTextureFlatBufferUpsideDown();
@@ -148,13 +198,14 @@ class GLYUV420Renderer extends GLRenderer {
                 || bitDepth != requestBitDepth
                 || yuv420Type != requestYuv420Type
                 || Objects.equals(requestDisplayRect, displayRect)) {//相同的清空下不需要重新创建纹理
-            if (yuv420Type != requestYuv420Type){
-                setFrameShader(new YUV420FragmentShader(requestYuv420Type));
-            }
+            boolean typeChange = yuv420Type != requestYuv420Type;
             strideWidth = requestStrideWidth;
             sliceHeight = requestSliceHeight;
             bitDepth = requestBitDepth;
             yuv420Type = requestYuv420Type;
+            if (typeChange){
+                updateFrameShader();
+            }
             displayRect = requestDisplayRect;
             formatValid = strideWidth > 0 && sliceHeight > 0 && bitDepth > 0 && displayRect != null;
             if (!formatValid) {//格式不对不需要加载纹理
@@ -162,19 +213,19 @@ class GLYUV420Renderer extends GLRenderer {
                 return;
             }
             if (lumaTexture != null) {
-                GLESUtil.delTextureId(lumaTexture.textureId);
+                lumaTexture.release();
                 lumaTexture = null;
             }
             if (chromaSemiTexture != null) {
-                GLESUtil.delTextureId(chromaSemiTexture.textureId);
+                chromaSemiTexture.release();
                 chromaSemiTexture = null;
             }
             if (chromaPlanarUTexture != null) {
-                GLESUtil.delTextureId(chromaPlanarUTexture.textureId);
+                chromaPlanarUTexture.release();
                 chromaPlanarUTexture = null;
             }
             if (chromaPlanarVTexture != null) {
-                GLESUtil.delTextureId(chromaPlanarVTexture.textureId);
+                chromaPlanarVTexture.release();
                 chromaPlanarVTexture = null;
             }
             int byteCount = (int) Math.ceil(bitDepth / 8.0);//位数除以8向上取整，譬如10其实是16位存储的，每个字节8位，最终就是2字节
@@ -197,7 +248,7 @@ class GLYUV420Renderer extends GLRenderer {
                 //YV12和YV21的宽度和Y平面是一样的，高度是1/4
                 int chromaWidth = lumaPlaneWidth;
                 int chromaHeight = lumaPlaneHeight / 4;
-                chromaPlanarUTexture = new PlaneTexture(chromaWidth, chromaWidth, byteCount);
+                chromaPlanarUTexture = new PlaneTexture(chromaWidth, chromaHeight, byteCount);
                 chromaPlanarVTexture = new PlaneTexture(chromaWidth, chromaHeight, byteCount);
                 chromaSize = chromaPlanarUTexture.bufferSize + chromaPlanarVTexture.bufferSize;
             }
@@ -240,30 +291,36 @@ class GLYUV420Renderer extends GLRenderer {
         }
         bufferAvailable = true;
 
+        // 开启对比时定期用直接上传采样耗时，和PBO的耗时对比
+        boolean usePixelBuffer = pixelBufferEnable && pixelBufferSupport
+                && (!uploadCompareEnable || uploadFrameCount % DIRECT_UPLOAD_SAMPLE_INTERVAL != 0);
+        uploadFrameCount++;
+        long startTimeNs = System.nanoTime();
+
         int lumaLimit = offset + lumaTexture.bufferSize;//Y平面需要读取的数据大小
         outputBuffer.clear();
         outputBuffer.position(offset);
         outputBuffer.limit(lumaLimit);
-        lumaTexture.updateBuffer(outputBuffer);
+        updatePlane(lumaTexture, outputBuffer, usePixelBuffer);
 
         if (yuv420Type == YUV420Type.NV12 || yuv420Type == YUV420Type.NV21) {
             int chromaSemiLimit = lumaBufferSize + chromaSemiTexture.bufferSize;//UV平面需要读取的数据大小
             outputBuffer.clear();
             outputBuffer.position(lumaBufferSize);
             outputBuffer.limit(chromaSemiLimit);
-            chromaSemiTexture.updateBuffer(outputBuffer);
+            updatePlane(chromaSemiTexture, outputBuffer, usePixelBuffer);
 
         } else if (yuv420Type == YUV420Type.YV21) {
             int chromaPlanarULimit = lumaBufferSize + chromaPlanarUTexture.bufferSize;//U平面数据大小
             outputBuffer.clear();
             outputBuffer.position(lumaBufferSize);
             outputBuffer.limit(chromaPlanarULimit);
-            chromaPlanarUTexture.updateBuffer(outputBuffer);
+            updatePlane(chromaPlanarUTexture, outputBuffer, usePixelBuffer);
 
             outputBuffer.clear();
             outputBuffer.position(chromaPlanarULimit);
             outputBuffer.limit(chromaPlanarULimit + chromaPlanarVTexture.bufferSize);//V平面数据大小
-            chromaPlanarVTexture.updateBuffer(outputBuffer);
+            updatePlane(chromaPlanarVTexture, outputBuffer, usePixelBuffer);
         } else if (yuv420Type == YUV420Type.YV12) {
 
             int chromaPlanarVLimit = lumaBufferSize + chromaPlanarVTexture.bufferSize;//V平面数据大小
@@ -271,16 +328,123 @@ class GLYUV420Renderer extends GLRenderer {
             outputBuffer.position(lumaBufferSize);
             outputBuffer.limit(chromaPlanarVLimit);
 
-            chromaPlanarVTexture.updateBuffer(outputBuffer);
+            updatePlane(chromaPlanarVTexture, outputBuffer, usePixelBuffer);
 
             outputBuffer.clear();
             outputBuffer.position(chromaPlanarVLimit);
             outputBuffer.limit(chromaPlanarVLimit + chromaPlanarUTexture.bufferSize);//U平面数据大小
-            chromaPlanarUTexture.updateBuffer(outputBuffer);
+            updatePlane(chromaPlanarUTexture, outputBuffer, usePixelBuffer);
+
+        }
+        long costTimeNs = System.nanoTime() - startTimeNs;
+        if (usePixelBuffer && pixelBufferSupport) {
+            pixelBufferUploadTimeNs += costTimeNs;
+            pixelBufferUploadCount++;
+        } else {
+            directUploadTimeNs += costTimeNs;
+            directUploadCount++;
+        }
+        if (uploadFrameCount % UPLOAD_LOG_INTERVAL == 0) {
+            LogUtil.d("yuv upload pbo avg " + getPixelBufferUploadAverageUs() + "us direct avg " + getDirectUploadAverageUs()
+                    + "us saved " + getUploadSavedUs() + "us");
+        }
+    }
+
+    private void updatePlane(PlaneTexture planeTexture, ByteBuffer buffer, boolean usePixelBuffer) {
+        if (usePixelBuffer && pixelBufferSupport && !planeTexture.updatePixelBuffer(buffer)) {
+            LogUtil.w("yuv upload pixel buffer not available, fallback to glTexSubImage2D");
+            pixelBufferSupport = false;
+        }
+        if (!usePixelBuffer || !pixelBufferSupport) {
+            planeTexture.updateBuffer(buffer);
+        }
+    }
+
+    /**
+     * 是否用PBO上传YUV数据，默认开启
+     * @param enable
+     */
+    public void setPixelBufferEnable(boolean enable) {
+        this.pixelBufferEnable = enable;
+    }
+
+    public boolean isPixelBufferEnable() {
+        return pixelBufferEnable;
+    }
+
+    /**
+     * 是否定期用直接上传采样耗时来和PBO对比，默认关闭
+     * 开启后每{@link #DIRECT_UPLOAD_SAMPLE_INTERVAL}帧有一帧同步上传，{@link #getUploadSavedUs()}才有结果
+     * @param enable
+     */
+    public void setUploadCompareEnable(boolean enable) {
+        this.uploadCompareEnable = enable;
+    }
+
+    public boolean isUploadCompareEnable() {
+        return uploadCompareEnable;
+    }
+
+    /**
+     * PBO上传每帧的平均耗时
+     * @return 微秒，没有数据时是0
+     */
+    public long getPixelBufferUploadAverageUs() {
+        return pixelBufferUploadCount == 0 ? 0 : TimeUtil.nanoToMicro(pixelBufferUploadTimeNs / pixelBufferUploadCount);
+    }
 
+    /**
+     * 直接上传每帧的平均耗时
+     * @return 微秒，没有数据时是0
+     */
+    public long getDirectUploadAverageUs() {
+        return directUploadCount == 0 ? 0 : TimeUtil.nanoToMicro(directUploadTimeNs / directUploadCount);
+    }
+
+    /**
+     * PBO上传每帧比直接上传节省的时间，需要开启{@link #setUploadCompareEnable(boolean)}
+     * @return 微秒，两种方式有一种没有数据时是0
+     */
+    public long getUploadSavedUs() {
+        if (pixelBufferUploadCount == 0 || directUploadCount == 0) {
+            return 0;
+        }
+        return getDirectUploadAverageUs() - getPixelBufferUploadAverageUs();
+    }
+
+
+    /**
+     * 设置合并渲染的Transform，Transform要先调用prepareFusion得到片元代码，传空列表就恢复成只做YUV转RGB
+     * Transform和片元代码都没变时不会重新生成shader
+     *
+     * @param transformList
+     */
+    synchronized void setFusionTransforms(List<GLVideoTransform> transformList) {
+        if (!fusionTransformList.update(transformList)) {
+            return;
         }
+        updateFrameShader();
+        requestProgram = true;//shader相同但Transform变了，也要让新的Transform获取uniform的位置
     }
 
+    private void updateFrameShader() {
+        setFrameShader(new YUV420FragmentShader(yuv420Type, linearFilter, fusionTransformList.getFragmentList()));
+    }
+
+    @Override
+    synchronized GLShaderCode createFusionFrameShader(List<GLFusionFragment> fragmentList) {
+        return createFusionFrameShader(fragmentList, linearFilter);
+    }
+
+    /**
+     * 还不知道输出大小时，指定是否插值生成合并shader
+     * @param fragmentList
+     * @param linearFilter
+     * @return
+     */
+    synchronized GLShaderCode createFusionFrameShader(List<GLFusionFragment> fragmentList, boolean linearFilter) {
+        return new YUV420FragmentShader(yuv420Type, linearFilter, fragmentList);
+    }
 
     @Override
     protected void onProgramChange(int programId) {
@@ -300,11 +464,22 @@ class GLYUV420Renderer extends GLRenderer {
         yuvToRgbMatrixUniform = GLES20.glGetUniformLocation(programId, YUV420FragmentShader.YUV_TO_RGB_MATRIX);
         bitDepthUniform = GLES20.glGetUniformLocation(programId, YUV420FragmentShader.BIT_DEPTH);
         bitMaskUniform = GLES20.glGetUniformLocation(programId, YUV420FragmentShader.BIT_MASK);
+        fusionTransformList.programChange(programId);
     }
 
     @Override
     protected boolean onRenderStart() {
-        return bufferAvailable;
+        if (!bufferAvailable) {
+            return false;
+        }
+        // 渲染到屏幕等大小不一样的目标上时texelFetch取最近像素会有锯齿，要切换成双线性插值
+        boolean requestLinearFilter = renderTarget.width != displayRect.width()
+                || renderTarget.height != displayRect.height();
+        if (requestLinearFilter != linearFilter) {
+            linearFilter = requestLinearFilter;
+            updateFrameShader();
+        }
+        return true;
     }
 
     @Override
@@ -352,7 +527,9 @@ class GLYUV420Renderer extends GLRenderer {
                 0);
         GLES20.glUniform1i(bitDepthUniform, bitDepth);
         GLES20.glUniform1i(bitMaskUniform, bitMask);
+        fusionTransformList.render(3);//0到2是YUV平面的纹理
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        fusionTransformList.renderFinish();
         GLES20.glDisableVertexAttribArray(positionCoordinateAttribute);
         GLES20.glDisableVertexAttribArray(textureCoordinateAttribute);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);//虽然glActiveTexture有多次，但是绑定纹理回去就只要调用一次就行，不需要多次glActiveTexture
@@ -362,8 +539,18 @@ class GLYUV420Renderer extends GLRenderer {
      * YUV每个平面的纹理数据封装
      */
     static class PlaneTexture {
+
+        /**
+         * PBO的个数，轮流使用，上一帧的PBO还在传输时不需要等待
+         */
+        private static final int PIXEL_BUFFER_COUNT = 3;
+
         final int textureId;
 
+        private int[] pixelBufferIds;
+
+        private int pixelBufferIndex;
+
         final int width;
 
         final int height;
@@ -444,6 +631,82 @@ class GLYUV420Renderer extends GLRenderer {
             GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
 
         }
+
+        /**
+         * 先把数据拷贝到PBO映射的内存，再从PBO更新纹理，glTexSubImage2D不需要等待数据拷贝就能返回
+         * 映射时用GL_MAP_INVALIDATE_BUFFER_BIT告诉驱动不需要旧数据，GPU还在读的话驱动会分配新的内存而不是等待
+         *
+         * @param buffer
+         * @return false表示PBO不可用，纹理没有更新
+         */
+        public boolean updatePixelBuffer(ByteBuffer buffer) {
+            if (pixelBufferIds == null) {
+                pixelBufferIds = new int[PIXEL_BUFFER_COUNT];
+                GLES30.glGenBuffers(PIXEL_BUFFER_COUNT, pixelBufferIds, 0);
+                for (int pixelBufferId : pixelBufferIds) {
+                    GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, pixelBufferId);
+                    GLES30.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, bufferSize, null, GLES30.GL_STREAM_DRAW);
+                }
+                GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+            }
+            int pixelBufferId = pixelBufferIds[pixelBufferIndex];
+            pixelBufferIndex = (pixelBufferIndex + 1) % PIXEL_BUFFER_COUNT;
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, pixelBufferId);
+            ByteBuffer mapBuffer = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_UNPACK_BUFFER,
+                    0,
+                    bufferSize,
+                    GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+            if (mapBuffer == null) {
+                GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+                clearGLError();
+                return false;
+            }
+            int position = buffer.position();
+            mapBuffer.put(buffer);
+            buffer.position(position);//失败时还要用buffer直接上传
+            if (!GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER)) {//映射的内存被破坏了，数据无效
+                GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+                clearGLError();
+                return false;
+            }
+            GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, alignment);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+            GLES30.glTexSubImage2D(
+                    GLES20.GL_TEXTURE_2D,
+                    0,
+                    0,
+                    0,
+                    width,
+                    height,
+                    bufferFormat,
+                    bufferType,
+                    0);//绑定了PBO时最后一个参数是PBO中的偏移
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+            return true;
+        }
+
+        /**
+         * 删除纹理和PBO
+         */
+        public void release() {
+            GLESUtil.delTextureId(textureId);
+            if (pixelBufferIds != null) {
+                GLES30.glDeleteBuffers(PIXEL_BUFFER_COUNT, pixelBufferIds, 0);
+                pixelBufferIds = null;
+            }
+        }
+
+        /**
+         * 清掉PBO失败产生的GL错误，避免后面checkGLError抛出异常
+         */
+        private static void clearGLError() {
+            int error;
+            do {
+                error = GLES20.glGetError();
+            } while (error != GLES20.GL_NO_ERROR);
+        }
     }
 
 
@@ -0,0 +1,317 @@
+package com.norman.android.hdrsample.player;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.view.Display;
+import android.view.WindowManager;
+
+import com.norman.android.hdrsample.util.AppUtil;
+
+/**
+ * 按屏幕vsync安排每一帧的显示时间，替换原来按毫秒sleep和固定50ms掉帧的做法
+ * 1. 第一帧对齐到下一个vsync，之后每一帧按视频时间算出目标时间，再吸附到最近的vsync上
+ * 2. 和上一帧落在同一个vsync上(视频帧率比屏幕刷新率高)的帧直接丢弃
+ * 3. 来不及在vsync前渲染完的帧算迟到，迟到超过一个vsync周期就丢弃，连续丢弃太多时重新对齐时间，避免一直掉帧
+ * 4. 两帧之间隔了多个vsync表示上一帧被重复显示(譬如24帧视频在60Hz屏幕上)
+ * 渲染耗时用指数移动平均统计，提前这么多时间开始渲染
+ * 时间都是System.nanoTime，和Choreographer的frameTimeNanos是同一个时钟
+ */
+class VideoFrameScheduler {
+
+    /**
+     * 返回这个值表示这一帧要丢弃
+     */
+    static final long DROP_FRAME = -1;
+
+    /**
+     * 最多连续丢弃的帧数，超过就重新对齐时间
+     */
+    private static final int MAX_CONSECUTIVE_DROP_COUNT = 4;
+
+    /**
+     * 渲染耗时的平滑系数
+     */
+    private static final float RENDER_COST_SMOOTH_FACTOR = 0.1f;
+
+    private final Clock clock;
+
+    private long anchorPresentationTimeUs = -1;
+
+    private long anchorTimeNs;
+
+    private long lastPresentTimeNs = -1;
+
+    private long renderCostNs;
+
+    private int consecutiveDropCount;
+
+    private long renderedCount;
+
+    private long droppedCount;
+
+    private long lateCount;
+
+    private long repeatedCount;
+
+    VideoFrameScheduler(Clock clock) {
+        this.clock = clock;
+    }
+
+    Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * 安排一帧的显示
+     * @param presentationTimeUs 视频帧时间
+     * @return 开始渲染前还要等待的纳秒数，{@link #DROP_FRAME}表示丢弃
+     */
+    synchronized long schedule(long presentationTimeUs) {
+        long nowNs = clock.nowNs();
+        long periodNs = Math.max(clock.getVsyncPeriodNs(), 1);
+        if (anchorPresentationTimeUs < 0) {
+            anchorPresentationTimeUs = presentationTimeUs;
+            anchorTimeNs = nextVsync(nowNs + renderCostNs, periodNs);
+            lastPresentTimeNs = -1;
+        }
+        long targetTimeNs = anchorTimeNs + (presentationTimeUs - anchorPresentationTimeUs) * 1000;
+        long presentTimeNs = nearestVsync(targetTimeNs, periodNs);
+        if (lastPresentTimeNs >= 0 && presentTimeNs <= lastPresentTimeNs) {//上一帧已经占了这个vsync
+            return drop();
+        }
+        long deadlineNs = presentTimeNs - renderCostNs;
+        if (deadlineNs < nowNs) {
+            lateCount++;
+            if (nowNs - deadlineNs >= periodNs) {
+                if (consecutiveDropCount < MAX_CONSECUTIVE_DROP_COUNT) {
+                    return drop();
+                }
+                // 解码一直跟不上，重新对齐时间，从这一帧开始按新的时间显示
+                anchorPresentationTimeUs = presentationTimeUs;
+                anchorTimeNs = nextVsync(nowNs + renderCostNs, periodNs);
+                presentTimeNs = anchorTimeNs;
+            } else {
+                presentTimeNs = nextVsync(nowNs + renderCostNs, periodNs);
+            }
+            deadlineNs = nowNs;
+        }
+        if (lastPresentTimeNs >= 0) {
+            long vsyncCount = (presentTimeNs - lastPresentTimeNs + periodNs / 2) / periodNs;
+            if (vsyncCount > 1) {
+                repeatedCount += vsyncCount - 1;
+            }
+        }
+        lastPresentTimeNs = presentTimeNs;
+        consecutiveDropCount = 0;
+        renderedCount++;
+        return deadlineNs - nowNs;
+    }
+
+    /**
+     * 最近一次{@link #schedule(long)}安排的显示时间，渲染时作为这一帧的presentation time
+     * @return 没有安排过返回-1
+     */
+    synchronized long getPresentTimeNs() {
+        return lastPresentTimeNs;
+    }
+
+    /**
+     * 统计一帧实际的渲染耗时
+     * @param costNs
+     */
+    synchronized void onRenderCost(long costNs) {
+        if (costNs < 0) {
+            return;
+        }
+        renderCostNs = renderCostNs == 0 ? costNs :
+                (long) (renderCostNs + (costNs - renderCostNs) * RENDER_COST_SMOOTH_FACTOR);
+    }
+
+    /**
+     * 清空时间对齐信息，seek和暂停时调用，统计信息保留
+     */
+    synchronized void flush() {
+        anchorPresentationTimeUs = -1;
+        lastPresentTimeNs = -1;
+        consecutiveDropCount = 0;
+    }
+
+    /**
+     * 清空所有信息
+     */
+    synchronized void reset() {
+        flush();
+        renderCostNs = 0;
+        renderedCount = 0;
+        droppedCount = 0;
+        lateCount = 0;
+        repeatedCount = 0;
+    }
+
+    synchronized long getRenderedCount() {
+        return renderedCount;
+    }
+
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    synchronized long getLateCount() {
+        return lateCount;
+    }
+
+    synchronized long getRepeatedCount() {
+        return repeatedCount;
+    }
+
+    synchronized long getRenderCostNs() {
+        return renderCostNs;
+    }
+
+    private long drop() {
+        droppedCount++;
+        consecutiveDropCount++;
+        return DROP_FRAME;
+    }
+
+    private long nearestVsync(long timeNs, long periodNs) {
+        long vsyncNs = clock.getLastVsyncNs();
+        if (vsyncNs <= 0) {
+            return timeNs;
+        }
+        return vsyncNs + Math.round((timeNs - vsyncNs) / (double) periodNs) * periodNs;
+    }
+
+    private long nextVsync(long timeNs, long periodNs) {
+        long vsyncNs = clock.getLastVsyncNs();
+        if (vsyncNs <= 0) {
+            return timeNs;
+        }
+        long count = (long) Math.ceil((timeNs - vsyncNs) / (double) periodNs);
+        return vsyncNs + count * periodNs;
+    }
+
+    /**
+     * vsync时钟，可以替换成模拟的时钟
+     */
+    interface Clock {
+
+        void start();
+
+        void stop();
+
+        long nowNs();
+
+        /**
+         * 最近一次vsync的时间，还没有收到vsync时是0
+         * @return
+         */
+        long getLastVsyncNs();
+
+        long getVsyncPeriodNs();
+    }
+
+    /**
+     * 用Choreographer获取vsync时间，Choreographer要在有Looper的线程使用，所以放在主线程
+     * 周期每次start时用屏幕刷新率算，收到vsync以后用相邻两次的间隔修正，支持90Hz、120Hz
+     */
+    static class ChoreographerClock implements Clock, Choreographer.FrameCallback {
+
+        private static final long DEFAULT_VSYNC_PERIOD_NS = 1000_000_000L / 60;
+
+        private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+        private final Runnable startRunnable = new Runnable() {
+            @Override
+            public void run() {
+                Choreographer.getInstance().removeFrameCallback(ChoreographerClock.this);
+                Choreographer.getInstance().postFrameCallback(ChoreographerClock.this);
+            }
+        };
+
+        private final Runnable stopRunnable = new Runnable() {
+            @Override
+            public void run() {
+                Choreographer.getInstance().removeFrameCallback(ChoreographerClock.this);
+            }
+        };
+
+        private volatile boolean running;
+
+        private volatile long lastVsyncNs;
+
+        private volatile long vsyncPeriodNs = getDisplayVsyncPeriodNs();
+
+        @Override
+        public void start() {
+            if (running) {
+                return;
+            }
+            running = true;
+            lastVsyncNs = 0;
+            vsyncPeriodNs = getDisplayVsyncPeriodNs();
+            mainHandler.removeCallbacks(stopRunnable);
+            mainHandler.post(startRunnable);
+        }
+
+        @Override
+        public void stop() {
+            if (!running) {
+                return;
+            }
+            running = false;
+            mainHandler.removeCallbacks(startRunnable);
+            mainHandler.post(stopRunnable);
+        }
+
+        @Override
+        public long nowNs() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public long getLastVsyncNs() {
+            return lastVsyncNs;
+        }
+
+        @Override
+        public long getVsyncPeriodNs() {
+            return vsyncPeriodNs;
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!running) {
+                return;
+            }
+            long previousVsyncNs = lastVsyncNs;
+            lastVsyncNs = frameTimeNanos;
+            if (previousVsyncNs > 0) {
+                long intervalNs = frameTimeNanos - previousVsyncNs;
+                long periodNs = vsyncPeriodNs;
+                // 主线程卡顿会跳过vsync，间隔太大的不参与计算
+                if (intervalNs > periodNs / 2 && intervalNs < periodNs * 3 / 2) {
+                    vsyncPeriodNs = periodNs + (intervalNs - periodNs) / 8;
+                } else if (intervalNs > 0 && intervalNs <= periodNs / 2) {//刷新率变高了
+                    vsyncPeriodNs = intervalNs;
+                }
+            }
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        private static long getDisplayVsyncPeriodNs() {
+            try {
+                WindowManager windowManager = (WindowManager) AppUtil.getAppContext().getSystemService(Context.WINDOW_SERVICE);
+                Display display = windowManager.getDefaultDisplay();
+                float refreshRate = display.getRefreshRate();
+                if (refreshRate > 0) {
+                    return (long) (1000_000_000L / refreshRate);
+                }
+            } catch (Exception ignored) {
+            }
+            return DEFAULT_VSYNC_PERIOD_NS;
+        }
+    }
+}
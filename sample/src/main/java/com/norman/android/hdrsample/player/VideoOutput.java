@@ -298,9 +298,10 @@ public abstract class VideoOutput {
      * 每帧数据渲染完成回调
      *
      * @param presentationTimeUs
+     * @param presentTimeNs 安排好的显示时间，System.nanoTime的时钟
      */
-    final synchronized void onDecodeBufferRender(long presentationTimeUs) {
-        boolean render = onOutputBufferRender(presentationTimeUs);
+    final synchronized void onDecodeBufferRender(long presentationTimeUs, long presentTimeNs) {
+        boolean render = onOutputBufferRender(presentationTimeUs, presentTimeNs);
         if (render) {
             notifyNextFrame();
         }
@@ -357,10 +358,11 @@ public abstract class VideoOutput {
      * 渲染完成回调
      *
      * @param presentationTimeUs
+     * @param presentTimeNs 要显示的vsync时间，设置给EGL的presentation time，系统会在这个时间显示，不需要等到这个时间再渲染
      * @return
      */
 
-    protected boolean onOutputBufferRender(long presentationTimeUs) {
+    protected boolean onOutputBufferRender(long presentationTimeUs, long presentTimeNs) {
         return true;
     }
 
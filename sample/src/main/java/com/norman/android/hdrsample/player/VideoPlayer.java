@@ -13,4 +13,22 @@ public interface VideoPlayer extends Player {
 
     VideoOutput getVideoOutput();
 
+    /**
+     * 赶不上vsync或者和上一帧落在同一个vsync上被丢弃的帧数
+     * @return
+     */
+    long getDroppedFrameCount();
+
+    /**
+     * 没能在vsync前开始渲染的帧数，包括后来被丢弃的
+     * @return
+     */
+    long getLateFrameCount();
+
+    /**
+     * 一帧显示多个vsync时多出来的次数，譬如24帧视频在60Hz屏幕上
+     * @return
+     */
+    long getRepeatedFrameCount();
+
 }
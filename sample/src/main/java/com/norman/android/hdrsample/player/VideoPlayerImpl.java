@@ -1,11 +1,10 @@
 package com.norman.android.hdrsample.player;
 
 import android.media.MediaFormat;
-import android.os.SystemClock;
 
 import com.norman.android.hdrsample.player.decode.VideoDecoder;
 import com.norman.android.hdrsample.player.extract.VideoExtractor;
-import com.norman.android.hdrsample.util.TimeUtil;
+import com.norman.android.hdrsample.util.FrameTimingProfiler;
 
 import java.nio.ByteBuffer;
 
@@ -13,18 +12,39 @@ class VideoPlayerImpl extends DecodePlayerImpl<VideoDecoder, VideoExtractor> imp
 
     private static final String VIDEO_PLAYER_NAME = "VideoPlayer";
 
+    private  VideoOutput currentVideoOutput;
+
+    private  VideoOutput requestVideoOutput;
+
     /**
-     * 最大掉帧时间
+     * setFrameClock会替换，解码回调线程读取，所以是volatile
      */
-    private static final int MAX_FRAME_JANK_MS = 50;
+    private volatile VideoFrameScheduler frameScheduler = new VideoFrameScheduler(new VideoFrameScheduler.ChoreographerClock());//按vsync安排每一帧的显示
 
-    private  VideoOutput currentVideoOutput;
+    /**
+     * 已经安排过的帧，解码器延后回调同一帧时不重复安排
+     * 下面这些字段在解码的回调线程读写，seek、暂停和停止时在播放线程重置，所以都是volatile
+     */
+    private volatile long scheduledTimeUs;
 
-    private  VideoOutput requestVideoOutput;
+    private volatile boolean scheduled;
 
-    private final TimeSyncer timeSyncer = new TimeSyncer();//视频音画同步
+    /**
+     * 赶不上vsync或者和上一帧同一个vsync，不需要渲染
+     */
+    private volatile boolean renderDrop;
 
-    private Long seekTimeUs;
+    /**
+     * 安排的开始渲染时间
+     */
+    private volatile long renderDeadlineNs;
+
+    /**
+     * 安排的显示时间
+     */
+    private volatile long renderPresentTimeNs;
+
+    private volatile Long seekTimeUs;
 
     public VideoPlayerImpl() {
         this(VIDEO_PLAYER_NAME);
@@ -37,33 +57,40 @@ class VideoPlayerImpl extends DecodePlayerImpl<VideoDecoder, VideoExtractor> imp
     @Override
     protected void onPlaySeek(long presentationTimeUs) {
         super.onPlaySeek(presentationTimeUs);
-        seekTimeUs = presentationTimeUs;
-        timeSyncer.flush();//seek时候清空时间同步信息
+        seekTimeUs = getSeekFrameTimeUs();//精确到帧的时间，目标帧刚好可以渲染
+        frameScheduler.flush();//seek时候清空时间同步信息
+        scheduled = false;
     }
 
     @Override
     protected void onPlayStart() {
         super.onPlayStart();
+        frameScheduler.getClock().start();
         currentVideoOutput.start();
     }
 
     @Override
     protected void onPlayPause() {
         super.onPlayPause();
-        timeSyncer.flush();//
+        frameScheduler.flush();
+        scheduled = false;
+        frameScheduler.getClock().stop();//暂停时不需要vsync
         currentVideoOutput.pause();
     }
 
     @Override
     protected void onPlayResume() {
         super.onPlayResume();
+        frameScheduler.getClock().start();
         currentVideoOutput.resume();
     }
 
     @Override
     protected void onPlayStop() {
         super.onPlayStop();
-        timeSyncer.reset();
+        frameScheduler.getClock().stop();
+        frameScheduler.reset();
+        scheduled = false;
         seekTimeUs = null;
         currentVideoOutput.stop();
 
@@ -84,6 +111,21 @@ class VideoPlayerImpl extends DecodePlayerImpl<VideoDecoder, VideoExtractor> imp
         currentVideoOutput.onDecodeMediaFormatChanged(outputFormat);
     }
 
+    /**
+     * 没到开始渲染的时间解码器先保留这一帧，不在回调线程里等待
+     */
+    @Override
+    protected long getOutputBufferDelayNs(long presentationTimeUs) {
+        if (!isPlaying() || (seekTimeUs != null && presentationTimeUs < seekTimeUs)) {
+            return 0;
+        }
+        schedule(presentationTimeUs);
+        if (renderDrop) {
+            return 0;
+        }
+        return Math.max(renderDeadlineNs - System.nanoTime(), 0);
+    }
+
     @Override
     protected boolean onOutputBufferAvailable(ByteBuffer outputBuffer, long presentationTimeUs) {
         if (!isPlaying()) {
@@ -94,11 +136,14 @@ class VideoPlayerImpl extends DecodePlayerImpl<VideoDecoder, VideoExtractor> imp
         } else if (seekTimeUs != null) {
             seekTimeUs = null;
         }
-        long sleepTime = TimeUtil.microToMill(timeSyncer.sync(presentationTimeUs));
-        if (sleepTime <= -MAX_FRAME_JANK_MS) {//掉帧不需要渲染
+        schedule(presentationTimeUs);
+        scheduled = false;//这一帧已经处理，下一帧重新安排
+        if (renderDrop) {
             return false;
         }
+        long startTimeNs = System.nanoTime();
         currentVideoOutput.onDecodeBufferAvailable(outputBuffer,presentationTimeUs);
+        FrameTimingProfiler.record(FrameTimingProfiler.STAGE_BUFFER_AVAILABLE, System.nanoTime() - startTimeNs);
         return true;
     }
 
@@ -107,21 +152,36 @@ class VideoPlayerImpl extends DecodePlayerImpl<VideoDecoder, VideoExtractor> imp
         seekTimeUs = null;//视频播放结束清空原先的seek信息
     }
 
+    /**
+     * 同一帧只安排一次，延后回调时用第一次安排的时间
+     * @param presentationTimeUs
+     */
+    private void schedule(long presentationTimeUs) {
+        if (scheduled && scheduledTimeUs == presentationTimeUs) {
+            return;
+        }
+        long waitTimeNs = frameScheduler.schedule(presentationTimeUs);
+        scheduled = true;
+        scheduledTimeUs = presentationTimeUs;
+        renderDrop = waitTimeNs == VideoFrameScheduler.DROP_FRAME;
+        if (!renderDrop) {
+            renderDeadlineNs = System.nanoTime() + waitTimeNs;
+            renderPresentTimeNs = frameScheduler.getPresentTimeNs();
+        }
+    }
+
     @Override
     protected void onOutputBufferRender(long presentationTimeUs) {
-        long sleepTime = TimeUtil.microToMill(timeSyncer.sync(presentationTimeUs));
-        if (sleepTime > 0) {
-            try {
-                Thread.sleep(sleepTime);//还没渲染的时间点就等待
-            } catch (InterruptedException ignored) {
-            }
-        }
-        currentVideoOutput.onDecodeBufferRender(presentationTimeUs);
+        // 解码器到开始渲染的时间才回调，这里直接渲染，显示时间用安排好的vsync时间
+        long renderStartNs = System.nanoTime();
+        currentVideoOutput.onDecodeBufferRender(presentationTimeUs, renderPresentTimeNs);
+        frameScheduler.onRenderCost(System.nanoTime() - renderStartNs);
     }
 
     @Override
     protected void onPlayRelease() {
         super.onPlayRelease();
+        frameScheduler.getClock().stop();
         currentVideoOutput.release();
     }
 
@@ -139,37 +199,29 @@ class VideoPlayerImpl extends DecodePlayerImpl<VideoDecoder, VideoExtractor> imp
         return requestVideoOutput;
     }
 
-    /**
-     * 保证时间同步
-     */
-    static class TimeSyncer {
-        private long firstSystemTimeUs;
-        private long firstPlayTimeUs;
-
-
-
-        public synchronized void flush() {
-            firstSystemTimeUs = 0;
-            firstPlayTimeUs = 0;
-        }
+    @Override
+    public long getDroppedFrameCount() {
+        return frameScheduler.getDroppedCount();
+    }
 
-        public synchronized void reset() {
-            firstSystemTimeUs = 0;
-            firstPlayTimeUs = 0;
-        }
+    @Override
+    public long getLateFrameCount() {
+        return frameScheduler.getLateCount();
+    }
 
+    @Override
+    public long getRepeatedFrameCount() {
+        return frameScheduler.getRepeatedCount();
+    }
 
-        public synchronized long sync(long timeUs) {
-            long currentSystemUs = TimeUtil.nanoToMicro(SystemClock.elapsedRealtimeNanos());
-            if (firstSystemTimeUs == 0) {
-                firstSystemTimeUs = currentSystemUs;
-                firstPlayTimeUs = timeUs;
-                return 0;
-            } else {
-                long timeCost = currentSystemUs - firstSystemTimeUs;
-                long sleepTime = timeUs - firstPlayTimeUs - timeCost;
-                return sleepTime;
-            }
+    /**
+     * 替换vsync时钟，譬如用模拟的时钟验证掉帧逻辑，要在prepare之前调用
+     * @param clock
+     */
+    synchronized void setFrameClock(VideoFrameScheduler.Clock clock) {
+        if (isPrepared()) {
+            throw new IllegalStateException("setFrameClock must before prepare or after stop");
         }
+        frameScheduler = new VideoFrameScheduler(clock);
     }
 }
@@ -3,8 +3,6 @@ package com.norman.android.hdrsample.player.color;
 import static com.norman.android.hdrsample.player.color.ColorRange.FULL;
 import static com.norman.android.hdrsample.player.color.ColorRange.LIMITED;
 
-import android.media.MediaFormat;
-
 import androidx.annotation.IntDef;
 
 import java.lang.annotation.Retention;
@@ -19,7 +17,13 @@ import java.lang.annotation.RetentionPolicy;
 })
 @Retention(RetentionPolicy.SOURCE)
 public @interface ColorRange {
-   int LIMITED = MediaFormat.COLOR_RANGE_LIMITED;
-   int FULL =  MediaFormat.COLOR_RANGE_FULL;
+   /**
+    * 和MediaFormat.COLOR_RANGE_LIMITED一样，直接写数值不依赖Android，benchmark模块也能用
+    */
+   int LIMITED = 2;
+   /**
+    * 和MediaFormat.COLOR_RANGE_FULL一样
+    */
+   int FULL = 1;
 
 }
@@ -0,0 +1,247 @@
+package com.norman.android.hdrsample.player.color;
+
+import java.nio.ByteBuffer;
+
+/**
+ * HDR10+动态元数据(SMPTE ST 2094-40)，每一帧或者每个场景都可以不一样
+ * 数据格式是ITU-T T.35的user data，从国家码0xB5开始，和MediaFormat.KEY_HDR10_PLUS_INFO、HEVC SEI里的一样
+ * 只解析第一个窗口(整个画面)，其他窗口的几何信息跳过
+ * 色调映射曲线：x是相对场景峰值亮度归一化的亮度，小于kneePointX时线性映射到kneePointY，
+ * 大于时用P0=0、P1...PN=bezierCurveAnchors、PN+1=1的贝塞尔曲线，y是相对目标屏幕最大亮度归一化的亮度
+ */
+public class HDR10PlusMetadata {
+
+    /**
+     * 最多的贝塞尔曲线锚点个数
+     */
+    public static final int MAX_BEZIER_CURVE_ANCHOR_COUNT = 15;
+
+    private static final int ITU_T_T35_COUNTRY_CODE = 0xB5;
+    private static final int ITU_T_T35_TERMINAL_PROVIDER_CODE = 0x003C;
+    private static final int ITU_T_T35_TERMINAL_PROVIDER_ORIENTED_CODE = 0x0001;
+    private static final int APPLICATION_IDENTIFIER = 4;
+
+    /**
+     * maxscl和averageMaxrgb是100000对应10000nit
+     */
+    private static final float MAXRGB_TO_NITS = 10000f / 100000f;
+
+    /**
+     * 制作时的目标屏幕最大亮度，单位nit
+     */
+    public int targetedSystemDisplayMaximumLuminance;
+
+    /**
+     * R、G、B三个分量的场景最大亮度，单位nit
+     */
+    public final float[] maxscl = new float[3];
+
+    /**
+     * 场景maxRGB的平均亮度，单位nit
+     */
+    public float averageMaxrgb;
+
+    /**
+     * 是否有色调映射曲线
+     */
+    public boolean toneMappingEnable;
+
+    /**
+     * 0到1
+     */
+    public float kneePointX;
+
+    /**
+     * 0到1
+     */
+    public float kneePointY;
+
+    public int bezierCurveAnchorCount;
+
+    /**
+     * 0到1，只有前bezierCurveAnchorCount个有效
+     */
+    public final float[] bezierCurveAnchors = new float[MAX_BEZIER_CURVE_ANCHOR_COUNT];
+
+    /**
+     * 解析时复用，每帧解析到同一个对象时不需要分配
+     */
+    private BitReader bitReader;
+
+    /**
+     * 场景的峰值亮度，maxscl的最大值
+     * @return 单位nit
+     */
+    public float getScenePeakLuminance() {
+        return Math.max(maxscl[0], Math.max(maxscl[1], maxscl[2]));
+    }
+
+    /**
+     * 解析T.35数据，不会改变buffer的position
+     * @param buffer 从国家码开始
+     * @return 不是HDR10+数据或者数据不完整返回null
+     */
+    public static HDR10PlusMetadata parse(ByteBuffer buffer) {
+        if (buffer == null) {
+            return null;
+        }
+        return parse(buffer, buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * 解析T.35数据
+     * @param buffer
+     * @param offset 国家码的位置
+     * @param length
+     * @return 不是HDR10+数据或者数据不完整返回null
+     */
+    public static HDR10PlusMetadata parse(ByteBuffer buffer, int offset, int length) {
+        HDR10PlusMetadata metadata = new HDR10PlusMetadata();
+        return parse(buffer, offset, length, metadata) ? metadata : null;
+    }
+
+    /**
+     * 解析T.35数据到已有的对象，每帧都要解析时复用对象，不需要分配
+     * @param buffer
+     * @param offset 国家码的位置
+     * @param length
+     * @param metadata 解析结果，返回false时内容是不完整的，不能使用
+     * @return 不是HDR10+数据或者数据不完整返回false
+     */
+    public static boolean parse(ByteBuffer buffer, int offset, int length, HDR10PlusMetadata metadata) {
+        if (metadata.bitReader == null) {
+            metadata.bitReader = new BitReader();
+        }
+        BitReader reader = metadata.bitReader;
+        reader.reset(buffer, offset, length);
+        metadata.toneMappingEnable = false;
+        metadata.kneePointX = 0;
+        metadata.kneePointY = 0;
+        metadata.bezierCurveAnchorCount = 0;
+        try {
+            if (reader.read(8) != ITU_T_T35_COUNTRY_CODE
+                    || reader.read(16) != ITU_T_T35_TERMINAL_PROVIDER_CODE
+                    || reader.read(16) != ITU_T_T35_TERMINAL_PROVIDER_ORIENTED_CODE
+                    || reader.read(8) != APPLICATION_IDENTIFIER) {
+                return false;
+            }
+            int applicationVersion = reader.read(8);
+            if (applicationVersion > 1) {
+                return false;
+            }
+            int numWindows = reader.read(2);
+            if (numWindows == 0) {
+                return false;
+            }
+            for (int i = 1; i < numWindows; i++) {
+                // 窗口的位置、椭圆参数和overlap_process_option
+                reader.skip(16 * 6 + 8 + 16 * 3 + 1);
+            }
+            metadata.targetedSystemDisplayMaximumLuminance = reader.read(27);
+            if (reader.read(1) != 0) {//targeted_system_display_actual_peak_luminance
+                skipActualPeakLuminance(reader);
+            }
+            for (int w = 0; w < numWindows; w++) {
+                if (w == 0) {//只保存第一个窗口，其他窗口读过去就行
+                    for (int i = 0; i < 3; i++) {
+                        metadata.maxscl[i] = reader.read(17) * MAXRGB_TO_NITS;
+                    }
+                    metadata.averageMaxrgb = reader.read(17) * MAXRGB_TO_NITS;
+                } else {
+                    reader.skip(17 * 4);
+                }
+                int numDistributions = reader.read(4);
+                reader.skip(numDistributions * (7 + 17));
+                reader.skip(10);//fraction_bright_pixels
+            }
+            if (reader.read(1) != 0) {//mastering_display_actual_peak_luminance
+                skipActualPeakLuminance(reader);
+            }
+            for (int w = 0; w < numWindows; w++) {
+                boolean toneMappingFlag = reader.read(1) != 0;
+                if (toneMappingFlag) {
+                    float kneePointX = reader.read(12) / 4095f;
+                    float kneePointY = reader.read(12) / 4095f;
+                    int anchorCount = reader.read(4);
+                    for (int i = 0; i < anchorCount; i++) {
+                        float anchor = reader.read(10) / 1023f;
+                        if (w == 0) {
+                            metadata.bezierCurveAnchors[i] = anchor;
+                        }
+                    }
+                    if (w == 0) {
+                        metadata.toneMappingEnable = true;
+                        metadata.kneePointX = kneePointX;
+                        metadata.kneePointY = kneePointY;
+                        metadata.bezierCurveAnchorCount = anchorCount;
+                    }
+                }
+                if (reader.read(1) != 0) {//color_saturation_mapping_flag
+                    reader.skip(6);
+                }
+            }
+            return true;
+        } catch (IndexOutOfBoundsException e) {
+            return false;
+        } finally {
+            reader.reset(null, 0, 0);//不持有sample的buffer
+        }
+    }
+
+    /**
+     * 拷贝另一个元数据的内容
+     * @param metadata
+     */
+    public void set(HDR10PlusMetadata metadata) {
+        targetedSystemDisplayMaximumLuminance = metadata.targetedSystemDisplayMaximumLuminance;
+        System.arraycopy(metadata.maxscl, 0, maxscl, 0, maxscl.length);
+        averageMaxrgb = metadata.averageMaxrgb;
+        toneMappingEnable = metadata.toneMappingEnable;
+        kneePointX = metadata.kneePointX;
+        kneePointY = metadata.kneePointY;
+        bezierCurveAnchorCount = metadata.bezierCurveAnchorCount;
+        System.arraycopy(metadata.bezierCurveAnchors, 0, bezierCurveAnchors, 0, bezierCurveAnchorCount);
+    }
+
+    private static void skipActualPeakLuminance(BitReader reader) {
+        int numRows = reader.read(5);
+        int numCols = reader.read(5);
+        reader.skip(numRows * numCols * 4);
+    }
+
+    /**
+     * 按位读取，高位在前，超出长度抛出IndexOutOfBoundsException
+     */
+    private static class BitReader {
+        private ByteBuffer buffer;
+        private int end;
+        private int bitPosition;
+
+        void reset(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.end = offset + length;
+            this.bitPosition = offset * 8;
+        }
+
+        int read(int bitCount) {
+            int value = 0;
+            for (int i = 0; i < bitCount; i++) {
+                int bytePosition = bitPosition >> 3;
+                if (bytePosition >= end) {
+                    throw new IndexOutOfBoundsException();
+                }
+                int bit = (buffer.get(bytePosition) >> (7 - (bitPosition & 7))) & 1;
+                value = (value << 1) | bit;
+                bitPosition++;
+            }
+            return value;
+        }
+
+        void skip(int bitCount) {
+            if (((bitPosition + bitCount + 7) >> 3) > end) {
+                throw new IndexOutOfBoundsException();
+            }
+            bitPosition += bitCount;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package com.norman.android.hdrsample.player.decode;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步解码的状态和暂停时缓存的Buffer
+ * 解码器通过{@link Codec}传进来，不依赖Android，可以换成假的解码器在JVM上测试并发
+ * 修改状态的方法是synchronized的，保证和解码器的调用顺序一致；解码器回调线程读取状态不需要加锁
+ * 要在消息线程执行的操作(flush结束、恢复缓存的Buffer)由调用方post，这里只根据返回值判断要不要post
+ */
+class AsyncCodecController {
+
+    /**
+     * 回调是脏数据，直接丢掉
+     */
+    static final int CALLBACK_DROP = 0;
+    /**
+     * 运行中，回调直接处理
+     */
+    static final int CALLBACK_DISPATCH = 1;
+    /**
+     * 暂停中或者前面还有没到时间的输出，已经缓存起来等之后处理
+     */
+    static final int CALLBACK_RESUME = 2;
+
+    private static final int STATE_CONFIGURED = 1;
+    private static final int STATE_STARTED = 1 << 1;
+    private static final int STATE_PAUSED = 1 << 2;
+    private static final int STATE_RELEASED = 1 << 3;
+
+    /**
+     * flush的次数保存在状态的高位
+     */
+    private static final int FLUSH_SHIFT = 8;
+    private static final int FLUSH_UNIT = 1 << FLUSH_SHIFT;
+    private static final int FLUSH_MASK = ~(FLUSH_UNIT - 1);
+
+    /**
+     * configured、started、paused、released和flush次数合在一个int里，用CAS修改
+     */
+    private final AtomicInteger state = new AtomicInteger();
+
+    /**
+     * 读写都要加resumeBuffer的锁，flush的时候状态和清空在同一个锁里修改，
+     * 回调加入Buffer前在锁里重新检查状态，不会在清空以后再放进flush前的Buffer
+     * 包内可见是为了测试时持有这个锁，构造回调和flush的竞争
+     */
+    final ResumeBuffer resumeBuffer = new ResumeBuffer();
+
+    private final Codec codec;
+
+    AsyncCodecController(Codec codec) {
+        this.codec = codec;
+    }
+
+    synchronized void configure() {
+        updateState(0, STATE_CONFIGURED, 0);
+    }
+
+    synchronized void start() {
+        if (isReleased() || isStarted()) {
+            return;
+        }
+        if (!isConfigured()) {
+            throw new RuntimeException("mediacodec has not been configured");
+        }
+        codec.start();
+        updateState(0, STATE_STARTED, 0);
+    }
+
+    /**
+     * @return true表示已经重置，调用方要清理自己的数据
+     */
+    synchronized boolean reset() {
+        if (isReleased() || !isConfigured()) {
+            return false;
+        }
+        codec.reset();
+        cleanup();
+        return true;
+    }
+
+    /**
+     * @return true表示已经停止，调用方要清理自己的数据
+     */
+    synchronized boolean stop() {
+        if (isReleased()) {
+            return false;
+        }
+        if (!isStarted()) {
+            if (isConfigured()) {
+                throw new RuntimeException("stop must after mediacodec start");
+            }
+            return false;
+        }
+        codec.stop();
+        cleanup();
+        return true;
+    }
+
+    /**
+     * @return true表示已经销毁，调用方要清理自己的数据
+     */
+    synchronized boolean release() {
+        if (isReleased()) {
+            return false;
+        }
+        updateState(0, STATE_RELEASED, 0);
+        codec.release();
+        cleanup();
+        return true;
+    }
+
+    private void cleanup() {
+        synchronized (resumeBuffer) {
+            //只保留released，flush次数也清零
+            updateState(STATE_CONFIGURED | STATE_STARTED | STATE_PAUSED | FLUSH_MASK, 0, 0);
+            resumeBuffer.clear();
+        }
+    }
+
+    synchronized void pause() {
+        if (!isRunning()) {
+            return;
+        }
+        updateState(0, STATE_PAUSED, 0);
+    }
+
+    /**
+     * @return true表示要在消息线程中调用{@link #pollResumeInput()}和{@link #pollResumeOutput(ResumeBuffer.OutputInfo)}
+     */
+    synchronized boolean resume() {
+        if (!isPaused()) {
+            return false;
+        }
+        updateState(STATE_PAUSED, 0, 0);
+        return true;
+    }
+
+    /**
+     * @return true表示要在消息线程中调用{@link #finishFlush()}
+     */
+    synchronized boolean flush() {
+        if (!isStarted()) {
+            return false;
+        }
+        synchronized (resumeBuffer) {
+            updateState(0, 0, 1);
+            resumeBuffer.clear();
+        }
+        codec.flush();
+        return true;
+    }
+
+    /**
+     * mediaCodec异步模式中调用flush保证时序性要等待looper的消息执行完毕才能调用其他方法如start方法
+     */
+    synchronized void finishFlush() {
+        int currentState = state.get();
+        if (getFlushNumber(currentState) > 0) {
+            currentState = updateState(0, 0, -1);
+        }
+        if (getFlushNumber(currentState) <= 0 && isConfigured(currentState)) {//等请求的flush已经结束就可以重新开启了
+            codec.start();
+        }
+    }
+
+    /**
+     * 解码器回调输入Buffer
+     *
+     * @return {@link #CALLBACK_DROP}、{@link #CALLBACK_DISPATCH}或者{@link #CALLBACK_RESUME}
+     */
+    int onInputBufferAvailable(int index) {
+        int currentState = state.get();//同一个回调只读一次状态，判断前后一致
+        if (isDirtyCallback(currentState)) {
+            return CALLBACK_DROP;
+        }
+        if (isRunning(currentState)) {
+            return CALLBACK_DISPATCH;
+        }
+        synchronized (resumeBuffer) {
+            // 读状态以后可能已经flush或者恢复了，在锁里重新判断
+            int callbackState = checkCallbackState();
+            if (callbackState == CALLBACK_RESUME) {
+                resumeBuffer.addInput(index);
+            }
+            return callbackState;
+        }
+    }
+
+    /**
+     * 解码器回调输出Buffer
+     *
+     * @return {@link #CALLBACK_DROP}、{@link #CALLBACK_DISPATCH}或者{@link #CALLBACK_RESUME}
+     */
+    int onOutputBufferAvailable(int index, int offset, int size, long presentationTimeUs, int flags) {
+        int currentState = state.get();
+        if (isDirtyCallback(currentState)) {
+            return CALLBACK_DROP;
+        }
+        if (isRunning(currentState) && resumeBuffer.getOutputCount() == 0) {//大多数帧走这里，不用加锁
+            return CALLBACK_DISPATCH;
+        }
+        synchronized (resumeBuffer) {
+            int callbackState = checkCallbackState();
+            if (callbackState == CALLBACK_DISPATCH && resumeBuffer.getOutputCount() > 0) {
+                //前面还有延后处理的输出，要排在后面保证顺序
+                callbackState = CALLBACK_RESUME;
+            }
+            if (callbackState == CALLBACK_RESUME) {
+                resumeBuffer.addOutput(index, offset, size, presentationTimeUs, flags);
+            }
+            return callbackState;
+        }
+    }
+
+    private int checkCallbackState() {
+        int currentState = state.get();
+        if (isDirtyCallback(currentState)) {
+            return CALLBACK_DROP;
+        }
+        return isRunning(currentState) ? CALLBACK_DISPATCH : CALLBACK_RESUME;
+    }
+
+    /**
+     * 取出暂停时缓存的输入Buffer，已经flush或者又暂停了就不再取
+     *
+     * @return 没有返回{@link ResumeBuffer#NO_INDEX}
+     */
+    int pollResumeInput() {
+        synchronized (resumeBuffer) {
+            if (!isRunning() || isDirtyCallback()) {
+                return ResumeBuffer.NO_INDEX;
+            }
+            return resumeBuffer.pollInput();
+        }
+    }
+
+    /**
+     * 取出暂停时缓存的输出Buffer，已经flush或者又暂停了就不再取
+     *
+     * @param outputInfo 输出信息拷贝到这里
+     * @return 没有返回{@link ResumeBuffer#NO_INDEX}
+     */
+    int pollResumeOutput(ResumeBuffer.OutputInfo outputInfo) {
+        synchronized (resumeBuffer) {
+            if (!isRunning() || isDirtyCallback()) {
+                return ResumeBuffer.NO_INDEX;
+            }
+            return resumeBuffer.pollOutput(outputInfo);
+        }
+    }
+
+    /**
+     * 输出Buffer还没到处理的时间，放回缓存的最前面，等之后再用{@link #pollResumeOutput(ResumeBuffer.OutputInfo)}取出
+     * 调用方要自己安排之后取出的时机
+     *
+     * @return false表示已经flush或者停止，Buffer不需要再处理
+     */
+    boolean deferOutputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        synchronized (resumeBuffer) {
+            if (isDirtyCallback()) {
+                return false;
+            }
+            resumeBuffer.addOutputFirst(index, offset, size, presentationTimeUs, flags);
+            return true;
+        }
+    }
+
+    /**
+     * 已经销毁
+     *
+     * @return
+     */
+    boolean isReleased() {
+        return (state.get() & STATE_RELEASED) != 0;
+    }
+
+    /***
+     * 已经配置
+     * @return
+     */
+    boolean isConfigured() {
+        return isConfigured(state.get());
+    }
+
+    /**
+     * 已经打开codec
+     *
+     * @return
+     */
+    boolean isStarted() {
+        return isStarted(state.get());
+    }
+
+    /**
+     * 运行中
+     *
+     * @return
+     */
+    boolean isRunning() {
+        return isRunning(state.get());
+    }
+
+    /**
+     * 暂停中
+     *
+     * @return
+     */
+    boolean isPaused() {
+        int currentState = state.get();
+        return isStarted(currentState) && (currentState & STATE_PAUSED) != 0;
+    }
+
+    /**
+     * codec已经停止或者刷新中就不需要处理回调中的脏数据，不然会报错
+     *
+     * @return
+     */
+    boolean isDirtyCallback() {
+        return isDirtyCallback(state.get());
+    }
+
+    private static boolean isConfigured(int state) {
+        return (state & (STATE_RELEASED | STATE_CONFIGURED)) == STATE_CONFIGURED;
+    }
+
+    private static boolean isStarted(int state) {
+        return (state & (STATE_RELEASED | STATE_CONFIGURED | STATE_STARTED)) == (STATE_CONFIGURED | STATE_STARTED);
+    }
+
+    private static boolean isRunning(int state) {
+        return isStarted(state) && (state & STATE_PAUSED) == 0;
+    }
+
+    private static boolean isDirtyCallback(int state) {
+        return getFlushNumber(state) > 0 || !isStarted(state);
+    }
+
+    private static int getFlushNumber(int state) {
+        return state >>> FLUSH_SHIFT;
+    }
+
+    /**
+     * CAS修改状态
+     *
+     * @param clearFlag  要清除的位
+     * @param setFlag    要设置的位
+     * @param flushDelta flush次数的变化
+     * @return 修改后的状态
+     */
+    private int updateState(int clearFlag, int setFlag, int flushDelta) {
+        while (true) {
+            int currentState = state.get();
+            int newState = ((currentState & ~clearFlag) | setFlag) + flushDelta * FLUSH_UNIT;
+            if (state.compareAndSet(currentState, newState)) {
+                return newState;
+            }
+        }
+    }
+
+    /**
+     * 状态相关的解码器操作，实际是MediaCodec，测试时可以换成假的实现
+     */
+    interface Codec {
+
+        void start();
+
+        void flush();
+
+        void stop();
+
+        void reset();
+
+        void release();
+    }
+}
@@ -118,6 +118,13 @@ public interface Decoder {
          */
         MediaCodec.BufferInfo onInputBufferAvailable(ByteBuffer byteBuffer);
 
+        /**
+         * 解码出的一帧离开始渲染还要等待的时间，大于0时解码器先保留这帧，等待以后再回调{@link #onOutputBufferAvailable(ByteBuffer, long)}
+         * @param presentationTimeUs 微妙
+         * @return 纳秒
+         */
+        long getOutputBufferDelayNs(long presentationTimeUs);
+
         /**
          * 解码一帧数据完成的回调
          * @param outputBuffer
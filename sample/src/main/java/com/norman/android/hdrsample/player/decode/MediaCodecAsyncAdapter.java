@@ -6,7 +6,6 @@ import android.media.MediaFormat;
 import android.os.Handler;
 import android.os.Looper;
 import android.text.TextUtils;
-import android.util.Pair;
 import android.view.Surface;
 
 import androidx.annotation.NonNull;
@@ -14,14 +13,14 @@ import androidx.annotation.NonNull;
 import com.norman.android.hdrsample.exception.IORuntimeException;
 import com.norman.android.hdrsample.opengl.GLEnvThreadManager;
 import com.norman.android.hdrsample.opengl.GLTextureSurface;
+import com.norman.android.hdrsample.util.FrameTimingProfiler;
 import com.norman.android.hdrsample.util.GLESUtil;
 import com.norman.android.hdrsample.util.LogUtil;
+import com.norman.android.hdrsample.util.TimeUtil;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 
 /**
@@ -30,8 +29,14 @@ import java.util.List;
 class MediaCodecAsyncAdapter extends MediaCodec.Callback {
 
 
-    private final ResumeBuffer resumeBuffer = new ResumeBuffer();
+    /**
+     * 恢复时从暂停缓存里拷贝出来的输出信息，只在handler线程使用
+     */
+    private final ResumeBuffer.OutputInfo resumeOutputInfo = new ResumeBuffer.OutputInfo();
+    private final MediaCodec.BufferInfo resumeBufferInfo = new MediaCodec.BufferInfo();
+    private final DecodeTiming decodeTiming = new DecodeTiming();
     private final MediaCodec mediaCodec;
+    private final AsyncCodecController controller;
     private final String mimeType;
 
     private final MediaCodec.Callback asyncCallback = new MediaCodec.Callback() {
@@ -58,31 +63,15 @@ class MediaCodecAsyncAdapter extends MediaCodec.Callback {
             }
             // 送入编解码处理数据
             codec.queueInputBuffer(index, bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+            if (!inputEndStream) {
+                decodeTiming.onQueue(bufferInfo.presentationTimeUs, System.nanoTime());
+            }
         }
 
         @Override
         public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
-            ByteBuffer outputBuffer = codec.getOutputBuffer(index);
-            if (outputBuffer == null) return;
-            // 获取输出数据，要把buffer的数据位置写好，方便后续读取，就不用传递MediaCodec.BufferInfo了
-            outputBuffer.clear();
-            outputBuffer.position(info.offset);
-            outputBuffer.limit(info.offset + info.size);
-            boolean render = outputBuffer.hasRemaining() && info.presentationTimeUs >= 0;//数据为空，时间为负数不需要渲染
-            if (outSurfaceMode && render) {
-                //surface无效就不需要渲染
-                synchronized (MediaCodecAsyncAdapter.this) {
-                    render = outputSurface != null && outputSurface.isValid();
-                }
-            }
-            render = render && callBack.onOutputBufferAvailable(outputBuffer, info.presentationTimeUs);
-            codec.releaseOutputBuffer(index, render);
-            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                callBack.onOutputBufferEndOfStream();
-            } else {
-                if (render) {
-                    callBack.onOutputBufferComplete(info.presentationTimeUs);
-                }
+            if (!dispatchOutputBuffer(codec, index, info)) {
+                deferOutputBuffer(index, info);
             }
         }
 
@@ -97,15 +86,19 @@ class MediaCodecAsyncAdapter extends MediaCodec.Callback {
         }
     };
 
-    private boolean configured;
-    private boolean started;
-    private boolean paused;
-    private boolean released;
-    private int flushNumber;
+    /**
+     * 输出Buffer离渲染时间小于这个值就直接处理，Handler的延时只精确到毫秒
+     */
+    private static final long MIN_OUTPUT_DELAY_NS = 1000_000;
 
     private boolean outSurfaceMode;
 
-    private Surface outputSurface;
+    /**
+     * 最近一次延后处理的输出Buffer要等待的毫秒数，只在handler线程使用
+     */
+    private long outputDelayMs;
+
+    private volatile Surface outputSurface;
 
     private HolderSurface holderSurface;
 
@@ -116,6 +109,20 @@ class MediaCodecAsyncAdapter extends MediaCodec.Callback {
 
     private volatile boolean inputEndStream;
 
+    private final Runnable resumeRunnable = new Runnable() {
+        @Override
+        public void run() {//恢复时需要恢复上一次的buffer，并且为了保证时序要在handler中运行
+            resumeBuffer();
+        }
+    };
+
+    private final Runnable finishFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            finishFlush();
+        }
+    };
+
 
     public MediaCodecAsyncAdapter(String mimeType) {
         if (TextUtils.isEmpty(mimeType)) {
@@ -133,6 +140,34 @@ class MediaCodecAsyncAdapter extends MediaCodec.Callback {
                 "name->" + mediaCodec.getName() + "\n" +
                 "supportedTypes->" + Arrays.toString(mediaCodecInfo.getSupportedTypes());
         LogUtil.d(infoBuilder);
+        controller = new AsyncCodecController(new AsyncCodecController.Codec() {
+            @Override
+            public void start() {
+                //重新开始后输入的结束标记也要清掉，要在start前，不然start后马上回调的输入会被忽略
+                inputEndStream = false;
+                mediaCodec.start();
+            }
+
+            @Override
+            public void flush() {
+                mediaCodec.flush();
+            }
+
+            @Override
+            public void stop() {
+                mediaCodec.stop();
+            }
+
+            @Override
+            public void reset() {
+                mediaCodec.reset();
+            }
+
+            @Override
+            public void release() {
+                mediaCodec.release();
+            }
+        });
     }
 
 
@@ -205,7 +240,7 @@ class MediaCodecAsyncAdapter extends MediaCodec.Callback {
         this.mediaCodec.configure(mediaFormat, surface, null, 0);
         Looper looper = Looper.myLooper();
         this.handler = new Handler(looper == null ? Looper.getMainLooper() : looper);
-        this.configured = true;
+        controller.configure();
         String infoBuilder = "mediacodec configure" + "\n" +
                 "mediaFormat->" + mediaFormat.toString() + "\n" +
                 "surfaceMode->" + (surfaceMode ? "true" : "false") + "\n";
@@ -214,51 +249,29 @@ class MediaCodecAsyncAdapter extends MediaCodec.Callback {
 
 
     public synchronized void start() {
-        if (isReleased() || isStarted()) {
-            return;
-        }
-        if (!isConfigured()) {
-            throw new RuntimeException("mediacodec has not been configured");
-        }
-        mediaCodec.start();
-        started = true;
+        controller.start();
     }
 
 
     public synchronized void reset() {
-        if (isReleased() || !isConfigured()) {
-            return;
+        if (controller.reset()) {
+            cleanup();
         }
-        mediaCodec.reset();
-        cleanup();
     }
 
     public synchronized void stop() {
-        if (isReleased()) {
-            return;
-        }
-        if (!isStarted()) {
-            if (isConfigured()) {
-                throw new RuntimeException("stop must after mediacodec start");
-            }
-            return;
+        if (controller.stop()) {
+            cleanup();
         }
-        mediaCodec.stop();
-        cleanup();
     }
 
     private void cleanup() {
-        configured = false;
-        paused = false;
-        started = false;
-        if (handler == null){
+        if (handler != null) {
             handler.removeCallbacksAndMessages(null);
             handler = null;
         }
-        flushNumber = 0;
         outSurfaceMode = false;
         inputEndStream = false;
-        resumeBuffer.clear();
         if (holderSurface != null) {
             holderSurface.release();
             holderSurface = null;
@@ -267,30 +280,82 @@ class MediaCodecAsyncAdapter extends MediaCodec.Callback {
 
 
     public synchronized void pause() {
-        if (!isRunning()) {
-            return;
-        }
-        paused = true;
+        controller.pause();
     }
 
     public synchronized void resume() {
-        if (!isPaused()) {
-            return;
+        if (controller.resume()) {
+            handler.post(resumeRunnable);
         }
-        paused = false;
-        handler.post(new Runnable() {
-            @Override
-            public void run() {//恢复时需要恢复上一次的buffer，并且为了保证时序要在handler中运行
-                resumeBuffer();
+    }
+
+    /**
+     * @return false表示还没到渲染时间，Buffer没有释放，要延后再处理
+     */
+    private boolean dispatchOutputBuffer(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+        ByteBuffer outputBuffer = codec.getOutputBuffer(index);
+        if (outputBuffer == null) return true;
+        // 获取输出数据，要把buffer的数据位置写好，方便后续读取，就不用传递MediaCodec.BufferInfo了
+        outputBuffer.clear();
+        outputBuffer.position(info.offset);
+        outputBuffer.limit(info.offset + info.size);
+        long queueTimeNs = decodeTiming.takeQueueTimeNs(info.presentationTimeUs);
+        if (queueTimeNs > 0) {
+            FrameTimingProfiler.record(FrameTimingProfiler.STAGE_CODEC_DECODE, System.nanoTime() - queueTimeNs);
+        }
+        boolean render = outputBuffer.hasRemaining() && info.presentationTimeUs >= 0;//数据为空，时间为负数不需要渲染
+        if (outSurfaceMode && render) {
+            //surface无效就不需要渲染
+            Surface surface = outputSurface;
+            render = surface != null && surface.isValid();
+        }
+        if (render) {
+            // 没到渲染时间就先不释放Buffer，解码器没有空闲的输出Buffer自然会停下来，不需要阻塞回调线程等待
+            long delayNs = callBack.getOutputBufferDelayNs(info.presentationTimeUs);
+            if (delayNs >= MIN_OUTPUT_DELAY_NS) {
+                outputDelayMs = TimeUtil.microToMill(TimeUtil.nanoToMicro(delayNs));
+                return false;
             }
-        });
+        }
+        render = render && callBack.onOutputBufferAvailable(outputBuffer, info.presentationTimeUs);
+        codec.releaseOutputBuffer(index, render);
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            callBack.onOutputBufferEndOfStream();
+        } else {
+            if (render) {
+                callBack.onOutputBufferComplete(info.presentationTimeUs);
+            }
+        }
+        return true;
     }
 
     private void resumeBuffer() {
-        if (isDirtyCallback() || isPaused()) {
+        int index;
+        while ((index = controller.pollResumeInput()) != ResumeBuffer.NO_INDEX) {
+            asyncCallback.onInputBufferAvailable(mediaCodec, index);
+        }
+        while ((index = controller.pollResumeOutput(resumeOutputInfo)) != ResumeBuffer.NO_INDEX) {
+            resumeBufferInfo.set(resumeOutputInfo.offset, resumeOutputInfo.size,
+                    resumeOutputInfo.presentationTimeUs, resumeOutputInfo.flags);
+            if (!dispatchOutputBuffer(mediaCodec, index, resumeBufferInfo)) {
+                deferOutputBuffer(index, resumeBufferInfo);//还没到时间，后面的也要等
+                return;
+            }
+        }
+    }
+
+    /**
+     * 放回缓存的最前面，到时间再用resumeRunnable处理
+     */
+    private void deferOutputBuffer(int index, MediaCodec.BufferInfo info) {
+        if (!controller.deferOutputBuffer(index, info.offset, info.size, info.presentationTimeUs, info.flags)) {
             return;
         }
-        resumeBuffer.resume();
+        Handler currentHandler = handler;
+        if (currentHandler != null) {
+            currentHandler.removeCallbacks(resumeRunnable);
+            currentHandler.postDelayed(resumeRunnable, outputDelayMs);
+        }
     }
 
     /**
@@ -298,36 +363,20 @@ class MediaCodecAsyncAdapter extends MediaCodec.Callback {
      */
 
     public synchronized void flush() {
-        if (!isStarted()) {
-            return;
+        if (controller.flush()) {
+            //mediaCodec异步模式中调用flush保证时序性要等待looper的消息执行完毕才能调用其他方法如start方法
+            handler.post(finishFlushRunnable);
         }
-        flushNumber++;
-        resumeBuffer.clear();
-        mediaCodec.flush();
-        //mediaCodec异步模式中调用flush保证时序性要等待looper的消息执行完毕才能调用其他方法如start方法
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                finishFlush();
-            }
-        });
     }
 
     private synchronized void finishFlush() {
-        flushNumber--;
-        if (flushNumber <= 0 && isConfigured()) {//等请求的flush已经结束就可以重新开启了
-            inputEndStream = false;
-            mediaCodec.start();
-        }
+        controller.finishFlush();
     }
 
     public synchronized void release() {
-        if (isReleased()) {
-            return;
+        if (controller.release()) {
+            cleanup();
         }
-        released = true;
-        mediaCodec.release();
-        cleanup();
     }
 
     public synchronized void setOutputSurface(Surface surface) {
@@ -357,16 +406,16 @@ class MediaCodecAsyncAdapter extends MediaCodec.Callback {
      * @return
      */
 
-    public synchronized boolean isReleased() {
-        return released;
+    public boolean isReleased() {
+        return controller.isReleased();
     }
 
     /***
      * 已经配置
      * @return
      */
-    public synchronized boolean isConfigured() {
-        return !released && configured;
+    public boolean isConfigured() {
+        return controller.isConfigured();
     }
 
     /**
@@ -374,8 +423,8 @@ class MediaCodecAsyncAdapter extends MediaCodec.Callback {
      *
      * @return
      */
-    public synchronized boolean isStarted() {
-        return !released && configured && started;
+    public boolean isStarted() {
+        return controller.isStarted();
     }
 
     /**
@@ -383,8 +432,8 @@ class MediaCodecAsyncAdapter extends MediaCodec.Callback {
      *
      * @return
      */
-    public synchronized boolean isRunning() {
-        return isStarted() && !paused;
+    public boolean isRunning() {
+        return controller.isRunning();
     }
 
 
@@ -393,47 +442,29 @@ class MediaCodecAsyncAdapter extends MediaCodec.Callback {
      *
      * @return
      */
-    public synchronized boolean isPaused() {
-        return isStarted() && paused;
-    }
-
-    /**
-     * codec已经停止或者刷新中就不需要处理回调中的脏数据，不然会报错
-     *
-     * @return
-     */
-    private synchronized boolean isDirtyCallback() {
-        return flushNumber > 0 || !isStarted();
+    public boolean isPaused() {
+        return controller.isPaused();
     }
 
 
     @Override
     public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
-        if (isDirtyCallback()) {
-            return;
-        }
-        if (isRunning()) {
+        if (controller.onInputBufferAvailable(index) == AsyncCodecController.CALLBACK_DISPATCH) {
             asyncCallback.onInputBufferAvailable(codec, index);
-        } else {
-            resumeBuffer.addInput(index);
         }
     }
 
     @Override
     public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
-        if (isDirtyCallback()) {
-            return;
-        }
-        if (isRunning()) {
+        if (controller.onOutputBufferAvailable(index, info.offset, info.size, info.presentationTimeUs, info.flags)
+                == AsyncCodecController.CALLBACK_DISPATCH) {
             asyncCallback.onOutputBufferAvailable(codec, index, info);
-        } else {
-            resumeBuffer.addOutput(index, info);
         }
     }
 
     @Override
     public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
-        if (isDirtyCallback()) {
+        if (controller.isDirtyCallback()) {
             return;
         }
         release();
@@ -445,7 +476,7 @@ class MediaCodecAsyncAdapter extends MediaCodec.Callback {
         String infoBuilder = "mediacodec onOutputFormatChanged" + "\n" +
                 "mediaFormat->" + format + "\n";
         LogUtil.d(infoBuilder);
-        if (isDirtyCallback()) {
+        if (controller.isDirtyCallback()) {
             return;
         }
         asyncCallback.onOutputFormatChanged(codec, format);
@@ -461,6 +492,14 @@ class MediaCodecAsyncAdapter extends MediaCodec.Callback {
          */
         MediaCodec.BufferInfo onInputBufferAvailable(ByteBuffer byteBuffer);
 
+        /**
+         * 输出Buffer离开始渲染还要等待的时间，只在要渲染的Buffer调用
+         * 大于0时先不释放Buffer，等待以后再回调{@link #onOutputBufferAvailable(ByteBuffer, long)}，不阻塞回调线程
+         * @param presentationTimeUs
+         * @return 纳秒
+         */
+        long getOutputBufferDelayNs(long presentationTimeUs);
+
         /**
          * 编解码buffer数据处理完成
          * @param outputBuffer
@@ -488,37 +527,42 @@ class MediaCodecAsyncAdapter extends MediaCodec.Callback {
     }
 
     /**
-     * 恢复暂停时候解码出来的Buffer
+     * 记录送入解码器的时间，解码输出时按presentationTimeUs找到对应的输入算出解码耗时
+     * 恢复暂停缓存的Buffer在handler线程，和MediaCodec的回调线程可能不是同一个，所以要加锁；找不到的(flush前送入的)直接忽略
      */
-    class ResumeBuffer {
-
-        private final List<Integer> inputBufferList = new ArrayList<>();
+    static class DecodeTiming {
+        /**
+         * 解码器里同时存在的帧一般不超过十几个，B帧多的视频也够用
+         */
+        private static final int CAPACITY = 32;
 
-        private final List<Pair<Integer, MediaCodec.BufferInfo>> outputBufferList = new ArrayList<>();
+        private final long[] presentationTimeArray = new long[CAPACITY];
 
-        public synchronized void clear() {
-            inputBufferList.clear();
-            outputBufferList.clear();
-        }
+        private final long[] queueTimeArray = new long[CAPACITY];
 
-        public synchronized void addInput(int id) {
-            inputBufferList.add(id);
-        }
+        private int next;
 
-        public synchronized void addOutput(int id, MediaCodec.BufferInfo bufferInfo) {
-            outputBufferList.add(new Pair<>(id, bufferInfo));
+        synchronized void onQueue(long presentationTimeUs, long queueTimeNs) {
+            presentationTimeArray[next] = presentationTimeUs;
+            queueTimeArray[next] = queueTimeNs;
+            next = (next + 1) % CAPACITY;
         }
 
-        public synchronized void resume() {
-            for (Integer id : inputBufferList) {
-                asyncCallback.onInputBufferAvailable(mediaCodec, id);
-            }
-            for (Pair<Integer, MediaCodec.BufferInfo> outputBufferInfo : outputBufferList) {
-                asyncCallback.onOutputBufferAvailable(mediaCodec, outputBufferInfo.first, outputBufferInfo.second);
+        /**
+         * @param presentationTimeUs
+         * @return 没有找到返回0
+         */
+        synchronized long takeQueueTimeNs(long presentationTimeUs) {
+            for (int i = 1; i <= CAPACITY; i++) {
+                int index = (next - i + CAPACITY) % CAPACITY;//从最近送入的开始找
+                long queueTimeNs = queueTimeArray[index];
+                if (queueTimeNs != 0 && presentationTimeArray[index] == presentationTimeUs) {
+                    queueTimeArray[index] = 0;
+                    return queueTimeNs;
+                }
             }
-            clear();
+            return 0;
         }
-
     }
 
     /**
@@ -0,0 +1,168 @@
+package com.norman.android.hdrsample.player.decode;
+
+/**
+ * 保存暂停时候解码器回调出来的Buffer，恢复时按回调顺序取出；还没到渲染时间的输出Buffer也先放在这里
+ * 用环形数组保存，输出的信息拷贝到预先分配的{@link OutputInfo}中，暂停时回调不需要装箱和分配对象
+ * 只有数组满了才会扩容，Buffer的个数由MediaCodec决定，扩容几次以后就不会再分配了
+ * 不依赖Android的类，可以直接在JVM上测试
+ */
+class ResumeBuffer {
+
+    static final int NO_INDEX = -1;
+
+    private static final int INIT_CAPACITY = 16;
+
+    private int[] inputIndexArray = new int[INIT_CAPACITY];
+
+    private int inputHead;
+
+    private int inputCount;
+
+    private int[] outputIndexArray = new int[INIT_CAPACITY];
+
+    private OutputInfo[] outputInfoArray = createOutputInfoArray(INIT_CAPACITY);
+
+    private int outputHead;
+
+    /**
+     * volatile是为了解码器回调不加锁判断有没有缓存的输出，修改还是在锁里
+     */
+    private volatile int outputCount;
+
+    public synchronized void clear() {
+        inputHead = 0;
+        inputCount = 0;
+        outputHead = 0;
+        outputCount = 0;
+    }
+
+    public synchronized void addInput(int index) {
+        if (inputCount == inputIndexArray.length) {
+            inputIndexArray = growIndexArray(inputIndexArray, inputHead, inputCount);
+            inputHead = 0;
+        }
+        inputIndexArray[(inputHead + inputCount) % inputIndexArray.length] = index;
+        inputCount++;
+    }
+
+    public synchronized void addOutput(int index, int offset, int size, long presentationTimeUs, int flags) {
+        if (outputCount == outputIndexArray.length) {
+            growOutput();
+        }
+        int tail = (outputHead + outputCount) % outputIndexArray.length;
+        outputIndexArray[tail] = index;
+        outputInfoArray[tail].set(offset, size, presentationTimeUs, flags);
+        outputCount++;
+    }
+
+    /**
+     * 放到最前面，下次最先取出，用于取出以后还没到处理时间的输出Buffer
+     */
+    public synchronized void addOutputFirst(int index, int offset, int size, long presentationTimeUs, int flags) {
+        if (outputCount == outputIndexArray.length) {
+            growOutput();
+        }
+        outputHead = (outputHead - 1 + outputIndexArray.length) % outputIndexArray.length;
+        outputIndexArray[outputHead] = index;
+        outputInfoArray[outputHead].set(offset, size, presentationTimeUs, flags);
+        outputCount++;
+    }
+
+    /**
+     * 取出最早的输入Buffer
+     *
+     * @return 没有返回{@link #NO_INDEX}
+     */
+    public synchronized int pollInput() {
+        if (inputCount == 0) {
+            return NO_INDEX;
+        }
+        int index = inputIndexArray[inputHead];
+        inputHead = (inputHead + 1) % inputIndexArray.length;
+        inputCount--;
+        return index;
+    }
+
+    /**
+     * 取出最早的输出Buffer
+     *
+     * @param outputInfo 输出信息拷贝到这里，调用方自己复用，环形数组里的位置之后可能被覆盖
+     * @return 没有返回{@link #NO_INDEX}
+     */
+    public synchronized int pollOutput(OutputInfo outputInfo) {
+        if (outputCount == 0) {
+            return NO_INDEX;
+        }
+        int index = outputIndexArray[outputHead];
+        OutputInfo info = outputInfoArray[outputHead];
+        outputInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+        outputHead = (outputHead + 1) % outputIndexArray.length;
+        outputCount--;
+        return index;
+    }
+
+    public synchronized int getInputCount() {
+        return inputCount;
+    }
+
+    /**
+     * 不需要加锁，加锁后读到的才是和其他操作一致的值
+     */
+    public int getOutputCount() {
+        return outputCount;
+    }
+
+    private void growOutput() {
+        int capacity = outputIndexArray.length;
+        int[] newIndexArray = new int[capacity * 2];
+        OutputInfo[] newInfoArray = new OutputInfo[capacity * 2];
+        for (int i = 0; i < capacity; i++) {
+            int position = (outputHead + i) % capacity;
+            newIndexArray[i] = outputIndexArray[position];
+            newInfoArray[i] = outputInfoArray[position];
+        }
+        for (int i = capacity; i < newInfoArray.length; i++) {
+            newInfoArray[i] = new OutputInfo();
+        }
+        outputIndexArray = newIndexArray;
+        outputInfoArray = newInfoArray;
+        outputHead = 0;
+    }
+
+    private static int[] growIndexArray(int[] indexArray, int head, int count) {
+        int[] newIndexArray = new int[indexArray.length * 2];
+        for (int i = 0; i < count; i++) {
+            newIndexArray[i] = indexArray[(head + i) % indexArray.length];
+        }
+        return newIndexArray;
+    }
+
+    private static OutputInfo[] createOutputInfoArray(int capacity) {
+        OutputInfo[] outputInfoArray = new OutputInfo[capacity];
+        for (int i = 0; i < capacity; i++) {
+            outputInfoArray[i] = new OutputInfo();
+        }
+        return outputInfoArray;
+    }
+
+    /**
+     * 和MediaCodec.BufferInfo一样的字段，不依赖Android
+     */
+    static final class OutputInfo {
+
+        int offset;
+
+        int size;
+
+        long presentationTimeUs;
+
+        int flags;
+
+        void set(int offset, int size, long presentationTimeUs, int flags) {
+            this.offset = offset;
+            this.size = size;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+    }
+}
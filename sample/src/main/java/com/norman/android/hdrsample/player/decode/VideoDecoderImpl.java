@@ -6,9 +6,6 @@ import android.media.MediaFormat;
 import android.os.Build;
 import android.view.Surface;
 
-import com.norman.android.hdrsample.player.color.ColorSpace;
-import com.norman.android.hdrsample.player.color.ColorStandard;
-import com.norman.android.hdrsample.player.color.ColorTransfer;
 import com.norman.android.hdrsample.util.MediaFormatUtil;
 
 import java.nio.ByteBuffer;
@@ -162,6 +159,11 @@ class VideoDecoderImpl extends DecoderImpl implements VideoDecoder {
             return callBack.onInputBufferAvailable(byteBuffer);
         }
 
+        @Override
+        public long getOutputBufferDelayNs(long presentationTimeUs) {
+            return callBack.getOutputBufferDelayNs(presentationTimeUs);
+        }
+
         @Override
         public boolean onOutputBufferAvailable(ByteBuffer outputBuffer, long presentationTimeUs) {
             return callBack.onOutputBufferAvailable(outputBuffer, presentationTimeUs);
@@ -177,17 +179,7 @@ class VideoDecoderImpl extends DecoderImpl implements VideoDecoder {
             // 根据解码器名称和colorFormat查找视频是哪种YUV420，把YUV420格式写入到format方便后续读取
             int colorFormat = MediaFormatUtil.getInteger(format,MediaFormat.KEY_COLOR_FORMAT);
             MediaFormatUtil.setYUV420Type(format,ColorFormatHelper.getYUV420Type(mediaCodecAsyncAdapter.getCodecName(), colorFormat));
-            int colorStandard = MediaFormatUtil.getColorStandard(format);
-            int colorTransfer = MediaFormatUtil.getColorTransfer(format);
-            if (colorStandard == ColorStandard.BT2020 && colorTransfer == ColorTransfer.HLG) {
-                MediaFormatUtil.setColorSpace(format,ColorSpace.VIDEO_BT2020_HLG);
-            } else if (colorStandard == ColorStandard.BT2020 && colorTransfer == ColorTransfer.ST2084) {
-                MediaFormatUtil.setColorSpace(format,ColorSpace.VIDEO_BT2020_PQ);
-            }else if (colorStandard == ColorStandard.BT2020 && colorTransfer == ColorTransfer.LINEAR) {
-                MediaFormatUtil.setColorSpace(format, ColorSpace.VIDEO_BT2020_LINEAR);
-            } else {
-                MediaFormatUtil.setColorSpace(format,ColorSpace.VIDEO_SDR);
-            }
+            MediaFormatUtil.setColorSpace(format, MediaFormatUtil.parseColorSpace(format));
             callBack.onOutputFormatChanged(format);
         }
 
@@ -46,6 +46,21 @@ public interface Extractor {
      */
     void seekNextSync(long timeUs);
 
+    /**
+     * 精确seek时目标时间显示的那一帧的时间，也就是时间小于等于timeUs的最后一帧
+     * sample索引还没生成时返回timeUs
+     * @param timeUs
+     * @return
+     */
+    long getFrameTimeUs(long timeUs);
+
+    /**
+     * 目标时间前面最近的关键帧时间，sample索引还没生成时返回-1
+     * @param timeUs
+     * @return
+     */
+    long getPreSyncTimeUs(long timeUs);
+
     /**
      * 读取一帧buffer
      * @param buffer
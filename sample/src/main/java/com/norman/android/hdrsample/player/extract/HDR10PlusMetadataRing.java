@@ -0,0 +1,85 @@
+package com.norman.android.hdrsample.player.extract;
+
+import com.norman.android.hdrsample.player.color.HDR10PlusMetadata;
+
+import java.util.Arrays;
+
+/**
+ * 按presentationTimeUs保存预读时解析出的HDR10+元数据，渲染时按帧的时间取
+ * 解码有B帧时输出顺序和读取顺序不一样，所以按时间查找而不是按顺序取
+ * 容量要大于预读、解码器缓存和渲染队列中的帧数，旧的数据会被覆盖
+ * 每个位置的元数据对象预先分配好，读取线程直接解析到里面，取的时候拷贝出去，每帧不需要分配
+ */
+class HDR10PlusMetadataRing {
+
+    private static final int CAPACITY = 64;
+
+    private final long[] presentationTimeUsArray = new long[CAPACITY];
+
+    private final HDR10PlusMetadata[] metadataArray = new HDR10PlusMetadata[CAPACITY];
+
+    /**
+     * 位置上的数据是否可以取，解析中的位置不能取
+     */
+    private final boolean[] validArray = new boolean[CAPACITY];
+
+    private int next;
+
+    private int count;
+
+    HDR10PlusMetadataRing() {
+        for (int i = 0; i < CAPACITY; i++) {
+            metadataArray[i] = new HDR10PlusMetadata();
+        }
+    }
+
+    /**
+     * 取出下一个位置的元数据对象用来解析，这个位置原来的数据马上失效，解析成功后调用{@link #commit(HDR10PlusMetadata, long)}
+     * 只在读取线程调用
+     * @return
+     */
+    synchronized HDR10PlusMetadata obtain() {
+        validArray[next] = false;
+        return metadataArray[next];
+    }
+
+    /**
+     * 解析成功，保存到下一个位置
+     * @param metadata {@link #obtain()}取出的对象，中间clear过就不保存
+     * @param presentationTimeUs
+     */
+    synchronized void commit(HDR10PlusMetadata metadata, long presentationTimeUs) {
+        if (metadataArray[next] != metadata) {
+            return;
+        }
+        presentationTimeUsArray[next] = presentationTimeUs;
+        validArray[next] = true;
+        next = (next + 1) % CAPACITY;
+        if (count < CAPACITY) {
+            count++;
+        }
+    }
+
+    /**
+     * 从最新的开始找，seek后同一个时间可能读到两次
+     * @param presentationTimeUs
+     * @param metadata 找到时拷贝到这里，没找到不会修改
+     * @return 是否找到
+     */
+    synchronized boolean get(long presentationTimeUs, HDR10PlusMetadata metadata) {
+        for (int i = 1; i <= count; i++) {
+            int index = (next - i + CAPACITY) % CAPACITY;
+            if (validArray[index] && presentationTimeUsArray[index] == presentationTimeUs) {
+                metadata.set(metadataArray[index]);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void clear() {
+        Arrays.fill(validArray, false);
+        next = 0;
+        count = 0;
+    }
+}
@@ -0,0 +1,222 @@
+package com.norman.android.hdrsample.player.extract;
+
+import com.norman.android.hdrsample.player.color.HDR10PlusMetadata;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 从HEVC的sample中解析HDR10+的SEI(user_data_registered_itu_t_t35)
+ * MediaExtractor输出的sample可能是Annex-B的起始码格式，也可能是MP4里的长度格式
+ * 格式由csd-0决定，不能从sample的开头猜：长度是256到511的NAL前面的4字节长度刚好是00 00 01 xx
+ * SEI在VCL NAL前面，遇到第一个VCL NAL就停止，不会遍历整帧数据
+ * 只在读取线程使用，不是线程安全的
+ */
+class HDR10PlusSeiParser {
+
+    private static final int NAL_TYPE_VCL_END = 32;
+
+    private static final int NAL_TYPE_PREFIX_SEI = 39;
+
+    private static final int SEI_PAYLOAD_TYPE_USER_DATA_REGISTERED = 4;
+
+    /**
+     * sample是Annex-B起始码格式
+     */
+    static final int ANNEX_B = 0;
+
+    /**
+     * hvcC里lengthSizeMinusOne所在的字节
+     */
+    private static final int HVCC_LENGTH_SIZE_OFFSET = 21;
+
+    /**
+     * NAL前面长度的字节数，{@link #ANNEX_B}表示起始码格式
+     */
+    private final int nalLengthSize;
+
+    /**
+     * 去掉防竞争字节后的SEI数据，复用避免每帧分配
+     */
+    private byte[] rbspBytes = new byte[256];
+
+    /**
+     * 包装rbspBytes，rbspBytes扩容时才重新创建
+     */
+    private ByteBuffer rbspBuffer = ByteBuffer.wrap(rbspBytes);
+
+    /**
+     * @param nalLengthSize NAL前面长度的字节数，用{@link #getNalLengthSize(ByteBuffer)}从csd-0获取
+     */
+    HDR10PlusSeiParser(int nalLengthSize) {
+        if (nalLengthSize != ANNEX_B && (nalLengthSize < 1 || nalLengthSize > 4)) {
+            throw new IllegalArgumentException("nalLengthSize " + nalLengthSize + " is invalid");
+        }
+        this.nalLengthSize = nalLengthSize;
+    }
+
+    /**
+     * csd-0是起始码开头的VPS、SPS、PPS时sample也是Annex-B格式，
+     * 是hvcC(configurationVersion为1)时sample是长度格式，长度的字节数是lengthSizeMinusOne+1
+     * @param csd0 不会改变position
+     * @return NAL前面长度的字节数，Annex-B格式或者不认识的格式返回{@link #ANNEX_B}
+     */
+    static int getNalLengthSize(ByteBuffer csd0) {
+        if (csd0 == null) {
+            return ANNEX_B;
+        }
+        int start = csd0.position();
+        int length = csd0.remaining();
+        if (length > HVCC_LENGTH_SIZE_OFFSET && csd0.get(start) == 1) {
+            return (csd0.get(start + HVCC_LENGTH_SIZE_OFFSET) & 0x03) + 1;
+        }
+        return ANNEX_B;
+    }
+
+    /**
+     * @param sample 数据从0开始，不会改变position
+     * @param size sample的大小
+     * @param metadata 解析结果，返回false时内容不能使用
+     * @return 没有HDR10+数据返回false
+     */
+    boolean parse(ByteBuffer sample, int size, HDR10PlusMetadata metadata) {
+        int position = 0;
+        while (position < size) {
+            int nalStart;
+            int nalEnd;
+            if (nalLengthSize == ANNEX_B) {
+                nalStart = findNalStart(sample, position, size);
+                if (nalStart < 0) {
+                    return false;
+                }
+                nalEnd = findNalEnd(sample, nalStart, size);
+            } else {
+                if (position + nalLengthSize > size) {
+                    return false;
+                }
+                int nalLength = readNalLength(sample, position);
+                nalStart = position + nalLengthSize;
+                if (nalLength <= 0 || nalLength > size - nalStart) {
+                    return false;
+                }
+                nalEnd = nalStart + nalLength;
+            }
+            if (nalEnd - nalStart < 2) {
+                position = nalEnd;
+                continue;
+            }
+            int nalType = (sample.get(nalStart) >> 1) & 0x3F;
+            if (nalType < NAL_TYPE_VCL_END) {
+                return false;
+            }
+            if (nalType == NAL_TYPE_PREFIX_SEI) {
+                if (parseSei(sample, nalStart + 2, nalEnd, metadata)) {
+                    return true;
+                }
+            }
+            position = nalEnd;
+        }
+        return false;
+    }
+
+    /**
+     * MP4里NAL的长度是大端的，sample的buffer是本地字节序的直接内存，不能用getInt
+     */
+    private int readNalLength(ByteBuffer sample, int position) {
+        int nalLength = 0;
+        for (int i = 0; i < nalLengthSize; i++) {
+            nalLength = (nalLength << 8) | (sample.get(position + i) & 0xFF);
+        }
+        return nalLength;
+    }
+
+    /**
+     * @return 起始码后面第一个字节的位置，找不到返回-1
+     */
+    private static int findNalStart(ByteBuffer sample, int from, int size) {
+        for (int i = from; i + 2 < size; i++) {
+            if (sample.get(i) == 0 && sample.get(i + 1) == 0 && sample.get(i + 2) == 1) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return 下一个起始码的位置，没有返回size
+     */
+    private static int findNalEnd(ByteBuffer sample, int nalStart, int size) {
+        for (int i = nalStart; i + 2 < size; i++) {
+            if (sample.get(i) == 0 && sample.get(i + 1) == 0
+                    && (sample.get(i + 2) == 1 || sample.get(i + 2) == 0)) {
+                return i;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 遍历SEI里的message
+     * @param start NAL头后面的位置
+     * @param end
+     * @param metadata
+     * @return 是否解析到HDR10+数据
+     */
+    private boolean parseSei(ByteBuffer sample, int start, int end, HDR10PlusMetadata metadata) {
+        int rbspSize = unescape(sample, start, end);
+        int position = 0;
+        // 最后一个字节是rbsp_trailing_bits
+        while (position < rbspSize - 1) {
+            int payloadType = 0;
+            int value;
+            do {
+                if (position >= rbspSize) {
+                    return false;
+                }
+                value = rbspBytes[position++] & 0xFF;
+                payloadType += value;
+            } while (value == 0xFF);
+            int payloadSize = 0;
+            do {
+                if (position >= rbspSize) {
+                    return false;
+                }
+                value = rbspBytes[position++] & 0xFF;
+                payloadSize += value;
+            } while (value == 0xFF);
+            if (payloadSize > rbspSize - position) {
+                return false;
+            }
+            if (payloadType == SEI_PAYLOAD_TYPE_USER_DATA_REGISTERED) {
+                if (HDR10PlusMetadata.parse(rbspBuffer, position, payloadSize, metadata)) {
+                    return true;
+                }
+            }
+            position += payloadSize;
+        }
+        return false;
+    }
+
+    /**
+     * 去掉00 00 03里的03
+     * @return rbsp的大小
+     */
+    private int unescape(ByteBuffer sample, int start, int end) {
+        int length = end - start;
+        if (rbspBytes.length < length) {
+            rbspBytes = new byte[length];
+            rbspBuffer = ByteBuffer.wrap(rbspBytes);
+        }
+        int size = 0;
+        int zeroCount = 0;
+        for (int i = start; i < end; i++) {
+            byte value = sample.get(i);
+            if (zeroCount >= 2 && value == 3) {
+                zeroCount = 0;
+                continue;
+            }
+            rbspBytes[size++] = value;
+            zeroCount = value == 0 ? zeroCount + 1 : 0;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,333 @@
+package com.norman.android.hdrsample.player.extract;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import com.norman.android.hdrsample.exception.IORuntimeException;
+import com.norman.android.hdrsample.player.source.FileSource;
+import com.norman.android.hdrsample.util.AppUtil;
+import com.norman.android.hdrsample.util.LogUtil;
+import com.norman.android.hdrsample.util.MediaFormatUtil;
+import com.norman.android.hdrsample.util.TimeUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * 视频轨道所有sample的时间、大小和是否是关键帧
+ * 第一次打开文件时在后台线程扫描一遍MediaExtractor生成，然后保存到缓存目录，下次打开直接读取
+ * 用来精确seek：找到目标时间所在的帧和它前面的关键帧，只解码需要的帧，目标帧之前的帧不渲染
+ * 文件格式如下，都是大端序
+ *  int    魔数 SIDX
+ *  int    版本号
+ *  long   源文件长度
+ *  int    sample个数
+ *  long   sample时间，int sample大小(不支持获取时是-1)，byte 是否是关键帧，按解码顺序重复sample个数次
+ */
+class SampleIndex {
+
+    private static final String CACHE_DIR_NAME = "sample_index";
+
+    private static final String CACHE_FILE_SUFFIX = ".idx";
+
+    private static final int CACHE_MAGIC = 0x53494458;
+
+    private static final int CACHE_VERSION = 1;
+
+    /**
+     * 魔数、版本号、源文件长度和sample个数的字节数
+     */
+    private static final int CACHE_HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    /**
+     * 每个sample的时间、大小和是否是关键帧的字节数
+     */
+    private static final int CACHE_SAMPLE_SIZE = 8 + 4 + 1;
+
+    /**
+     * 解码顺序的sample时间
+     */
+    private final long[] sampleTimeArray;
+
+    private final int[] sampleSizeArray;
+
+    private final boolean[] sampleSyncArray;
+
+    /**
+     * 按时间排序的sample时间，有B帧时和解码顺序不一样
+     */
+    private final long[] sortedTimeArray;
+
+    /**
+     * 按时间排序的关键帧时间
+     */
+    private final long[] syncTimeArray;
+
+    private SampleIndex(long[] sampleTimeArray, int[] sampleSizeArray, boolean[] sampleSyncArray) {
+        this.sampleTimeArray = sampleTimeArray;
+        this.sampleSizeArray = sampleSizeArray;
+        this.sampleSyncArray = sampleSyncArray;
+        this.sortedTimeArray = sampleTimeArray.clone();
+        Arrays.sort(sortedTimeArray);
+        int syncCount = 0;
+        for (boolean sync : sampleSyncArray) {
+            if (sync) {
+                syncCount++;
+            }
+        }
+        syncTimeArray = new long[syncCount];
+        for (int i = 0, j = 0; i < sampleSyncArray.length; i++) {
+            if (sampleSyncArray[i]) {
+                syncTimeArray[j++] = sampleTimeArray[i];
+            }
+        }
+        Arrays.sort(syncTimeArray);
+    }
+
+    int getSampleCount() {
+        return sampleTimeArray.length;
+    }
+
+    long getSampleTimeUs(int index) {
+        return sampleTimeArray[index];
+    }
+
+    int getSampleSize(int index) {
+        return sampleSizeArray[index];
+    }
+
+    boolean isSyncSample(int index) {
+        return sampleSyncArray[index];
+    }
+
+    /**
+     * 目标时间显示的那一帧的时间，也就是时间小于等于timeUs的最后一帧
+     * @param timeUs
+     * @return timeUs在第一帧之前返回第一帧的时间，没有sample返回-1
+     */
+    long getFrameTimeUs(long timeUs) {
+        return floor(sortedTimeArray, timeUs);
+    }
+
+    /**
+     * 目标时间前面最近的关键帧时间
+     * @param timeUs
+     * @return 没有关键帧返回-1
+     */
+    long getPreSyncTimeUs(long timeUs) {
+        return floor(syncTimeArray, timeUs);
+    }
+
+    private static long floor(long[] timeArray, long timeUs) {
+        if (timeArray.length == 0) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(timeArray, timeUs);
+        if (index < 0) {
+            index = -index - 2;//插入点的前一个
+        }
+        return timeArray[Math.max(index, 0)];
+    }
+
+    /**
+     * 读取缓存的索引，没有就扫描文件生成并保存，比较耗时要在后台线程调用
+     * @param fileSource
+     * @return 文件没有视频轨道返回null
+     */
+    static SampleIndex load(FileSource fileSource) {
+        FileSource.Descriptor descriptor = fileSource.createFileDescriptor();
+        MediaExtractor extractor = null;
+        try {
+            long fileLength = descriptor.getLength();
+            File cacheFile = getCacheFile(fileSource, descriptor);
+            SampleIndex sampleIndex = readCacheFile(cacheFile, fileLength);
+            if (sampleIndex != null) {
+                return sampleIndex;
+            }
+            long startTimeNs = System.nanoTime();
+            extractor = new MediaExtractor();
+            extractor.setDataSource(descriptor.getFileDescriptor(), descriptor.getStartOffset(), fileLength);
+            if (!selectVideoTrack(extractor)) {
+                return null;
+            }
+            sampleIndex = scan(extractor);
+            LogUtil.d("sample index build " + sampleIndex.getSampleCount() + " samples cost "
+                    + TimeUtil.microToMill(TimeUtil.nanoToMicro(System.nanoTime() - startTimeNs)) + "ms");
+            writeCacheFile(cacheFile, fileLength, sampleIndex);
+            return sampleIndex;
+        } catch (IOException e) {
+            throw new IORuntimeException(e);
+        } finally {
+            if (extractor != null) {
+                extractor.release();
+            }
+            descriptor.close();
+        }
+    }
+
+    private static boolean selectVideoTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = MediaFormatUtil.getString(format, MediaFormat.KEY_MIME);
+            if (mime != null && mime.toLowerCase().startsWith("video")) {
+                extractor.selectTrack(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 只移动不读取数据，扫描的速度取决于容器的索引
+     * @param extractor
+     * @return
+     */
+    private static SampleIndex scan(MediaExtractor extractor) {
+        int capacity = 1024;
+        long[] timeArray = new long[capacity];
+        int[] sizeArray = new int[capacity];
+        boolean[] syncArray = new boolean[capacity];
+        int count = 0;
+        boolean supportSampleSize = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P;
+        while (true) {
+            long sampleTime = extractor.getSampleTime();
+            if (sampleTime < 0) {
+                break;
+            }
+            if (count == capacity) {
+                capacity *= 2;
+                timeArray = Arrays.copyOf(timeArray, capacity);
+                sizeArray = Arrays.copyOf(sizeArray, capacity);
+                syncArray = Arrays.copyOf(syncArray, capacity);
+            }
+            timeArray[count] = sampleTime;
+            sizeArray[count] = supportSampleSize ? (int) extractor.getSampleSize() : -1;
+            syncArray[count] = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+            count++;
+            if (!extractor.advance()) {
+                break;
+            }
+        }
+        return new SampleIndex(Arrays.copyOf(timeArray, count),
+                Arrays.copyOf(sizeArray, count),
+                Arrays.copyOf(syncArray, count));
+    }
+
+    private static SampleIndex readCacheFile(File cacheFile, long fileLength) {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (inputStream.readInt() != CACHE_MAGIC
+                    || inputStream.readInt() != CACHE_VERSION
+                    || inputStream.readLong() != fileLength) {
+                throw new IOException("header not match");
+            }
+            int count = inputStream.readInt();
+            //个数不能超过文件剩下的数据，文件损坏时不会按错误的个数分配过大的数组
+            if (count < 0 || count > (cacheFile.length() - CACHE_HEADER_SIZE) / CACHE_SAMPLE_SIZE) {
+                throw new IOException("sample count " + count);
+            }
+            long[] timeArray = new long[count];
+            int[] sizeArray = new int[count];
+            boolean[] syncArray = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                timeArray[i] = inputStream.readLong();
+                sizeArray[i] = inputStream.readInt();
+                syncArray[i] = inputStream.readByte() != 0;
+            }
+            return new SampleIndex(timeArray, sizeArray, syncArray);
+        } catch (IOException e) {
+            LogUtil.w("sample index load fail " + e.getMessage());
+            if (!cacheFile.delete()) {
+                LogUtil.w("sample index delete fail " + cacheFile);
+            }
+            return null;
+        } finally {
+            try {
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void writeCacheFile(File cacheFile, long fileLength, SampleIndex sampleIndex) {
+        File cacheDir = cacheFile.getParentFile();
+        if (cacheDir == null || (!cacheDir.isDirectory() && !cacheDir.mkdirs())) {
+            return;
+        }
+        File tempFile = new File(cacheDir, cacheFile.getName() + ".tmp");
+        DataOutputStream outputStream = null;
+        try {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            outputStream.writeInt(CACHE_MAGIC);
+            outputStream.writeInt(CACHE_VERSION);
+            outputStream.writeLong(fileLength);
+            outputStream.writeInt(sampleIndex.getSampleCount());
+            for (int i = 0; i < sampleIndex.getSampleCount(); i++) {
+                outputStream.writeLong(sampleIndex.sampleTimeArray[i]);
+                outputStream.writeInt(sampleIndex.sampleSizeArray[i]);
+                outputStream.writeByte(sampleIndex.sampleSyncArray[i] ? 1 : 0);
+            }
+            outputStream.close();
+            outputStream = null;
+            if (!tempFile.renameTo(cacheFile)) {
+                LogUtil.w("sample index rename fail " + cacheFile);
+            }
+        } catch (IOException e) {
+            LogUtil.w("sample index save fail " + e.getMessage());
+        } finally {
+            try {
+                if (outputStream != null) {
+                    outputStream.close();
+                }
+            } catch (IOException ignored) {
+            }
+            if (tempFile.exists() && !tempFile.delete()) {
+                LogUtil.w("sample index delete temp fail " + tempFile);
+            }
+        }
+    }
+
+    /**
+     * 文件名是路径、偏移、长度和修改时间算出的SHA-256，同一个文件的不同片段(譬如asset)也能区分
+     * 文件替换以后长度不变也会因为修改时间不同重新生成
+     * @param fileSource
+     * @param descriptor
+     * @return
+     */
+    private static File getCacheFile(FileSource fileSource, FileSource.Descriptor descriptor) {
+        String key = fileSource.getPath() + '\u0000' + descriptor.getStartOffset() + '\u0000' + descriptor.getLength()
+                + '\u0000' + fileSource.getLastModified();
+        String fileName;
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            byte[] digest = messageDigest.digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte value : digest) {
+                builder.append(Character.forDigit((value >> 4) & 0xF, 16));
+                builder.append(Character.forDigit(value & 0xF, 16));
+            }
+            fileName = builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            fileName = Integer.toHexString(key.hashCode());
+        }
+        File cacheDir = new File(AppUtil.getAppContext().getCacheDir(), CACHE_DIR_NAME);
+        return new File(cacheDir, fileName + CACHE_FILE_SUFFIX);
+    }
+}
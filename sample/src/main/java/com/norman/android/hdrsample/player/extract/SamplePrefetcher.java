@@ -0,0 +1,335 @@
+package com.norman.android.hdrsample.player.extract;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+
+import com.norman.android.hdrsample.player.color.HDR10PlusMetadata;
+import com.norman.android.hdrsample.util.BufferUtil;
+import com.norman.android.hdrsample.util.FrameTimingProfiler;
+import com.norman.android.hdrsample.util.LogUtil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 在单独的线程提前读取压缩的sample，解码器要输入数据时只需要拷贝一次内存
+ * 避免存储慢或者I帧很大时readSampleData卡住MediaCodec的输入回调
+ * 预读的sample保存在环形数组中，每个位置的Buffer来自BufferUtil的缓存池，sample比Buffer大时才扩容
+ * seek时清空预读的数据，用generation区分seek前后读取的sample，seek前读取到一半的sample直接丢弃
+ * 锁的顺序是先extractorLock再this，读取线程读取sample时只持有extractorLock，不影响解码线程取数据
+ * 传入hdr10PlusMetadataRing时读取线程顺便解析sample里的HDR10+元数据，不占用解码线程
+ * 读取出错时停止预读，已经预读的sample取完以后read和advance抛出这个错误，和直接调用MediaExtractor时一样，seek以后重新读取
+ */
+class SamplePrefetcher {
+
+    /**
+     * 最多预读的sample个数
+     */
+    private static final int PREFETCH_SAMPLE_COUNT = 4;
+
+    /**
+     * 没有KEY_MAX_INPUT_SIZE时Buffer的初始大小
+     */
+    private static final int DEFAULT_SAMPLE_CAPACITY = 256 * 1024;
+
+    /**
+     * Buffer扩容的上限，到了上限还放不下说明不是Buffer大小的问题
+     */
+    private static final int MAX_SAMPLE_CAPACITY = 64 * 1024 * 1024;
+
+    private final SampleSource sampleSource;
+
+    private final Object extractorLock = new Object();
+
+    private final Sample[] sampleArray = new Sample[PREFETCH_SAMPLE_COUNT];
+
+    private final Thread prefetchThread;
+
+    private final HDR10PlusMetadataRing hdr10PlusMetadataRing;
+
+    private final HDR10PlusSeiParser hdr10PlusSeiParser;
+
+    private int head;
+
+    private int count;
+
+    /**
+     * 已经读到结尾，seek之前不需要再读
+     */
+    private boolean endOfStream;
+
+    private int generation;
+
+    /**
+     * 读取线程遇到的错误，不为null时不再预读
+     */
+    private RuntimeException error;
+
+    private boolean release;
+
+    SamplePrefetcher(SampleSource sampleSource, int maxInputSize) {
+        this(sampleSource, maxInputSize, null, HDR10PlusSeiParser.ANNEX_B);
+    }
+
+    /**
+     * @param sampleSource
+     * @param maxInputSize
+     * @param hdr10PlusMetadataRing 不为null时解析HDR10+元数据保存到里面
+     * @param nalLengthSize sample中NAL前面长度的字节数，由csd-0决定，Annex-B格式是{@link HDR10PlusSeiParser#ANNEX_B}
+     */
+    SamplePrefetcher(SampleSource sampleSource, int maxInputSize, HDR10PlusMetadataRing hdr10PlusMetadataRing, int nalLengthSize) {
+        this.sampleSource = sampleSource;
+        this.hdr10PlusMetadataRing = hdr10PlusMetadataRing;
+        this.hdr10PlusSeiParser = hdr10PlusMetadataRing != null ? new HDR10PlusSeiParser(nalLengthSize) : null;
+        int sampleCapacity = maxInputSize > 0 ? maxInputSize : DEFAULT_SAMPLE_CAPACITY;
+        for (int i = 0; i < sampleArray.length; i++) {
+            sampleArray[i] = new Sample(sampleCapacity);
+        }
+        prefetchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                prefetchLoop();
+            }
+        }, "VideoExtractorPrefetch");
+        prefetchThread.setDaemon(true);
+        prefetchThread.start();
+    }
+
+    /**
+     * 清空预读的数据后seek，读取线程会从新的位置开始读
+     * @param timeUs
+     * @param mode MediaExtractor的seek模式
+     */
+    void seekTo(long timeUs, int mode) {
+        synchronized (extractorLock) {
+            synchronized (this) {
+                if (release) {
+                    return;
+                }
+                generation++;
+                head = 0;
+                count = 0;
+                endOfStream = false;
+                error = null;
+            }
+            sampleSource.seekTo(timeUs, mode);
+            if (hdr10PlusMetadataRing != null) {
+                hdr10PlusMetadataRing.clear();
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 把当前的sample拷贝到buffer中，还没预读到就等待读取线程
+     * @param buffer
+     * @param offset
+     * @param bufferInfo
+     */
+    synchronized void read(ByteBuffer buffer, int offset, MediaCodec.BufferInfo bufferInfo) {
+        if (!waitSample()) {
+            bufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            buffer.clear();
+            return;
+        }
+        Sample sample = sampleArray[head];
+        if (sample.endOfStream) {
+            bufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            buffer.clear();
+            return;
+        }
+        buffer.clear();
+        if (buffer.capacity() - offset < sample.size) {
+            throw new IllegalArgumentException("buffer capacity is less than sample size " + sample.size);
+        }
+        buffer.position(offset);
+        sample.buffer.position(0);
+        sample.buffer.limit(sample.size);
+        buffer.put(sample.buffer);
+        buffer.position(offset);
+        buffer.limit(offset + sample.size);
+        bufferInfo.set(offset, sample.size, sample.presentationTimeUs, sample.flags);
+    }
+
+    /**
+     * 丢弃当前的sample，指向下一个
+     * @return 后续是否还存在数据
+     */
+    synchronized boolean advance() {
+        if (!waitSample()) {
+            return false;
+        }
+        Sample sample = sampleArray[head];
+        if (sample.endOfStream) {
+            return false;
+        }
+        head = (head + 1) % sampleArray.length;
+        count--;
+        notifyAll();
+        return true;
+    }
+
+    void release() {
+        synchronized (this) {
+            if (release) {
+                return;
+            }
+            release = true;
+            notifyAll();
+        }
+        prefetchThread.interrupt();
+        try {
+            prefetchThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Sample sample : sampleArray) {
+            BufferUtil.releaseDirectBuffer(sample.buffer);
+            sample.buffer = null;
+        }
+    }
+
+    /**
+     * 等待预读到数据
+     * @return 已经销毁返回false
+     * @throws IllegalStateException 预读的sample已经取完并且读取线程出错了
+     */
+    private boolean waitSample() {
+        while (count == 0 && error == null && !release) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if (count == 0 && error != null && !release) {
+            throw new IllegalStateException("prefetch sample fail", error);
+        }
+        return count > 0;
+    }
+
+    private void prefetchLoop() {
+        while (true) {
+            Sample sample;
+            int readGeneration;
+            synchronized (this) {
+                while (!release && (count == sampleArray.length || endOfStream || error != null)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        if (release) {
+                            return;
+                        }
+                    }
+                }
+                if (release) {
+                    return;
+                }
+                sample = sampleArray[(head + count) % sampleArray.length];
+                readGeneration = generation;
+            }
+            // 读取时不持有this，解码线程可以同时取走已经预读的sample
+            synchronized (extractorLock) {
+                synchronized (this) {
+                    if (release) {
+                        return;
+                    }
+                    if (readGeneration != generation) {//等锁的时候seek了，重新选位置
+                        continue;
+                    }
+                }
+                try {
+                    readSample(sample);
+                } catch (RuntimeException e) {
+                    synchronized (this) {
+                        if (readGeneration == generation) {//seek以前的错误不用管，seek后重新读
+                            LogUtil.e("prefetch sample fail " + e.getMessage());
+                            error = e;
+                            notifyAll();
+                        }
+                    }
+                    continue;
+                }
+            }
+            synchronized (this) {
+                if (release) {
+                    return;
+                }
+                if (readGeneration != generation) {
+                    continue;
+                }
+                count++;
+                endOfStream = sample.endOfStream;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 读取当前sample并指向下一个，需要持有extractorLock
+     * @param sample
+     * @throws RuntimeException MediaExtractor抛出的错误
+     */
+    private void readSample(Sample sample) {
+        int size;
+        long startTimeNs = System.nanoTime();
+        while (true) {
+            try {
+                sample.buffer.clear();
+                size = sampleSource.readSampleData(sample.buffer, 0);
+                break;
+            } catch (IllegalArgumentException e) {
+                // Buffer放不下这个sample，换一个两倍大的重新读
+                if (sample.buffer.capacity() >= MAX_SAMPLE_CAPACITY) {
+                    throw e;
+                }
+                int capacity = sample.buffer.capacity() * 2;
+                LogUtil.w("prefetch sample buffer grow to " + capacity);
+                BufferUtil.releaseDirectBuffer(sample.buffer);
+                sample.buffer = BufferUtil.obtainDirectBuffer(capacity);
+            }
+        }
+        FrameTimingProfiler.record(FrameTimingProfiler.STAGE_EXTRACTOR_PREFETCH, System.nanoTime() - startTimeNs);
+        long presentationTimeUs = sampleSource.getSampleTime();
+        if (size < 0 || presentationTimeUs < 0) {
+            sample.endOfStream = true;
+            sample.size = 0;
+            sample.presentationTimeUs = 0;
+            sample.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+            return;
+        }
+        int sampleFlags = sampleSource.getSampleFlags();
+        int flags = 0;
+        if ((sampleFlags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+            flags |= MediaCodec.BUFFER_FLAG_KEY_FRAME;
+        }
+        if ((sampleFlags & MediaExtractor.SAMPLE_FLAG_PARTIAL_FRAME) != 0) {
+            flags |= MediaCodec.BUFFER_FLAG_PARTIAL_FRAME;
+        }
+        sample.endOfStream = false;
+        sample.size = size;
+        sample.presentationTimeUs = presentationTimeUs;
+        sample.flags = flags;
+        if (hdr10PlusSeiParser != null) {
+            HDR10PlusMetadata metadata = hdr10PlusMetadataRing.obtain();
+            if (hdr10PlusSeiParser.parse(sample.buffer, size, metadata)) {
+                hdr10PlusMetadataRing.commit(metadata, presentationTimeUs);
+            }
+        }
+        sampleSource.advance();
+    }
+
+    private static class Sample {
+        ByteBuffer buffer;
+        int size;
+        long presentationTimeUs;
+        int flags;
+        boolean endOfStream;
+
+        Sample(int capacity) {
+            buffer = BufferUtil.obtainDirectBuffer(capacity);
+        }
+    }
+}
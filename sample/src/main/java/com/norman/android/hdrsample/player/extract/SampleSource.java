@@ -0,0 +1,66 @@
+package com.norman.android.hdrsample.player.extract;
+
+import android.media.MediaExtractor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 预读线程读取sample的来源，方法和MediaExtractor一致
+ * 单独抽出来是为了不依赖MediaExtractor也能测试{@link SamplePrefetcher}
+ */
+interface SampleSource {
+
+    static SampleSource create(MediaExtractor extractor) {
+        return new SampleSource() {
+            @Override
+            public int readSampleData(ByteBuffer buffer, int offset) {
+                return extractor.readSampleData(buffer, offset);
+            }
+
+            @Override
+            public long getSampleTime() {
+                return extractor.getSampleTime();
+            }
+
+            @Override
+            public int getSampleFlags() {
+                return extractor.getSampleFlags();
+            }
+
+            @Override
+            public boolean advance() {
+                return extractor.advance();
+            }
+
+            @Override
+            public void seekTo(long timeUs, int mode) {
+                extractor.seekTo(timeUs, mode);
+            }
+        };
+    }
+
+    /**
+     * @param buffer
+     * @param offset
+     * @return sample的大小，没有数据返回-1
+     */
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    /**
+     * @return 当前sample的时间，没有数据返回-1
+     */
+    long getSampleTime();
+
+    /**
+     * @return MediaExtractor的SAMPLE_FLAG
+     */
+    int getSampleFlags();
+
+    boolean advance();
+
+    /**
+     * @param timeUs
+     * @param mode MediaExtractor的seek模式
+     */
+    void seekTo(long timeUs, int mode);
+}
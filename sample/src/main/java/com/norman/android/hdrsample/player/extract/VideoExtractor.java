@@ -3,6 +3,7 @@ package com.norman.android.hdrsample.player.extract;
 import com.norman.android.hdrsample.player.color.ColorRange;
 import com.norman.android.hdrsample.player.color.ColorStandard;
 import com.norman.android.hdrsample.player.color.ColorTransfer;
+import com.norman.android.hdrsample.player.color.HDR10PlusMetadata;
 
 /**
  * 视频解封装器
@@ -49,4 +50,13 @@ public interface VideoExtractor extends Extractor {
      */
     @ColorTransfer
     int getColorTransfer();
+
+    /**
+     * 帧的HDR10+动态元数据，目前只解析HEVC SEI里的，拷贝到调用方的对象里，每帧不需要分配
+     *
+     * @param presentationTimeUs 帧的时间
+     * @param metadata 找到时拷贝到这里，没找到不会修改
+     * @return 没有或者已经被覆盖返回false
+     */
+    boolean getHDR10PlusMetadata(long presentationTimeUs, HDR10PlusMetadata metadata);
 }
@@ -8,7 +8,10 @@ import com.norman.android.hdrsample.exception.IORuntimeException;
 import com.norman.android.hdrsample.player.color.ColorRange;
 import com.norman.android.hdrsample.player.color.ColorStandard;
 import com.norman.android.hdrsample.player.color.ColorTransfer;
+import com.norman.android.hdrsample.player.color.HDR10PlusMetadata;
 import com.norman.android.hdrsample.player.source.FileSource;
+import com.norman.android.hdrsample.util.FrameTimingProfiler;
+import com.norman.android.hdrsample.util.LogUtil;
 import com.norman.android.hdrsample.util.MediaFormatUtil;
 
 import java.io.IOException;
@@ -31,6 +34,16 @@ class VideoExtractorImpl implements VideoExtractor {
     private ByteBuffer csd0Buffer;
     private ByteBuffer csd1Buffer;
     private MediaExtractor extractor;
+    private SamplePrefetcher samplePrefetcher;
+    /**
+     * 只有HEVC的PQ视频才有，否则是null
+     */
+    private volatile HDR10PlusMetadataRing hdr10PlusMetadataRing;
+    /**
+     * 后台生成，生成前是null
+     */
+    private volatile SampleIndex sampleIndex;
+    private int sourceNumber;
     private boolean release;
 
 
@@ -41,6 +54,8 @@ class VideoExtractorImpl implements VideoExtractor {
         }
         releaseExtractor();
         resetMetaInfo();
+        sourceNumber++;
+        sampleIndex = null;
         extractor = new MediaExtractor();
         FileSource.Descriptor fileSourceDescriptor = fileSource.createFileDescriptor();
         try {
@@ -80,7 +95,16 @@ class VideoExtractorImpl implements VideoExtractor {
         }
         if (!hasVideo) {
             releaseExtractor();
+            return;
+        }
+        // 容器里没写传递函数时也可能是PQ视频
+        if (MediaFormat.MIMETYPE_VIDEO_HEVC.equalsIgnoreCase(mimeType)
+                && (colorTransfer == ColorTransfer.ST2084 || colorTransfer == 0)) {
+            hdr10PlusMetadataRing = new HDR10PlusMetadataRing();
         }
+        samplePrefetcher = new SamplePrefetcher(SampleSource.create(extractor), maxInputSize, hdr10PlusMetadataRing,
+                HDR10PlusSeiParser.getNalLengthSize(csd0Buffer));
+        loadSampleIndex(fileSource);
     }
 
     /**
@@ -103,7 +127,7 @@ class VideoExtractorImpl implements VideoExtractor {
         if (!isAvailable()) {
             return;
         }
-        extractor.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        samplePrefetcher.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
     }
 
     @Override
@@ -111,7 +135,7 @@ class VideoExtractorImpl implements VideoExtractor {
         if (!isAvailable()) {
             return;
         }
-        extractor.seekTo(timeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        samplePrefetcher.seekTo(timeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
     }
 
     @Override
@@ -119,7 +143,56 @@ class VideoExtractorImpl implements VideoExtractor {
         if (!isAvailable()) {
             return;
         }
-        extractor.seekTo(timeUs, MediaExtractor.SEEK_TO_NEXT_SYNC);
+        samplePrefetcher.seekTo(timeUs, MediaExtractor.SEEK_TO_NEXT_SYNC);
+    }
+
+    @Override
+    public long getFrameTimeUs(long timeUs) {
+        SampleIndex index = sampleIndex;
+        if (index == null) {
+            return timeUs;
+        }
+        long frameTimeUs = index.getFrameTimeUs(timeUs);
+        return frameTimeUs < 0 ? timeUs : frameTimeUs;
+    }
+
+    @Override
+    public long getPreSyncTimeUs(long timeUs) {
+        SampleIndex index = sampleIndex;
+        return index == null ? -1 : index.getPreSyncTimeUs(timeUs);
+    }
+
+    @Override
+    public boolean getHDR10PlusMetadata(long presentationTimeUs, HDR10PlusMetadata metadata) {
+        HDR10PlusMetadataRing metadataRing = hdr10PlusMetadataRing;
+        return metadataRing != null && metadataRing.get(presentationTimeUs, metadata);
+    }
+
+    /**
+     * 在后台线程读取或者生成sample索引，不影响开始播放
+     * @param fileSource
+     */
+    private void loadSampleIndex(FileSource fileSource) {
+        final int loadSourceNumber = sourceNumber;
+        Thread loadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SampleIndex index;
+                try {
+                    index = SampleIndex.load(fileSource);
+                } catch (Exception e) {
+                    LogUtil.w("sample index load fail " + e.getMessage());
+                    return;
+                }
+                synchronized (VideoExtractorImpl.this) {
+                    if (loadSourceNumber == sourceNumber && !release) {//生成的时候可能已经换了文件
+                        sampleIndex = index;
+                    }
+                }
+            }
+        }, "VideoSampleIndex");
+        loadThread.setDaemon(true);
+        loadThread.start();
     }
 
     @Override
@@ -132,6 +205,8 @@ class VideoExtractorImpl implements VideoExtractor {
     }
 
     private synchronized void releaseExtractor() {
+        if (samplePrefetcher != null) samplePrefetcher.release();//先停止读取线程再销毁MediaExtractor
+        samplePrefetcher = null;
         if (extractor != null) extractor.release();
         extractor = null;
     }
@@ -147,24 +222,9 @@ class VideoExtractorImpl implements VideoExtractor {
         if (!isAvailable()) {
             return;
         }
-        bufferInfo.offset = offset;
-        bufferInfo.size = extractor.readSampleData(buffer, offset);
-        bufferInfo.presentationTimeUs = extractor.getSampleTime();
-        int flags = extractor.getSampleFlags();
-        if (flags == android.media.MediaExtractor.SAMPLE_FLAG_SYNC) {
-            bufferInfo.flags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
-        } else if (flags == android.media.MediaExtractor.SAMPLE_FLAG_PARTIAL_FRAME) {
-            bufferInfo.flags = MediaCodec.BUFFER_FLAG_PARTIAL_FRAME;
-        }
-        if (bufferInfo.size == -1 || bufferInfo.presentationTimeUs == -1) {
-            bufferInfo.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
-            bufferInfo.size = 0;
-            bufferInfo.presentationTimeUs = 0;
-            buffer.clear();
-        } else {
-            buffer.position(offset);
-            buffer.limit(offset + bufferInfo.size);
-        }
+        long startTimeNs = System.nanoTime();
+        samplePrefetcher.read(buffer, offset, bufferInfo);//数据已经在读取线程预读好了，这里只拷贝
+        FrameTimingProfiler.record(FrameTimingProfiler.STAGE_EXTRACTOR_READ, System.nanoTime() - startTimeNs);
     }
 
     @Override
@@ -172,7 +232,7 @@ class VideoExtractorImpl implements VideoExtractor {
         if (!isAvailable()) {
             return false;
         }
-        return extractor.advance();
+        return samplePrefetcher.advance();
     }
 
     @Override
@@ -253,6 +313,7 @@ class VideoExtractorImpl implements VideoExtractor {
         colorStandard = 0;
         colorRange = 0;
         colorTransfer = 0;
+        hdr10PlusMetadataRing = null;
         csd0Buffer = null;
         csd1Buffer = null;
     }
@@ -2,6 +2,7 @@ package com.norman.android.hdrsample.player.shader
 
 import androidx.annotation.IntDef
 import com.norman.android.hdrsample.opengl.GLShaderCode
+import com.norman.android.hdrsample.player.GLFusionFragment
 
 /**
  * 纹理FragmentShader
@@ -12,15 +13,26 @@ import com.norman.android.hdrsample.opengl.GLShaderCode
  * Y2Y纹理格式在OES纹理格式的基础上需要GL_EXT_YUV_target+__samplerExternal2DY2YEXT支持
  * Y2Y纹理输出的颜色是YUV需要转成RGB，Y2Y纹理转换的RGB颜色比OES纹理的颜色色域可控，色差更准，据说支持的位数比OES纹理大(不确定)
  * 可以确认的是之所以叫Y2Y是因为直接把YUV的内容渲染到YUV的Surface上不用中转，这里我们没有使用YUV的Surface所以还需要转成RGB
+ * 传入fusionFragments时，采样得到的RGB会按顺序经过每个片元的函数处理，多个Transform在一次渲染中完成
  */
-class TextureFragmentShader(@TextureType textureType: Int) : GLShaderCode() {
+class TextureFragmentShader @JvmOverloads constructor(
+    @TextureType textureType: Int,
+    fusionFragments: List<GLFusionFragment> = emptyList()
+) : GLShaderCode() {
 
 
     @JvmField
     val textureType: Int
 
+    /**
+     * 合并渲染的片元代码
+     */
+    @JvmField
+    val fusionFragments: List<GLFusionFragment>
+
     init {
         this.textureType = textureType
+        this.fusionFragments = fusionFragments
     }
 
     override val code: String
@@ -37,11 +49,13 @@ class TextureFragmentShader(@TextureType textureType: Int) : GLShaderCode() {
             else "__samplerExternal2DY2YEXT"
         } $INPUT_IMAGE_TEXTURE;
             |${if (textureType == TYPE_TEXTURE_Y2Y) "uniform mat4 $Y2Y_TO_RGB_MATRIX;" else ""}
+            |${fusionFragments.joinToString("\n") { it.declareCode }}
             |void main()
             |{
             |    vec4 color = texture($INPUT_IMAGE_TEXTURE, textureCoordinate);
             |    vec3 rgb = color.rgb;
             |    ${if (textureType == TYPE_TEXTURE_Y2Y) "rgb = ($Y2Y_TO_RGB_MATRIX *vec4(rgb, 1.0)).rgb;" else ""}
+            |    ${fusionFragments.joinToString("\n") { "rgb = ${it.methodName}(rgb);" }}
             |    outColor.rgb =rgb;
             |    outColor.a= color.a;
             |}
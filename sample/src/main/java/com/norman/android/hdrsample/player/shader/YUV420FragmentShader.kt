@@ -2,6 +2,7 @@ package com.norman.android.hdrsample.player.shader
 
 import androidx.annotation.IntDef
 import com.norman.android.hdrsample.opengl.GLShaderCode
+import com.norman.android.hdrsample.player.GLFusionFragment
 import com.norman.android.hdrsample.player.color.YUV420Type
 
 /**
@@ -13,11 +14,23 @@ import com.norman.android.hdrsample.player.color.YUV420Type
  * NV21 两个平面依次 Y平面 VU平面，VU平面里面是按VU间隔，U平面和V平面的宽高都是Y平面的1/2
  *
  * 总结：https://juejin.cn/post/7207637337572606007
+ *
+ * texelFetch不能重采样，图像大小和输出大小一样时用最近的像素就够了
+ * 大小不一样时(譬如直接渲染到屏幕上)要开启linearFilter，取周围4个像素手动双线性插值
+ * 传入fusionFragments时，转换得到的RGB会按顺序经过每个片元的函数处理，YUV转RGB和Transform在一次渲染中完成
  */
-class YUV420FragmentShader(@YUV420Type type: Int) : GLShaderCode() {
+class YUV420FragmentShader @JvmOverloads constructor(
+    @YUV420Type type: Int,
+    linearFilter: Boolean = false,
+    fusionFragments: List<GLFusionFragment> = emptyList()
+) : GLShaderCode() {
 
     val yuv420Type = type;
 
+    val linearFilter = linearFilter
+
+    val fusionFragments = fusionFragments
+
     override val code = """
             #version 300 es
             precision highp float;
@@ -61,27 +74,10 @@ class YUV420FragmentShader(@YUV420Type type: Int) : GLShaderCode() {
                 return ivec2(coord*(size-1.0)+0.5);//不直接乘以size是因为个人觉得纹理访问其实取的是中间值
             }
 
-            float getLumaColor(vec2 textureCoord){
-                uint color = texelFetch($LUMA_TEXTURE, quantizedCoord(textureCoord, $LUMA_SIZE), 0).x;
-                return normalizedColor(color);
-            }
-
-            vec2 getChromaSemiColor(vec2 textureCoord){
-                uvec2 color = texelFetch($CHROMA_SEMI_TEXTURE, quantizedCoord(textureCoord, $CHROMA_SEMI_SIZE), 0).xy;
-                return normalizedColor(color);
-            }
+            ${if (linearFilter) LINEAR_FETCH_CODE else NEAREST_FETCH_CODE}
 
-            float getChromaPlanarUColor(vec2 textureCoord){
-                uint color = texelFetch($CHROMA_PLANAR_U_TEXTURE, quantizedCoord(textureCoord, $CHROMA_PLANAR_U_SIZE), 0).x;
-                return normalizedColor(color);
-            }
+            ${fusionFragments.joinToString("\n") { it.declareCode }}
 
-
-            float getChromaPlanarVColor(vec2 textureCoord){
-                uint color = texelFetch($CHROMA_PLANAR_V_TEXTURE, quantizedCoord(textureCoord, $CHROMA_PLANAR_V_SIZE), 0).x;
-                return normalizedColor(color);
-            }
-            
             void main() {
                 vec3 yuv = vec3(0.0);
                 ${
@@ -107,13 +103,77 @@ class YUV420FragmentShader(@YUV420Type type: Int) : GLShaderCode() {
         
                     else -> ""
                 }}      
-                outColor.rgb =yuvToRgb(yuv);
+                vec3 rgb = yuvToRgb(yuv);
+                ${fusionFragments.joinToString("\n") { "rgb = ${it.methodName}(rgb);" }}
+                outColor.rgb = rgb;
                 outColor.a = 1.0;
             }
     """.trimIndent()
 
 
     companion object {
+
+        /**
+         * 取最近的像素
+         */
+        private val NEAREST_FETCH_CODE = """
+            float getLumaColor(vec2 textureCoord){
+                uint color = texelFetch($LUMA_TEXTURE, quantizedCoord(textureCoord, $LUMA_SIZE), 0).x;
+                return normalizedColor(color);
+            }
+
+            vec2 getChromaSemiColor(vec2 textureCoord){
+                uvec2 color = texelFetch($CHROMA_SEMI_TEXTURE, quantizedCoord(textureCoord, $CHROMA_SEMI_SIZE), 0).xy;
+                return normalizedColor(color);
+            }
+
+            float getChromaPlanarUColor(vec2 textureCoord){
+                uint color = texelFetch($CHROMA_PLANAR_U_TEXTURE, quantizedCoord(textureCoord, $CHROMA_PLANAR_U_SIZE), 0).x;
+                return normalizedColor(color);
+            }
+
+
+            float getChromaPlanarVColor(vec2 textureCoord){
+                uint color = texelFetch($CHROMA_PLANAR_V_TEXTURE, quantizedCoord(textureCoord, $CHROMA_PLANAR_V_SIZE), 0).x;
+                return normalizedColor(color);
+            }
+        """.trimIndent()
+
+        /**
+         * 取周围4个像素做双线性插值，和2D纹理GL_LINEAR的采样结果一致
+         * YUV转RGB是线性的，先插值YUV再转RGB和先转RGB再插值的结果是一样的
+         */
+        private val LINEAR_FETCH_CODE = """
+            vec4 linearFetch(highp usampler2D planeTexture, vec2 textureCoord, vec2 size){
+                vec2 coord = textureCoord*(size-1.0);
+                ivec2 maxCoord = ivec2(size)-1;
+                ivec2 coord00 = clamp(ivec2(floor(coord)), ivec2(0), maxCoord);
+                ivec2 coord11 = min(coord00+1, maxCoord);
+                vec2 weight = coord - vec2(coord00);
+                vec4 color00 = vec4(texelFetch(planeTexture, coord00, 0)>>$BIT_MASK);
+                vec4 color10 = vec4(texelFetch(planeTexture, ivec2(coord11.x, coord00.y), 0)>>$BIT_MASK);
+                vec4 color01 = vec4(texelFetch(planeTexture, ivec2(coord00.x, coord11.y), 0)>>$BIT_MASK);
+                vec4 color11 = vec4(texelFetch(planeTexture, coord11, 0)>>$BIT_MASK);
+                return mix(mix(color00, color10, weight.x), mix(color01, color11, weight.x), weight.y)/MAX_COLOR_VALUE;
+            }
+
+            float getLumaColor(vec2 textureCoord){
+                return linearFetch($LUMA_TEXTURE, textureCoord, $LUMA_SIZE).x;
+            }
+
+            vec2 getChromaSemiColor(vec2 textureCoord){
+                return linearFetch($CHROMA_SEMI_TEXTURE, textureCoord, $CHROMA_SEMI_SIZE).xy;
+            }
+
+            float getChromaPlanarUColor(vec2 textureCoord){
+                return linearFetch($CHROMA_PLANAR_U_TEXTURE, textureCoord, $CHROMA_PLANAR_U_SIZE).x;
+            }
+
+            float getChromaPlanarVColor(vec2 textureCoord){
+                return linearFetch($CHROMA_PLANAR_V_TEXTURE, textureCoord, $CHROMA_PLANAR_V_SIZE).x;
+            }
+        """.trimIndent()
+
         /**
          * Y平面
          */
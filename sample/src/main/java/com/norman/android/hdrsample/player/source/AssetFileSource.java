@@ -2,8 +2,10 @@ package com.norman.android.hdrsample.player.source;
 
 import android.content.res.AssetFileDescriptor;
 
+import com.norman.android.hdrsample.util.AppUtil;
 import com.norman.android.hdrsample.util.FileUtil;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
 
@@ -34,6 +36,15 @@ public class AssetFileSource implements FileSource {
         return assetPath;
     }
 
+    /**
+     * asset打包在apk里，apk更新了asset才会变，用apk文件的修改时间
+     * @return
+     */
+    @Override
+    public long getLastModified() {
+        return new File(AppUtil.getAppContext().getApplicationInfo().sourceDir).lastModified();
+    }
+
 
     static class AssetFileSourceDescriptor implements Descriptor {
 
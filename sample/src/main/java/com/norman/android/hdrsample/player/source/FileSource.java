@@ -15,6 +15,12 @@ public interface FileSource {
 
     String getPath();
 
+    /**
+     * 文件最后修改的时间，用来判断缓存是否过期
+     * @return 毫秒，获取不到返回0
+     */
+    long getLastModified();
+
 
     interface Descriptor {
         FileDescriptor getFileDescriptor();
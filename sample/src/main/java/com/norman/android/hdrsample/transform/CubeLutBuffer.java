@@ -1,19 +1,33 @@
 package com.norman.android.hdrsample.transform;
 
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.content.res.AssetFileDescriptor;
 import android.opengl.GLES20;
 import android.opengl.GLES30;
 
+import androidx.annotation.IntDef;
+
 import com.norman.android.hdrsample.exception.IORuntimeException;
+import com.norman.android.hdrsample.util.AppUtil;
 import com.norman.android.hdrsample.util.BufferUtil;
 import com.norman.android.hdrsample.util.FileUtil;
 import com.norman.android.hdrsample.util.GLESUtil;
+import com.norman.android.hdrsample.util.HalfFloatUtil;
 import com.norman.android.hdrsample.util.LogUtil;
+import com.norman.android.hdrsample.util.TimeUtil;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
@@ -21,417 +35,730 @@ import java.nio.charset.StandardCharsets;
 /**
  * 加载Cube文件中的Buffer的工具类
  * 刚开始参考<a href="https://github.com/Milchreis/processing-imageprocessing/blob/master/src/milchreis/imageprocessing/CubeLUT.java">CubeLUT</a>发现加载特别慢
- * 加载时间从3s左右优化成70ms，措施如下
+ * 加载时间从3s左右优化成70ms(可以看loadTimeUs或者搜索cubeLut load的日志)，措施如下
  * 1. MappedByteBuffer减轻内核上下文切换带来的时间开销
  * 2. 原先读取一行String再去匹配，改成匹配缓存ByteBuffer，降低内存开销
  * 3. 原先String转Float，改成读取byte计算出Float，降低String中重新创建Buffer的开销
  * 代码逻辑有点复杂，如果看不懂，可以尝试自己写，也许加载速度更快
- * 核心逻辑就是读取Cube文件中的 title size 和 RGB数据
+ * 核心逻辑就是读取Cube文件中的 title size 和 RGB数据，解析在{@link CubeLutParser}中
  *  title就是从Cube文件读取像TITLE "BT2020_HLG_BT601_PAL"中的BT2020_HLG_BT601_PAL
  *  size就是从Cube文件读取像LUT_3D_SIZE 33中的33
  *  RGB数据就是从Cube文件读取像0.50289002 0.59033508 0.77007249读取数字转换成RGB Buffer
- * 如果还像加速速度，可以把cube文件内容读取到rgbBuffer后直接保存到文件中，读取的时候就不需要处理，速度会快很多
+ * 第一次解析完会把rgbBuffer保存到缓存目录的二进制文件中，下次加载直接把缓存文件映射成rgbBuffer，不需要再解析
+ * 缓存文件记录了源文件的长度和App的安装更新时间，asset文件只会随着App更新而改变，App更新或者长度变了缓存就会失效重新解析
+ * 不对整个asset算校验值，不然每次加载都要把整个文件读一遍，缓存就没有意义了
  */
 public class CubeLutBuffer {
 
-    private static final byte MATCH_RUNNING = 0;
-    private static final byte MATCH_COMPLETE = 1;
-    private static final byte MATCH_STOP = 2;
+    /**
+     * 3D纹理的存储精度
+     */
+    @IntDef({LutPrecision.FP32, LutPrecision.FP16, LutPrecision.RGB10_A2, LutPrecision.RGBA8})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface LutPrecision {
+        /**
+         * 32位float，精度最高，但是需要支持GL_OES_texture_float_linear，不支持会降级成FP16
+         */
+        int FP32 = 0;
+        /**
+         * 16位float，内存是FP32的一半，一般情况都够用
+         */
+        int FP16 = 1;
+        /**
+         * RGB每个通道10位，只能表示0到1的数据
+         */
+        int RGB10_A2 = 2;
+        /**
+         * RGB每个通道8位，只能表示0到1的数据，精度最低
+         */
+        int RGBA8 = 3;
+    }
 
     /**
-     * 匹配RGB float数据的符号位
+     * 一个像素有RGB 3个float
      */
-    private static final byte FLOAT_STATE_SIGN = 0;
+    private static final int BYTES_PER_PIXEL = 3 * Float.BYTES;
 
     /**
-     * 匹配RGB float数据的整数位
+     * 缓存文件的魔数，就是CLUT四个字符
      */
-    private static final byte FLOAT_STATE_INT = 1;
+    private static final int CACHE_MAGIC = 0x434C5554;
+
     /**
-     * 匹配RGB float数据的小数位
+     * 缓存文件的版本号，缓存格式或者解析逻辑变了就要加1，让旧的缓存失效
      */
-    private static final byte FLOAT_STATE_DECIMAL = 2;
+    private static final int CACHE_VERSION = 3;
 
     /**
-     * 匹配RGB float数据的指数位
+     * 缓存文件头部除了title以外的长度
+     * magic(4) + version(4) + sourceLength(8) + sourceStamp(8) + size(4) + domain(24) + order(1) + titleLength(2)
      */
+    private static final int CACHE_HEADER_FIXED_LENGTH = 55;
+
+    private static final byte CACHE_ORDER_BIG_ENDIAN = 0;
+    private static final byte CACHE_ORDER_LITTLE_ENDIAN = 1;
+
+    private static final String CACHE_DIR_NAME = "cube_lut";
 
-    private static final byte FLOAT_STATE_EXPONENT = 3;
+    private static final String CACHE_FILE_SUFFIX = ".bin";
+
+    private static volatile boolean parallelParseEnable = true;
 
     /**
-     * 换行
+     * App的安装更新时间，缓存文件用它判断asset是否变了
      */
+    private static volatile long appUpdateTime;
 
-    private static final byte BYTE_LINE = '\n';
     /**
-     * 空格
+     * 32位float纹理支持线性插值的扩展
      */
-    private static final byte BYTE_SPACE = ' ';
+    private static final String EXTENSION_FLOAT_LINEAR = "GL_OES_texture_float_linear";
 
     /**
-     * # 代表注释，后面整行的数据都可以丢掉
+     * 是否支持32位float纹理线性插值，第一次在GL线程查询后缓存，没查询过是null
      */
-    private static final byte BYTE_NUMBER = '#';
+    private static volatile Boolean floatLinearSupport;
+
+
 
     /**
-     * 0
+     * 标题 譬如从Cube文件读取 TITLE "BT2020_HLG_BT601_PAL"中的BT2020_HLG_BT601_PAL
      */
-    private static final byte BYTE_0 = '0';
+    public String title;
     /**
-     * 9
+     * 大小 表示RGB图像的宽高和深度， 譬如从Cube文件读取 LUT_3D_SIZE 33中的33
      */
-    private static final byte BYTE_9 = '9';
+    public Integer size;
+
     /**
-     * 小数点
+     * RGB数据 每行中有3个float数字，依次是RGB，需要把String转float
      */
-    private static final byte BYTE_DOT = '.';
+
+    public ByteBuffer rgbBuffer;
 
     /**
-     * 指数小写
+     * 输入数据的范围，譬如从Cube文件读取 DOMAIN_MIN -0.0730594 -0.0730594 -0.0730594，没有就是默认值0
      */
-    private static final byte BYTE_e = 'e';
+    public float[] domainMin = {0, 0, 0};
 
     /**
-     * 指数大写
+     * 输入数据的范围，譬如从Cube文件读取 DOMAIN_MAX 1.09475 1.09475 1.09475，没有就是默认值1
      */
-    private static final byte BYTE_E = 'E';
+    public float[] domainMax = {1, 1, 1};
 
     /**
-     * 匹配RGB float数据符号位的加号
+     * 从asset加载花费的时间，单位微秒，直接创建的是0
      */
-    private static final byte BYTE_PLUS = '+';
+    public long loadTimeUs;
 
     /**
-     * 匹配RGB float数据符号位的减号
+     * 是否是从缓存文件加载的，false表示解析了Cube文件
      */
-    private static final byte BYTE_MINUS = '-';
+    public boolean loadFromCache;
+
+    private CubeLutBuffer() {
+    }
+
+    private CubeLutBuffer(String assetName) {
+        long startTimeNs = System.nanoTime();
+        FileInputStream inputStream = null;
+        try {
+            // 读取asset文件
+            AssetFileDescriptor assetFileDescriptor = FileUtil.openAssetFileDescriptor(assetName);
+            inputStream = assetFileDescriptor.createInputStream();
+            FileChannel fileChannel = inputStream.getChannel();
+            long startOffset = assetFileDescriptor.getStartOffset();
+            long declaredLength = assetFileDescriptor.getDeclaredLength();
+            // asset只会随App更新改变，用安装更新时间判断缓存是否过期，不需要读取asset的内容
+            long sourceStamp = getSourceStamp();
+            File cacheFile = getCacheFile(assetName);
+            loadFromCache = readCacheFile(cacheFile, declaredLength, sourceStamp);
+            if (!loadFromCache) {
+                // 缓存失效才把文件转换成MappedByteBuffer
+                // 读取大文件的一种方式(共享内存避免上下文切换带来的耗时)，注意只能读取2G以下的文件
+                // 注意要传offset不能直接传0，不然会发现读取除出来的文字前面多了一些莫名奇妙的字符
+                MappedByteBuffer assetMapBuffer = fileChannel
+                        .map(FileChannel.MapMode.READ_ONLY,
+                                startOffset,
+                                declaredLength);
+                CubeLutParser parser = parseCube(assetMapBuffer);
+                // 解析结果在缓存池的临时内存里，写入缓存文件后直接映射缓存文件，临时内存放回缓存池
+                // 写入失败就一直用解析的内存
+                if (writeCacheFile(cacheFile, declaredLength, sourceStamp)
+                        && readCacheFile(cacheFile, declaredLength, sourceStamp)) {
+                    parser.release();
+                }
+            }
+            loadTimeUs = TimeUtil.nanoToMicro(System.nanoTime() - startTimeNs);
+            LogUtil.d("cubeLut load " + assetName + (loadFromCache ? " from cache" : " by parse")
+                    + " size " + size + " cost " + loadTimeUs + "us");
+        } catch (IOException e) {
+            throw  new IORuntimeException(e);
+        } finally {
+            try {
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
 
     /**
-     * 匹配Cube文件的Size
+     * 解析Cube文件的文本内容，得到title、size、domain和rgbBuffer
+     * @param assetMapBuffer Cube文件的内容
+     * @return rgbBuffer不再使用时要调用release放回缓存池
      */
+    private CubeLutParser parseCube(ByteBuffer assetMapBuffer) {
+        CubeLutParser parser = CubeLutParser.parse(assetMapBuffer, parallelParseEnable ?
+                CubeLutParser.PARALLEL_PARSE_MIN_LENGTH : CubeLutParser.PARALLEL_PARSE_DISABLE);
+        title = parser.title;
+        size = parser.size;
+        domainMin = parser.domainMin;
+        domainMax = parser.domainMax;
+        rgbBuffer = parser.rgbBuffer;
+        if (rgbBuffer.hasRemaining()) {
+            LogUtil.w("cubeLut rgbBuffer load fail, there is still data not written");
+        }
+        return parser;
+    }
 
-    private static final byte[] MATCH_ARRAY_3D_SIZE = "LUT_3D_SIZE".getBytes(StandardCharsets.UTF_8);
+    /**
+     * 设置是否开启多线程解析，默认开启，数据量小时依然是单线程解析
+     * @param enable
+     */
+    public static void setParallelParseEnable(boolean enable) {
+        parallelParseEnable = enable;
+    }
 
     /**
-     * 匹配Cube文件中的Title
+     * App的安装更新时间，用来判断缓存文件是否过期
+     * 覆盖安装(包括开发时versionCode没变的安装)都会改变这个时间，asset文件变了一定会跟着变
+     * 进程内不会改变，只获取一次
+     * @return 获取失败返回0，这时只按长度判断
      */
-    private static final byte[] MATCH_ARRAY_TITLE = "TITLE".getBytes(StandardCharsets.UTF_8);
+    private static long getSourceStamp() {
+        long stamp = appUpdateTime;
+        if (stamp != 0) {
+            return stamp;
+        }
+        Context context = AppUtil.getAppContext();
+        try {
+            PackageInfo packageInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            stamp = packageInfo.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            LogUtil.w("cubeLut get package info fail " + e.getMessage());
+            stamp = 0;
+        }
+        appUpdateTime = stamp;
+        return stamp;
+    }
 
     /**
-     * 一次读取Buffer缓存的大小64k，拍脑袋瓜定的数值，感觉速度和内存都还可以
-     * 65536=2^16,2^10是1k，那么65536就是64k,
+     * 缓存文件放在App的缓存目录下，文件名和asset路径对应
+     * @param assetName
+     * @return
      */
-    private static final int DEFAULT_LENGTH_READ_BUFFER = 65536;
+    private static File getCacheFile(String assetName) {
+        File cacheDir = new File(AppUtil.getAppContext().getCacheDir(), CACHE_DIR_NAME);
+        return new File(cacheDir, assetName + CACHE_FILE_SUFFIX);
+    }
 
     /**
-     * 匹配Title和Size的读取缓存，也是拍脑袋瓜定的数值
+     * 读取缓存文件，直接把缓存文件中的RGB数据映射成rgbBuffer，不需要再解析
+     * 缓存文件格式如下，头部都是大端序
+     *  int    魔数 CLUT
+     *  int    版本号
+     *  long   源文件长度
+     *  long   App的安装更新时间
+     *  int    size
+     *  float  domainMin RGB
+     *  float  domainMax RGB
+     *  byte   RGB数据的字节序 0大端 1小端
+     *  short  title的字节长度
+     *  byte[] title
+     *  按4字节对齐的RGB float数据
+     * @param cacheFile
+     * @param sourceLength 源文件长度
+     * @param sourceStamp App的安装更新时间
+     * @return 缓存有效返回true
      */
-    private static final int DEFAULT_LENGTH_TITLE_OR_SIZE_MATCH_BUFFER = 128;
+    private boolean readCacheFile(File cacheFile, long sourceLength, long sourceStamp) {
+        if (!cacheFile.isFile()) {
+            return false;
+        }
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(cacheFile, "r");
+            // 映射以后即使关闭文件MappedByteBuffer依然有效
+            MappedByteBuffer cacheMapBuffer = randomAccessFile.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            cacheMapBuffer.order(ByteOrder.BIG_ENDIAN);
+            if (cacheMapBuffer.remaining() < CACHE_HEADER_FIXED_LENGTH
+                    || cacheMapBuffer.getInt() != CACHE_MAGIC
+                    || cacheMapBuffer.getInt() != CACHE_VERSION
+                    || cacheMapBuffer.getLong() != sourceLength
+                    || cacheMapBuffer.getLong() != sourceStamp) {
+                return false;
+            }
+            int cacheSize = cacheMapBuffer.getInt();
+            float[] cacheDomainMin = new float[3];
+            float[] cacheDomainMax = new float[3];
+            for (int i = 0; i < 3; i++) {
+                cacheDomainMin[i] = cacheMapBuffer.getFloat();
+            }
+            for (int i = 0; i < 3; i++) {
+                cacheDomainMax[i] = cacheMapBuffer.getFloat();
+            }
+            ByteOrder rgbOrder = cacheMapBuffer.get() == CACHE_ORDER_LITTLE_ENDIAN ?
+                    ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            if (rgbOrder != ByteOrder.nativeOrder()) {//字节序不一样就只能重新解析
+                return false;
+            }
+            int titleLength = cacheMapBuffer.getShort() & 0xFFFF;
+            int rgbOffset = alignRgbOffset(CACHE_HEADER_FIXED_LENGTH + titleLength);
+            int rgbLength = cacheSize * cacheSize * cacheSize * BYTES_PER_PIXEL;
+            if (cacheSize <= 0 || cacheMapBuffer.capacity() != rgbOffset + rgbLength) {
+                return false;
+            }
+            byte[] titleArray = new byte[titleLength];
+            cacheMapBuffer.get(titleArray);
+            cacheMapBuffer.position(rgbOffset);
+
+            title = new String(titleArray, StandardCharsets.UTF_8);
+            size = cacheSize;
+            domainMin = cacheDomainMin;
+            domainMax = cacheDomainMax;
+            rgbBuffer = cacheMapBuffer.slice().order(ByteOrder.nativeOrder());
+            return true;
+        } catch (IOException e) {
+            LogUtil.w("cubeLut read cache fail " + e.getMessage());
+            return false;
+        } finally {
+            try {
+                if (randomAccessFile != null) {
+                    randomAccessFile.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
 
+    /**
+     * 把解析好的数据写入缓存文件，先写临时文件再重命名，避免写到一半的文件被读取
+     * 写入失败只影响下次加载速度，所以不抛出异常
+     * @param cacheFile
+     * @param sourceLength
+     * @param sourceStamp
+     * @return 是否写入成功
+     */
+    private boolean writeCacheFile(File cacheFile, long sourceLength, long sourceStamp) {
+        if (rgbBuffer == null || rgbBuffer.hasRemaining()) {//数据不完整不缓存
+            return false;
+        }
+        File cacheDir = cacheFile.getParentFile();
+        if (cacheDir == null || (!cacheDir.isDirectory() && !cacheDir.mkdirs())) {
+            return false;
+        }
+        File tempFile = new File(cacheDir, cacheFile.getName() + ".tmp");
+        FileOutputStream outputStream = null;
+        try {
+            byte[] titleArray = title == null ? new byte[0] : title.getBytes(StandardCharsets.UTF_8);
+            int rgbOffset = alignRgbOffset(CACHE_HEADER_FIXED_LENGTH + titleArray.length);
+            ByteBuffer headerBuffer = ByteBuffer.allocate(rgbOffset).order(ByteOrder.BIG_ENDIAN);
+            headerBuffer.putInt(CACHE_MAGIC);
+            headerBuffer.putInt(CACHE_VERSION);
+            headerBuffer.putLong(sourceLength);
+            headerBuffer.putLong(sourceStamp);
+            headerBuffer.putInt(size);
+            for (float value : domainMin) {
+                headerBuffer.putFloat(value);
+            }
+            for (float value : domainMax) {
+                headerBuffer.putFloat(value);
+            }
+            headerBuffer.put(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ?
+                    CACHE_ORDER_LITTLE_ENDIAN : CACHE_ORDER_BIG_ENDIAN);
+            headerBuffer.putShort((short) titleArray.length);
+            headerBuffer.put(titleArray);
+            headerBuffer.clear();
+
+            ByteBuffer rgbWriteBuffer = rgbBuffer.duplicate();
+            rgbWriteBuffer.clear();
+
+            outputStream = new FileOutputStream(tempFile);
+            FileChannel fileChannel = outputStream.getChannel();
+            while (headerBuffer.hasRemaining()) {
+                fileChannel.write(headerBuffer);
+            }
+            while (rgbWriteBuffer.hasRemaining()) {
+                fileChannel.write(rgbWriteBuffer);
+            }
+            outputStream.close();
+            outputStream = null;
+            if (!tempFile.renameTo(cacheFile)) {
+                LogUtil.w("cubeLut rename cache file fail " + cacheFile);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            LogUtil.w("cubeLut write cache fail " + e.getMessage());
+            return false;
+        } finally {
+            try {
+                if (outputStream != null) {
+                    outputStream.close();
+                }
+            } catch (IOException ignored) {
+            }
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+    }
 
+    /**
+     * RGB数据的起始位置按4字节对齐，保证float读取对齐
+     * @param offset
+     * @return
+     */
+    private static int alignRgbOffset(int offset) {
+        return (offset + Float.BYTES - 1) / Float.BYTES * Float.BYTES;
+    }
 
     /**
-     * 标题 譬如从Cube文件读取 TITLE "BT2020_HLG_BT601_PAL"中的BT2020_HLG_BT601_PAL
+     * 把buffer转换成纹理，默认用FP16精度
+     * @return
      */
-    public String title;
+    public  int createTextureId(){
+        return createTextureId(LutPrecision.FP16);
+    }
+
     /**
-     * 大小 表示RGB图像的宽高和深度， 譬如从Cube文件读取 LUT_3D_SIZE 33中的33
+     * 按指定精度把buffer转换成纹理，精度越低占用的内存和带宽越小
+     * 精度转换也在当前线程，渲染时切换LUT应该先在后台线程调用{@link #createTextureData(int)}
+     * @param precision 纹理精度
+     * @return
      */
-    public Integer size;
+    public int createTextureId(@LutPrecision int precision) {
+        return createTextureData(resolvePrecision(precision)).createTextureId();
+    }
 
     /**
-     * RGB数据 每行中有3个float数字，依次是RGB，需要把String转float
+     * 按精度转换成等待上传的数据，不需要GL环境，可以在后台线程调用
+     * @param precision 纹理精度，FP32在不支持的设备上上传时会降级成FP16
+     * @return
      */
+    public TextureData createTextureData(@LutPrecision int precision) {
+        return new TextureData(this, precision, obtainPrecisionBuffer(precision));
+    }
 
-    public ByteBuffer rgbBuffer;
+    /**
+     * 设备不支持32位float纹理线性插值时把FP32降级成FP16，要在GL线程调用
+     * @param precision
+     * @return 实际上传纹理用的精度
+     */
+    public static @LutPrecision int resolvePrecision(@LutPrecision int precision) {
+        if (precision != LutPrecision.FP32) {
+            return precision;
+        }
+        Boolean support = floatLinearSupport;
+        if (support == null) {
+            support = GLESUtil.isSupportExtension(EXTENSION_FLOAT_LINEAR);
+            floatLinearSupport = support;
+            if (!support) {
+                LogUtil.w("cubeLut not support " + EXTENSION_FLOAT_LINEAR + ", fallback to FP16");
+            }
+        }
+        return support ? LutPrecision.FP32 : LutPrecision.FP16;
+    }
 
-    private CubeLutBuffer(String assetName) {
-        FileInputStream inputStream = null;
-        try {
-            // 读取asset文件
-            AssetFileDescriptor assetFileDescriptor = FileUtil.openAssetFileDescriptor(assetName);
-            inputStream = assetFileDescriptor.createInputStream();
-            FileChannel fileChannel = inputStream.getChannel();
-            long startOffset = assetFileDescriptor.getStartOffset();
-            long declaredLength = assetFileDescriptor.getDeclaredLength();
+    /**
+     * 按精度转换好等待上传成3D纹理的数据，转换在哪个线程都可以，上传要在GL线程
+     * 只能上传一次，上传完Buffer会放回缓存池，不上传时要调用{@link #release()}
+     */
+    public static final class TextureData {
 
-            // 把文件转换成MappedByteBuffer
-            // 读取大文件的一种方式(共享内存避免上下文切换带来的耗时)，注意只能读取2G以下的文件
-            // 注意要传offset不能直接传0，不然会发现读取除出来的文字前面多了一些莫名奇妙的字符
-            MappedByteBuffer assetMapBuffer = fileChannel
-                    .map(FileChannel.MapMode.READ_ONLY,
-                            startOffset,
-                            declaredLength);
-
-            //匹配不同的状态值
-            byte matchStateNextLine = MATCH_RUNNING;//新的一行匹配模式
-            byte matchStateComment = MATCH_STOP;//注释模式
-            byte matchStateTitle = MATCH_STOP;//title匹配模式
-            byte matchStateSize = MATCH_STOP;//size匹配模式
-            byte matchStateRGBBuffer = MATCH_STOP;//rgb匹配模式
-
-            // 从assetMapBuffer一次读取readArray进行处理
-            byte[] readBuffer = new byte[DEFAULT_LENGTH_READ_BUFFER];
-            int readLength = readBuffer.length;
-            // 匹配title和size的Buffer
-            ByteBuffer titleOrSizeMatchBuffer = ByteBuffer.allocate(DEFAULT_LENGTH_TITLE_OR_SIZE_MATCH_BUFFER);
-            int matchIndex = -1;//匹配的索引
-            int floatValueSignPart = 1;// float的符号位
-            float floatValuePart = 0; // float的整数部分和小数部分
-            float  floatDecimalPlace = 0.1f;//float的小数位数
-            int floatExponentPart = 0; // float的指数部分
-            int floatExponentSignPart = 1; // float的指数里面的符号位
-            byte floatState = FLOAT_STATE_SIGN;//匹配float已经到哪个状态，刚开始标记还在符号位
-
-            while (assetMapBuffer.hasRemaining()) {//数据还没读完
-                int remaining = assetMapBuffer.remaining();
-                if (remaining < readLength) {//最后剩余的数据
-                    readLength = remaining;
-                }
-                //一次读取readBuffer
-                assetMapBuffer.get(readBuffer, 0, readLength);
-
-                for (int i = 0; i < readLength; i++) {
-                    byte readByte = readBuffer[i];
-                    matchIndex++;
-                    //开始匹配RGB数据
-                    if (matchStateRGBBuffer == MATCH_RUNNING) {
-                        //找到空格、换行、读取到最后表示前面的float读取完成了可以加到rgbBuffer中了
-                        if (readByte == BYTE_LINE || readByte == BYTE_SPACE) {
-                            if (floatState != FLOAT_STATE_SIGN){//只有不是在找符号位，数据才是有效的
-                                //根据符号位、整数位、小数位、指数位计算float的数据
-                                float finalValue =  floatValueSignPart * floatValuePart * (float)Math.pow(10, floatExponentSignPart*floatExponentPart);
-                                rgbBuffer.putFloat(finalValue);
-                                //为下一次读取float还原状态
-                                matchIndex = -1;
-                                floatValueSignPart = 1;
-                                floatValuePart = 0;
-                                floatDecimalPlace = 0.1f;
-                                floatExponentPart = 0;
-                                floatExponentSignPart = 1;
-                                floatState = FLOAT_STATE_SIGN;
-                            }
-                            continue;
-                        }
-                        if (floatState == FLOAT_STATE_SIGN) {//找符号位
-                            floatState = FLOAT_STATE_INT;//变成找整数位
-                            if (matchIndex == 0 && readByte == BYTE_PLUS) {//正数
-                                floatValueSignPart = 1;
-                            } else if (matchIndex == 0 && readByte == BYTE_MINUS) {//负数
-                                floatValueSignPart = -1;
-                            } else if (matchIndex == 0 && BYTE_0 <= readByte && readByte <= BYTE_9) {//第一个字符没有符号就是正数
-                                floatValuePart = floatValuePart * 10 + readByte - BYTE_0;
-                            } else {
-                                throw new IllegalArgumentException("float parse fail");
-                            }
-                        } else if (floatState == FLOAT_STATE_INT) {//找整数位
-                            if (BYTE_0 <= readByte && readByte <= BYTE_9) {//找到一个数就乘以10
-                                floatValuePart = floatValuePart * 10 + readByte - BYTE_0;
-                            } else if (readByte == BYTE_DOT) {//小数点，表示开始小数位匹配
-                                floatState = FLOAT_STATE_DECIMAL;
-                            } else if (readByte == BYTE_e || readByte == BYTE_E) {//指数
-                                floatState = FLOAT_STATE_EXPONENT;
-                            } else {
-                                throw new IllegalArgumentException("float parse fail");
-                            }
-                        } else if (floatState == FLOAT_STATE_DECIMAL) {//小数位
-                            if (BYTE_0 <= readByte && readByte <= BYTE_9) {//
-                                floatValuePart = floatValuePart +  (readByte - BYTE_0)*floatDecimalPlace;
-                                floatDecimalPlace = floatDecimalPlace/10;//位数就是除以10
-                            } else if ((readByte == BYTE_e || readByte == BYTE_E)) {
-                                floatState = FLOAT_STATE_EXPONENT;
-                            } else {
-                                throw new IllegalArgumentException("float parse fail");
-                            }
-
-                        } else if (floatState == FLOAT_STATE_EXPONENT) {//指数
-
-                            if (matchIndex == 0 && readByte == BYTE_PLUS) {//指数的符号是正
-                                floatExponentSignPart = 1;
-                            } else if (matchIndex == 0 && readByte == BYTE_MINUS) {
-                                floatExponentSignPart = -1;
-                            } else if (BYTE_0 <= readByte && readByte <= BYTE_9) {
-                                floatExponentPart = floatExponentPart * 10 + readByte - BYTE_0;
-                            } else {
-                                throw new IllegalArgumentException("float parse fail");
-                            }
-                        }
-                        continue;
-                    }
+        /**
+         * 数据来源的LUT
+         */
+        public final CubeLutBuffer cubeLutBuffer;
 
-                    if (matchStateComment == MATCH_RUNNING) {//注释模式
-                        if (readByte == BYTE_LINE) {//换行
-                            matchStateNextLine = MATCH_RUNNING;//新的一行开始
-                            matchStateComment = MATCH_STOP;//注释模式结束
-                        }
-                        //如果是注释模式就直接读取下一个字符
-                        continue;
-                    }
+        /**
+         * 转换的精度
+         */
+        public final @LutPrecision int precision;
 
+        private ByteBuffer uploadBuffer;
 
-                    if (matchStateNextLine == MATCH_RUNNING && readByte <= BYTE_SPACE) {
-                        //新的一行开始前面的空格不需要读
-                        continue;
-                    } else if (matchStateNextLine == MATCH_RUNNING) {//开始找新的一行
-                        matchStateNextLine = MATCH_COMPLETE;//新的一行找到了，开始匹配tile和size
-                        if (title == null) {//还没匹配title就开启tile模式
-                            matchStateTitle = MATCH_RUNNING;
-                        }
-                        if (size == null) {//还没匹配size就开启size模式
-                            matchStateSize = MATCH_RUNNING;
-                        }
-                        matchIndex =0;
-                    }
+        private TextureData(CubeLutBuffer cubeLutBuffer, @LutPrecision int precision, ByteBuffer uploadBuffer) {
+            this.cubeLutBuffer = cubeLutBuffer;
+            this.precision = precision;
+            this.uploadBuffer = uploadBuffer;
+        }
 
-                    //匹配到开头是#，注释模式开始
-                    if (matchIndex == 0 && readByte == BYTE_NUMBER) {
-                        matchStateComment = MATCH_RUNNING;
-                        continue;
-                    }
+        /**
+         * 上传成3D纹理，要在GL线程调用
+         * @return
+         */
+        public int createTextureId() {
+            if (uploadBuffer == null) {
+                throw new IllegalStateException("cubeLut textureData already released");
+            }
+            if (resolvePrecision(precision) != precision) {//后台线程转换时还不知道设备是否支持FP32，这里在GL线程重新转换
+                release();
+                return cubeLutBuffer.createTextureId(precision);
+            }
+            int internalFormat;
+            int format;
+            int type;
+            int unpackAlignment = 4;
+            if (precision == LutPrecision.FP32) {
+                internalFormat = GLES30.GL_RGB32F;
+                format = GLES30.GL_RGB;
+                type = GLES30.GL_FLOAT;
+            } else if (precision == LutPrecision.FP16) {
+                internalFormat = GLES30.GL_RGB16F;
+                format = GLES30.GL_RGB;
+                type = GLES30.GL_HALF_FLOAT;
+                unpackAlignment = 2;//一行是size*6个字节，size是奇数时不是4字节对齐
+            } else if (precision == LutPrecision.RGB10_A2) {
+                internalFormat = GLES30.GL_RGB10_A2;
+                format = GLES30.GL_RGBA;
+                type = GLES30.GL_UNSIGNED_INT_2_10_10_10_REV;
+            } else {
+                internalFormat = GLES30.GL_RGBA8;
+                format = GLES30.GL_RGBA;
+                type = GLES30.GL_UNSIGNED_BYTE;
+            }
+            int size = cubeLutBuffer.size;
+            int textureId = GLESUtil.create3DTextureId();
+            GLESUtil.checkGLError();
+            // glTexImage3D返回后数据已经拷贝给驱动了，Buffer可以马上放回缓存池
+            try {
+                GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, textureId);
+                GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, unpackAlignment);
+                GLES30.glTexImage3D(GLES30.GL_TEXTURE_3D,
+                        0, internalFormat,
+                        size,//宽
+                        size,//高
+                        size,//深度
+                        0,
+                        format,
+                        type,
+                        uploadBuffer);
+                GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);//还原成默认值
+                GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, 0);
+            } finally {
+                release();
+            }
+            return textureId;
+        }
 
+        /**
+         * 不上传时把Buffer放回缓存池，可以重复调用
+         */
+        public void release() {
+            if (uploadBuffer == null) {
+                return;
+            }
+            cubeLutBuffer.releasePrecisionBuffer(precision, uploadBuffer);
+            uploadBuffer = null;
+        }
+    }
 
-                    //找TITLE后的字符记录到matchBuffer，转换成title
-
-                    if (matchStateTitle == MATCH_RUNNING) {//匹配Title
-                        byte[] search = MATCH_ARRAY_TITLE;
-                        if (matchIndex < search.length) {//小于TITLE的长度
-                            if (readByte != search[matchIndex]) {//匹配TITLE失败
-                                matchStateTitle = MATCH_STOP;//停止匹配Title
-                            } else if (matchIndex == search.length - 1) {//匹配TITLE标记完成，表示可以匹配TITLE后面的字符
-                                titleOrSizeMatchBuffer.clear();//为开始记录Title后面的字符把索引清空
-                            }
-                        } else {//TITLE后面的字符
-                            if (readByte == BYTE_LINE) {//换行
-                                titleOrSizeMatchBuffer.flip();//写入索引改成读取索引
-                                // buffer中有效的数据转化成title
-                                title = new String(titleOrSizeMatchBuffer.array(), titleOrSizeMatchBuffer.position(), titleOrSizeMatchBuffer.limit()).trim();
-                                title =   title.replaceAll("^\"|\"$", "");//去除前后的引号
-                                matchStateTitle = MATCH_COMPLETE;//title匹配完成
-                                matchStateNextLine = MATCH_RUNNING;//开始找下一行
-                                titleOrSizeMatchBuffer.clear();
-                                continue;
-                            } else {//还没到换行就记录字符
-                                if (!titleOrSizeMatchBuffer.hasRemaining())//大小不够扩容
-                                    titleOrSizeMatchBuffer = BufferUtil.growCapacity(titleOrSizeMatchBuffer);
-                                titleOrSizeMatchBuffer.put(readByte);//把匹配的Title后字符记录到Buffer中
-                            }
-                        }
-                    }
+    /**
+     * 把float RGB数据转换成对应精度的Buffer
+     * FP32 直接使用rgbBuffer
+     * FP16 每个通道转成半精度，一个像素6个字节
+     * RGB10_A2 每个通道截断到0到1后转成10位，alpha是3，一个像素打包成4个字节的int
+     * RGBA8 每个通道截断到0到1后转成8位，alpha是255，一个像素4个字节
+     * @param precision
+     * @return
+     */
+    public ByteBuffer createPrecisionBuffer(@LutPrecision int precision) {
+        if (precision == LutPrecision.FP32) {
+            return createSourceBuffer();
+        }
+        ByteBuffer precisionBuffer = ByteBuffer.allocateDirect(getPrecisionBufferSize(precision))
+                .order(ByteOrder.nativeOrder());
+        fillPrecisionBuffer(precision, precisionBuffer);
+        return precisionBuffer;
+    }
 
-                    //找LUT_3D_SIZE后的字符记录到matchBuffer，转换成size
-                    if (matchStateSize == MATCH_RUNNING) {// 匹配size
-                        byte[] search = MATCH_ARRAY_3D_SIZE;
-                        if (matchIndex < search.length) {//小于LUT_3D_SIZE的长度
-                            if (readByte != search[matchIndex]) {//匹配LUT_3D_SIZE失败
-                                matchStateSize = MATCH_STOP;
-                            } else if (matchIndex == search.length - 1) {
-                                //匹配LUT_3D_SIZ标记完成，表示可以匹配LUT_3D_SIZ后面的字符
-                                titleOrSizeMatchBuffer.clear();
-                            }
-                        } else {
-                            if (readByte == BYTE_LINE) {//换行
-                                titleOrSizeMatchBuffer.flip();//写入索引改成读取索引
-                                // buffer中有效的数据转化成size
-                                String result = new String(titleOrSizeMatchBuffer.array(), titleOrSizeMatchBuffer.position(), titleOrSizeMatchBuffer.limit()).trim();
-                                size = Integer.parseInt(result);
-                                matchStateSize = MATCH_COMPLETE;//匹配LUT_3D_SIZ完成
-                                matchStateNextLine = MATCH_RUNNING;//开始找下一行
-                                titleOrSizeMatchBuffer.clear();
-                                continue;
-                            } else {//还没到换行就记录字符
-                                if (!titleOrSizeMatchBuffer.hasRemaining())//大小不够扩容
-                                    titleOrSizeMatchBuffer = BufferUtil.growCapacity(titleOrSizeMatchBuffer);
-                                titleOrSizeMatchBuffer.put(readByte);//把匹配的LUT_3D_SIZE后字符记录到Buffer中
-                            }
-                        }
-                    }
+    /**
+     * 和{@link #createPrecisionBuffer(int)}一样，但是FP32以外的精度从BufferUtil的缓存池获取Buffer，
+     * 用完要调用{@link #releasePrecisionBuffer(int, ByteBuffer)}，反复上传纹理时不用每次分配新的native内存
+     * @param precision
+     * @return
+     */
+    private ByteBuffer obtainPrecisionBuffer(@LutPrecision int precision) {
+        if (precision == LutPrecision.FP32) {
+            return createSourceBuffer();
+        }
+        ByteBuffer precisionBuffer = BufferUtil.obtainDirectBuffer(getPrecisionBufferSize(precision));
+        fillPrecisionBuffer(precision, precisionBuffer);
+        return precisionBuffer;
+    }
 
+    private void releasePrecisionBuffer(@LutPrecision int precision, ByteBuffer precisionBuffer) {
+        if (precision == LutPrecision.FP32) {//FP32用的是rgbBuffer的内存，不能放回缓存池
+            return;
+        }
+        BufferUtil.releaseDirectBuffer(precisionBuffer);
+    }
 
-                    // 匹配title和size完成，还没开始匹配rgb数据时中间有可能有一堆数据，
-                    // 如果发现有一行的数据满足RGB数据的条件就标记可以开始开始匹配RGB模式，读取byte计算出Float
-                    if (matchStateTitle == MATCH_COMPLETE
-                            && matchStateSize == MATCH_COMPLETE
-                            && matchStateRGBBuffer == MATCH_STOP) {
-                        if (readByte == BYTE_LINE) {//换行
-                            titleOrSizeMatchBuffer.flip();
-                            //读取一行的数据
-                            String result = new String(titleOrSizeMatchBuffer.array(), titleOrSizeMatchBuffer.position(), titleOrSizeMatchBuffer.limit()).trim();
-                            //用空格分割字符串，因为RGB数据中间是空格
-                            String[] arr = result.split("\\s+");
-                            try {//没有异常表示存在rgb数据
-                                float r = Float.parseFloat(arr[0]);
-                                float g = Float.parseFloat(arr[1]);
-                                float b = Float.parseFloat(arr[2]);
-                                int numChannels = 3;//3个通道
-                                int bytesPerChannel = Float.BYTES;//一个通道是float
-                                int bytesPerPixel = numChannels * bytesPerChannel;//一个像素的字节大小
-                                //根据size算出rgbBuffer大小
-                                rgbBuffer = ByteBuffer.allocateDirect(size * size * size * bytesPerPixel);
-                                rgbBuffer.order(ByteOrder.nativeOrder());
-                                rgbBuffer.putFloat(r);//
-                                rgbBuffer.putFloat(g);
-                                rgbBuffer.putFloat(b);
-                                matchStateRGBBuffer = MATCH_RUNNING;//开始RGB转换模式
-                                matchIndex = -1;
-                            } catch (Exception ignored) {
-
-                            }
-                            matchStateNextLine = MATCH_RUNNING;//匹配下一行
-                            titleOrSizeMatchBuffer.clear();
-                        } else {//还没到换行就记录字符
-                            if (!titleOrSizeMatchBuffer.hasRemaining())//大小不够扩容
-                                titleOrSizeMatchBuffer = BufferUtil.growCapacity(titleOrSizeMatchBuffer);
-                            titleOrSizeMatchBuffer.put(readByte);//加入到buffer中
-                        }
-                    }
-                    if (readByte == BYTE_LINE) {//换行
-                        matchStateNextLine = MATCH_RUNNING;
-                    }
-                }
-            }
+    private ByteBuffer createSourceBuffer() {
+        // CubeLutBuffer会在多个Transform之间共享，用duplicate避免互相修改position
+        ByteBuffer sourceBuffer = rgbBuffer.duplicate().order(ByteOrder.nativeOrder());
+        sourceBuffer.clear();
+        return sourceBuffer;
+    }
 
-            // 最后有可能数字没加入到Buffer中
+    private int getPrecisionBufferSize(@LutPrecision int precision) {
+        int pixelCount = rgbBuffer.capacity() / BYTES_PER_PIXEL;
+        int bytesPerPixel = precision == LutPrecision.FP16 ? 3 * 2 : 4;
+        return pixelCount * bytesPerPixel;
+    }
 
-            if (floatState != FLOAT_STATE_SIGN){
-                float finalValue =  floatValueSignPart * floatValuePart * (float)Math.pow(10, floatExponentSignPart*floatExponentPart);
-                rgbBuffer.putFloat(finalValue);
-            }
-            if (rgbBuffer.hasRemaining()){
-                LogUtil.w("cubeLut rgbBuffer load fail, there is still data not written");
+    /**
+     * 把float RGB数据按精度转换后写入precisionBuffer，写完position是0，limit是数据大小
+     * @param precision 不能是FP32
+     * @param precisionBuffer
+     */
+    private void fillPrecisionBuffer(@LutPrecision int precision, ByteBuffer precisionBuffer) {
+        FloatBuffer floatBuffer = createSourceBuffer().asFloatBuffer();
+        int pixelCount = floatBuffer.remaining() / 3;
+        precisionBuffer.order(ByteOrder.nativeOrder());
+        for (int i = 0; i < pixelCount; i++) {
+            float r = floatBuffer.get();
+            float g = floatBuffer.get();
+            float b = floatBuffer.get();
+            if (precision == LutPrecision.FP16) {
+                precisionBuffer.putShort(HalfFloatUtil.toHalf(r));
+                precisionBuffer.putShort(HalfFloatUtil.toHalf(g));
+                precisionBuffer.putShort(HalfFloatUtil.toHalf(b));
+            } else if (precision == LutPrecision.RGB10_A2) {
+                // GL_UNSIGNED_INT_2_10_10_10_REV从低位到高位依次是R G B A
+                int packValue = toUnorm(r, 1023)
+                        | toUnorm(g, 1023) << 10
+                        | toUnorm(b, 1023) << 20
+                        | 3 << 30;
+                precisionBuffer.putInt(packValue);
+            } else {
+                precisionBuffer.put((byte) toUnorm(r, 255));
+                precisionBuffer.put((byte) toUnorm(g, 255));
+                precisionBuffer.put((byte) toUnorm(b, 255));
+                precisionBuffer.put((byte) 255);
             }
+        }
+        precisionBuffer.flip();
+    }
 
-        } catch (IOException e) {
-            throw  new IORuntimeException(e);
-        } finally {
-            try {
-                if (inputStream != null) {
-                    inputStream.close();
+    /**
+     * 计算某个精度和FP32相比的误差，误差是按通道统计的绝对值
+     * @param precision
+     * @return
+     */
+    public PrecisionError computePrecisionError(@LutPrecision int precision) {
+        FloatBuffer floatBuffer = createSourceBuffer().asFloatBuffer();
+        ByteBuffer precisionBuffer = obtainPrecisionBuffer(precision);
+        int pixelCount = floatBuffer.remaining() / 3;
+        double sumError = 0;
+        float maxError = 0;
+        try {
+            for (int i = 0; i < pixelCount; i++) {
+                for (int channel = 0; channel < 3; channel++) {
+                    float value = floatBuffer.get();
+                    float precisionValue;
+                    if (precision == LutPrecision.FP32) {
+                        precisionValue = precisionBuffer.getFloat();
+                    } else if (precision == LutPrecision.FP16) {
+                        precisionValue = HalfFloatUtil.toFloat(precisionBuffer.getShort());
+                    } else if (precision == LutPrecision.RGB10_A2) {
+                        int packValue = precisionBuffer.getInt(i * 4);
+                        precisionValue = ((packValue >>> (channel * 10)) & 1023) / 1023.0f;
+                    } else {
+                        precisionValue = (precisionBuffer.get(i * 4 + channel) & 0xFF) / 255.0f;
+                    }
+                    float error = Math.abs(precisionValue - value);
+                    maxError = Math.max(maxError, error);
+                    sumError += error;
                 }
-            } catch (IOException ignored) {
             }
+        } finally {
+            releasePrecisionBuffer(precision, precisionBuffer);
         }
+        PrecisionError precisionError = new PrecisionError();
+        precisionError.precision = precision;
+        precisionError.maxError = maxError;
+        precisionError.meanError = pixelCount == 0 ? 0 : (float) (sumError / (pixelCount * 3));
+        return precisionError;
     }
 
     /**
-     * 把buffer转换成纹理
+     * 所有精度和FP32相比的误差报告，方便选择合适的精度
      * @return
      */
-    public  int createTextureId(){
-        rgbBuffer.rewind();
-        int textureId = GLESUtil.create3DTextureId();
-        GLESUtil.checkGLError();
-        GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, textureId);
-        GLES30.glTexImage3D(GLES30.GL_TEXTURE_3D,
-                0, GLES30.GL_RGB16F,//纹理RGBA16格式，保证数据精度够用
-                size,//宽
-                size,//高
-                size,//深度
-                0,
-                GLES30.GL_RGB,
-                GLES30.GL_FLOAT,
-                rgbBuffer);
-        GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, 0);
-        return textureId;
+    public String getPrecisionErrorReport() {
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append("cubeLut ").append(title).append(" size ").append(size);
+        int[] precisionArray = {LutPrecision.FP32, LutPrecision.FP16, LutPrecision.RGB10_A2, LutPrecision.RGBA8};
+        for (int precision : precisionArray) {
+            stringBuilder.append("\n").append(computePrecisionError(precision));
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * 截断到0到1后转换成无符号整数
+     * @param value
+     * @param maxValue
+     * @return
+     */
+    private static int toUnorm(float value, int maxValue) {
+        float clampValue = Math.max(0, Math.min(1, value));
+        return Math.round(clampValue * maxValue);
+    }
+
+    /**
+     * 精度误差
+     */
+    public static class PrecisionError {
+        /**
+         * 精度
+         */
+        public @LutPrecision int precision;
+        /**
+         * 最大误差
+         */
+        public float maxError;
+        /**
+         * 平均误差
+         */
+        public float meanError;
+
+        @Override
+        public String toString() {
+            return "precision " + getPrecisionName(precision) +
+                    " maxError " + maxError +
+                    " meanError " + meanError;
+        }
+    }
+
+    static String getPrecisionName(@LutPrecision int precision) {
+        switch (precision) {
+            case LutPrecision.FP32:
+                return "FP32";
+            case LutPrecision.FP16:
+                return "FP16";
+            case LutPrecision.RGB10_A2:
+                return "RGB10_A2";
+            case LutPrecision.RGBA8:
+                return "RGBA8";
+            default:
+                return "unknown";
+        }
     }
 
     /**
@@ -444,6 +771,24 @@ public class CubeLutBuffer {
         return new CubeLutBuffer(assetName);
     }
 
+    /**
+     * 直接用已经计算好的RGB数据创建，譬如把HDR转SDR的结果烘焙成LUT
+     * @param title 标题
+     * @param size 大小
+     * @param rgbBuffer RGB float数据，本地字节序，大小必须是size*size*size*3个float
+     * @return
+     */
+    public static CubeLutBuffer create(String title, int size, ByteBuffer rgbBuffer) {
+        if (rgbBuffer.capacity() != size * size * size * BYTES_PER_PIXEL) {
+            throw new IllegalArgumentException("rgbBuffer capacity not match size " + size);
+        }
+        CubeLutBuffer cubeLutBuffer = new CubeLutBuffer();
+        cubeLutBuffer.title = title;
+        cubeLutBuffer.size = size;
+        cubeLutBuffer.rgbBuffer = rgbBuffer.order(ByteOrder.nativeOrder());
+        return cubeLutBuffer;
+    }
+
 
 }
 
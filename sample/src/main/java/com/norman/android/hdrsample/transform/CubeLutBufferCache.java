@@ -0,0 +1,126 @@
+package com.norman.android.hdrsample.transform;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 进程内共享的CubeLutBuffer缓存，用asset名称做key
+ * 来回切换LUT时直接返回已经加载好的CubeLutBuffer，不需要重新解析和分配rgbBuffer
+ * 按rgbBuffer的字节大小统计占用，超过上限时按LRU淘汰最久没用的，保证asset/lut下LUT很多时内存不会一直涨
+ */
+public class CubeLutBufferCache {
+
+    /**
+     * 默认缓存上限16M，65的LUT大概3.3M，33的LUT大概0.4M
+     */
+    private static final long DEFAULT_MAX_CACHE_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * accessOrder为true，遍历的顺序就是从最久没用到最近使用，方便LRU淘汰
+     */
+    private static final LinkedHashMap<String, CubeLutBuffer> CUBE_LUT_MAP = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static long maxCacheBytes = DEFAULT_MAX_CACHE_BYTES;
+
+    private static long cacheBytes;
+
+    /**
+     * 获取asset中的Cube文件，缓存中没有就加载后加入缓存
+     * 加载不加锁，避免加载大文件时其他线程获取缓存被阻塞
+     * @param assetName
+     * @return
+     */
+    public static CubeLutBuffer get(String assetName) {
+        CubeLutBuffer cubeLutBuffer = getIfPresent(assetName);
+        if (cubeLutBuffer != null) {
+            return cubeLutBuffer;
+        }
+        cubeLutBuffer = CubeLutBuffer.loadAsset(assetName);
+        return put(assetName, cubeLutBuffer);
+    }
+
+    /**
+     * 只从缓存中获取，没有就返回null
+     * @param assetName
+     * @return
+     */
+    public static synchronized CubeLutBuffer getIfPresent(String assetName) {
+        return CUBE_LUT_MAP.get(assetName);
+    }
+
+    /**
+     * 设置缓存的字节上限，超过上限会立即淘汰
+     * @param maxBytes
+     */
+    public static synchronized void setMaxCacheBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("max cache bytes must not be negative");
+        }
+        maxCacheBytes = maxBytes;
+        trimToSize(maxCacheBytes);
+    }
+
+    public static synchronized long getMaxCacheBytes() {
+        return maxCacheBytes;
+    }
+
+    /**
+     * 当前缓存占用的字节大小
+     * @return
+     */
+    public static synchronized long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    public static synchronized void remove(String assetName) {
+        CubeLutBuffer cubeLutBuffer = CUBE_LUT_MAP.remove(assetName);
+        if (cubeLutBuffer != null) {
+            cacheBytes -= sizeOf(cubeLutBuffer);
+        }
+    }
+
+    public static synchronized void clear() {
+        CUBE_LUT_MAP.clear();
+        cacheBytes = 0;
+    }
+
+    /**
+     * 加入缓存，如果其他线程已经先加载好了就用已经缓存的，保证同一个asset只有一份
+     * 单个LUT超过上限就不缓存直接返回
+     * @param assetName
+     * @param cubeLutBuffer
+     * @return
+     */
+    private static synchronized CubeLutBuffer put(String assetName, CubeLutBuffer cubeLutBuffer) {
+        CubeLutBuffer cacheBuffer = CUBE_LUT_MAP.get(assetName);
+        if (cacheBuffer != null) {
+            return cacheBuffer;
+        }
+        long bufferBytes = sizeOf(cubeLutBuffer);
+        if (bufferBytes > maxCacheBytes) {
+            return cubeLutBuffer;
+        }
+        trimToSize(maxCacheBytes - bufferBytes);
+        CUBE_LUT_MAP.put(assetName, cubeLutBuffer);
+        cacheBytes += bufferBytes;
+        return cubeLutBuffer;
+    }
+
+    /**
+     * 从最久没用的开始淘汰，直到占用不超过maxBytes
+     * @param maxBytes
+     */
+    private static void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<String, CubeLutBuffer>> iterator = CUBE_LUT_MAP.entrySet().iterator();
+        while (cacheBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, CubeLutBuffer> entry = iterator.next();
+            cacheBytes -= sizeOf(entry.getValue());
+            iterator.remove();
+        }
+    }
+
+    private static long sizeOf(CubeLutBuffer cubeLutBuffer) {
+        return cubeLutBuffer.rgbBuffer == null ? 0 : cubeLutBuffer.rgbBuffer.capacity();
+    }
+}
@@ -0,0 +1,527 @@
+package com.norman.android.hdrsample.transform;
+
+import com.norman.android.hdrsample.util.BufferUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * 解析Cube文件的文本内容，得到title、size、domain和rgbBuffer
+ * 不依赖Android，CubeLutBuffer和benchmark模块都用它解析
+ * 1. 头部只有几行，按行转成String匹配TITLE、LUT_3D_SIZE、DOMAIN_MIN、DOMAIN_MAX，其他关键字忽略
+ * 2. 第一行以数字、符号或者小数点开头的就是RGB数据的开始
+ * 3. RGB数据单线程和多线程用的是同一个{@link ParseChunkTask}，单线程就是整段数据作为一个分段
+ *    float之间用任意空白字符(小于等于空格，包括\r和\t)分割，#开头到换行是注释，支持1e-5、-1.5E+2这种指数
+ */
+public final class CubeLutParser {
+
+    /**
+     * 多线程解析时每段的大小，实际会延长到换行
+     */
+    private static final int PARALLEL_PARSE_CHUNK_LENGTH = 256 * 1024;
+
+    /**
+     * RGB数据超过这个长度才用多线程解析，也就是至少能分成两段
+     * 多线程要先数一遍float的个数再解析，统计大概是解析耗时的30%~50%，N核的耗时大概是单线程的1.4/N，再加上ForkJoinPool的调度开销
+     * 单线程解析大概200MB/s，调度开销按最坏200us算，2核时RGB数据超过150K左右多线程就能更快，
+     * 比一段还小的数据也没法分段，所以阈值是两段的大小，33的LUT(1M左右)和65的LUT(3M以上)都会多线程解析
+     * 可以在目标机器上运行benchmark模块的CubeLutParseBenchmark，对比parallelMinLength是0和Integer.MAX_VALUE的结果
+     */
+    public static final int PARALLEL_PARSE_MIN_LENGTH = 2 * PARALLEL_PARSE_CHUNK_LENGTH;
+
+    /**
+     * 不使用多线程解析时传的阈值
+     */
+    public static final int PARALLEL_PARSE_DISABLE = Integer.MAX_VALUE;
+
+    /**
+     * 一次读取Buffer缓存的大小64k，拍脑袋瓜定的数值，感觉速度和内存都还可以
+     * 65536=2^16,2^10是1k，那么65536就是64k,
+     */
+    private static final int DEFAULT_LENGTH_READ_BUFFER = 65536;
+
+    /**
+     * 一个像素有RGB 3个float
+     */
+    private static final int BYTES_PER_PIXEL = 3 * Float.BYTES;
+
+    /**
+     * 匹配RGB float数据的符号位
+     */
+    private static final byte FLOAT_STATE_SIGN = 0;
+
+    /**
+     * 匹配RGB float数据的整数位
+     */
+    private static final byte FLOAT_STATE_INT = 1;
+    /**
+     * 匹配RGB float数据的小数位
+     */
+    private static final byte FLOAT_STATE_DECIMAL = 2;
+
+    /**
+     * 匹配RGB float数据指数的符号位，就是e后面的第一个字符
+     */
+    private static final byte FLOAT_STATE_EXPONENT_SIGN = 3;
+
+    /**
+     * 匹配RGB float数据的指数位
+     */
+    private static final byte FLOAT_STATE_EXPONENT = 4;
+
+    /**
+     * 换行
+     */
+    private static final byte BYTE_LINE = '\n';
+    /**
+     * 空格，小于等于空格的都是空白字符
+     */
+    private static final byte BYTE_SPACE = ' ';
+
+    /**
+     * # 代表注释，后面整行的数据都可以丢掉
+     */
+    private static final byte BYTE_NUMBER = '#';
+
+    private static final byte BYTE_0 = '0';
+
+    private static final byte BYTE_9 = '9';
+    /**
+     * 小数点
+     */
+    private static final byte BYTE_DOT = '.';
+
+    /**
+     * 指数小写
+     */
+    private static final byte BYTE_e = 'e';
+
+    /**
+     * 指数大写
+     */
+    private static final byte BYTE_E = 'E';
+
+    private static final byte BYTE_PLUS = '+';
+
+    private static final byte BYTE_MINUS = '-';
+
+    private static final String KEYWORD_TITLE = "TITLE";
+
+    private static final String KEYWORD_3D_SIZE = "LUT_3D_SIZE";
+
+    private static final String KEYWORD_1D_SIZE = "LUT_1D_SIZE";
+
+    private static final String KEYWORD_DOMAIN_MIN = "DOMAIN_MIN";
+
+    private static final String KEYWORD_DOMAIN_MAX = "DOMAIN_MAX";
+
+    /**
+     * 尾数超过这个值后面的小数位就丢掉，保证尾数小于2^53，转double没有误差
+     */
+    private static final long MANTISSA_LIMIT = 100_000_000_000_000L;
+
+    /**
+     * 10的0到22次方都能用double精确表示，超出的用Math.pow
+     */
+    private static final double[] POW10_ARRAY = new double[23];
+
+    static {
+        POW10_ARRAY[0] = 1;
+        for (int i = 1; i < POW10_ARRAY.length; i++) {
+            POW10_ARRAY[i] = POW10_ARRAY[i - 1] * 10;
+        }
+    }
+
+    /**
+     * 标题，没有TITLE是null
+     */
+    public String title;
+
+    /**
+     * LUT_3D_SIZE
+     */
+    public int size;
+
+    public float[] domainMin = {0, 0, 0};
+
+    public float[] domainMax = {1, 1, 1};
+
+    /**
+     * RGB float数据，本地字节序，position是已经解析的字节数，数据完整时position等于capacity
+     * 内存来自BufferUtil的缓存池，数据拷走后调用{@link #release()}放回，要一直持有就不调用
+     */
+    public ByteBuffer rgbBuffer;
+
+    /**
+     * 从缓存池获取的Buffer，capacity可能比rgbBuffer大
+     */
+    private ByteBuffer poolBuffer;
+
+    /**
+     * 是否用了多线程解析
+     */
+    public boolean parallel;
+
+    private CubeLutParser() {
+    }
+
+    /**
+     * 按默认阈值决定是否多线程解析
+     * @param source Cube文件的内容，从position读到limit，不会改变source的position
+     * @return
+     */
+    public static CubeLutParser parse(ByteBuffer source) {
+        return parse(source, PARALLEL_PARSE_MIN_LENGTH);
+    }
+
+    /**
+     * @param source Cube文件的内容，从position读到limit，不会改变source的position
+     * @param parallelMinLength RGB数据超过这个长度并且有多个CPU才多线程解析，
+     *                          传0表示能多线程就多线程，传{@link #PARALLEL_PARSE_DISABLE}表示只用单线程
+     * @return
+     */
+    public static CubeLutParser parse(ByteBuffer source, int parallelMinLength) {
+        CubeLutParser parser = new CubeLutParser();
+        ByteBuffer sourceBuffer = source.duplicate();
+        int rgbDataStart = parser.parseHeader(sourceBuffer);
+        int rgbDataEnd = sourceBuffer.limit();
+        parser.poolBuffer = BufferUtil.obtainDirectBuffer(parser.size * parser.size * parser.size * BYTES_PER_PIXEL);
+        parser.rgbBuffer = parser.poolBuffer.slice().order(ByteOrder.nativeOrder());
+        int rgbDataLength = rgbDataEnd - rgbDataStart;
+        parser.parallel = rgbDataLength >= parallelMinLength
+                && Runtime.getRuntime().availableProcessors() > 1;
+        int floatCount;
+        if (parser.parallel) {
+            floatCount = parseRgbParallel(sourceBuffer, rgbDataStart, rgbDataEnd, parser.rgbBuffer);
+        } else {
+            floatCount = new ParseChunkTask(sourceBuffer, rgbDataStart, rgbDataEnd,
+                    parser.rgbBuffer, 0).call();
+        }
+        parser.rgbBuffer.position(floatCount * Float.BYTES);
+        return parser;
+    }
+
+    /**
+     * 把rgbBuffer的内存放回缓存池，之后不能再使用rgbBuffer
+     */
+    public void release() {
+        BufferUtil.releaseDirectBuffer(poolBuffer);
+        poolBuffer = null;
+        rgbBuffer = null;
+    }
+
+    /**
+     * 逐行解析头部，遇到第一行RGB数据就停止
+     * @param sourceBuffer
+     * @return 第一行RGB数据的位置
+     */
+    private int parseHeader(ByteBuffer sourceBuffer) {
+        int end = sourceBuffer.limit();
+        int lineStart = sourceBuffer.position();
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && sourceBuffer.get(lineEnd) != BYTE_LINE) {
+                lineEnd++;
+            }
+            int firstIndex = lineStart;
+            while (firstIndex < lineEnd && sourceBuffer.get(firstIndex) <= BYTE_SPACE) {//行首的空白不需要读
+                firstIndex++;
+            }
+            if (firstIndex < lineEnd) {
+                byte firstByte = sourceBuffer.get(firstIndex);
+                if (isFloatStart(firstByte)) {//RGB数据开始
+                    if (size <= 0) {
+                        throw new IllegalArgumentException("cubeLut " + KEYWORD_3D_SIZE + " not found before rgb data");
+                    }
+                    return firstIndex;
+                }
+                if (firstByte != BYTE_NUMBER) {//不是注释就是关键字
+                    parseKeywordLine(readLine(sourceBuffer, firstIndex, lineEnd));
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        throw new IllegalArgumentException("cubeLut rgb data not found");
+    }
+
+    private void parseKeywordLine(String line) {
+        if (line.startsWith(KEYWORD_TITLE)) {
+            title = line.substring(KEYWORD_TITLE.length()).trim()
+                    .replaceAll("^\"|\"$", "");//去除前后的引号
+            return;
+        }
+        String[] arr = line.split("\\s+");
+        if (KEYWORD_3D_SIZE.equals(arr[0]) && arr.length >= 2) {
+            size = Integer.parseInt(arr[1]);
+            if (size <= 1) {
+                throw new IllegalArgumentException("cubeLut size is illegal " + size);
+            }
+        } else if (KEYWORD_1D_SIZE.equals(arr[0])) {
+            throw new IllegalArgumentException("cubeLut 1D lut is not supported");
+        } else if (KEYWORD_DOMAIN_MIN.equals(arr[0]) && arr.length == 4) {
+            domainMin = parseDomain(arr);
+        } else if (KEYWORD_DOMAIN_MAX.equals(arr[0]) && arr.length == 4) {
+            domainMax = parseDomain(arr);
+        }
+    }
+
+    private static String readLine(ByteBuffer sourceBuffer, int start, int end) {
+        byte[] lineArray = new byte[end - start];
+        for (int i = 0; i < lineArray.length; i++) {
+            lineArray[i] = sourceBuffer.get(start + i);
+        }
+        return new String(lineArray, StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * 解析DOMAIN_MIN或者DOMAIN_MAX后面的3个float
+     * @param arr
+     * @return
+     */
+    private static float[] parseDomain(String[] arr) {
+        return new float[]{
+                Float.parseFloat(arr[1]),
+                Float.parseFloat(arr[2]),
+                Float.parseFloat(arr[3])};
+    }
+
+    private static boolean isFloatStart(byte readByte) {
+        return (BYTE_0 <= readByte && readByte <= BYTE_9)
+                || readByte == BYTE_MINUS
+                || readByte == BYTE_PLUS
+                || readByte == BYTE_DOT;
+    }
+
+    /**
+     * 多线程解析RGB数据
+     * 1. 从rgbDataStart开始按换行把数据切成多段，保证每段都是完整的行
+     * 2. 每段先数出有多少个float，算出每段在rgbBuffer中的起始位置
+     * 3. 每段解析后直接写入rgbBuffer中互不重叠的区域
+     * @return 解析的float个数
+     */
+    private static int parseRgbParallel(ByteBuffer sourceBuffer, int rgbDataStart, int rgbDataEnd, ByteBuffer rgbBuffer) {
+        List<int[]> chunkList = new ArrayList<>();
+        int chunkStart = rgbDataStart;
+        while (chunkStart < rgbDataEnd) {
+            int chunkEnd = Math.min(chunkStart + PARALLEL_PARSE_CHUNK_LENGTH, rgbDataEnd);
+            while (chunkEnd < rgbDataEnd && sourceBuffer.get(chunkEnd - 1) != BYTE_LINE) {//分段到换行为止
+                chunkEnd++;
+            }
+            chunkList.add(new int[]{chunkStart, chunkEnd});
+            chunkStart = chunkEnd;
+        }
+        ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+
+        // 先统计每段float的数量
+        List<Callable<Integer>> countTaskList = new ArrayList<>();
+        for (int[] chunk : chunkList) {
+            countTaskList.add(new ParseChunkTask(sourceBuffer, chunk[0], chunk[1], null, 0));
+        }
+        List<Integer> countList = invokeParseTask(forkJoinPool, countTaskList);
+
+        // 算出每段在rgbBuffer中的位置后再解析写入
+        int floatOffset = 0;
+        int floatCapacity = rgbBuffer.capacity() / Float.BYTES;
+        List<Callable<Integer>> parseTaskList = new ArrayList<>();
+        for (int i = 0; i < chunkList.size(); i++) {
+            int[] chunk = chunkList.get(i);
+            parseTaskList.add(new ParseChunkTask(sourceBuffer, chunk[0], chunk[1], rgbBuffer, floatOffset));
+            floatOffset += countList.get(i);
+        }
+        if (floatOffset > floatCapacity) {
+            throw new IllegalArgumentException("cubeLut rgb data is more than size");
+        }
+        invokeParseTask(forkJoinPool, parseTaskList);
+        return floatOffset;
+    }
+
+    private static List<Integer> invokeParseTask(ForkJoinPool forkJoinPool, List<Callable<Integer>> taskList) {
+        List<Integer> resultList = new ArrayList<>();
+        try {
+            for (Future<Integer> future : forkJoinPool.invokeAll(taskList)) {
+                resultList.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        return resultList;
+    }
+
+    /**
+     * 解析一段RGB数据，单线程就是整段RGB数据作为一个分段
+     * targetBuffer为null时只统计float的数量，不检查格式
+     */
+    static final class ParseChunkTask implements Callable<Integer> {
+        private final ByteBuffer sourceBuffer;
+        private final int start;
+        private final int end;
+        private final ByteBuffer targetBuffer;
+        private final int floatOffset;
+        private final int floatCapacity;
+
+        ParseChunkTask(ByteBuffer sourceBuffer, int start, int end, ByteBuffer targetBuffer, int floatOffset) {
+            //duplicate保证每个线程读写的position互不影响，注意duplicate后字节序会变成默认的大端要重新设置
+            this.sourceBuffer = sourceBuffer.duplicate();
+            this.start = start;
+            this.end = end;
+            this.targetBuffer = targetBuffer == null ? null : targetBuffer.duplicate().order(targetBuffer.order());
+            this.floatOffset = floatOffset;
+            this.floatCapacity = targetBuffer == null ? Integer.MAX_VALUE : targetBuffer.capacity() / Float.BYTES;
+        }
+
+        @Override
+        public Integer call() {
+            sourceBuffer.limit(end);
+            sourceBuffer.position(start);
+            byte[] readBuffer = new byte[Math.min(DEFAULT_LENGTH_READ_BUFFER, end - start)];
+            int floatCount = 0;
+            boolean comment = false;//注释模式
+            boolean matchFloat = false;//正在匹配float
+            long mantissa = 0;//尾数，整数位和小数位去掉小数点
+            int mantissaDigitCount = 0;//整数位和小数位一共有几位
+            int mantissaExponent = 0;//尾数需要乘的10的次方，小数位是负数，整数位太长丢掉的是正数
+            boolean negative = false;
+            int exponent = 0;
+            int exponentDigitCount = 0;
+            boolean exponentNegative = false;
+            byte floatState = FLOAT_STATE_SIGN;
+            while (sourceBuffer.hasRemaining()) {
+                int readLength = Math.min(readBuffer.length, sourceBuffer.remaining());
+                sourceBuffer.get(readBuffer, 0, readLength);
+                for (int i = 0; i < readLength; i++) {
+                    byte readByte = readBuffer[i];
+                    if (comment) {
+                        if (readByte == BYTE_LINE) {
+                            comment = false;
+                        }
+                        continue;
+                    }
+                    if (readByte <= BYTE_SPACE) {//空白字符表示float结束
+                        if (matchFloat) {
+                            if (targetBuffer != null) {
+                                putFloat(floatCount, toFloat(floatState, mantissa, mantissaDigitCount, mantissaExponent,
+                                        negative, exponent, exponentDigitCount, exponentNegative));
+                            }
+                            floatCount++;
+                            //为下一次读取float还原状态
+                            matchFloat = false;
+                            mantissa = 0;
+                            mantissaDigitCount = 0;
+                            mantissaExponent = 0;
+                            negative = false;
+                            exponent = 0;
+                            exponentDigitCount = 0;
+                            exponentNegative = false;
+                            floatState = FLOAT_STATE_SIGN;
+                        }
+                        continue;
+                    }
+                    if (!matchFloat && readByte == BYTE_NUMBER) {
+                        comment = true;
+                        continue;
+                    }
+                    matchFloat = true;
+                    if (targetBuffer == null) {//只统计数量不需要计算
+                        continue;
+                    }
+                    boolean digit = BYTE_0 <= readByte && readByte <= BYTE_9;
+                    if (floatState == FLOAT_STATE_SIGN) {
+                        floatState = FLOAT_STATE_INT;
+                        if (readByte == BYTE_PLUS || readByte == BYTE_MINUS) {
+                            negative = readByte == BYTE_MINUS;
+                            continue;
+                        }
+                    }
+                    if (floatState == FLOAT_STATE_INT || floatState == FLOAT_STATE_DECIMAL) {
+                        if (digit) {
+                            if (mantissa < MANTISSA_LIMIT) {
+                                mantissa = mantissa * 10 + readByte - BYTE_0;
+                                if (floatState == FLOAT_STATE_DECIMAL) {
+                                    mantissaExponent--;
+                                }
+                            } else if (floatState == FLOAT_STATE_INT) {//整数位太长，丢掉的位数要乘回来
+                                mantissaExponent++;
+                            }
+                            mantissaDigitCount++;
+                        } else if (readByte == BYTE_DOT && floatState == FLOAT_STATE_INT) {//小数点，表示开始小数位匹配
+                            floatState = FLOAT_STATE_DECIMAL;
+                        } else if ((readByte == BYTE_e || readByte == BYTE_E) && mantissaDigitCount > 0) {//指数
+                            floatState = FLOAT_STATE_EXPONENT_SIGN;
+                        } else {
+                            throw parseFail();
+                        }
+                    } else if (floatState == FLOAT_STATE_EXPONENT_SIGN) {
+                        floatState = FLOAT_STATE_EXPONENT;
+                        if (readByte == BYTE_PLUS || readByte == BYTE_MINUS) {
+                            exponentNegative = readByte == BYTE_MINUS;
+                        } else if (digit) {
+                            exponent = readByte - BYTE_0;
+                            exponentDigitCount++;
+                        } else {
+                            throw parseFail();
+                        }
+                    } else {
+                        if (!digit) {
+                            throw parseFail();
+                        }
+                        if (exponent < 1000) {//再大float也表示不了
+                            exponent = exponent * 10 + readByte - BYTE_0;
+                        }
+                        exponentDigitCount++;
+                    }
+                }
+            }
+            if (matchFloat) {//最后一个float后面可能没有换行
+                if (targetBuffer != null) {
+                    putFloat(floatCount, toFloat(floatState, mantissa, mantissaDigitCount, mantissaExponent,
+                            negative, exponent, exponentDigitCount, exponentNegative));
+                }
+                floatCount++;
+            }
+            return floatCount;
+        }
+
+        private void putFloat(int floatIndex, float value) {
+            int targetIndex = floatOffset + floatIndex;
+            if (targetIndex >= floatCapacity) {
+                throw new IllegalArgumentException("cubeLut rgb data is more than size");
+            }
+            targetBuffer.putFloat(targetIndex * Float.BYTES, value);
+        }
+
+        private static float toFloat(byte floatState, long mantissa, int mantissaDigitCount, int mantissaExponent,
+                                     boolean negative, int exponent, int exponentDigitCount, boolean exponentNegative) {
+            if (mantissaDigitCount == 0
+                    || floatState == FLOAT_STATE_EXPONENT_SIGN
+                    || (floatState == FLOAT_STATE_EXPONENT && exponentDigitCount == 0)) {//只有符号、小数点或者e后面没有数字
+                throw parseFail();
+            }
+            int finalExponent = mantissaExponent + (exponentNegative ? -exponent : exponent);
+            double value = mantissa;
+            if (value != 0 && finalExponent != 0) {
+                int absExponent = Math.abs(finalExponent);
+                double scale = absExponent < POW10_ARRAY.length ? POW10_ARRAY[absExponent] : Math.pow(10, absExponent);
+                value = finalExponent > 0 ? value * scale : value / scale;
+            }
+            return (float) (negative ? -value : value);
+        }
+
+        private static IllegalArgumentException parseFail() {
+            return new IllegalArgumentException("float parse fail");
+        }
+    }
+}
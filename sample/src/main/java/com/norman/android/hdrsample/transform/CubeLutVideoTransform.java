@@ -3,11 +3,16 @@ package com.norman.android.hdrsample.transform;
 import android.opengl.GLES20;
 import android.opengl.GLES30;
 
+import com.norman.android.hdrsample.handler.MessageHandler;
+import com.norman.android.hdrsample.player.GLFusionFragment;
 import com.norman.android.hdrsample.player.GLVideoTransform;
 import com.norman.android.hdrsample.player.color.ColorSpace;
 import com.norman.android.hdrsample.util.GLESUtil;
+import com.norman.android.hdrsample.util.LogUtil;
 
 import java.nio.FloatBuffer;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * 直接使用3D纹理加载CubeLut数据，和@see <a href="https://github.com/google/ExoPlayer/blob/release-v2/library/effect/src/main/assets/shaders/fragment_shader_lut_es2.glsl#L23"/> ExoPlayer</a> 的LUT区别
@@ -18,7 +23,9 @@ public class CubeLutVideoTransform extends GLVideoTransform {
 
     private static final int VERTEX_LENGTH = 2;
 
-    private static final String VERTEX_SHADER = "#version 300 es\n" +
+    private static final String LUT_LOAD_THREAD_NAME = "CubeLutLoadThread";
+
+    static final String VERTEX_SHADER = "#version 300 es\n" +
             "in vec4 position;\n" +
             "in vec4 inputTextureCoordinate;\n" +
             "out vec2 textureCoordinate;\n" +
@@ -28,10 +35,13 @@ public class CubeLutVideoTransform extends GLVideoTransform {
             "}";
 
 
+    /**
+     * FP32的LUT需要highp采样，其他精度mediump就够了，%s替换成采样精度
+     */
     private static final String FRAGMENT_SHADER = "#version 300 es\n" +
             "#extension GL_OES_EGL_image_external : require\n" +
             "precision highp float;\n" +
-            "precision highp sampler3D;\n" +
+            "precision %s sampler3D;\n" +
             "in  vec2 textureCoordinate;\n" +
             "out vec4 outColor;\n" +
             "\n" +
@@ -52,9 +62,38 @@ public class CubeLutVideoTransform extends GLVideoTransform {
             "}";
 
 
+    /**
+     * 合并渲染时LUT查表的函数，%1$s替换成函数名，%2$s替换成采样精度，uniform的名字都以函数名开头避免和其他片元重名
+     */
+    private static final String FUSION_SHADER = "precision %2$s sampler3D;\n" +
+            "uniform sampler3D %1$sTexture;\n" +
+            "uniform float %1$sSize;\n" +
+            "vec3 %1$s(vec3 rgb) {\n" +
+            "    vec3 scale = vec3((%1$sSize - 1.0) / %1$sSize);\n" +
+            "    vec3 offset = vec3(1.0 / (2.0 * %1$sSize));\n" +
+            "    return texture(%1$sTexture, scale * rgb + offset).rgb;\n" +
+            "}";
+
+    private static final String FUSION_METHOD = "cubeLut";
+
     private int lutTextureId;
     private int lutSize;
 
+    /**
+     * 设置的LUT纹理精度
+     */
+    private volatile @CubeLutBuffer.LutPrecision int lutPrecision = CubeLutBuffer.LutPrecision.FP16;
+
+    /**
+     * 当前shader使用的精度，FP32不支持时已经降级成FP16
+     */
+    private @CubeLutBuffer.LutPrecision int currentPrecision = CubeLutBuffer.LutPrecision.FP16;
+
+    /**
+     * 当前纹理的精度，精度切换后新纹理上传前还用旧的纹理
+     */
+    private @CubeLutBuffer.LutPrecision int texturePrecision;
+
 
     private CubeLutBuffer currentCube;
 
@@ -69,15 +108,83 @@ public class CubeLutVideoTransform extends GLVideoTransform {
 
     private int cubeLutSizeUniform;
 
+    /**
+     * 合并渲染的片元代码，精度变化时重新生成
+     */
+    private GLFusionFragment lutFusionFragment;
+
+    private int fusionLutTextureUniform;
+
+    private int fusionLutSizeUniform;
+
+    private int fusionTextureUnit;
 
-    private CubeLutBuffer cubeLutBuffer;
+
+    /**
+     * 加载完成等待上传的CubeLut，在渲染线程读取，所以用volatile
+     */
+    private volatile CubeLutBuffer cubeLutBuffer;
+
+    /**
+     * 在后台线程按精度转换好等待上传的数据，渲染线程只上传不转换，用this同步
+     */
+    private CubeLutBuffer.TextureData pendingTextureData;
+
+    /**
+     * 渲染线程已经请求后台转换的LUT和精度，避免每帧重复请求
+     */
+    private CubeLutBuffer requestCube;
+
+    private @CubeLutBuffer.LutPrecision int requestPrecision;
+
+    /**
+     * 后台加载CubeLut的线程
+     */
+    private MessageHandler lutLoadHandler;
+
+    /**
+     * 每次设置CubeLut都加1，后台加载完成时如果不一样说明已经有新的设置，加载结果直接丢掉
+     */
+    private int lutRequestVersion;
 
 
     public CubeLutVideoTransform() {
         positionCoordinateBuffer = GLESUtil.createPositionFlatBuffer();
         textureCoordinateBuffer = GLESUtil.createTextureFlatBuffer();
         setVertexShader(VERTEX_SHADER);
-        setFrameShader(FRAGMENT_SHADER);
+        setFrameShader(createFragmentShader(currentPrecision));
+    }
+
+    static String createFragmentShader(@CubeLutBuffer.LutPrecision int precision) {
+        return String.format(FRAGMENT_SHADER, precision == CubeLutBuffer.LutPrecision.FP32 ? "highp" : "mediump");
+    }
+
+    /**
+     * 合并渲染时LUT查表的片元代码
+     * @param methodName 函数名
+     * @param precision  LUT纹理精度
+     * @return
+     */
+    static String createFusionShader(String methodName, @CubeLutBuffer.LutPrecision int precision) {
+        return String.format(FUSION_SHADER, methodName, precision == CubeLutBuffer.LutPrecision.FP32 ? "highp" : "mediump");
+    }
+
+    /**
+     * 合并渲染时LUT纹理uniform的名字
+     * @param methodName
+     * @return
+     */
+    static String getFusionTextureUniform(String methodName) {
+        return methodName + "Texture";
+    }
+
+    /**
+     * 合并渲染时LUT大小uniform的名字
+     * @param methodName
+     * @return
+     */
+    static String getFusionSizeUniform(String methodName) {
+        return methodName + "Size";
     }
 
     @Override
@@ -95,14 +202,34 @@ public class CubeLutVideoTransform extends GLVideoTransform {
         if (colorSpace == ColorSpace.VIDEO_SDR) {
             return false;
         }
-        if (cubeLutBuffer != currentCube) {
-            currentCube = cubeLutBuffer;
-            GLESUtil.delTextureId(lutTextureId);
-            lutTextureId = 0;
-            lutSize = 0;
+        int precision = CubeLutBuffer.resolvePrecision(lutPrecision);
+        if (precision != currentPrecision) {//采样精度不一样要切换shader，新精度的纹理上传前先用旧的纹理
+            currentPrecision = precision;
+            setFrameShader(createFragmentShader(currentPrecision));
+            lutFusionFragment = null;
+        }
+        CubeLutBuffer targetCube = cubeLutBuffer;
+        if (targetCube == null) {
             if (currentCube != null) {
-                lutTextureId = currentCube.createTextureId();
-                lutSize = currentCube.size;
+                currentCube = null;
+                GLESUtil.delTextureId(lutTextureId);
+                lutTextureId = 0;
+                lutSize = 0;
+            }
+        } else if (targetCube != currentCube || texturePrecision != precision) {
+            // 精度转换在后台线程做，这里只上传，转换好之前继续用之前的纹理
+            CubeLutBuffer.TextureData textureData = takeTextureData(targetCube, precision);
+            if (textureData != null) {
+                GLESUtil.delTextureId(lutTextureId);
+                lutTextureId = textureData.createTextureId();
+                lutSize = targetCube.size;
+                currentCube = targetCube;
+                texturePrecision = precision;
+                requestCube = null;
+            } else if (targetCube != requestCube || precision != requestPrecision) {
+                requestCube = targetCube;
+                requestPrecision = precision;
+                postConvert(targetCube, precision);
             }
         }
         return lutTextureId >0;
@@ -111,8 +238,16 @@ public class CubeLutVideoTransform extends GLVideoTransform {
     @Override
     protected void onDestroy() {
         currentCube = null;
+        requestCube = null;
         GLESUtil.delTextureId(lutTextureId);
         lutTextureId = 0;
+        synchronized (this) {
+            if (lutLoadHandler != null) {
+                lutLoadHandler.finish();
+                lutLoadHandler = null;
+            }
+            setPendingTextureData(null);
+        }
     }
 
     @Override
@@ -147,12 +282,194 @@ public class CubeLutVideoTransform extends GLVideoTransform {
     }
 
 
+    @Override
+    protected GLFusionFragment onFusionFragment() {
+        if (lutFusionFragment == null) {
+            lutFusionFragment = new GLFusionFragment(createFusionShader(FUSION_METHOD, currentPrecision),
+                    FUSION_METHOD, ColorSpace.VIDEO_SDR);
+        }
+        return lutFusionFragment;
+    }
+
+    /**
+     * 设置了LUT并且输入是HDR时会参与合并渲染
+     * @param colorSpace
+     * @return
+     */
+    @Override
+    protected synchronized List<GLFusionFragment> onPrewarmFusionFragment(@ColorSpace int colorSpace) {
+        if (colorSpace == ColorSpace.VIDEO_SDR || cubeLutBuffer == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(new GLFusionFragment(
+                createFusionShader(FUSION_METHOD, CubeLutBuffer.resolvePrecision(lutPrecision)),
+                FUSION_METHOD, ColorSpace.VIDEO_SDR));
+    }
+
+    @Override
+    protected void onFusionProgramChange(int programId) {
+        fusionLutTextureUniform = GLES20.glGetUniformLocation(programId, getFusionTextureUniform(FUSION_METHOD));
+        fusionLutSizeUniform = GLES20.glGetUniformLocation(programId, getFusionSizeUniform(FUSION_METHOD));
+    }
+
+    @Override
+    protected int onFusionRender(int textureUnit) {
+        fusionTextureUnit = textureUnit;
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + textureUnit);
+        GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, lutTextureId);
+        GLES20.glUniform1i(fusionLutTextureUniform, textureUnit);
+        GLES20.glUniform1f(fusionLutSizeUniform, lutSize);
+        return 1;
+    }
+
+    @Override
+    protected void onFusionRenderFinish() {
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + fusionTextureUnit);
+        GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, 0);
+    }
+
+    /**
+     * 设置LUT纹理的精度，在后台线程按新的精度转换完成后才重新上传纹理
+     * RGB10_A2和RGBA8只能表示0到1的数据，LUT输出超过这个范围的会被截断，可以用CubeLutBuffer.getPrecisionErrorReport查看误差
+     * @param precision
+     */
+    public void setLutPrecision(@CubeLutBuffer.LutPrecision int precision) {
+        lutPrecision = precision;
+    }
+
+    public @CubeLutBuffer.LutPrecision int getLutPrecision() {
+        return lutPrecision;
+    }
+
+    /**
+     * 同步加载CubeLut并按精度转换，加载完成后下一帧渲染时上传纹理
+     * @param asset
+     */
     public synchronized void setCubeLut(String asset) {
+        lutRequestVersion++;
+        if (asset == null) {
+            cubeLutBuffer = null;
+            setPendingTextureData(null);
+            return;
+        }
+        cubeLutBuffer = CubeLutBufferCache.get(asset);
+        setPendingTextureData(cubeLutBuffer.createTextureData(lutPrecision));
+    }
+
+    /**
+     * 在后台线程加载CubeLut并按精度转换，完成前继续用之前的CubeLut渲染，完成后下一帧渲染时才切换
+     * 连续设置时只有最后一次设置的会生效
+     * @param asset
+     */
+    public synchronized void setCubeLutAsync(String asset) {
+        int requestVersion = ++lutRequestVersion;
         if (asset == null) {
             cubeLutBuffer = null;
+            setPendingTextureData(null);
             return;
         }
-        cubeLutBuffer = CubeLutBuffer.loadAsset(asset);
+        CubeLutBuffer cacheBuffer = CubeLutBufferCache.getIfPresent(asset);
+        if (cacheBuffer != null) {//缓存中有就不需要去后台加载，只在后台转换精度
+            cubeLutBuffer = cacheBuffer;
+            postConvert(cacheBuffer, lutPrecision);
+            return;
+        }
+        getLoadHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isLatestRequest(requestVersion)) {//已经有新的设置就不需要加载
+                    return;
+                }
+                CubeLutBuffer loadBuffer;
+                CubeLutBuffer.TextureData textureData;
+                try {
+                    loadBuffer = CubeLutBufferCache.get(asset);
+                    textureData = loadBuffer.createTextureData(lutPrecision);
+                } catch (Exception e) {//加载失败继续用之前的CubeLut
+                    LogUtil.e("cubeLut load fail " + asset + " " + e.getMessage());
+                    return;
+                }
+                synchronized (CubeLutVideoTransform.this) {
+                    if (requestVersion == lutRequestVersion) {
+                        cubeLutBuffer = loadBuffer;
+                        setPendingTextureData(textureData);
+                    } else {
+                        textureData.release();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 在后台线程把LUT转换成对应精度，转换完成时LUT已经切换了就丢掉
+     * @param cube
+     * @param precision
+     */
+    private synchronized void postConvert(CubeLutBuffer cube, @CubeLutBuffer.LutPrecision int precision) {
+        getLoadHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCurrentCube(cube)) {//已经切换了LUT就不需要转换
+                    return;
+                }
+                CubeLutBuffer.TextureData textureData;
+                try {
+                    textureData = cube.createTextureData(precision);
+                } catch (Exception e) {//转换失败继续用之前的纹理
+                    LogUtil.e("cubeLut convert fail " + e.getMessage());
+                    return;
+                }
+                synchronized (CubeLutVideoTransform.this) {
+                    if (cube == cubeLutBuffer) {
+                        setPendingTextureData(textureData);
+                    } else {
+                        textureData.release();
+                    }
+                }
+            }
+        });
+    }
+
+    private synchronized MessageHandler getLoadHandler() {
+        if (lutLoadHandler == null || lutLoadHandler.isFinish()) {
+            lutLoadHandler = MessageHandler.obtain(LUT_LOAD_THREAD_NAME);
+        }
+        return lutLoadHandler;
+    }
+
+    /**
+     * 替换等待上传的数据，旧的数据没有上传就放回缓存池
+     * @param textureData
+     */
+    private synchronized void setPendingTextureData(CubeLutBuffer.TextureData textureData) {
+        if (pendingTextureData != null) {
+            pendingTextureData.release();
+        }
+        pendingTextureData = textureData;
+    }
+
+    /**
+     * 取出和当前LUT、精度都一致的待上传数据
+     * @param cube
+     * @param precision
+     * @return 没有转换好返回null
+     */
+    private synchronized CubeLutBuffer.TextureData takeTextureData(CubeLutBuffer cube, @CubeLutBuffer.LutPrecision int precision) {
+        CubeLutBuffer.TextureData textureData = pendingTextureData;
+        if (textureData == null || textureData.cubeLutBuffer != cube || textureData.precision != precision) {
+            return null;
+        }
+        pendingTextureData = null;
+        return textureData;
+    }
+
+    private synchronized boolean isLatestRequest(int requestVersion) {
+        return requestVersion == lutRequestVersion;
+    }
+
+    private synchronized boolean isCurrentCube(CubeLutBuffer cube) {
+        return cube == cubeLutBuffer;
     }
 
 
@@ -0,0 +1,203 @@
+package com.norman.android.hdrsample.transform;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.norman.android.hdrsample.transform.shader.HDRToSDRShader;
+import com.norman.android.hdrsample.transform.shader.MetaDataParams;
+import com.norman.android.hdrsample.util.BufferUtil;
+import com.norman.android.hdrsample.util.GLESUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * 把HDRToSDRShader的整个转换流程烘焙成3D LUT
+ * 做法是离屏渲染一次：
+ * 1. 创建宽是size、高是size*size的输入纹理，每个像素依次是LUT格点的RGB值
+ * 2. 用HDRToSDRShader渲染到同样大小的纹理上，每个像素就是格点转换后的结果
+ * 3. glReadPixels读回来，因为行的顺序是(b*size+g)，列是r，读出的数据就是Cube文件的RGB顺序，在原地去掉alpha就是rgbBuffer
+ * 4. 上传成3D纹理，读回的内存来自缓存池，上传完放回去，重复烘焙不会每次分配新的native内存
+ * 烘焙结果和逐像素计算只有格点之间插值的区别，烘焙只在参数变化时做一次，注意glReadPixels会等待GPU执行完，
+ * 所以HDRToSDRVideoTransform在和渲染线程共享EGLContext的后台线程烘焙，一个烘焙器只在一个线程使用
+ * program保存在烘焙器里，shader不变时重复烘焙不用重新编译链接，不放进GLProgramCache是因为后台线程的EGLContext没有缓存的生命周期
+ */
+class HDRToSDRLutBaker {
+
+    private static final int VERTEX_LENGTH = 2;
+
+    /**
+     * 高是size*size，不能超过最大纹理大小，64*64=4096基本上所有手机都支持
+     */
+    static final int MAX_LUT_SIZE = 64;
+
+    private final FloatBuffer textureCoordinateBuffer = GLESUtil.createTextureFlatBuffer();
+    private final FloatBuffer positionCoordinateBuffer = GLESUtil.createPositionFlatBuffer();
+
+    private int programId;
+
+    private String programVertexCode;
+
+    private String programFrameCode;
+
+    /**
+     * 烘焙成LUT纹理，必须在OpenGL线程调用，会保存和恢复当前的FrameBuffer和Viewport
+     *
+     * @param hdrToSDRShader          转换的shader
+     * @param vertexShader            和hdrToSDRShader搭配的顶点shader
+     * @param lutSize                 LUT的大小
+     * @param maxDisplayLuminance     屏幕最大亮度
+     * @param currentDisplayLuminance 屏幕当前亮度
+     * @param hdrPeakLuminance        HDR内容的峰值亮度
+     * @param precision               LUT纹理的精度
+     * @return 3D纹理
+     */
+    int bake(HDRToSDRShader hdrToSDRShader,
+                       String vertexShader,
+                       int lutSize,
+                       float maxDisplayLuminance,
+                       float currentDisplayLuminance,
+                       float hdrPeakLuminance,
+                       @CubeLutBuffer.LutPrecision int precision) {
+        if (lutSize < 2 || lutSize > MAX_LUT_SIZE) {
+            throw new IllegalArgumentException("lut size must between 2 and " + MAX_LUT_SIZE);
+        }
+        int width = lutSize;
+        int height = lutSize * lutSize;
+
+        int[] saveFrameBuffer = new int[1];
+        int[] saveViewport = new int[4];
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, saveFrameBuffer, 0);
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, saveViewport, 0);
+
+        int inputTextureId = 0;
+        int outputTextureId = 0;
+        int frameBufferId = 0;
+        // 格点和读回的数据只在烘焙时临时使用，从缓存池获取，重复烘焙不用每次分配新的native内存
+        ByteBuffer gridBuffer = null;
+        ByteBuffer rgbaBuffer = null;
+        try {
+            int programId = obtainProgram(vertexShader, hdrToSDRShader.getCode());
+            // 输入纹理用32位float和Nearest插值，保证采样到的就是格点的值
+            inputTextureId = GLESUtil.createNearestTextureId();
+            gridBuffer = createGridBuffer(lutSize);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, inputTextureId);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0,
+                    GLES30.GL_RGBA32F,
+                    width, height, 0,
+                    GLES20.GL_RGBA,
+                    GLES20.GL_FLOAT,
+                    gridBuffer);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+            outputTextureId = GLESUtil.createTextureId(width, height, 16);
+            frameBufferId = GLESUtil.createFrameBufferId();
+            GLESUtil.attachTexture(frameBufferId, outputTextureId);
+
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBufferId);
+            GLES20.glViewport(0, 0, width, height);
+            GLES20.glUseProgram(programId);
+
+            int positionCoordinateAttribute = GLES20.glGetAttribLocation(programId, "position");
+            int textureCoordinateAttribute = GLES20.glGetAttribLocation(programId, "inputTextureCoordinate");
+            positionCoordinateBuffer.clear();
+            textureCoordinateBuffer.clear();
+            GLES20.glEnableVertexAttribArray(positionCoordinateAttribute);
+            GLES20.glVertexAttribPointer(positionCoordinateAttribute, VERTEX_LENGTH, GLES20.GL_FLOAT, false, 0, positionCoordinateBuffer);
+            GLES20.glEnableVertexAttribArray(textureCoordinateAttribute);
+            GLES20.glVertexAttribPointer(textureCoordinateAttribute, VERTEX_LENGTH, GLES20.GL_FLOAT, false, 0, textureCoordinateBuffer);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, inputTextureId);
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(programId, "inputImageTexture"), 0);
+            GLES20.glUniform1f(GLES20.glGetUniformLocation(programId, MetaDataParams.MAX_DISPLAY_LUMINANCE), maxDisplayLuminance);
+            GLES20.glUniform1f(GLES20.glGetUniformLocation(programId, MetaDataParams.CURRENT_DISPLAY_LUMINANCE), currentDisplayLuminance);
+            GLES20.glUniform1f(GLES20.glGetUniformLocation(programId, MetaDataParams.HDR_PEAK_LUMINANCE), hdrPeakLuminance);
+            // LUT只按静态的峰值亮度烘焙，清掉HDR10+的动态元数据；逐像素渲染每帧都会重新设置这些uniform
+            GLES20.glUniform1f(GLES20.glGetUniformLocation(programId, MetaDataParams.HDR10_PLUS_SCENE_PEAK), 0);
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(programId, MetaDataParams.HDR10_PLUS_ANCHOR_COUNT), 0);
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+            GLES20.glDisableVertexAttribArray(positionCoordinateAttribute);
+            GLES20.glDisableVertexAttribArray(textureCoordinateAttribute);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            GLES20.glUseProgram(0);
+
+            // 16位float的FrameBuffer用GL_RGBA和GL_FLOAT读取
+            rgbaBuffer = BufferUtil.obtainDirectBuffer(width * height * 4 * Float.BYTES);
+            GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_FLOAT, rgbaBuffer);
+            GLESUtil.checkGLError();
+            ByteBuffer rgbBuffer = packRgb(rgbaBuffer, width * height);
+            return CubeLutBuffer.create("HDRToSDR", lutSize, rgbBuffer).createTextureId(precision);
+        } finally {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, saveFrameBuffer[0]);
+            GLES20.glViewport(saveViewport[0], saveViewport[1], saveViewport[2], saveViewport[3]);
+            GLESUtil.deleteFrameBufferId(frameBufferId);
+            GLESUtil.delTextureId(outputTextureId);
+            GLESUtil.delTextureId(inputTextureId);
+            BufferUtil.releaseDirectBuffer(gridBuffer);
+            BufferUtil.releaseDirectBuffer(rgbaBuffer);
+        }
+    }
+
+    /**
+     * 删除保存的program，在烘焙的线程调用
+     */
+    void release() {
+        GLESUtil.delProgramId(programId);
+        programId = 0;
+        programVertexCode = null;
+        programFrameCode = null;
+    }
+
+    private int obtainProgram(String vertexCode, String frameCode) {
+        if (programId > 0 && vertexCode.equals(programVertexCode) && frameCode.equals(programFrameCode)) {
+            return programId;
+        }
+        release();
+        programId = GLESUtil.createProgramId(vertexCode, frameCode);
+        programVertexCode = vertexCode;
+        programFrameCode = frameCode;
+        return programId;
+    }
+
+    /**
+     * 创建LUT格点的RGBA数据，行是b*size+g，列是r，Buffer来自缓存池，用完要放回去
+     * @param lutSize
+     * @return
+     */
+    private static ByteBuffer createGridBuffer(int lutSize) {
+        ByteBuffer gridBuffer = BufferUtil.obtainDirectBuffer(lutSize * lutSize * lutSize * 4 * Float.BYTES);
+        float step = 1.0f / (lutSize - 1);
+        for (int b = 0; b < lutSize; b++) {
+            for (int g = 0; g < lutSize; g++) {
+                for (int r = 0; r < lutSize; r++) {
+                    gridBuffer.putFloat(r * step);
+                    gridBuffer.putFloat(g * step);
+                    gridBuffer.putFloat(b * step);
+                    gridBuffer.putFloat(1.0f);
+                }
+            }
+        }
+        gridBuffer.flip();
+        return gridBuffer;
+    }
+
+    /**
+     * 在原地去掉alpha通道，第i个像素的RGB从i*4移到i*3，写的位置不会超过还没读的位置
+     * @param rgbaBuffer 读回的RGBA float数据，会被覆盖
+     * @param pixelCount
+     * @return 和rgbaBuffer共用内存，capacity正好是RGB数据的大小
+     */
+    private static ByteBuffer packRgb(ByteBuffer rgbaBuffer, int pixelCount) {
+        FloatBuffer floatBuffer = rgbaBuffer.order(ByteOrder.nativeOrder()).asFloatBuffer();
+        for (int i = 0; i < pixelCount; i++) {
+            floatBuffer.put(i * 3, floatBuffer.get(i * 4));
+            floatBuffer.put(i * 3 + 1, floatBuffer.get(i * 4 + 1));
+            floatBuffer.put(i * 3 + 2, floatBuffer.get(i * 4 + 2));
+        }
+        ByteBuffer rgbBuffer = rgbaBuffer.duplicate();
+        rgbBuffer.clear();
+        rgbBuffer.limit(pixelCount * 3 * Float.BYTES);
+        return rgbBuffer.slice().order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,225 @@
+package com.norman.android.hdrsample.transform;
+
+import androidx.annotation.NonNull;
+
+import com.norman.android.hdrsample.transform.shader.gamutmap.GamutMap;
+import com.norman.android.hdrsample.transform.shader.tonemap.ToneMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * HDRToSDRVideoTransform的画质调节，渲染耗时超过预算时按等级列表逐级降低画质，耗时降下来以后再逐级恢复
+ * 等级列表从画质最好到最差排列，譬如AdaptiveL0Cusp→Compress→Clip，BT2446A1→Android13，最后是烘焙LUT
+ * 防止来回切换：
+ * 1. 降级的阈值是预算，升级的阈值是预算的{@link #UP_COST_RATIO}，中间有一段不切换
+ * 2. 切换后耗时重新统计，降级至少等{@link #DOWN_HOLD_FRAME_COUNT}帧，升级至少等{@link #UP_HOLD_FRAME_COUNT}帧
+ * 3. 每个等级最近测到的耗时会保存下来，上一级测到的耗时超过预算时不升级，直到这个耗时过期(温度、频率可能已经变了)
+ * 耗时一般是GPU耗时，由HDRToSDRVideoTransform在拿到GPU计时结果时传入，也可以在外部调用{@link #onFrameCost(long)}传入
+ */
+public class HDRToSDRQualityGovernor {
+
+    private static final long DEFAULT_FRAME_INTERVAL_NS = 1000_000_000L / 60;
+
+    /**
+     * 默认Transform最多用一半的帧间隔，剩下的留给上传纹理、其他Transform和上屏
+     */
+    private static final float DEFAULT_BUDGET_RATIO = 0.5f;
+
+    private static final float UP_COST_RATIO = 0.7f;
+
+    private static final int DOWN_HOLD_FRAME_COUNT = 15;
+
+    private static final int UP_HOLD_FRAME_COUNT = 120;
+
+    /**
+     * 等级耗时的有效帧数，大约是60帧下10秒
+     */
+    private static final int LEVEL_COST_EXPIRE_FRAME_COUNT = 600;
+
+    private static final float COST_SMOOTH_FACTOR = 0.1f;
+
+    private final List<Level> levelList;
+
+    private final long[] levelCostNs;
+
+    private final long[] levelCostFrame;
+
+    private long frameIntervalNs = DEFAULT_FRAME_INTERVAL_NS;
+
+    private float budgetRatio = DEFAULT_BUDGET_RATIO;
+
+    private int currentLevel;
+
+    private long frameCount;
+
+    private long switchFrame;
+
+    private long averageCostNs = -1;
+
+    /**
+     * @param levelList 从画质最好到最差排列，不能为空
+     */
+    public HDRToSDRQualityGovernor(@NonNull List<Level> levelList) {
+        if (levelList.isEmpty()) {
+            throw new IllegalArgumentException("level list is empty");
+        }
+        this.levelList = Collections.unmodifiableList(new ArrayList<>(levelList));
+        this.levelCostNs = new long[levelList.size()];
+        this.levelCostFrame = new long[levelList.size()];
+    }
+
+    /**
+     * 默认的等级：先降级色域映射，再降级色调映射，最后用烘焙LUT
+     * 烘焙LUT用的是最好的组合，每个像素只查一次表，只有亮度变化时需要重新烘焙
+     * @return
+     */
+    public static HDRToSDRQualityGovernor createDefault() {
+        return new HDRToSDRQualityGovernor(Arrays.asList(
+                new Level(ToneMap.BT2446A1, GamutMap.ADAPTIVE_L0_CUSP, false),
+                new Level(ToneMap.BT2446A1, GamutMap.COMPRESS, false),
+                new Level(ToneMap.BT2446A1, GamutMap.CLIP, false),
+                new Level(ToneMap.ANDROID13, GamutMap.CLIP, false),
+                new Level(ToneMap.BT2446A1, GamutMap.ADAPTIVE_L0_CUSP, true)));
+    }
+
+    /**
+     * 传入一帧的渲染耗时
+     * @param costNs
+     * @return 等级是否变化
+     */
+    public synchronized boolean onFrameCost(long costNs) {
+        if (costNs < 0) {
+            return false;
+        }
+        frameCount++;
+        averageCostNs = averageCostNs < 0 ? costNs :
+                (long) (averageCostNs + (costNs - averageCostNs) * COST_SMOOTH_FACTOR);
+        levelCostNs[currentLevel] = averageCostNs;
+        levelCostFrame[currentLevel] = frameCount;
+        long budgetNs = getBudgetNs();
+        long holdFrameCount = frameCount - switchFrame;
+        if (currentLevel < levelList.size() - 1
+                && holdFrameCount >= DOWN_HOLD_FRAME_COUNT
+                && averageCostNs > budgetNs) {
+            switchLevel(currentLevel + 1);
+            return true;
+        }
+        if (currentLevel > 0
+                && holdFrameCount >= UP_HOLD_FRAME_COUNT
+                && averageCostNs < budgetNs * UP_COST_RATIO) {
+            int upLevel = currentLevel - 1;
+            boolean upCostValid = levelCostFrame[upLevel] > 0
+                    && frameCount - levelCostFrame[upLevel] < LEVEL_COST_EXPIRE_FRAME_COUNT;
+            if (!upCostValid || levelCostNs[upLevel] <= budgetNs) {
+                switchLevel(upLevel);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void switchLevel(int level) {
+        currentLevel = level;
+        switchFrame = frameCount;
+        averageCostNs = -1;
+    }
+
+    public synchronized void setFrameIntervalNs(long frameIntervalNs) {
+        if (frameIntervalNs <= 0) {
+            throw new IllegalArgumentException("frame interval must greater than 0");
+        }
+        this.frameIntervalNs = frameIntervalNs;
+    }
+
+    /**
+     * 按视频或者屏幕的帧率设置帧间隔
+     * @param frameRate
+     */
+    public synchronized void setFrameRate(float frameRate) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("frame rate must greater than 0");
+        }
+        this.frameIntervalNs = (long) (1000_000_000L / frameRate);
+    }
+
+    public synchronized long getFrameIntervalNs() {
+        return frameIntervalNs;
+    }
+
+    /**
+     * Transform可以使用帧间隔的比例
+     * @param budgetRatio 0到1
+     */
+    public synchronized void setBudgetRatio(float budgetRatio) {
+        if (budgetRatio <= 0 || budgetRatio > 1) {
+            throw new IllegalArgumentException("budget ratio must between 0 and 1");
+        }
+        this.budgetRatio = budgetRatio;
+    }
+
+    public synchronized float getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    public synchronized long getBudgetNs() {
+        return (long) (frameIntervalNs * budgetRatio);
+    }
+
+    /**
+     * 当前等级最近的平均耗时
+     * @return 切换后还没有数据返回-1
+     */
+    public synchronized long getAverageCostNs() {
+        return averageCostNs;
+    }
+
+    public synchronized int getCurrentLevelIndex() {
+        return currentLevel;
+    }
+
+    public synchronized Level getCurrentLevel() {
+        return levelList.get(currentLevel);
+    }
+
+    public List<Level> getLevelList() {
+        return levelList;
+    }
+
+    /**
+     * 回到画质最好的等级，清空统计
+     */
+    public synchronized void reset() {
+        currentLevel = 0;
+        frameCount = 0;
+        switchFrame = 0;
+        averageCostNs = -1;
+        Arrays.fill(levelCostNs, 0);
+        Arrays.fill(levelCostFrame, 0);
+    }
+
+    /**
+     * 一个画质等级
+     */
+    public static final class Level {
+
+        @NonNull
+        public final ToneMap toneMap;
+
+        @NonNull
+        public final GamutMap gamutMap;
+
+        /**
+         * 是否烘焙成LUT渲染
+         */
+        public final boolean lutBake;
+
+        public Level(@NonNull ToneMap toneMap, @NonNull GamutMap gamutMap, boolean lutBake) {
+            this.toneMap = toneMap;
+            this.gamutMap = gamutMap;
+            this.lutBake = lutBake;
+        }
+    }
+}
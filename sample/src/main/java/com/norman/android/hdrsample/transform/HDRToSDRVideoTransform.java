@@ -1,10 +1,15 @@
 package com.norman.android.hdrsample.transform;
 
+import android.opengl.EGL14;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 
 import androidx.annotation.NonNull;
 
+import com.norman.android.hdrsample.opengl.GLEnvThreadManager;
+import com.norman.android.hdrsample.player.GLFusionFragment;
 import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.player.color.HDR10PlusMetadata;
 import com.norman.android.hdrsample.player.GLVideoTransform;
 import com.norman.android.hdrsample.transform.shader.HDRToSDRShader;
 import com.norman.android.hdrsample.transform.shader.MetaDataParams;
@@ -14,8 +19,11 @@ import com.norman.android.hdrsample.transform.shader.gamutmap.GamutMap;
 import com.norman.android.hdrsample.transform.shader.tonemap.ToneMap;
 import com.norman.android.hdrsample.util.DisplayUtil;
 import com.norman.android.hdrsample.util.GLESUtil;
+import com.norman.android.hdrsample.util.LogUtil;
 
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 public class HDRToSDRVideoTransform extends GLVideoTransform {
 
@@ -23,8 +31,23 @@ public class HDRToSDRVideoTransform extends GLVideoTransform {
 
     public static final int TONE_SCENE_REFERENCE = 2;
 
+    /**
+     * 默认烘焙的LUT大小，和大部分Cube文件一样
+     */
+    public static final int DEFAULT_BAKE_LUT_SIZE = 33;
+
+    /**
+     * 烘焙LUT时屏幕当前亮度的量化比例，相差5%以内用同一个LUT
+     */
+    private static final double BAKE_LUMINANCE_RATIO = 1.05;
+
     private static final int VERTEX_LENGTH = 2;
 
+    /**
+     * 合并渲染时烘焙LUT查表的函数名
+     */
+    private static final String FUSION_LUT_METHOD = "hdrToSDRLut";
+
     private static final String VERTEX_SHADER = "precision mediump float;\n" +
             "attribute vec4 position;\n" +
             "attribute vec4 inputTextureCoordinate;\n" +
@@ -51,6 +74,10 @@ public class HDRToSDRVideoTransform extends GLVideoTransform {
     private int maxDisplayLuminanceUniform;
     private int currentDisplayLuminanceUniform;
     private int hdrPeakLuminanceUniform;
+    private int hdr10PlusScenePeakUniform;
+    private int hdr10PlusKneePointUniform;
+    private int hdr10PlusAnchorsUniform;
+    private int hdr10PlusAnchorCountUniform;
 
     private ChromaCorrection chromaCorrection = ChromaCorrection.NONE;
     private ToneMap toneMap = ToneMap.NONE;
@@ -61,6 +88,97 @@ public class HDRToSDRVideoTransform extends GLVideoTransform {
 
     private int toneReference = TONE_DISPLAY_REFERENCE;
 
+    /**
+     * 是否把转换流程烘焙成3D LUT，烘焙后每个像素只需要查一次LUT
+     */
+    private boolean lutBakeEnable;
+
+    private int lutBakeSize = DEFAULT_BAKE_LUT_SIZE;
+
+    /**
+     * 在和渲染线程共享EGLContext的后台线程烘焙LUT，烘焙要离屏渲染再glReadPixels，放在渲染线程会卡住切换时的那一帧
+     */
+    private GLEnvThreadManager bakeThreadManager;
+
+    /**
+     * 只在烘焙线程使用
+     */
+    private HDRToSDRLutBaker lutBaker;
+
+    /**
+     * 烘焙好的LUT纹理
+     */
+    private int bakeLutTextureId;
+
+    /**
+     * 当前LUT纹理是用哪些参数烘焙的，参数都没变就不需要重新烘焙
+     */
+    private BakeParams bakeParams;
+
+    /**
+     * 正在后台烘焙的参数，一样的参数不重复提交
+     */
+    private BakeParams requestBakeParams;
+
+    /**
+     * 烘焙失败的参数，参数变化之前不再重试
+     */
+    private BakeParams failBakeParams;
+
+    /**
+     * 烘焙请求的序号，重新提交或者销毁时加一，后台烘焙完发现不是最新的请求就删掉结果
+     */
+    private int bakeRequestVersion;
+
+    /**
+     * 后台烘焙完还没有被渲染线程取走的结果，纹理是0表示烘焙失败
+     */
+    private BakeParams pendingBakeParams;
+    private int pendingBakeTextureId;
+
+    /**
+     * 当前是否在用烘焙的LUT渲染
+     */
+    private boolean renderBakeLut;
+
+    private int cubeLutTextureUniform;
+    private int cubeLutSizeUniform;
+
+    /**
+     * 合并渲染的片元代码，shader或者是否用烘焙LUT变化时重新生成
+     */
+    private GLFusionFragment fusionFragment;
+    private HDRToSDRShader fusionShader;
+    private boolean fusionBakeLut;
+
+    private int fusionMaxDisplayLuminanceUniform;
+    private int fusionCurrentDisplayLuminanceUniform;
+    private int fusionHdrPeakLuminanceUniform;
+    private int fusionHdr10PlusScenePeakUniform;
+    private int fusionHdr10PlusKneePointUniform;
+    private int fusionHdr10PlusAnchorsUniform;
+    private int fusionHdr10PlusAnchorCountUniform;
+    private int fusionLutTextureUniform;
+    private int fusionLutSizeUniform;
+    private int fusionTextureUnit;
+
+    /**
+     * 画质调节，为空时按设置的ToneMap、GamutMap渲染
+     */
+    private HDRToSDRQualityGovernor qualityGovernor;
+
+    /**
+     * 提前编译的program对应的参数，变化时重新编译
+     */
+    private HDRToSDRQualityGovernor prewarmGovernor;
+    private int prewarmColorSpace;
+    private boolean prewarmShaderChange;
+
+    /**
+     * 可能切换到的ToneMap、GamutMap组合，准备时在后台线程提前编译
+     */
+    private final List<HDRToSDRQualityGovernor.Level> prewarmVariantList = new ArrayList<>();
+
 
     public HDRToSDRVideoTransform() {
         positionCoordinateBuffer = GLESUtil.createPositionFlatBuffer();
@@ -77,6 +195,9 @@ public class HDRToSDRVideoTransform extends GLVideoTransform {
     @Override
     protected void onDestroy() {
         screenBrightnessObserver.unListen();
+        releaseBakeThread();
+        releaseBakeLut();
+        prewarmGovernor = null;
     }
 
     @Override
@@ -98,22 +219,301 @@ public class HDRToSDRVideoTransform extends GLVideoTransform {
         if (colorSpace == ColorSpace.VIDEO_SDR) {
             return false;
         }
+        ToneMap renderToneMap = toneMap;
+        GamutMap renderGamutMap = gamutMap;
+        boolean renderLutBake = lutBakeEnable;
+        if (qualityGovernor != null) {
+            prewarmGovernorPrograms(colorSpace);
+            HDRToSDRQualityGovernor.Level level = qualityGovernor.getCurrentLevel();
+            renderToneMap = level.toneMap;
+            renderGamutMap = level.gamutMap;
+            renderLutBake = renderLutBake || level.lutBake;
+        } else if (prewarmGovernor != null) {
+            releasePrewarmPrograms();
+            prewarmGovernor = null;
+        }
+        boolean shaderUpdate = false;
         if (shaderChange || (hdrToSDRShader != null &&
-                hdrToSDRShader.colorSpace != colorSpace)) {
-            hdrToSDRShader = new HDRToSDRShader(colorSpace,
-                    chromaCorrection,
-                    toneMap,
-                    gamutMap,
-                    gammaOETF,
-                    toneReference == TONE_DISPLAY_REFERENCE
-
-            );
-            setFrameShader(hdrToSDRShader);
+                (hdrToSDRShader.colorSpace != colorSpace
+                        || hdrToSDRShader.toneMap != renderToneMap
+                        || hdrToSDRShader.gamutMap != renderGamutMap))) {
+            hdrToSDRShader = createShader(colorSpace, renderToneMap, renderGamutMap);
             shaderChange  =false;
+            shaderUpdate = true;
+        }
+        boolean bakeLutReady = renderLutBake && hdrToSDRShader != null && bakeLut();
+        if (!bakeLutReady) {
+            releaseBakeLut();
+        }
+        if (shaderUpdate || bakeLutReady != renderBakeLut) {//切换烘焙LUT和逐像素计算的shader
+            renderBakeLut = bakeLutReady;
+            if (renderBakeLut) {
+                setVertexShader(CubeLutVideoTransform.VERTEX_SHADER);
+                setFrameShader(CubeLutVideoTransform.createFragmentShader(CubeLutBuffer.LutPrecision.FP16));
+            } else {
+                setVertexShader(VERTEX_SHADER);
+                setFrameShader(hdrToSDRShader);
+            }
         }
         return true;
     }
 
+    private HDRToSDRShader createShader(@ColorSpace int colorSpace, ToneMap toneMap, GamutMap gamutMap) {
+        return new HDRToSDRShader(colorSpace,
+                chromaCorrection,
+                toneMap,
+                gamutMap,
+                gammaOETF,
+                toneReference == TONE_DISPLAY_REFERENCE
+        );
+    }
+
+    @Override
+    protected synchronized List<PrewarmShader> onPrewarmShader(@ColorSpace int colorSpace) {
+        List<PrewarmShader> prewarmShaderList = new ArrayList<>();
+        if (colorSpace == ColorSpace.VIDEO_SDR) {
+            return prewarmShaderList;
+        }
+        List<HDRToSDRQualityGovernor.Level> variantList = new ArrayList<>(prewarmVariantList);
+        variantList.add(new HDRToSDRQualityGovernor.Level(toneMap, gamutMap, lutBakeEnable));
+        if (qualityGovernor != null) {
+            variantList.addAll(qualityGovernor.getLevelList());
+        }
+        boolean prewarmLut = false;
+        for (HDRToSDRQualityGovernor.Level variant : variantList) {
+            if (!variant.lutBake) {
+                prewarmShaderList.add(new PrewarmShader(VERTEX_SHADER,
+                        createShader(colorSpace, variant.toneMap, variant.gamutMap).getCode()));
+            } else if (!prewarmLut) {
+                prewarmLut = true;
+                prewarmShaderList.add(new PrewarmShader(CubeLutVideoTransform.VERTEX_SHADER,
+                        CubeLutVideoTransform.createFragmentShader(CubeLutBuffer.LutPrecision.FP16)));
+            }
+        }
+        return prewarmShaderList;
+    }
+
+    /**
+     * 提前编译画质调节所有等级的program，切换等级时直接从缓存取，不会因为编译shader卡一帧
+     * 烘焙LUT的等级只编译查表的program，LUT要等切换过去时按当时的亮度在后台烘焙
+     * @param colorSpace
+     */
+    private void prewarmGovernorPrograms(@ColorSpace int colorSpace) {
+        if (prewarmGovernor == qualityGovernor
+                && prewarmColorSpace == colorSpace
+                && !prewarmShaderChange) {
+            return;
+        }
+        releasePrewarmPrograms();
+        prewarmGovernor = qualityGovernor;
+        prewarmColorSpace = colorSpace;
+        prewarmShaderChange = false;
+        boolean prewarmLut = false;
+        for (HDRToSDRQualityGovernor.Level level : qualityGovernor.getLevelList()) {
+            try {
+                if (!level.lutBake) {
+                    prewarmProgram(VERTEX_SHADER, createShader(colorSpace, level.toneMap, level.gamutMap).getCode());
+                } else if (!prewarmLut) {
+                    prewarmLut = true;
+                    prewarmProgram(CubeLutVideoTransform.VERTEX_SHADER,
+                            CubeLutVideoTransform.createFragmentShader(CubeLutBuffer.LutPrecision.FP16));
+                }
+            } catch (RuntimeException e) {
+                LogUtil.e("hdr to sdr prewarm program fail " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 当前的转换参数和上次烘焙的不一样就提交到后台重新烘焙，烘焙好之前继续用之前的LUT，之前没有LUT就用逐像素计算
+     * 烘焙失败就回退到逐像素计算
+     * @return 是否有可用的LUT
+     */
+    private boolean bakeLut() {
+        float maxDisplayLuminance = DisplayUtil.getMaxLuminance();
+        float currentDisplayLuminance = quantizeBakeLuminance(getCurrentDisplayLuminance());
+        float hdrPeakLuminance = getHdrPeakLuminance();
+        takePendingBakeLut();
+        if (bakeLutTextureId > 0 && bakeParams.matches(hdrToSDRShader, lutBakeSize,
+                maxDisplayLuminance, currentDisplayLuminance, hdrPeakLuminance)) {
+            return true;
+        }
+        if (failBakeParams != null && failBakeParams.matches(hdrToSDRShader, lutBakeSize,
+                maxDisplayLuminance, currentDisplayLuminance, hdrPeakLuminance)) {
+            return false;
+        }
+        if (requestBakeParams == null || !requestBakeParams.matches(hdrToSDRShader, lutBakeSize,
+                maxDisplayLuminance, currentDisplayLuminance, hdrPeakLuminance)) {
+            requestBakeParams = new BakeParams(hdrToSDRShader, lutBakeSize,
+                    maxDisplayLuminance, currentDisplayLuminance, hdrPeakLuminance);
+            postBakeLut(requestBakeParams);
+        }
+        return bakeLutTextureId > 0;
+    }
+
+    /**
+     * 取走后台烘焙好的LUT，替换当前的LUT
+     */
+    private void takePendingBakeLut() {
+        BakeParams params = pendingBakeParams;
+        if (params == null) {
+            return;
+        }
+        int textureId = pendingBakeTextureId;
+        pendingBakeParams = null;
+        pendingBakeTextureId = 0;
+        if (params == requestBakeParams) {
+            requestBakeParams = null;
+        }
+        releaseBakeLut();
+        if (textureId > 0) {
+            bakeLutTextureId = textureId;
+            bakeParams = params;
+            failBakeParams = null;
+        } else {
+            failBakeParams = params;
+        }
+    }
+
+    /**
+     * 在烘焙线程烘焙，必须在渲染线程调用，烘焙线程第一次使用时用当前的EGLContext创建
+     * @param params
+     */
+    private void postBakeLut(BakeParams params) {
+        int requestVersion = ++bakeRequestVersion;
+        if (bakeThreadManager == null) {
+            bakeThreadManager = new GLEnvThreadManager.Builder(EGL14.eglGetCurrentContext()).build();
+            lutBaker = new HDRToSDRLutBaker();
+        }
+        HDRToSDRLutBaker baker = lutBaker;
+        bakeThreadManager.post(() -> {
+            synchronized (HDRToSDRVideoTransform.this) {
+                if (requestVersion != bakeRequestVersion) {//已经有新的参数，不需要烘焙
+                    return;
+                }
+            }
+            int textureId = 0;
+            try {
+                textureId = baker.bake(params.shader,
+                        VERTEX_SHADER,
+                        params.lutSize,
+                        params.maxDisplayLuminance,
+                        params.currentDisplayLuminance,
+                        params.hdrPeakLuminance,
+                        CubeLutBuffer.LutPrecision.FP16);
+                GLES20.glFinish();//渲染线程拿到纹理时已经上传完成
+            } catch (RuntimeException e) {
+                LogUtil.e("hdr to sdr bake lut fail " + e.getMessage());
+                GLESUtil.delTextureId(textureId);
+                textureId = 0;
+            }
+            synchronized (HDRToSDRVideoTransform.this) {
+                if (requestVersion != bakeRequestVersion) {
+                    GLESUtil.delTextureId(textureId);
+                    return;
+                }
+                GLESUtil.delTextureId(pendingBakeTextureId);//渲染线程还没取走的旧结果
+                pendingBakeTextureId = textureId;
+                pendingBakeParams = params;
+            }
+        });
+    }
+
+    /**
+     * 停止烘焙线程，正在烘焙的结果会被丢弃，烘焙器在烘焙线程里释放
+     */
+    private void releaseBakeThread() {
+        bakeRequestVersion++;
+        requestBakeParams = null;
+        failBakeParams = null;
+        GLESUtil.delTextureId(pendingBakeTextureId);
+        pendingBakeTextureId = 0;
+        pendingBakeParams = null;
+        if (bakeThreadManager == null) {
+            return;
+        }
+        GLEnvThreadManager threadManager = bakeThreadManager;
+        HDRToSDRLutBaker baker = lutBaker;
+        threadManager.post(() -> {
+            baker.release();
+            threadManager.release();
+        });
+        bakeThreadManager = null;
+        lutBaker = null;
+    }
+
+    /**
+     * 烘焙用的屏幕当前亮度按比例量化，变化不到{@link #BAKE_LUMINANCE_RATIO}不重新烘焙，
+     * 拖动亮度条或者自动亮度时亮度每帧都在变，不量化每帧都要烘焙一次
+     * @param luminance
+     * @return
+     */
+    private static float quantizeBakeLuminance(float luminance) {
+        if (luminance <= 0) {
+            return 0;
+        }
+        double step = Math.log(BAKE_LUMINANCE_RATIO);
+        return (float) Math.exp(Math.round(Math.log(luminance) / step) * step);
+    }
+
+    private void releaseBakeLut() {
+        GLESUtil.delTextureId(bakeLutTextureId);
+        bakeLutTextureId = 0;
+        bakeParams = null;
+    }
+
+    /**
+     * HDR内容的峰值亮度，没有元数据时默认1000
+     * @return
+     */
+    private int getHdrPeakLuminance() {
+        int peakLuminance = Math.min(getInputMaxContentLuminance(), getInputMaxMasteringLuminance());
+        peakLuminance = Math.max(peakLuminance, getInputMaxFrameAverageLuminance());
+        if (peakLuminance == 0) {
+            peakLuminance = 1000;
+        }
+        return peakLuminance;
+    }
+
+    /**
+     * 设置当前帧的HDR10+动态元数据，只有ToneMap.HDR10_PLUS用到，其他ToneMap的program里没有这些uniform
+     * 没有元数据时场景峰值亮度传0，shader里用静态的峰值亮度
+     */
+    private void setHDR10PlusUniform(int scenePeakUniform, int kneePointUniform, int anchorsUniform, int anchorCountUniform) {
+        if (scenePeakUniform < 0) {
+            return;
+        }
+        HDR10PlusMetadata metadata = getInputHDR10PlusMetadata();
+        if (metadata == null) {
+            GLES20.glUniform1f(scenePeakUniform, 0);
+            GLES20.glUniform1i(anchorCountUniform, 0);
+            return;
+        }
+        GLES20.glUniform1f(scenePeakUniform, metadata.getScenePeakLuminance());
+        if (metadata.toneMappingEnable && metadata.bezierCurveAnchorCount > 0) {
+            GLES20.glUniform2f(kneePointUniform, metadata.kneePointX, metadata.kneePointY);
+            GLES20.glUniform1fv(anchorsUniform, metadata.bezierCurveAnchorCount, metadata.bezierCurveAnchors, 0);
+            GLES20.glUniform1i(anchorCountUniform, metadata.bezierCurveAnchorCount);
+        } else {
+            GLES20.glUniform1i(anchorCountUniform, 0);
+        }
+    }
+
+    private float getCurrentDisplayLuminance() {
+        return screenBrightnessObserver.getBrightnessInfo().brightnessFloat * DisplayUtil.getMaxLuminance();
+    }
+
+    @Override
+    protected synchronized void onGpuTime(long timeNs) {
+        if (qualityGovernor != null && qualityGovernor.onFrameCost(timeNs)) {
+            HDRToSDRQualityGovernor.Level level = qualityGovernor.getCurrentLevel();
+            LogUtil.d("hdr to sdr quality level " + qualityGovernor.getCurrentLevelIndex()
+                    + " " + level.toneMap.getClass().getSimpleName()
+                    + " " + level.gamutMap.getClass().getSimpleName()
+                    + (level.lutBake ? " lut" : ""));
+        }
+    }
+
     @Override
     protected void onProgramChange(int programId) {
         positionCoordinateAttribute = GLES20.glGetAttribLocation(programId, "position");
@@ -122,6 +522,12 @@ public class HDRToSDRVideoTransform extends GLVideoTransform {
         maxDisplayLuminanceUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.MAX_DISPLAY_LUMINANCE);
         currentDisplayLuminanceUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.CURRENT_DISPLAY_LUMINANCE);
         hdrPeakLuminanceUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.HDR_PEAK_LUMINANCE);
+        hdr10PlusScenePeakUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.HDR10_PLUS_SCENE_PEAK);
+        hdr10PlusKneePointUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.HDR10_PLUS_KNEE_POINT);
+        hdr10PlusAnchorsUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.HDR10_PLUS_ANCHORS);
+        hdr10PlusAnchorCountUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.HDR10_PLUS_ANCHOR_COUNT);
+        cubeLutTextureUniform = GLES20.glGetUniformLocation(programId, "cubeLutTexture");
+        cubeLutSizeUniform = GLES20.glGetUniformLocation(programId, "cubeLutSize");
     }
 
     @Override
@@ -137,26 +543,132 @@ public class HDRToSDRVideoTransform extends GLVideoTransform {
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, getInputTextureId());
         GLES20.glUniform1i(textureUnitUniform, 0);
-        GLES20.glUniform1f(maxDisplayLuminanceUniform, DisplayUtil.getMaxLuminance());
-        int peakLuminance = Math.min(getInputMaxContentLuminance(), getInputMaxMasteringLuminance());
-        peakLuminance = Math.max(peakLuminance, getInputMaxFrameAverageLuminance());
-        if (peakLuminance == 0) {
-            peakLuminance = 1000;
+        if (renderBakeLut) {//烘焙的LUT只需要查表
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+            GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, bakeLutTextureId);
+            GLES20.glUniform1i(cubeLutTextureUniform, 1);
+            GLES20.glUniform1f(cubeLutSizeUniform, bakeParams.lutSize);
+        } else {
+            GLES20.glUniform1f(maxDisplayLuminanceUniform, DisplayUtil.getMaxLuminance());
+            GLES20.glUniform1f(hdrPeakLuminanceUniform, getHdrPeakLuminance());
+            GLES20.glUniform1f(currentDisplayLuminanceUniform, getCurrentDisplayLuminance());
+            setHDR10PlusUniform(hdr10PlusScenePeakUniform,
+                    hdr10PlusKneePointUniform,
+                    hdr10PlusAnchorsUniform,
+                    hdr10PlusAnchorCountUniform);
         }
-        GLES20.glUniform1f(hdrPeakLuminanceUniform, peakLuminance);
-        GLES20.glUniform1f(currentDisplayLuminanceUniform, screenBrightnessObserver.getBrightnessInfo().brightnessFloat * DisplayUtil.getMaxLuminance());
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
         GLES20.glDisableVertexAttribArray(positionCoordinateAttribute);
         GLES20.glDisableVertexAttribArray(textureCoordinateAttribute);
+        if (renderBakeLut) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+            GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, 0);
+        }
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
     }
 
 
+    @Override
+    protected GLFusionFragment onFusionFragment() {
+        if (fusionFragment == null
+                || fusionShader != hdrToSDRShader
+                || fusionBakeLut != renderBakeLut) {
+            fusionShader = hdrToSDRShader;
+            fusionBakeLut = renderBakeLut;
+            fusionFragment = createFusionFragment(hdrToSDRShader, renderBakeLut);
+        }
+        return fusionFragment;
+    }
+
+    private static GLFusionFragment createFusionFragment(HDRToSDRShader shader, boolean bakeLut) {
+        if (bakeLut) {
+            return new GLFusionFragment(
+                    CubeLutVideoTransform.createFusionShader(FUSION_LUT_METHOD, CubeLutBuffer.LutPrecision.FP16),
+                    FUSION_LUT_METHOD, ColorSpace.VIDEO_SDR);
+        }
+        return new GLFusionFragment(shader.getFusionCode(),
+                HDRToSDRShader.METHOD_HDR_TO_SDR, ColorSpace.VIDEO_SDR);
+    }
+
+    /**
+     * 合并渲染时的片元代码，第一个是马上要用的：有画质调节时是当前等级，没有时是当前设置
+     * 后面是画质调节所有等级和声明的组合，合并渲染时切换也不用在渲染线程编译
+     * @param colorSpace
+     * @return
+     */
+    @Override
+    protected synchronized List<GLFusionFragment> onPrewarmFusionFragment(@ColorSpace int colorSpace) {
+        List<GLFusionFragment> fragmentList = new ArrayList<>();
+        if (colorSpace == ColorSpace.VIDEO_SDR) {
+            return fragmentList;
+        }
+        List<HDRToSDRQualityGovernor.Level> variantList = new ArrayList<>();
+        if (qualityGovernor != null) {
+            variantList.add(qualityGovernor.getCurrentLevel());
+            variantList.addAll(qualityGovernor.getLevelList());
+        } else {
+            variantList.add(new HDRToSDRQualityGovernor.Level(toneMap, gamutMap, lutBakeEnable));
+        }
+        variantList.addAll(prewarmVariantList);
+        boolean prewarmLut = false;
+        for (HDRToSDRQualityGovernor.Level variant : variantList) {
+            if (!lutBakeEnable && !variant.lutBake) {
+                fragmentList.add(createFusionFragment(createShader(colorSpace, variant.toneMap, variant.gamutMap), false));
+            } else if (!prewarmLut) {
+                prewarmLut = true;
+                fragmentList.add(createFusionFragment(null, true));
+            }
+        }
+        return fragmentList;
+    }
+
+    @Override
+    protected void onFusionProgramChange(int programId) {
+        fusionMaxDisplayLuminanceUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.MAX_DISPLAY_LUMINANCE);
+        fusionCurrentDisplayLuminanceUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.CURRENT_DISPLAY_LUMINANCE);
+        fusionHdrPeakLuminanceUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.HDR_PEAK_LUMINANCE);
+        fusionHdr10PlusScenePeakUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.HDR10_PLUS_SCENE_PEAK);
+        fusionHdr10PlusKneePointUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.HDR10_PLUS_KNEE_POINT);
+        fusionHdr10PlusAnchorsUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.HDR10_PLUS_ANCHORS);
+        fusionHdr10PlusAnchorCountUniform = GLES20.glGetUniformLocation(programId, MetaDataParams.HDR10_PLUS_ANCHOR_COUNT);
+        fusionLutTextureUniform = GLES20.glGetUniformLocation(programId, CubeLutVideoTransform.getFusionTextureUniform(FUSION_LUT_METHOD));
+        fusionLutSizeUniform = GLES20.glGetUniformLocation(programId, CubeLutVideoTransform.getFusionSizeUniform(FUSION_LUT_METHOD));
+    }
+
+    @Override
+    protected synchronized int onFusionRender(int textureUnit) {
+        if (fusionBakeLut) {
+            fusionTextureUnit = textureUnit;
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + textureUnit);
+            GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, bakeLutTextureId);
+            GLES20.glUniform1i(fusionLutTextureUniform, textureUnit);
+            GLES20.glUniform1f(fusionLutSizeUniform, bakeParams.lutSize);
+            return 1;
+        }
+        GLES20.glUniform1f(fusionMaxDisplayLuminanceUniform, DisplayUtil.getMaxLuminance());
+        GLES20.glUniform1f(fusionHdrPeakLuminanceUniform, getHdrPeakLuminance());
+        GLES20.glUniform1f(fusionCurrentDisplayLuminanceUniform, getCurrentDisplayLuminance());
+        setHDR10PlusUniform(fusionHdr10PlusScenePeakUniform,
+                fusionHdr10PlusKneePointUniform,
+                fusionHdr10PlusAnchorsUniform,
+                fusionHdr10PlusAnchorCountUniform);
+        return 0;
+    }
+
+    @Override
+    protected void onFusionRenderFinish() {
+        if (fusionBakeLut) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + fusionTextureUnit);
+            GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, 0);
+        }
+    }
+
     public synchronized void setChromaCorrection(@NonNull ChromaCorrection chromaCorrection) {
         if (this.chromaCorrection != chromaCorrection) {
             this.chromaCorrection = chromaCorrection;
             shaderChange = true;
+            prewarmShaderChange = true;
         }
     }
 
@@ -178,13 +690,80 @@ public class HDRToSDRVideoTransform extends GLVideoTransform {
         if (this.gammaOETF != gammaOETF) {
             this.gammaOETF = gammaOETF;
             shaderChange = true;
+            prewarmShaderChange = true;
+        }
+    }
+
+    /**
+     * 设置画质调节，渲染耗时超过预算时按等级列表自动降低画质，耗时降下来后再恢复
+     * 设置后ToneMap和GamutMap由当前等级决定，setToneMap、setGamutMap设置的值不再生效，设置为空恢复
+     * 耗时来自GPU计时，会自动开启GPU计时，合并渲染时用的是整个合并绘制的耗时，
+     * 设备不支持GL_EXT_disjoint_timer_query时拿不到耗时，这时需要在外部调用{@link HDRToSDRQualityGovernor#onFrameCost(long)}传入耗时
+     * 等级用到的program会提前编译好，合并渲染时由GLVideoOutput在后台线程编译各个等级的合并shader
+     * @param qualityGovernor
+     */
+    public synchronized void setQualityGovernor(HDRToSDRQualityGovernor qualityGovernor) {
+        if (this.qualityGovernor == qualityGovernor) {
+            return;
+        }
+        this.qualityGovernor = qualityGovernor;
+        if (qualityGovernor != null) {
+            setGpuTimingEnable(true);
+        }
+        shaderChange = true;
+    }
+
+    public synchronized HDRToSDRQualityGovernor getQualityGovernor() {
+        return qualityGovernor;
+    }
+
+    /**
+     * 声明之后可能切换到的ToneMap、GamutMap组合，GLVideoOutput准备时用当前的色度矫正、Gamma和视频颜色空间在后台线程提前编译
+     * 之后切换到这些组合只需要使用已经链接好的program，当前设置的组合和画质调节的等级会自动加入
+     * @param variantList
+     */
+    public synchronized void setPrewarmVariants(@NonNull List<HDRToSDRQualityGovernor.Level> variantList) {
+        prewarmVariantList.clear();
+        prewarmVariantList.addAll(variantList);
+    }
+
+    public synchronized List<HDRToSDRQualityGovernor.Level> getPrewarmVariants() {
+        return new ArrayList<>(prewarmVariantList);
+    }
+
+    /**
+     * 开启后把当前的色度矫正、色调映射、色域映射和Gamma组合烘焙成3D LUT，每个像素只需要查一次LUT
+     * 转换参数、屏幕亮度和HDR峰值亮度变化时会在后台线程重新烘焙，烘焙好之前继续用之前的LUT，还没有LUT时逐像素计算
+     * @param enable
+     */
+    public synchronized void setLutBakeEnable(boolean enable) {
+        this.lutBakeEnable = enable;
+    }
+
+    public synchronized boolean isLutBakeEnable() {
+        return lutBakeEnable;
+    }
+
+    /**
+     * 烘焙的LUT大小，越大插值误差越小，最大64
+     * @param lutSize
+     */
+    public synchronized void setLutBakeSize(int lutSize) {
+        if (lutSize < 2 || lutSize > HDRToSDRLutBaker.MAX_LUT_SIZE) {
+            throw new IllegalArgumentException("lut size must between 2 and " + HDRToSDRLutBaker.MAX_LUT_SIZE);
         }
+        this.lutBakeSize = lutSize;
+    }
+
+    public synchronized int getLutBakeSize() {
+        return lutBakeSize;
     }
 
     public synchronized void setToneReference(int type){
         if (this.toneReference != type){
             this.toneReference = type;
             shaderChange = true;
+            prewarmShaderChange = true;
         }
     }
 
@@ -207,4 +786,33 @@ public class HDRToSDRVideoTransform extends GLVideoTransform {
     public int getToneReference() {
         return toneReference;
     }
+
+    /**
+     * 烘焙LUT用的参数，创建以后不会修改，烘焙线程可以直接读
+     */
+    private static class BakeParams {
+        final HDRToSDRShader shader;
+        final int lutSize;
+        final float maxDisplayLuminance;
+        final float currentDisplayLuminance;
+        final float hdrPeakLuminance;
+
+        BakeParams(HDRToSDRShader shader, int lutSize,
+                   float maxDisplayLuminance, float currentDisplayLuminance, float hdrPeakLuminance) {
+            this.shader = shader;
+            this.lutSize = lutSize;
+            this.maxDisplayLuminance = maxDisplayLuminance;
+            this.currentDisplayLuminance = currentDisplayLuminance;
+            this.hdrPeakLuminance = hdrPeakLuminance;
+        }
+
+        boolean matches(HDRToSDRShader shader, int lutSize,
+                        float maxDisplayLuminance, float currentDisplayLuminance, float hdrPeakLuminance) {
+            return this.shader == shader
+                    && this.lutSize == lutSize
+                    && this.maxDisplayLuminance == maxDisplayLuminance
+                    && this.currentDisplayLuminance == currentDisplayLuminance
+                    && this.hdrPeakLuminance == hdrPeakLuminance;
+        }
+    }
 }
@@ -0,0 +1,101 @@
+package com.norman.android.hdrsample.transform.cpu;
+
+import androidx.annotation.IntDef;
+
+import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.transform.shader.chromacorrect.ChromaCorrection;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * ChromaCorrection的CPU实现，公式和ChromaCorrectionBT2446C的GLSL一一对应
+ * 输入输出都是归一化的线性BT2020，原地修改rgb[offset]开始的三个值
+ */
+public class CpuChromaCorrection {
+
+    @IntDef({NONE, BT2446C})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Type {
+    }
+
+    public static final int NONE = 0;
+    public static final int BT2446C = 1;
+
+    private static final float CHROMA_CORRECT_STRENGTH = 0.05f;
+    private static final float CROSSTALK_STRENGTH = 0.04f;
+
+    private static final float L_REF = CpuColorConversion.bt2020ToLabL(CpuColorConversion.HDR_REFERENCE_WHITE);
+
+    /**
+     * ChromaCorrection对应的类型
+     * @param chromaCorrection
+     * @return
+     */
+    @Type
+    public static int getType(ChromaCorrection chromaCorrection) {
+        if (chromaCorrection == ChromaCorrection.NONE) {
+            return NONE;
+        } else if (chromaCorrection == ChromaCorrection.BT2446C) {
+            return BT2446C;
+        }
+        throw new IllegalArgumentException("unknown chroma correction " + chromaCorrection);
+    }
+
+    /**
+     * 原地做色度矫正
+     * @param type
+     * @param rgb
+     * @param offset
+     * @param colorSpace       视频的颜色空间
+     * @param hdrPeakLuminance HDR内容的峰值亮度
+     */
+    public static void chromaCorrect(@Type int type, float[] rgb, int offset,
+                                     @ColorSpace int colorSpace,
+                                     float hdrPeakLuminance) {
+        if (type == NONE) {
+            return;
+        }
+        if (type != BT2446C) {
+            throw new IllegalArgumentException("unknown chroma correction type " + type);
+        }
+        float masterScale = CpuToneMap.getMasterScale(colorSpace);
+        float lMax = CpuColorConversion.bt2020ToLabL(hdrPeakLuminance);
+        crosstalk(rgb, offset, masterScale);
+        CpuColorConversion.bt2020ToLab(rgb, offset);
+        CpuColorConversion.labToLch(rgb, offset);
+        float lightness = rgb[offset];
+        if (lightness > L_REF) {//大于参考白表示高光，亮度越大饱和度越小
+            rgb[offset + 1] *= Math.max(1.0f - CHROMA_CORRECT_STRENGTH * (lightness - L_REF) / (lMax - L_REF), 0.0f);
+        }
+        CpuColorConversion.lchToLab(rgb, offset);
+        CpuColorConversion.labToBt2020(rgb, offset);
+        crosstalkInverse(rgb, offset, 1.0f / masterScale);
+    }
+
+    /**
+     * crosstalk矩阵是对称的，x * M和M * x结果一样，顺便把缩放到绝对亮度一起做了
+     */
+    private static void crosstalk(float[] rgb, int offset, float scale) {
+        float a = CROSSTALK_STRENGTH;
+        float b = 1.0f - 2.0f * a;
+        float r = rgb[offset] * scale;
+        float g = rgb[offset + 1] * scale;
+        float bl = rgb[offset + 2] * scale;
+        rgb[offset] = b * r + a * g + a * bl;
+        rgb[offset + 1] = a * r + b * g + a * bl;
+        rgb[offset + 2] = a * r + a * g + b * bl;
+    }
+
+    private static void crosstalkInverse(float[] rgb, int offset, float scale) {
+        float a = CROSSTALK_STRENGTH;
+        float b = 1.0f - a;
+        float c = 1.0f - 3.0f * a;
+        float r = rgb[offset];
+        float g = rgb[offset + 1];
+        float bl = rgb[offset + 2];
+        rgb[offset] = (b * r - a * g - a * bl) / c * scale;
+        rgb[offset + 1] = (-a * r + b * g - a * bl) / c * scale;
+        rgb[offset + 2] = (-a * r - a * g + b * bl) / c * scale;
+    }
+}
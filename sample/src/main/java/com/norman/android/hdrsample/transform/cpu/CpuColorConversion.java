@@ -0,0 +1,210 @@
+package com.norman.android.hdrsample.transform.cpu;
+
+/**
+ * ColorConversion的CPU实现，和GLSL保持一致，方便脱离GPU验证结果
+ * 所有方法都是对rgb[offset]开始的三个值原地修改，不分配内存
+ * 矩阵按GLSL的mat3列主序存储，数值直接从ColorConversion复制过来
+ */
+public class CpuColorConversion {
+
+    /**
+     * HDR参考白亮度
+     */
+    public static final float HDR_REFERENCE_WHITE = 203.0f;
+
+    public static final float HLG_MAX_LUMINANCE = 1000.0f;
+
+    public static final float PQ_MAX_LUMINANCE = 10000.0f;
+
+    static final float PI = 3.1415926f;
+
+    static final float EPSILON = 1e-6f;
+
+    public static final float[] BT2020_TO_BT709_MAT3 = {
+            1.660491f, -0.12455047f, -0.01815076f,
+            -0.58764114f, 1.1328999f, -0.1005789f,
+            -0.07284986f, -0.00834942f, 1.11872966f};
+
+    public static final float[] BT709_TO_BT2020_MAT3 = {
+            0.6274040f, 0.0690970f, 0.0163916f,
+            0.3292820f, 0.9195400f, 0.0880132f,
+            0.0433136f, 0.0113612f, 0.8955950f};
+
+    public static final float[] BT2020_TO_XYZ_MAT3 = {
+            0.636958f, 0.262700f, 0.000000f,
+            0.144617f, 0.677998f, 0.028073f,
+            0.168881f, 0.059302f, 1.060985f};
+
+    public static final float[] XYZ_TO_BT2020_MAT3 = {
+            1.716651f, -0.666684f, 0.017640f,
+            -0.355671f, 1.616481f, -0.042771f,
+            -0.253366f, 0.015769f, 0.942103f};
+
+    public static final float[] XYZ_TO_BT709_MAT3 = {
+            3.240970f, -0.969244f, 0.055630f,
+            -1.537383f, 1.875968f, -0.203977f,
+            -0.498611f, 0.041555f, 1.056972f};
+
+    public static final float[] XYZD65_TO_XYZD50_MAT3 = {
+            1.047930f, 0.029628f, -0.009243f,
+            0.022947f, 0.990434f, 0.015055f,
+            -0.050192f, -0.017074f, 0.751874f};
+
+    public static final float[] XYZD50_TO_XYZD65_MAT3 = {
+            0.955473f, -0.028370f, 0.012314f,
+            -0.023099f, 1.009995f, -0.020508f,
+            0.063259f, 0.021041f, 1.330366f};
+
+    private static final float LAB_DELTA = 6.0f / 29.0f;
+
+    private static final float LAB_DELTAC = LAB_DELTA * 2.0f / 3.0f;
+
+    /**
+     * Lab的参考白，也就是BT2020_TO_XYZ(vec3(HDR_REFERENCE_WHITE))
+     */
+    private static final float LAB_REF_X = HDR_REFERENCE_WHITE * (BT2020_TO_XYZ_MAT3[0] + BT2020_TO_XYZ_MAT3[3] + BT2020_TO_XYZ_MAT3[6]);
+    private static final float LAB_REF_Y = HDR_REFERENCE_WHITE * (BT2020_TO_XYZ_MAT3[1] + BT2020_TO_XYZ_MAT3[4] + BT2020_TO_XYZ_MAT3[7]);
+    private static final float LAB_REF_Z = HDR_REFERENCE_WHITE * (BT2020_TO_XYZ_MAT3[2] + BT2020_TO_XYZ_MAT3[5] + BT2020_TO_XYZ_MAT3[8]);
+
+    /**
+     * 等同GLSL的mat3 * vec3
+     * @param mat3 列主序的矩阵
+     * @param rgb
+     * @param offset
+     */
+    public static void multiply(float[] mat3, float[] rgb, int offset) {
+        float x = rgb[offset];
+        float y = rgb[offset + 1];
+        float z = rgb[offset + 2];
+        rgb[offset] = mat3[0] * x + mat3[3] * y + mat3[6] * z;
+        rgb[offset + 1] = mat3[1] * x + mat3[4] * y + mat3[7] * z;
+        rgb[offset + 2] = mat3[2] * x + mat3[5] * y + mat3[8] * z;
+    }
+
+    public static void bt2020ToBt709(float[] rgb, int offset) {
+        multiply(BT2020_TO_BT709_MAT3, rgb, offset);
+    }
+
+    public static void bt709ToBt2020(float[] rgb, int offset) {
+        multiply(BT709_TO_BT2020_MAT3, rgb, offset);
+    }
+
+    public static void bt2020ToXYZ(float[] rgb, int offset) {
+        multiply(BT2020_TO_XYZ_MAT3, rgb, offset);
+    }
+
+    public static void xyzToBt2020(float[] rgb, int offset) {
+        multiply(XYZ_TO_BT2020_MAT3, rgb, offset);
+    }
+
+    public static void xyzToBt709(float[] rgb, int offset) {
+        multiply(XYZ_TO_BT709_MAT3, rgb, offset);
+    }
+
+    public static void bt2020ToLab(float[] rgb, int offset) {
+        multiply(BT2020_TO_XYZ_MAT3, rgb, offset);
+        multiply(XYZD65_TO_XYZD50_MAT3, rgb, offset);
+        float x = labf1(rgb[offset] / LAB_REF_X);
+        float y = labf1(rgb[offset + 1] / LAB_REF_Y);
+        float z = labf1(rgb[offset + 2] / LAB_REF_Z);
+        rgb[offset] = 116.0f * y - 16.0f;
+        rgb[offset + 1] = 500.0f * (x - y);
+        rgb[offset + 2] = 200.0f * (y - z);
+    }
+
+    public static void labToBt2020(float[] rgb, int offset) {
+        float y = (rgb[offset] + 16.0f) / 116.0f;
+        float x = y + rgb[offset + 1] / 500.0f;
+        float z = y - rgb[offset + 2] / 200.0f;
+        rgb[offset] = labf2(x) * LAB_REF_X;
+        rgb[offset + 1] = labf2(y) * LAB_REF_Y;
+        rgb[offset + 2] = labf2(z) * LAB_REF_Z;
+        multiply(XYZD50_TO_XYZD65_MAT3, rgb, offset);
+        multiply(XYZ_TO_BT2020_MAT3, rgb, offset);
+    }
+
+    /**
+     * 单个亮度值转换成Lab的L，用来计算参考白和峰值亮度的L
+     * @param luminance
+     * @return
+     */
+    public static float bt2020ToLabL(float luminance) {
+        float y = (XYZD65_TO_XYZD50_MAT3[1] * (BT2020_TO_XYZ_MAT3[0] + BT2020_TO_XYZ_MAT3[3] + BT2020_TO_XYZ_MAT3[6])
+                + XYZD65_TO_XYZD50_MAT3[4] * (BT2020_TO_XYZ_MAT3[1] + BT2020_TO_XYZ_MAT3[4] + BT2020_TO_XYZ_MAT3[7])
+                + XYZD65_TO_XYZD50_MAT3[7] * (BT2020_TO_XYZ_MAT3[2] + BT2020_TO_XYZ_MAT3[5] + BT2020_TO_XYZ_MAT3[8])) * luminance;
+        return 116.0f * labf1(y / LAB_REF_Y) - 16.0f;
+    }
+
+    public static void labToLch(float[] lab, int offset) {
+        float a = lab[offset + 1];
+        float b = lab[offset + 2];
+        float c = (float) Math.sqrt(a * a + b * b);
+        float h = 0.0f;
+        if (!(Math.abs(a) < EPSILON && Math.abs(b) < EPSILON)) {
+            h = (float) Math.atan2(b, a);
+            h = h * 180.0f / PI;
+            h = mod(mod(h, 360.0f) + 360.0f, 360.0f);
+        }
+        lab[offset + 1] = c;
+        lab[offset + 2] = h;
+    }
+
+    public static void lchToLab(float[] lch, int offset) {
+        float c = Math.max(lch[offset + 1], 0.0f);
+        float h = lch[offset + 2] * PI / 180.0f;
+        lch[offset + 1] = c * (float) Math.cos(h);
+        lch[offset + 2] = c * (float) Math.sin(h);
+    }
+
+    public static void xyzToxyY(float[] xyz, int offset) {
+        float x = xyz[offset];
+        float y = xyz[offset + 1];
+        float z = xyz[offset + 2];
+        float divisor = x + y + z;
+        if (divisor == 0.0f) divisor = 1e-6f;
+        xyz[offset] = x / divisor;
+        xyz[offset + 1] = y / divisor;
+        xyz[offset + 2] = y;
+    }
+
+    public static void xyYToXYZ(float[] xyY, int offset) {
+        float x = xyY[offset];
+        float y = xyY[offset + 1];
+        float luminance = xyY[offset + 2];
+        float multiplo = luminance / Math.max(y, 1e-6f);
+        float z = 1.0f - x - y;
+        xyY[offset] = x * multiplo;
+        xyY[offset + 1] = luminance;
+        xyY[offset + 2] = z * multiplo;
+    }
+
+    private static float labf1(float x) {
+        return x > LAB_DELTA * LAB_DELTA * LAB_DELTA ?
+                Math.signum(x) * (float) Math.pow(Math.abs(x), 1.0 / 3.0) :
+                LAB_DELTAC + x / (3.0f * LAB_DELTA * LAB_DELTA);
+    }
+
+    private static float labf2(float x) {
+        return x > LAB_DELTA ?
+                x * x * x :
+                (x - LAB_DELTAC) * (3.0f * LAB_DELTA * LAB_DELTA);
+    }
+
+    /**
+     * GLSL的mod，结果和y同号
+     */
+    static float mod(float x, float y) {
+        return x - y * (float) Math.floor(x / y);
+    }
+
+    /**
+     * GLSL的pow，负数底和Java一样返回NaN
+     */
+    static float pow(float x, float y) {
+        return (float) Math.pow(x, y);
+    }
+
+    static float clamp(float x, float min, float max) {
+        return Math.min(Math.max(x, min), max);
+    }
+}
@@ -0,0 +1,306 @@
+package com.norman.android.hdrsample.transform.cpu;
+
+import static com.norman.android.hdrsample.transform.cpu.CpuColorConversion.pow;
+
+import androidx.annotation.IntDef;
+
+import com.norman.android.hdrsample.transform.shader.gamma.GammaEOTF;
+import com.norman.android.hdrsample.transform.shader.gamma.GammaOETF;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * GammaEOTF和GammaOETF的CPU实现，公式和shader/gamma下的GLSL一一对应
+ * GLSL里用mix+step选择分段的地方这里直接用条件判断，避免另一段是NaN时把结果也变成NaN
+ * HLG显示参考需要屏幕的最大和最小亮度，其他的Gamma不需要
+ */
+public class CpuGamma {
+
+    @IntDef({EOTF_NONE, EOTF_BT1886, EOTF_S170M, EOTF_BT709, EOTF_HLG_SCENE, EOTF_HLG_DISPLAY, EOTF_PQ_SCENE, EOTF_PQ_DISPLAY})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface EOTF {
+    }
+
+    @IntDef({OETF_NONE, OETF_BT1886, OETF_S170M, OETF_BT709, OETF_HLG_SCENE, OETF_HLG_DISPLAY, OETF_PQ_SCENE, OETF_PQ_DISPLAY})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface OETF {
+    }
+
+    public static final int EOTF_NONE = 0;
+    public static final int EOTF_BT1886 = 1;
+    public static final int EOTF_S170M = 2;
+    public static final int EOTF_BT709 = 3;
+    public static final int EOTF_HLG_SCENE = 4;
+    public static final int EOTF_HLG_DISPLAY = 5;
+    public static final int EOTF_PQ_SCENE = 6;
+    public static final int EOTF_PQ_DISPLAY = 7;
+
+    public static final int OETF_NONE = 0;
+    public static final int OETF_BT1886 = 1;
+    public static final int OETF_S170M = 2;
+    public static final int OETF_BT709 = 3;
+    public static final int OETF_HLG_SCENE = 4;
+    public static final int OETF_HLG_DISPLAY = 5;
+    public static final int OETF_PQ_SCENE = 6;
+    public static final int OETF_PQ_DISPLAY = 7;
+
+    private static final float BT709_ALPHA = 1.09929682680944f;
+    private static final float BT709_BETA = 0.018053968510807f;
+
+    private static final float HLG_A = 0.17883277f;
+    private static final float HLG_B = 0.28466892f;
+    private static final float HLG_C = 0.55991073f;
+    private static final float HLG_MAX_NITS = 1000.0f;
+    private static final float HLG_MIN_NITS = 500.0f;
+
+    private static final float BT2020_LUMA_R = 0.262700f;
+    private static final float BT2020_LUMA_G = 0.677998f;
+    private static final float BT2020_LUMA_B = 0.059302f;
+
+    private static final float PQ_M1 = 0.1593017578125f;
+    private static final float PQ_M2 = 78.84375f;
+    private static final float PQ_C1 = 0.8359375f;
+    private static final float PQ_C2 = 18.8515625f;
+    private static final float PQ_C3 = 18.6875f;
+    private static final float PQ_OOTF_SCALE = 59.49080238715383f;
+
+    /**
+     * GammaEOTF对应的类型
+     * @param gammaEOTF
+     * @return
+     */
+    @EOTF
+    public static int getEOTF(GammaEOTF gammaEOTF) {
+        if (gammaEOTF == GammaEOTF.NONE) {
+            return EOTF_NONE;
+        } else if (gammaEOTF == GammaEOTF.BT1886) {
+            return EOTF_BT1886;
+        } else if (gammaEOTF == GammaEOTF.S170M) {
+            return EOTF_S170M;
+        } else if (gammaEOTF == GammaEOTF.BT709) {
+            return EOTF_BT709;
+        } else if (gammaEOTF == GammaEOTF.HLGScene) {
+            return EOTF_HLG_SCENE;
+        } else if (gammaEOTF == GammaEOTF.HLGDisplay) {
+            return EOTF_HLG_DISPLAY;
+        } else if (gammaEOTF == GammaEOTF.PQScene) {
+            return EOTF_PQ_SCENE;
+        } else if (gammaEOTF == GammaEOTF.PQDisPlay) {
+            return EOTF_PQ_DISPLAY;
+        }
+        throw new IllegalArgumentException("unknown gamma eotf " + gammaEOTF);
+    }
+
+    /**
+     * GammaOETF对应的类型
+     * @param gammaOETF
+     * @return
+     */
+    @OETF
+    public static int getOETF(GammaOETF gammaOETF) {
+        if (gammaOETF == GammaOETF.NONE) {
+            return OETF_NONE;
+        } else if (gammaOETF == GammaOETF.BT1886) {
+            return OETF_BT1886;
+        } else if (gammaOETF == GammaOETF.S170M) {
+            return OETF_S170M;
+        } else if (gammaOETF == GammaOETF.BT709) {
+            return OETF_BT709;
+        } else if (gammaOETF == GammaOETF.HLGScene) {
+            return OETF_HLG_SCENE;
+        } else if (gammaOETF == GammaOETF.HLGDisplay) {
+            return OETF_HLG_DISPLAY;
+        } else if (gammaOETF == GammaOETF.PQScene) {
+            return OETF_PQ_SCENE;
+        } else if (gammaOETF == GammaOETF.PQDisplay) {
+            return OETF_PQ_DISPLAY;
+        }
+        throw new IllegalArgumentException("unknown gamma oetf " + gammaOETF);
+    }
+
+    /**
+     * 原地把rgb转成线性
+     * @param eotf
+     * @param rgb
+     * @param offset
+     * @param maxDisplayLuminance 屏幕最大亮度，HLG显示参考使用
+     * @param minDisplayLuminance 屏幕最小亮度，HLG显示参考使用
+     */
+    public static void eotf(@EOTF int eotf, float[] rgb, int offset,
+                            float maxDisplayLuminance, float minDisplayLuminance) {
+        switch (eotf) {
+            case EOTF_NONE:
+                return;
+            case EOTF_HLG_DISPLAY:
+                hlgDisplayEOTF(rgb, offset, maxDisplayLuminance, minDisplayLuminance);
+                return;
+            default:
+                rgb[offset] = eotf(eotf, rgb[offset]);
+                rgb[offset + 1] = eotf(eotf, rgb[offset + 1]);
+                rgb[offset + 2] = eotf(eotf, rgb[offset + 2]);
+        }
+    }
+
+    /**
+     * 原地对线性的rgb做Gamma压缩
+     * @param oetf
+     * @param rgb
+     * @param offset
+     * @param maxDisplayLuminance 屏幕最大亮度，HLG显示参考使用
+     * @param minDisplayLuminance 屏幕最小亮度，HLG显示参考使用
+     */
+    public static void oetf(@OETF int oetf, float[] rgb, int offset,
+                            float maxDisplayLuminance, float minDisplayLuminance) {
+        switch (oetf) {
+            case OETF_NONE:
+                return;
+            case OETF_HLG_DISPLAY:
+                hlgDisplayOETF(rgb, offset, maxDisplayLuminance, minDisplayLuminance);
+                return;
+            default:
+                rgb[offset] = oetf(oetf, rgb[offset]);
+                rgb[offset + 1] = oetf(oetf, rgb[offset + 1]);
+                rgb[offset + 2] = oetf(oetf, rgb[offset + 2]);
+        }
+    }
+
+    /**
+     * 按通道独立计算的EOTF，HLG显示参考需要三个通道一起算，不能用这个方法
+     * @param eotf
+     * @param x
+     * @return
+     */
+    public static float eotf(@EOTF int eotf, float x) {
+        switch (eotf) {
+            case EOTF_NONE:
+                return x;
+            case EOTF_BT1886:
+                return pow(x, 2.4f);
+            case EOTF_S170M:
+                return x < 0.0812f ? x / 4.5f : pow((x + 0.099f) / 1.099f, 1.0f / 0.45f);
+            case EOTF_BT709:
+                return x < BT709_BETA * 4.5f ? x / 4.5f : pow((x + (BT709_ALPHA - 1.0f)) / BT709_ALPHA, 1.0f / 0.45f);
+            case EOTF_HLG_SCENE:
+                return hlgInverseOETF(x);
+            case EOTF_PQ_SCENE:
+                return pqInverseOOTF(pqEOTF(x <= 0.0f ? 0.0f : x));
+            case EOTF_PQ_DISPLAY:
+                return pqEOTF(CpuColorConversion.clamp(x, 0.0f, 1.0f));
+            default:
+                throw new IllegalArgumentException("eotf " + eotf + " can not compute by channel");
+        }
+    }
+
+    /**
+     * 按通道独立计算的OETF，HLG显示参考需要三个通道一起算，不能用这个方法
+     * @param oetf
+     * @param x
+     * @return
+     */
+    public static float oetf(@OETF int oetf, float x) {
+        switch (oetf) {
+            case OETF_NONE:
+                return x;
+            case OETF_BT1886:
+                return pow(x, 1.0f / 2.4f);
+            case OETF_S170M:
+                return x < 0.018f ? x * 4.5f : 1.099f * pow(x, 0.45f) - 0.099f;
+            case OETF_BT709:
+                return x < BT709_BETA ? x * 4.5f : BT709_ALPHA * pow(x, 0.45f) - (BT709_ALPHA - 1.0f);
+            case OETF_HLG_SCENE:
+                return hlgOETF(x);
+            case OETF_PQ_SCENE:
+                float y = pqOOTF(x);
+                return y <= 0.0f ? 0.0f : pqInverseEOTF(y);
+            case OETF_PQ_DISPLAY:
+                return pqInverseEOTF(x);
+            default:
+                throw new IllegalArgumentException("oetf " + oetf + " can not compute by channel");
+        }
+    }
+
+    /**
+     * PQ的EOTF，输入没有做范围限制，调用方保证在0～1
+     * @param x
+     * @return
+     */
+    public static float pqEOTF(float x) {
+        float p = pow(x, 1.0f / PQ_M2);
+        float num = Math.max(p - PQ_C1, 0.0f);
+        float den = PQ_C2 - PQ_C3 * p;
+        return pow(num / den, 1.0f / PQ_M1);
+    }
+
+    /**
+     * PQ EOTF的逆函数
+     * @param x
+     * @return
+     */
+    public static float pqInverseEOTF(float x) {
+        float ym = pow(x, PQ_M1);
+        return pow((PQ_C1 + PQ_C2 * ym) / (1.0f + PQ_C3 * ym), PQ_M2);
+    }
+
+    private static float pqInverseOOTF(float x) {
+        float bt1886 = x * 100.0f < 0.0f ? 0.0f : pow(x * 100.0f, 1.0f / 2.4f);
+        float bt709;
+        if (bt1886 < 4.5f * BT709_BETA) {
+            bt709 = bt1886 / 4.5f;
+        } else {
+            bt709 = pow((bt1886 + (BT709_ALPHA - 1.0f)) / BT709_ALPHA, 1.0f / 0.45f);
+        }
+        return bt709 / PQ_OOTF_SCALE;
+    }
+
+    private static float pqOOTF(float x) {
+        float y = x < 0.0003024f ? 267.84f * x : 1.099f * pow(59.5208f * x, 0.45f) - 0.099f;
+        return pow(y, 2.4f) / 100.0f;
+    }
+
+    private static float hlgInverseOETF(float x) {
+        return x < 0.5f ? x * x / 3.0f : ((float) Math.exp((x - HLG_C) / HLG_A) + HLG_B) / 12.0f;
+    }
+
+    private static float hlgOETF(float x) {
+        return x < 1.0f / 12.0f ? (float) Math.sqrt(3.0f * x) : HLG_A * (float) Math.log(12.0f * x - HLG_B) + HLG_C;
+    }
+
+    /**
+     * HLG的系统伽马，1000亮度时是1.2
+     * @param maxDisplayLuminance
+     * @return
+     */
+    public static float hlgGamma(float maxDisplayLuminance) {
+        float lw = Math.max(maxDisplayLuminance, HLG_MIN_NITS);
+        return 1.2f + 0.42f * (float) Math.log10(lw / HLG_MAX_NITS);
+    }
+
+    private static float hlgBlackLiftBeta(float maxDisplayLuminance, float minDisplayLuminance, float gamma) {
+        return (float) Math.sqrt(3.0f * pow(minDisplayLuminance / maxDisplayLuminance, 1.0f / gamma));
+    }
+
+    private static void hlgDisplayEOTF(float[] rgb, int offset, float maxDisplayLuminance, float minDisplayLuminance) {
+        float gamma = hlgGamma(maxDisplayLuminance);
+        float beta = hlgBlackLiftBeta(maxDisplayLuminance, minDisplayLuminance, gamma);
+        float r = hlgInverseOETF(Math.max(0.0f, (1.0f - beta) * rgb[offset] + beta));
+        float g = hlgInverseOETF(Math.max(0.0f, (1.0f - beta) * rgb[offset + 1] + beta));
+        float b = hlgInverseOETF(Math.max(0.0f, (1.0f - beta) * rgb[offset + 2] + beta));
+        float scale = pow(BT2020_LUMA_R * r + BT2020_LUMA_G * g + BT2020_LUMA_B * b, gamma - 1.0f);
+        rgb[offset] = r * scale;
+        rgb[offset + 1] = g * scale;
+        rgb[offset + 2] = b * scale;
+    }
+
+    private static void hlgDisplayOETF(float[] rgb, int offset, float maxDisplayLuminance, float minDisplayLuminance) {
+        float gamma = hlgGamma(maxDisplayLuminance);
+        float beta = hlgBlackLiftBeta(maxDisplayLuminance, minDisplayLuminance, gamma);
+        float r = rgb[offset];
+        float g = rgb[offset + 1];
+        float b = rgb[offset + 2];
+        float scale = pow(BT2020_LUMA_R * r + BT2020_LUMA_G * g + BT2020_LUMA_B * b, (1.0f - gamma) / gamma);
+        rgb[offset] = Math.max(0.0f, (hlgOETF(r * scale) - beta) / (1.0f - beta));
+        rgb[offset + 1] = Math.max(0.0f, (hlgOETF(g * scale) - beta) / (1.0f - beta));
+        rgb[offset + 2] = Math.max(0.0f, (hlgOETF(b * scale) - beta) / (1.0f - beta));
+    }
+}
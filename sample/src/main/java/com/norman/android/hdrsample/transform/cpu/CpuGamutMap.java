@@ -0,0 +1,289 @@
+package com.norman.android.hdrsample.transform.cpu;
+
+import androidx.annotation.IntDef;
+
+import com.norman.android.hdrsample.transform.shader.gamutmap.GamutMap;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * GamutMap的CPU实现，公式和shader/gamutmap下的GLSL一一对应，具体原理看对应的Kotlin类
+ * 输入是线性BT2020，输出是线性BT709，原地修改rgb[offset]开始的三个值
+ */
+public class CpuGamutMap {
+
+    @IntDef({NONE, CLIP, COMPRESS, ADAPTIVE_L0_CUSP})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Type {
+    }
+
+    public static final int NONE = 0;
+    public static final int CLIP = 1;
+    public static final int COMPRESS = 2;
+    public static final int ADAPTIVE_L0_CUSP = 3;
+
+    private static final float CYAN_LIMIT = 1.518705262732682f;
+    private static final float MAGENTA_LIMIT = 1.0750082200767368f;
+    private static final float YELLOW_LIMIT = 1.0887800398456782f;
+
+    private static final float CYAN_THRESHOLD = 1.0505085424784364f;
+    private static final float MAGENTA_THRESHOLD = 0.9405097727736265f;
+    private static final float YELLOW_THRESHOLD = 0.9771607745933959f;
+
+    private static final float ADAPTIVE_ALPHA = 0.05f;
+
+    /**
+     * GamutMap对应的类型
+     * @param gamutMap
+     * @return
+     */
+    @Type
+    public static int getType(GamutMap gamutMap) {
+        if (gamutMap == GamutMap.NONE) {
+            return NONE;
+        } else if (gamutMap == GamutMap.CLIP) {
+            return CLIP;
+        } else if (gamutMap == GamutMap.COMPRESS) {
+            return COMPRESS;
+        } else if (gamutMap == GamutMap.ADAPTIVE_L0_CUSP) {
+            return ADAPTIVE_L0_CUSP;
+        }
+        throw new IllegalArgumentException("unknown gamut map " + gamutMap);
+    }
+
+    /**
+     * 原地做色域映射
+     * @param type
+     * @param rgb
+     * @param offset
+     */
+    public static void gamutMap(@Type int type, float[] rgb, int offset) {
+        switch (type) {
+            case NONE:
+                return;
+            case CLIP:
+                CpuColorConversion.bt2020ToBt709(rgb, offset);
+                rgb[offset] = CpuColorConversion.clamp(rgb[offset], 0.0f, 1.0f);
+                rgb[offset + 1] = CpuColorConversion.clamp(rgb[offset + 1], 0.0f, 1.0f);
+                rgb[offset + 2] = CpuColorConversion.clamp(rgb[offset + 2], 0.0f, 1.0f);
+                return;
+            case COMPRESS:
+                CpuColorConversion.bt2020ToBt709(rgb, offset);
+                gamutCompress(rgb, offset);
+                return;
+            case ADAPTIVE_L0_CUSP:
+                CpuColorConversion.bt2020ToBt709(rgb, offset);
+                gamutClipAdaptiveL0Cusp(rgb, offset);
+                return;
+            default:
+                throw new IllegalArgumentException("unknown gamut map type " + type);
+        }
+    }
+
+    private static void gamutCompress(float[] rgb, int offset) {
+        float ac = Math.max(Math.max(rgb[offset], rgb[offset + 1]), rgb[offset + 2]);
+        if (ac == 0.0f) {
+            rgb[offset] = 0.0f;
+            rgb[offset + 1] = 0.0f;
+            rgb[offset + 2] = 0.0f;
+            return;
+        }
+        float absAc = Math.abs(ac);
+        rgb[offset] = ac - parabolic((ac - rgb[offset]) / absAc, CYAN_LIMIT, CYAN_THRESHOLD) * absAc;
+        rgb[offset + 1] = ac - parabolic((ac - rgb[offset + 1]) / absAc, MAGENTA_LIMIT, MAGENTA_THRESHOLD) * absAc;
+        rgb[offset + 2] = ac - parabolic((ac - rgb[offset + 2]) / absAc, YELLOW_LIMIT, YELLOW_THRESHOLD) * absAc;
+    }
+
+    private static float parabolic(float dist, float lim, float thr) {
+        if (dist > thr) {
+            float scale = (1.0f - thr) / (float) Math.sqrt(lim - 1.0f);
+            float scale2 = scale * scale / 4.0f;
+            dist = scale * ((float) Math.sqrt(dist - thr + scale2) - (float) Math.sqrt(scale2)) + thr;
+        }
+        return dist;
+    }
+
+    private static float cbrt(float x) {
+        return Math.signum(x) * (float) Math.pow(Math.abs(x), 1.0 / 3.0);
+    }
+
+    private static void linearSrgbToOklab(float[] c, int offset) {
+        float l = 0.4122214708f * c[offset] + 0.5363325363f * c[offset + 1] + 0.0514459929f * c[offset + 2];
+        float m = 0.2119034982f * c[offset] + 0.6806995451f * c[offset + 1] + 0.1073969566f * c[offset + 2];
+        float s = 0.0883024619f * c[offset] + 0.2817188376f * c[offset + 1] + 0.6299787005f * c[offset + 2];
+        float l_ = cbrt(l);
+        float m_ = cbrt(m);
+        float s_ = cbrt(s);
+        c[offset] = 0.2104542553f * l_ + 0.7936177850f * m_ - 0.0040720468f * s_;
+        c[offset + 1] = 1.9779984951f * l_ - 2.4285922050f * m_ + 0.4505937099f * s_;
+        c[offset + 2] = 0.0259040371f * l_ + 0.7827717662f * m_ - 0.8086757660f * s_;
+    }
+
+    private static void oklabToLinearSrgb(float[] c, int offset) {
+        float l_ = c[offset] + 0.3963377774f * c[offset + 1] + 0.2158037573f * c[offset + 2];
+        float m_ = c[offset] - 0.1055613458f * c[offset + 1] - 0.0638541728f * c[offset + 2];
+        float s_ = c[offset] - 0.0894841775f * c[offset + 1] - 1.2914855480f * c[offset + 2];
+        float l = l_ * l_ * l_;
+        float m = m_ * m_ * m_;
+        float s = s_ * s_ * s_;
+        c[offset] = +4.0767416621f * l - 3.3077115913f * m + 0.2309699292f * s;
+        c[offset + 1] = -1.2684380046f * l + 2.6097574011f * m - 0.3413193965f * s;
+        c[offset + 2] = -0.0041960863f * l - 0.7034186147f * m + 1.7076147010f * s;
+    }
+
+    /**
+     * 给定色调下sRGB能表示的最大饱和度S=C/L，a和b需要归一化
+     */
+    private static float computeMaxSaturation(float a, float b) {
+        float k0, k1, k2, k3, k4, wl, wm, ws;
+        if (-1.88170328f * a - 0.80936493f * b > 1.0f) {
+            k0 = +1.19086277f; k1 = +1.76576728f; k2 = +0.59662641f; k3 = +0.75515197f; k4 = +0.56771245f;
+            wl = +4.0767416621f; wm = -3.3077115913f; ws = +0.2309699292f;
+        } else if (1.81444104f * a - 1.19445276f * b > 1.0f) {
+            k0 = +0.73956515f; k1 = -0.45954404f; k2 = +0.08285427f; k3 = +0.12541070f; k4 = +0.14503204f;
+            wl = -1.2684380046f; wm = +2.6097574011f; ws = -0.3413193965f;
+        } else {
+            k0 = +1.35733652f; k1 = -0.00915799f; k2 = -1.15130210f; k3 = -0.50559606f; k4 = +0.00692167f;
+            wl = -0.0041960863f; wm = -0.7034186147f; ws = +1.7076147010f;
+        }
+        float saturation = k0 + k1 * a + k2 * b + k3 * a * a + k4 * a * b;
+
+        float kl = +0.3963377774f * a + 0.2158037573f * b;
+        float km = -0.1055613458f * a - 0.0638541728f * b;
+        float ks = -0.0894841775f * a - 1.2914855480f * b;
+
+        float l_ = 1.0f + saturation * kl;
+        float m_ = 1.0f + saturation * km;
+        float s_ = 1.0f + saturation * ks;
+        float l = l_ * l_ * l_;
+        float m = m_ * m_ * m_;
+        float s = s_ * s_ * s_;
+        float ldS = 3.0f * kl * l_ * l_;
+        float mdS = 3.0f * km * m_ * m_;
+        float sdS = 3.0f * ks * s_ * s_;
+        float ldS2 = 6.0f * kl * kl * l_;
+        float mdS2 = 6.0f * km * km * m_;
+        float sdS2 = 6.0f * ks * ks * s_;
+        float f = wl * l + wm * m + ws * s;
+        float f1 = wl * ldS + wm * mdS + ws * sdS;
+        float f2 = wl * ldS2 + wm * mdS2 + ws * sdS2;
+        return saturation - f * f1 / (f1 * f1 - 0.5f * f * f2);
+    }
+
+    /**
+     * 色域尖点的L，尖点的C等于L乘以最大饱和度
+     * GLSL的find_cusp返回vec2，这里拆开避免创建对象
+     */
+    private static float findCuspL(float a, float b, float cuspSaturation) {
+        float sa = cuspSaturation * a;
+        float sb = cuspSaturation * b;
+        float l_ = 1.0f + 0.3963377774f * sa + 0.2158037573f * sb;
+        float m_ = 1.0f - 0.1055613458f * sa - 0.0638541728f * sb;
+        float s_ = 1.0f - 0.0894841775f * sa - 1.2914855480f * sb;
+        float l = l_ * l_ * l_;
+        float m = m_ * m_ * m_;
+        float s = s_ * s_ * s_;
+        float r = +4.0767416621f * l - 3.3077115913f * m + 0.2309699292f * s;
+        float g = -1.2684380046f * l + 2.6097574011f * m - 0.3413193965f * s;
+        float bl = -0.0041960863f * l - 0.7034186147f * m + 1.7076147010f * s;
+        return cbrt(1.0f / Math.max(Math.max(r, g), bl));
+    }
+
+    /**
+     * 求L = L0 * (1 - t) + t * L1，C = t * C1这条线和色域边界的交点
+     * GLSL里会再算一次尖点，结果一样，这里直接用外面算好的
+     */
+    private static float findGamutIntersection(float a, float b, float l1, float c1, float l0,
+                                               float cuspL, float cuspC) {
+        float t;
+        if (((l1 - l0) * cuspC - (cuspL - l0) * c1) <= 0.0f) {
+            t = cuspC * l0 / (c1 * cuspL + cuspC * (l0 - l1));
+        } else {
+            t = cuspC * (l0 - 1.0f) / (c1 * (cuspL - 1.0f) + cuspC * (l0 - l1));
+
+            float dL = l1 - l0;
+            float dC = c1;
+            float kl = +0.3963377774f * a + 0.2158037573f * b;
+            float km = -0.1055613458f * a - 0.0638541728f * b;
+            float ks = -0.0894841775f * a - 1.2914855480f * b;
+            float ldt_ = dL + dC * kl;
+            float mdt_ = dL + dC * km;
+            float sdt_ = dL + dC * ks;
+
+            float lightness = l0 * (1.0f - t) + t * l1;
+            float chroma = t * c1;
+            float l_ = lightness + chroma * kl;
+            float m_ = lightness + chroma * km;
+            float s_ = lightness + chroma * ks;
+            float l = l_ * l_ * l_;
+            float m = m_ * m_ * m_;
+            float s = s_ * s_ * s_;
+            float ldt = 3.0f * ldt_ * l_ * l_;
+            float mdt = 3.0f * mdt_ * m_ * m_;
+            float sdt = 3.0f * sdt_ * s_ * s_;
+            float ldt2 = 6.0f * ldt_ * ldt_ * l_;
+            float mdt2 = 6.0f * mdt_ * mdt_ * m_;
+            float sdt2 = 6.0f * sdt_ * sdt_ * s_;
+
+            float r = 4.0767416621f * l - 3.3077115913f * m + 0.2309699292f * s - 1.0f;
+            float r1 = 4.0767416621f * ldt - 3.3077115913f * mdt + 0.2309699292f * sdt;
+            float r2 = 4.0767416621f * ldt2 - 3.3077115913f * mdt2 + 0.2309699292f * sdt2;
+            float ur = r1 / (r1 * r1 - 0.5f * r * r2);
+            float tr = ur >= 0.0f ? -r * ur : Float.MAX_VALUE;
+
+            float g = -1.2684380046f * l + 2.6097574011f * m - 0.3413193965f * s - 1.0f;
+            float g1 = -1.2684380046f * ldt + 2.6097574011f * mdt - 0.3413193965f * sdt;
+            float g2 = -1.2684380046f * ldt2 + 2.6097574011f * mdt2 - 0.3413193965f * sdt2;
+            float ug = g1 / (g1 * g1 - 0.5f * g * g2);
+            float tg = ug >= 0.0f ? -g * ug : Float.MAX_VALUE;
+
+            float bl = -0.0041960863f * l - 0.7034186147f * m + 1.7076147010f * s - 1.0f;
+            float bl1 = -0.0041960863f * ldt - 0.7034186147f * mdt + 1.7076147010f * sdt;
+            float bl2 = -0.0041960863f * ldt2 - 0.7034186147f * mdt2 + 1.7076147010f * sdt2;
+            float ub = bl1 / (bl1 * bl1 - 0.5f * bl * bl2);
+            float tb = ub >= 0.0f ? -bl * ub : Float.MAX_VALUE;
+
+            t += Math.min(tr, Math.min(tg, tb));
+        }
+        return t;
+    }
+
+    private static void gamutClipAdaptiveL0Cusp(float[] rgb, int offset) {
+        float r = rgb[offset];
+        float g = rgb[offset + 1];
+        float b = rgb[offset + 2];
+        if (r < 1.0f && g < 1.0f && b < 1.0f && r > 0.0f && g > 0.0f && b > 0.0f) {
+            return;
+        }
+        linearSrgbToOklab(rgb, offset);
+        float lightness = rgb[offset];
+        float chroma = (float) Math.sqrt(rgb[offset + 1] * rgb[offset + 1] + rgb[offset + 2] * rgb[offset + 2]);
+        if (chroma < 0.00001f) {
+            // 灰色没有色调，a和b都是0，computeMaxSaturation会出现0除以0，直接截断
+            rgb[offset] = CpuColorConversion.clamp(r, 0.0f, 1.0f);
+            rgb[offset + 1] = CpuColorConversion.clamp(g, 0.0f, 1.0f);
+            rgb[offset + 2] = CpuColorConversion.clamp(b, 0.0f, 1.0f);
+            return;
+        }
+        float a = rgb[offset + 1] / chroma;
+        float bb = rgb[offset + 2] / chroma;
+
+        float cuspSaturation = computeMaxSaturation(a, bb);
+        float cuspL = findCuspL(a, bb, cuspSaturation);
+        float cuspC = cuspL * cuspSaturation;
+
+        float ld = lightness - cuspL;
+        float k = 2.0f * (ld > 0.0f ? 1.0f - cuspL : cuspL);
+        float e1 = 0.5f * k + Math.abs(ld) + ADAPTIVE_ALPHA * chroma / k;
+        float l0 = cuspL + 0.5f * (Math.signum(ld) * (e1 - (float) Math.sqrt(e1 * e1 - 2.0f * k * Math.abs(ld))));
+
+        float t = findGamutIntersection(a, bb, lightness, chroma, l0, cuspL, cuspC);
+        float clippedL = l0 * (1.0f - t) + t * lightness;
+        float clippedC = t * chroma;
+        rgb[offset] = clippedL;
+        rgb[offset + 1] = clippedC * a;
+        rgb[offset + 2] = clippedC * bb;
+        oklabToLinearSrgb(rgb, offset);
+    }
+}
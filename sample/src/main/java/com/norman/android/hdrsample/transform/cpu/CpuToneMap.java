@@ -0,0 +1,416 @@
+package com.norman.android.hdrsample.transform.cpu;
+
+import static com.norman.android.hdrsample.transform.cpu.CpuColorConversion.HDR_REFERENCE_WHITE;
+import static com.norman.android.hdrsample.transform.cpu.CpuColorConversion.HLG_MAX_LUMINANCE;
+import static com.norman.android.hdrsample.transform.cpu.CpuColorConversion.PQ_MAX_LUMINANCE;
+import static com.norman.android.hdrsample.transform.cpu.CpuColorConversion.pow;
+
+import androidx.annotation.IntDef;
+
+import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.transform.shader.tonemap.ToneMap;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * ToneMap的CPU实现，公式和shader/tonemap下的GLSL一一对应，具体原理看对应的Kotlin类
+ * 输入输出都是线性BT2020，原地修改rgb[offset]开始的三个值
+ */
+public class CpuToneMap {
+
+    @IntDef({NONE, ANDROID8, ANDROID13, BT2446A, BT2446A1, BT2446C, HABLE, HDR10_PLUS})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Type {
+    }
+
+    public static final int NONE = 0;
+    public static final int ANDROID8 = 1;
+    public static final int ANDROID13 = 2;
+    public static final int BT2446A = 3;
+    public static final int BT2446A1 = 4;
+    public static final int BT2446C = 5;
+    public static final int HABLE = 6;
+    /**
+     * CPU实现没有逐帧的动态元数据，只用静态峰值亮度和默认曲线
+     */
+    public static final int HDR10_PLUS = 7;
+
+    private static final float BT2446A_A = 0.2627002120112671f;
+    private static final float BT2446A_B = 0.6779980715188708f;
+    private static final float BT2446A_C = 0.05930171646986196f;
+    private static final float BT2446A_D = 2.0f * (1.0f - BT2446A_C);
+    private static final float BT2446A_E = 2.0f * (1.0f - BT2446A_A);
+
+    private static final float BT2446A1_LUMA_R = 0.262700f;
+    private static final float BT2446A1_LUMA_G = 0.677998f;
+    private static final float BT2446A1_LUMA_B = 0.059302f;
+    private static final float BT2446A1_GCR = BT2446A1_LUMA_R / BT2446A1_LUMA_G;
+    private static final float BT2446A1_GCB = BT2446A1_LUMA_B / BT2446A1_LUMA_G;
+    private static final float BT2446A1_LB = 0.0f;
+    private static final float BT2446A1_LW = 10000.0f;
+    private static final float BT2446A1_LMIN = 0.0f;
+    private static final float BT2446A1_LMAX = 1000.0f;
+
+    private static final float BT2446C_IP = 58.535f;
+    private static final float BT2446C_K1 = 0.83802f;
+    private static final float BT2446C_K3 = 0.74204f;
+    private static final float BT2446C_OVER_WHITE = 1019.0f / 940.0f;
+
+    private static final float HABLE_A = 0.15f;
+    private static final float HABLE_B = 0.50f;
+    private static final float HABLE_C = 0.10f;
+    private static final float HABLE_D = 0.20f;
+    private static final float HABLE_E = 0.02f;
+    private static final float HABLE_F = 0.30f;
+
+    /**
+     * ToneMap对应的类型
+     * @param toneMap
+     * @return
+     */
+    @Type
+    public static int getType(ToneMap toneMap) {
+        if (toneMap == ToneMap.NONE) {
+            return NONE;
+        } else if (toneMap == ToneMap.ANDROID8) {
+            return ANDROID8;
+        } else if (toneMap == ToneMap.ANDROID13) {
+            return ANDROID13;
+        } else if (toneMap == ToneMap.BT2446A) {
+            return BT2446A;
+        } else if (toneMap == ToneMap.BT2446A1) {
+            return BT2446A1;
+        } else if (toneMap == ToneMap.BT2446C) {
+            return BT2446C;
+        } else if (toneMap == ToneMap.HABLE) {
+            return HABLE;
+        } else if (toneMap == ToneMap.HDR10_PLUS) {
+            return HDR10_PLUS;
+        }
+        throw new IllegalArgumentException("unknown tone map " + toneMap);
+    }
+
+    /**
+     * 原地做色调映射
+     * @param type
+     * @param rgb
+     * @param offset
+     * @param colorSpace          视频的颜色空间
+     * @param maxDisplayLuminance 屏幕最大亮度
+     * @param hdrPeakLuminance    HDR内容的峰值亮度
+     */
+    public static void toneMap(@Type int type, float[] rgb, int offset,
+                               @ColorSpace int colorSpace,
+                               float maxDisplayLuminance,
+                               float hdrPeakLuminance) {
+        switch (type) {
+            case NONE:
+                return;
+            case ANDROID8:
+                toneMapAndroid8(rgb, offset, colorSpace, maxDisplayLuminance, hdrPeakLuminance);
+                return;
+            case ANDROID13:
+                toneMapAndroid13(rgb, offset, colorSpace, maxDisplayLuminance, hdrPeakLuminance);
+                return;
+            case BT2446A:
+                toneMapBT2446A(rgb, offset, colorSpace, hdrPeakLuminance);
+                return;
+            case BT2446A1:
+                toneMapBT2446A1(rgb, offset, colorSpace, hdrPeakLuminance);
+                return;
+            case BT2446C:
+                toneMapBT2446C(rgb, offset, colorSpace);
+                return;
+            case HABLE:
+                toneMapHable(rgb, offset, colorSpace, hdrPeakLuminance);
+                return;
+            case HDR10_PLUS:
+                toneMapHDR10Plus(rgb, offset, colorSpace, maxDisplayLuminance, hdrPeakLuminance);
+                return;
+            default:
+                throw new IllegalArgumentException("unknown tone map type " + type);
+        }
+    }
+
+    /**
+     * 对应ReScale的SCALE_TO_MASTER
+     */
+    static float getMasterScale(@ColorSpace int colorSpace) {
+        if (colorSpace == ColorSpace.VIDEO_BT2020_PQ) {
+            return PQ_MAX_LUMINANCE;
+        } else if (colorSpace == ColorSpace.VIDEO_BT2020_HLG) {
+            return HLG_MAX_LUMINANCE;
+        }
+        return 1.0f;
+    }
+
+    /**
+     * 对应ReScale的SCALE_ONE_TO_REFERENCE_WHITE
+     */
+    private static float getReferenceWhiteScale(@ColorSpace int colorSpace) {
+        if (colorSpace == ColorSpace.VIDEO_BT2020_PQ || colorSpace == ColorSpace.VIDEO_BT2020_HLG) {
+            return getMasterScale(colorSpace) / HDR_REFERENCE_WHITE;
+        }
+        return 1.0f;
+    }
+
+    private static void scale(float[] rgb, int offset, float scale) {
+        rgb[offset] *= scale;
+        rgb[offset + 1] *= scale;
+        rgb[offset + 2] *= scale;
+    }
+
+    private static void toneMapAndroid8(float[] rgb, int offset, @ColorSpace int colorSpace,
+                                        float maxOutLumi, float maxInLumi) {
+        scale(rgb, offset, getMasterScale(colorSpace));
+        CpuColorConversion.bt2020ToXYZ(rgb, offset);
+        float y = rgb[offset + 1];
+        float gain = y <= 0.0f ? 1.0f : android8TargetNits(y, maxOutLumi, maxInLumi) / y;
+        scale(rgb, offset, gain);
+        CpuColorConversion.xyzToBt2020(rgb, offset);
+        scale(rgb, offset, 1.0f / maxOutLumi);
+    }
+
+    private static float android8TargetNits(float nits, float maxOutLumi, float maxInLumi) {
+        if (maxInLumi <= maxOutLumi) {
+            return nits;
+        }
+        float x0 = 10.0f;
+        float y0 = 17.0f;
+        float x1 = maxOutLumi * 0.75f;
+        float y1 = x1;
+        float x2 = x1 + (maxInLumi - x1) / 2.0f;
+        float y2 = y1 + (maxOutLumi - y1) * 0.75f;
+        float h12 = x2 - x1;
+        float h23 = maxInLumi - x2;
+        float m1 = (y2 - y1) / h12;
+        float m3 = (maxOutLumi - y2) / h23;
+        float m2 = (m1 + m3) / 2.0f;
+        if (nits < x0) {
+            return nits * (y0 / x0);
+        } else if (nits < x1) {
+            return y0 + (nits - x0) * ((y1 - y0) / (x1 - x0));
+        } else if (nits < x2) {
+            float t = (nits - x1) / h12;
+            return (y1 * (1.0f + 2.0f * t) + h12 * m1 * t) * (1.0f - t) * (1.0f - t)
+                    + (y2 * (3.0f - 2.0f * t) + h12 * m2 * (t - 1.0f)) * t * t;
+        } else {
+            float t = (nits - x2) / h23;
+            return (y2 * (1.0f + 2.0f * t) + h23 * m2 * t) * (1.0f - t) * (1.0f - t)
+                    + (maxOutLumi * (3.0f - 2.0f * t) + h23 * m3 * (t - 1.0f)) * t * t;
+        }
+    }
+
+    private static void toneMapAndroid13(float[] rgb, int offset, @ColorSpace int colorSpace,
+                                         float maxOutLumi, float maxInLumi) {
+        scale(rgb, offset, getMasterScale(colorSpace));
+        float maxRGB = Math.max(rgb[offset], Math.max(rgb[offset + 1], rgb[offset + 2]));
+        float gain = maxRGB <= 0.0f ? 1.0f : android13TargetNits(maxRGB, colorSpace, maxOutLumi, maxInLumi) / maxRGB;
+        CpuColorConversion.bt2020ToXYZ(rgb, offset);
+        scale(rgb, offset, gain);
+        CpuColorConversion.xyzToBt2020(rgb, offset);
+        scale(rgb, offset, 1.0f / maxOutLumi);
+    }
+
+    private static float android13TargetNits(float nits, @ColorSpace int colorSpace,
+                                             float maxOutLumi, float maxInLumi) {
+        if (colorSpace == ColorSpace.VIDEO_BT2020_HLG) {
+            return nits * maxOutLumi / HLG_MAX_LUMINANCE;
+        }
+        float x1 = maxOutLumi * 0.65f;
+        float y1 = x1;
+        float x3 = maxInLumi;
+        float y3 = maxOutLumi;
+        float x2 = x1 + (x3 - x1) * 4.0f / 17.0f;
+        float y2 = maxOutLumi * 0.9f;
+        float greyNorm1 = CpuGamma.pqInverseEOTF(x1 / PQ_MAX_LUMINANCE);
+        float greyNorm2 = CpuGamma.pqInverseEOTF(x2 / PQ_MAX_LUMINANCE);
+        float greyNorm3 = CpuGamma.pqInverseEOTF(x3 / PQ_MAX_LUMINANCE);
+        float slope2 = (y2 - y1) / (greyNorm2 - greyNorm1);
+        float slope3 = (y3 - y2) / (greyNorm3 - greyNorm2);
+        if (nits < x1) {
+            return nits;
+        }
+        if (nits > maxInLumi) {
+            return maxOutLumi;
+        }
+        float greyNits = CpuGamma.pqInverseEOTF(nits / PQ_MAX_LUMINANCE);
+        if (greyNits <= greyNorm2) {
+            return (greyNits - greyNorm2) * slope2 + y2;
+        } else if (greyNits <= greyNorm3) {
+            return (greyNits - greyNorm3) * slope3 + y3;
+        }
+        return maxOutLumi;
+    }
+
+    private static void toneMapHDR10Plus(float[] rgb, int offset, @ColorSpace int colorSpace,
+                                         float maxOutLumi, float scenePeak) {
+        scale(rgb, offset, getMasterScale(colorSpace));
+        float maxRGB = Math.max(rgb[offset], Math.max(rgb[offset + 1], rgb[offset + 2]));
+        float gain = maxRGB <= 0.0f ? 1.0f : hdr10PlusTargetNits(maxRGB, colorSpace, maxOutLumi, scenePeak) / maxRGB;
+        CpuColorConversion.bt2020ToXYZ(rgb, offset);
+        scale(rgb, offset, gain);
+        CpuColorConversion.xyzToBt2020(rgb, offset);
+        scale(rgb, offset, 1.0f / maxOutLumi);
+    }
+
+    /**
+     * ToneMapHDR10Plus没有锚点时的默认曲线：拐点以下线性，拐点以上一个锚点的二次贝塞尔曲线
+     */
+    private static float hdr10PlusTargetNits(float nits, @ColorSpace int colorSpace,
+                                             float maxOutLumi, float scenePeak) {
+        if (colorSpace == ColorSpace.VIDEO_BT2020_HLG) {
+            return nits * maxOutLumi / HLG_MAX_LUMINANCE;
+        }
+        if (scenePeak <= maxOutLumi) {
+            return nits;
+        }
+        float ky = 0.65f;
+        float kx = ky * maxOutLumi / scenePeak;
+        float x = Math.min(nits / scenePeak, 1.0f);
+        if (x < kx) {
+            return ky * x / kx * maxOutLumi;
+        }
+        float anchor = Math.min(Math.max(ky * (1.0f - kx) / (2.0f * kx * (1.0f - ky)), 0.0f), 1.0f);
+        float t = (x - kx) / Math.max(1.0f - kx, 1e-6f);
+        float bezier = 2.0f * t * (1.0f - t) * anchor + t * t;
+        return (ky + (1.0f - ky) * bezier) * maxOutLumi;
+    }
+
+    private static void toneMapBT2446A(float[] rgb, int offset, @ColorSpace int colorSpace,
+                                       float hdrPeakLuminance) {
+        scale(rgb, offset, getReferenceWhiteScale(colorSpace));
+        float r = rgb[offset];
+        float g = rgb[offset + 1];
+        float b = rgb[offset + 2];
+        float w = hdrPeakLuminance / HDR_REFERENCE_WHITE;
+        float y = (BT2446A_A * r + BT2446A_B * g + BT2446A_C * b) / w;
+        float cb = (b - y * w) / BT2446A_D / w;
+        float cr = (r - y * w) / BT2446A_E / w;
+
+        float pHDR = 1.0f + 32.0f * pow(hdrPeakLuminance / PQ_MAX_LUMINANCE, 1.0f / 2.4f);
+        float pSDR = 1.0f + 32.0f * pow(HDR_REFERENCE_WHITE / PQ_MAX_LUMINANCE, 1.0f / 2.4f);
+        float yp = (float) (Math.log(1.0f + (pHDR - 1.0f) * pow(y, 1.0f / 2.4f)) / Math.log(pHDR));
+        float yc;
+        if (yp <= 0.7399f) yc = yp * 1.0770f;
+        else if (yp < 0.9909f) yc = yp * (-1.1510f * yp + 2.7811f) - 0.6302f;
+        else yc = yp * 0.5000f + 0.5000f;
+        float ySdr = pow((pow(pSDR, yc) - 1.0f) / (pSDR - 1.0f), 2.4f);
+
+        float yr = ySdr / (1.1f * y);
+        cb *= yr;
+        cr *= yr;
+        y = ySdr - Math.max(0.1f * cr, 0.0f);
+
+        rgb[offset] = y + BT2446A_E * cr;
+        rgb[offset + 1] = y - (BT2446A_A * BT2446A_E / BT2446A_B) * cr - (BT2446A_C * BT2446A_D / BT2446A_B) * cb;
+        rgb[offset + 2] = y + BT2446A_D * cb;
+    }
+
+    private static void toneMapBT2446A1(float[] rgb, int offset, @ColorSpace int colorSpace,
+                                        float hdrPeakLuminance) {
+        if (colorSpace == ColorSpace.VIDEO_BT2020_PQ) {
+            scale(rgb, offset, 10000.0f);
+            float m1 = Math.max(rgb[offset], Math.max(rgb[offset + 1], rgb[offset + 2]));
+            float m2 = bt2446A1PQEOTF(bt2446A1PQEETF(bt2446A1PQOETF(m1)));
+            scale(rgb, offset, m2 / m1 / 1000.0f);
+        }
+        float pHdr = 1.0f + 32.0f * pow(hdrPeakLuminance / PQ_MAX_LUMINANCE, 1.0f / 2.4f);
+        float pSdr = 1.0f + 32.0f * pow(HDR_REFERENCE_WHITE / PQ_MAX_LUMINANCE, 1.0f / 2.4f);
+        float xpR = pow(rgb[offset], 1.0f / 2.4f);
+        float xpG = pow(rgb[offset + 1], 1.0f / 2.4f);
+        float xpB = pow(rgb[offset + 2], 1.0f / 2.4f);
+        float yHdr = BT2446A1_LUMA_R * xpR + BT2446A1_LUMA_G * xpG + BT2446A1_LUMA_B * xpB;
+
+        float yp = (float) (Math.log(1.0f + (pHdr - 1.0f) * yHdr) / Math.log(pHdr));
+        float yc;
+        if (yp > 0.7399f) {
+            yc = yp > 0.9909f ? 0.5f * yp + 0.5f : (-1.1510f * yp + 2.7811f) * yp - 0.6302f;
+        } else {
+            yc = 1.077f * yp;
+        }
+        float ySdr = (pow(pSdr, yc) - 1.0f) / (pSdr - 1.0f);
+
+        float scale = ySdr / (1.1f * yHdr);
+        float cbTmo = scale * (xpB - yHdr);
+        float crTmo = scale * (xpR - yHdr);
+        float yTmo = ySdr - Math.max(0.1f * crTmo, 0.0f);
+        float cgTmo = -(BT2446A1_GCR * crTmo + BT2446A1_GCB * cbTmo);
+        rgb[offset] = pow(yTmo + crTmo, 2.4f);
+        rgb[offset + 1] = pow(yTmo + cgTmo, 2.4f);
+        rgb[offset + 2] = pow(yTmo + cbTmo, 2.4f);
+    }
+
+    private static float bt2446A1PQEOTF(float x) {
+        return CpuGamma.pqEOTF(CpuColorConversion.clamp(x, 0.0f, 1.0f)) * PQ_MAX_LUMINANCE;
+    }
+
+    private static float bt2446A1PQOETF(float x) {
+        return CpuGamma.pqInverseEOTF(x / PQ_MAX_LUMINANCE);
+    }
+
+    /**
+     * BT.2408-5 annex 5的EETF，输入输出都是PQ信号
+     */
+    private static float bt2446A1PQEETF(float x) {
+        float vMin = bt2446A1PQOETF(BT2446A1_LB);
+        float vMax = bt2446A1PQOETF(BT2446A1_LW);
+        float e1 = (x - vMin) / (vMax - vMin);
+        float lMin = bt2446A1PQOETF(BT2446A1_LMIN);
+        float lMax = bt2446A1PQOETF(BT2446A1_LMAX);
+        float minLum = (lMin - vMin) / (vMax - vMin);
+        float maxLum = (lMax - vMin) / (vMax - vMin);
+
+        float ks = 1.5f * maxLum - 0.5f;
+        float b = minLum;
+
+        float e2;
+        if (ks >= e1) {
+            e2 = e1;
+        } else {
+            float t = (e1 - ks) / (1.0f - ks);
+            float t2 = t * t;
+            float t3 = t2 * t;
+            e2 = (2.0f * t3 - 3.0f * t2 + 1.0f) * ks
+                    + (t3 - 2.0f * t2 + t) * (1.0f - ks)
+                    + (-2.0f * t3 + 3.0f * t2) * maxLum;
+        }
+        e2 = CpuColorConversion.clamp(e2, 0.0f, 1.0f);
+        float e3 = e2 + b * pow(1.0f - e2, 4.0f);
+        return vMin + (vMax - vMin) * e3;
+    }
+
+    private static void toneMapBT2446C(float[] rgb, int offset, @ColorSpace int colorSpace) {
+        scale(rgb, offset, getReferenceWhiteScale(colorSpace));
+        CpuColorConversion.bt2020ToXYZ(rgb, offset);
+        CpuColorConversion.xyzToxyY(rgb, offset);
+        rgb[offset + 2] = bt2446CCurve(rgb[offset + 2]);
+        CpuColorConversion.xyYToXYZ(rgb, offset);
+        CpuColorConversion.xyzToBt2020(rgb, offset);
+    }
+
+    private static float bt2446CCurve(float y) {
+        float ip = BT2446C_IP / BT2446C_K1;
+        float k2 = (BT2446C_K1 * ip) * (1.0f - BT2446C_K3);
+        float k4 = (BT2446C_K1 * ip) - (k2 * (float) Math.log(1.0f - BT2446C_K3));
+        float value = y < ip ?
+                y * BT2446C_K1 :
+                (float) Math.log((y / ip) - BT2446C_K3) * k2 + k4;
+        return value / BT2446C_OVER_WHITE;
+    }
+
+    private static void toneMapHable(float[] rgb, int offset, @ColorSpace int colorSpace,
+                                     float hdrPeakLuminance) {
+        scale(rgb, offset, getReferenceWhiteScale(colorSpace));
+        float sigOrig = Math.max(Math.max(rgb[offset], rgb[offset + 1]), rgb[offset + 2]);
+        float peak = hdrPeakLuminance / HDR_REFERENCE_WHITE;
+        float sig = hable(sigOrig) / hable(peak);
+        scale(rgb, offset, sig / sigOrig);
+    }
+
+    private static float hable(float x) {
+        return ((x * (HABLE_A * x + HABLE_C * HABLE_B) + HABLE_D * HABLE_E)
+                / (x * (HABLE_A * x + HABLE_B) + HABLE_D * HABLE_F)) - HABLE_E / HABLE_F;
+    }
+}
@@ -0,0 +1,170 @@
+package com.norman.android.hdrsample.transform.cpu;
+
+import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.transform.shader.HDRToSDRShader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * HDRToSDRShader的CPU参考实现，不需要GPU就能得到和shader一样的转换结果
+ * 可以用来离线转换图片、生成LUT或者对比GPU的输出是否正确
+ * 流程和HDRToSDRShader的main一致：EOTF -> 色度矫正 -> 色调映射 -> 色域映射 -> OETF
+ * 处理过程不分配内存，直接修改传入的float数组，同一个对象不要在多个线程同时修改参数
+ * 注意GLSL中pow等函数负数输入是未定义的，GPU上的结果可能和这里不一样
+ */
+public class HDRToSDRCpuEngine {
+
+    private static final float DEFAULT_MAX_DISPLAY_LUMINANCE = 100;
+
+    private static final float DEFAULT_HDR_PEAK_LUMINANCE = 1000;
+
+    @ColorSpace
+    private final int colorSpace;
+
+    @CpuGamma.EOTF
+    private final int eotf;
+
+    @CpuChromaCorrection.Type
+    private final int chromaCorrection;
+
+    @CpuToneMap.Type
+    private final int toneMap;
+
+    @CpuGamutMap.Type
+    private final int gamutMap;
+
+    @CpuGamma.OETF
+    private final int oetf;
+
+    private float maxDisplayLuminance = DEFAULT_MAX_DISPLAY_LUMINANCE;
+
+    /**
+     * HDRToSDRVideoTransform没有设置MIN_DISPLAY_LUMINANCE，shader里是0，这里默认也是0
+     */
+    private float minDisplayLuminance;
+
+    private float hdrPeakLuminance = DEFAULT_HDR_PEAK_LUMINANCE;
+
+    /**
+     * 按HDRToSDRShader的配置创建，只支持ToneMap、GamutMap等伴生对象里定义的实现
+     * @param hdrToSDRShader
+     */
+    public HDRToSDRCpuEngine(HDRToSDRShader hdrToSDRShader) {
+        this.colorSpace = hdrToSDRShader.colorSpace;
+        this.eotf = CpuGamma.getEOTF(hdrToSDRShader.getGammaEOTF());
+        this.chromaCorrection = CpuChromaCorrection.getType(hdrToSDRShader.chromaCorrection);
+        this.toneMap = CpuToneMap.getType(hdrToSDRShader.toneMap);
+        this.gamutMap = CpuGamutMap.getType(hdrToSDRShader.gamutMap);
+        this.oetf = CpuGamma.getOETF(hdrToSDRShader.gammaOETF);
+    }
+
+    /**
+     * 屏幕最大亮度，对应shader的MAX_DISPLAY_LUMINANCE
+     * @param maxDisplayLuminance
+     */
+    public void setMaxDisplayLuminance(float maxDisplayLuminance) {
+        if (maxDisplayLuminance <= 0) {
+            throw new IllegalArgumentException("max display luminance must be positive");
+        }
+        this.maxDisplayLuminance = maxDisplayLuminance;
+    }
+
+    public float getMaxDisplayLuminance() {
+        return maxDisplayLuminance;
+    }
+
+    /**
+     * 屏幕最小亮度，对应shader的MIN_DISPLAY_LUMINANCE，只有HLG显示参考使用
+     * @param minDisplayLuminance
+     */
+    public void setMinDisplayLuminance(float minDisplayLuminance) {
+        this.minDisplayLuminance = minDisplayLuminance;
+    }
+
+    public float getMinDisplayLuminance() {
+        return minDisplayLuminance;
+    }
+
+    /**
+     * HDR内容的峰值亮度，对应shader的HDR_PEAK_LUMINANCE
+     * @param hdrPeakLuminance
+     */
+    public void setHdrPeakLuminance(float hdrPeakLuminance) {
+        if (hdrPeakLuminance <= 0) {
+            throw new IllegalArgumentException("hdr peak luminance must be positive");
+        }
+        this.hdrPeakLuminance = hdrPeakLuminance;
+    }
+
+    public float getHdrPeakLuminance() {
+        return hdrPeakLuminance;
+    }
+
+    /**
+     * 转换一个像素，原地修改rgb[offset]开始的三个值
+     * @param rgb
+     * @param offset
+     */
+    public void process(float[] rgb, int offset) {
+        CpuGamma.eotf(eotf, rgb, offset, maxDisplayLuminance, minDisplayLuminance);
+        CpuChromaCorrection.chromaCorrect(chromaCorrection, rgb, offset, colorSpace, hdrPeakLuminance);
+        if (colorSpace != ColorSpace.VIDEO_BT2020_LINEAR) {
+            CpuToneMap.toneMap(toneMap, rgb, offset, colorSpace, maxDisplayLuminance, hdrPeakLuminance);
+        }
+        CpuGamutMap.gamutMap(gamutMap, rgb, offset);
+        CpuGamma.oetf(oetf, rgb, offset, maxDisplayLuminance, minDisplayLuminance);
+    }
+
+    /**
+     * 批量转换像素，每个像素的前三个值是RGB，其余的值(比如alpha)不修改
+     * @param pixels
+     * @param offset     第一个像素的位置
+     * @param pixelCount 像素个数
+     * @param pixelStride 相邻像素的间隔，RGB是3，RGBA是4
+     */
+    public void process(float[] pixels, int offset, int pixelCount, int pixelStride) {
+        if (pixelStride < 3) {
+            throw new IllegalArgumentException("pixel stride must not less than 3");
+        }
+        if (offset < 0 || pixelCount < 0 || offset + (long) pixelCount * pixelStride - (pixelStride - 3) > pixels.length) {
+            throw new IllegalArgumentException("pixels length not enough");
+        }
+        int end = offset + pixelCount * pixelStride;
+        for (int i = offset; i < end; i += pixelStride) {
+            process(pixels, i);
+        }
+    }
+
+    /**
+     * 把整个转换流程生成Cube LUT的RGB数据，结果和HDRToSDRLutBaker在GPU上烘焙的一致
+     * 返回的是rgbBuffer，用CubeLutBuffer.create("HDRToSDR", lutSize, rgbBuffer)创建LUT，
+     * 这里不直接依赖CubeLutBuffer，CPU流程就不依赖Android，可以在benchmark模块中测试
+     * @param lutSize LUT的大小
+     * @return 本地字节序，大小是lutSize*lutSize*lutSize*3个float
+     */
+    public ByteBuffer createLutRgbBuffer(int lutSize) {
+        if (lutSize < 2) {
+            throw new IllegalArgumentException("lut size must not less than 2");
+        }
+        float[] row = new float[lutSize * 3];
+        float step = 1.0f / (lutSize - 1);
+        ByteBuffer rgbBuffer = ByteBuffer.allocateDirect(lutSize * lutSize * lutSize * 3 * Float.BYTES)
+                .order(ByteOrder.nativeOrder());
+        for (int b = 0; b < lutSize; b++) {
+            for (int g = 0; g < lutSize; g++) {
+                for (int r = 0; r < lutSize; r++) {
+                    row[r * 3] = r * step;
+                    row[r * 3 + 1] = g * step;
+                    row[r * 3 + 2] = b * step;
+                }
+                process(row, 0, lutSize, 3);
+                for (float value : row) {
+                    rgbBuffer.putFloat(value);
+                }
+            }
+        }
+        rgbBuffer.clear();
+        return rgbBuffer;
+    }
+}
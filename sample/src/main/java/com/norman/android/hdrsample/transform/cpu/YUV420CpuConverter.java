@@ -0,0 +1,381 @@
+package com.norman.android.hdrsample.transform.cpu;
+
+import androidx.annotation.IntDef;
+
+import com.norman.android.hdrsample.player.color.ColorRange;
+import com.norman.android.hdrsample.player.color.YUV420Type;
+import com.norman.android.hdrsample.util.ColorMatrixUtil;
+import com.norman.android.hdrsample.util.HalfFloatUtil;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * YUV420FragmentShader的CPU参考实现，把解码出来的YUV420 Buffer转换成RGB
+ * 输入参数和GLYUV420Renderer.setBufferFormat一样，没有GPU时也能转换，也可以用来对比GPU的输出是否正确
+ * 输入Buffer的布局和MediaCodec一致
+ * Y平面每行strideWidth个字节，共sliceHeight行
+ * NV12/NV21 UV平面紧跟在Y平面后面，每行strideWidth个字节，共sliceHeight/2行
+ * YV21/YV12 U、V平面依次紧跟在Y平面后面，每行strideWidth/2个字节，共sliceHeight/2行
+ * 注意YV21/YV12和GLYUV420Renderer的输出不一样：渲染器把U、V平面当成宽和Y平面一样、高是显示高度1/4的纹理，
+ * 用和Y平面相同的纹理坐标采样，纹理的一行其实是色度的两行，采样到的色度和像素位置对不上；
+ * 这里按MediaCodec实际的平面布局采样，所以和GPU的输出对比时只有NV12/NV21是逐像素一致的
+ * 多于8位的数据是16位小端存储，有效位在高位，和shader一样右移bitMask位
+ * 输出是显示区域大小的RGB，从上到下逐行紧密排列，float每个像素12个字节，half每个像素6个字节，本地字节序
+ * 显示区域用left、top、right、bottom四个int表示，和Rect一样不包含right、bottom，不依赖Android可以在JVM上运行
+ * 图像按行分块在ForkJoinPool的公共线程池转换，分块任务在设置格式时创建，每次转换前reinitialize重复使用，转换时不分配内存
+ * 同一个对象不要在多个线程同时调用
+ */
+public class YUV420CpuConverter {
+
+    /**
+     * 输出格式
+     */
+    @IntDef({OutputFormat.FLOAT, OutputFormat.HALF_FLOAT})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface OutputFormat {
+        int FLOAT = 1;//32位float
+        int HALF_FLOAT = 2;//16位半精度float
+    }
+
+    /**
+     * 每个分块最少的行数，行数太少时线程调度的开销比转换更大
+     */
+    private static final int MIN_BAND_ROWS = 16;
+
+    private static final BandTask[] EMPTY_BAND_TASKS = new BandTask[0];
+
+    private BandTask[] bandTasks = EMPTY_BAND_TASKS;
+
+    private int strideWidth;
+
+    private int sliceHeight;
+
+    private int bitDepth;
+
+    private int byteCount;
+
+    private int bitMask;
+
+    private float maxColorValue;
+
+    private int displayLeft;
+
+    private int displayTop;
+
+    private int displayRight;
+
+    private int displayBottom;
+
+    private @YUV420Type int yuv420Type;
+
+    private @ColorRange int colorRange = ColorRange.LIMITED;
+
+    private float[] yuvToRgbMatrix;
+
+    private boolean customMatrix;
+
+    private boolean formatValid;
+
+    private int bufferSize;
+
+    private int chromaOffset;
+
+    private int chromaStride;
+
+    private int chromaPlaneSize;
+
+    private boolean parallelEnable = true;
+
+    private ByteBuffer inputBuffer;
+
+    private int inputOffset;
+
+    private ByteBuffer outputBuffer;
+
+    private int outputOffset;
+
+    private @OutputFormat int outputFormat;
+
+    /**
+     * 设置YUV Buffer的格式，和GLYUV420Renderer.setBufferFormat一样
+     *
+     * @param requestStrideWidth buffer对齐以后的宽，单位是字节
+     * @param requestSliceHeight buffer对齐以后的高
+     * @param requestBitDepth    buffer的位数
+     * @param requestDisplayLeft   图像实际显示区域的左边，因为对齐以后图像会有绿边需要裁剪
+     * @param requestDisplayTop    显示区域的上边
+     * @param requestDisplayRight  显示区域的右边，不包含
+     * @param requestDisplayBottom 显示区域的下边，不包含
+     * @param requestYuv420Type  yuv420格式
+     */
+    public void setBufferFormat(int requestStrideWidth,
+                                int requestSliceHeight,
+                                int requestBitDepth,
+                                int requestDisplayLeft,
+                                int requestDisplayTop,
+                                int requestDisplayRight,
+                                int requestDisplayBottom,
+                                @YUV420Type int requestYuv420Type) {
+        strideWidth = requestStrideWidth;
+        sliceHeight = requestSliceHeight;
+        bitDepth = requestBitDepth;
+        displayLeft = requestDisplayLeft;
+        displayTop = requestDisplayTop;
+        displayRight = requestDisplayRight;
+        displayBottom = requestDisplayBottom;
+        yuv420Type = requestYuv420Type;
+        formatValid = strideWidth > 0 && sliceHeight > 0 && bitDepth > 0 && bitDepth <= 16
+                && displayRight > displayLeft && displayBottom > displayTop
+                && yuv420Type >= YUV420Type.YV21 && yuv420Type <= YUV420Type.NV21;
+        bandTasks = EMPTY_BAND_TASKS;
+        if (!formatValid) {
+            return;
+        }
+        byteCount = (int) Math.ceil(bitDepth / 8.0);//位数除以8向上取整，譬如10其实是16位存储的
+        bitMask = byteCount * 8 - bitDepth;//多余的位数最终要移除掉
+        maxColorValue = (1 << bitDepth) - 1;
+        if (displayLeft < 0 || displayTop < 0
+                || displayRight * byteCount > strideWidth
+                || displayBottom > sliceHeight) {
+            throw new IllegalArgumentException("display (" + displayLeft + ", " + displayTop + ", "
+                    + displayRight + ", " + displayBottom + ") out of buffer " + strideWidth + "x" + sliceHeight);
+        }
+        chromaOffset = strideWidth * sliceHeight;
+        if (yuv420Type == YUV420Type.NV12 || yuv420Type == YUV420Type.NV21) {
+            chromaStride = strideWidth;//UV交错，每行的字节数和Y平面一样
+            chromaPlaneSize = chromaStride * (sliceHeight / 2);
+            bufferSize = chromaOffset + chromaPlaneSize;
+        } else {
+            chromaStride = strideWidth / 2;
+            chromaPlaneSize = chromaStride * (sliceHeight / 2);
+            bufferSize = chromaOffset + chromaPlaneSize * 2;
+        }
+        if (!customMatrix) {
+            yuvToRgbMatrix = ColorMatrixUtil.getYuvToRgbMatrix(bitDepth, colorRange);
+        }
+
+        int height = displayBottom - displayTop;
+        int bandCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 2, height / MIN_BAND_ROWS));
+        int bandRows = (height + bandCount - 1) / bandCount;
+        bandTasks = new BandTask[(height + bandRows - 1) / bandRows];
+        for (int i = 0; i < bandTasks.length; i++) {
+            int startRow = i * bandRows;
+            bandTasks[i] = new BandTask(startRow, Math.min(startRow + bandRows, height));
+        }
+    }
+
+    /**
+     * 设置颜色范围，用来查找ColorMatrixUtil中的YUV转RGB矩阵，默认是LIMITED
+     * @param colorRange
+     */
+    public void setColorRange(@ColorRange int colorRange) {
+        this.colorRange = colorRange;
+        if (formatValid && !customMatrix) {
+            yuvToRgbMatrix = ColorMatrixUtil.getYuvToRgbMatrix(bitDepth, colorRange);
+        }
+    }
+
+    /**
+     * 直接指定YUV转RGB矩阵，格式和ColorMatrixUtil一样是列主序的4x4矩阵，传null恢复成按位数和范围查找
+     * @param matrix
+     */
+    public void setYuvToRgbMatrix(float[] matrix) {
+        if (matrix != null && matrix.length != 16) {
+            throw new IllegalArgumentException("yuv to rgb matrix length must be 16");
+        }
+        customMatrix = matrix != null;
+        if (customMatrix) {
+            yuvToRgbMatrix = matrix.clone();
+        } else if (formatValid) {
+            yuvToRgbMatrix = ColorMatrixUtil.getYuvToRgbMatrix(bitDepth, colorRange);
+        }
+    }
+
+    /**
+     * 是否多线程转换，默认开启
+     * @param parallelEnable
+     */
+    public void setParallelEnable(boolean parallelEnable) {
+        this.parallelEnable = parallelEnable;
+    }
+
+    public boolean isParallelEnable() {
+        return parallelEnable;
+    }
+
+    /**
+     * 输入的YUV数据需要的字节数
+     * @return
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getOutputWidth() {
+        return formatValid ? displayRight - displayLeft : 0;
+    }
+
+    public int getOutputHeight() {
+        return formatValid ? displayBottom - displayTop : 0;
+    }
+
+    /**
+     * 输出的RGB数据需要的字节数
+     * @param outputFormat
+     * @return
+     */
+    public int getOutputBufferSize(@OutputFormat int outputFormat) {
+        return getOutputWidth() * getOutputHeight() * getBytesPerPixel(outputFormat);
+    }
+
+    /**
+     * 转换一帧，从yuvBuffer的position开始读取，从rgbBuffer的position开始写入，两个Buffer的position都不会改变
+     *
+     * @param yuvBuffer    YUV数据，剩余大小不能少于{@link #getBufferSize()}
+     * @param rgbBuffer    RGB输出，剩余大小不能少于{@link #getOutputBufferSize(int)}
+     * @param outputFormat 输出格式
+     */
+    public void convert(ByteBuffer yuvBuffer, ByteBuffer rgbBuffer, @OutputFormat int outputFormat) {
+        if (!formatValid) {
+            throw new IllegalStateException("buffer format is invalid");
+        }
+        if (outputFormat != OutputFormat.FLOAT && outputFormat != OutputFormat.HALF_FLOAT) {
+            throw new IllegalArgumentException("not support output format " + outputFormat);
+        }
+        if (yuvBuffer.remaining() < bufferSize) {
+            throw new IllegalArgumentException("bufferSize is less than required size");
+        }
+        if (rgbBuffer.remaining() < getOutputBufferSize(outputFormat)) {
+            throw new IllegalArgumentException("rgb bufferSize is less than required size");
+        }
+        ByteOrder saveOrder = rgbBuffer.order();
+        inputBuffer = yuvBuffer;
+        inputOffset = yuvBuffer.position();
+        outputBuffer = rgbBuffer.order(ByteOrder.nativeOrder());
+        outputOffset = rgbBuffer.position();
+        this.outputFormat = outputFormat;
+        try {
+            if (parallelEnable && bandTasks.length > 1 && Runtime.getRuntime().availableProcessors() > 1) {
+                invokeBandTask();
+            } else {
+                convertRows(0, displayBottom - displayTop);
+            }
+        } finally {
+            rgbBuffer.order(saveOrder);
+            inputBuffer = null;
+            outputBuffer = null;
+        }
+    }
+
+    /**
+     * 不在ForkJoinPool的线程调用时，分块任务会放到公共线程池执行，当前线程等待全部完成
+     * 任务抛出的异常会直接抛出
+     */
+    private void invokeBandTask() {
+        for (BandTask bandTask : bandTasks) {
+            bandTask.reinitialize();
+        }
+        ForkJoinTask.invokeAll(bandTasks);
+    }
+
+    /**
+     * 转换显示区域中[startRow,endRow)的行，只用绝对位置读写，多个线程可以同时转换不同的行
+     * @param startRow
+     * @param endRow
+     */
+    private void convertRows(int startRow, int endRow) {
+        ByteBuffer yuvBuffer = inputBuffer;
+        ByteBuffer rgbBuffer = outputBuffer;
+        float[] m = yuvToRgbMatrix;
+        // 列主序，rgb = M * vec4(y, u, v, 1)
+        float ry = m[0], gy = m[1], by = m[2];
+        float ru = m[4], gu = m[5], bu = m[6];
+        float rv = m[8], gv = m[9], bv = m[10];
+        float rc = m[12], gc = m[13], bc = m[14];
+        boolean semiPlanar = yuv420Type == YUV420Type.NV12 || yuv420Type == YUV420Type.NV21;
+        int uOffset;
+        int vOffset;
+        int chromaPixelBytes;
+        if (semiPlanar) {
+            int firstOffset = inputOffset + chromaOffset;
+            uOffset = yuv420Type == YUV420Type.NV12 ? firstOffset : firstOffset + byteCount;
+            vOffset = yuv420Type == YUV420Type.NV12 ? firstOffset + byteCount : firstOffset;
+            chromaPixelBytes = byteCount * 2;
+        } else {
+            int firstOffset = inputOffset + chromaOffset;
+            int secondOffset = firstOffset + chromaPlaneSize;
+            uOffset = yuv420Type == YUV420Type.YV21 ? firstOffset : secondOffset;
+            vOffset = yuv420Type == YUV420Type.YV21 ? secondOffset : firstOffset;
+            chromaPixelBytes = byteCount;
+        }
+        int width = displayRight - displayLeft;
+        int left = displayLeft;
+        int bytesPerPixel = getBytesPerPixel(outputFormat);
+        boolean halfFloat = outputFormat == OutputFormat.HALF_FLOAT;
+        float normalizeScale = 1.0f / maxColorValue;
+        for (int row = startRow; row < endRow; row++) {
+            int bufferRow = displayTop + row;
+            int lumaRowOffset = inputOffset + bufferRow * strideWidth;
+            int chromaRowOffset = (bufferRow >> 1) * chromaStride;
+            int outIndex = outputOffset + row * width * bytesPerPixel;
+            for (int x = 0; x < width; x++) {
+                int bufferColumn = left + x;
+                int chromaIndex = chromaRowOffset + (bufferColumn >> 1) * chromaPixelBytes;
+                float y = readColor(yuvBuffer, lumaRowOffset + bufferColumn * byteCount) * normalizeScale;
+                float u = readColor(yuvBuffer, uOffset + chromaIndex) * normalizeScale;
+                float v = readColor(yuvBuffer, vOffset + chromaIndex) * normalizeScale;
+                float r = ry * y + ru * u + rv * v + rc;
+                float g = gy * y + gu * u + gv * v + gc;
+                float b = by * y + bu * u + bv * v + bc;
+                if (halfFloat) {
+                    rgbBuffer.putShort(outIndex, HalfFloatUtil.toHalf(r));
+                    rgbBuffer.putShort(outIndex + 2, HalfFloatUtil.toHalf(g));
+                    rgbBuffer.putShort(outIndex + 4, HalfFloatUtil.toHalf(b));
+                } else {
+                    rgbBuffer.putFloat(outIndex, r);
+                    rgbBuffer.putFloat(outIndex + 4, g);
+                    rgbBuffer.putFloat(outIndex + 8, b);
+                }
+                outIndex += bytesPerPixel;
+            }
+        }
+    }
+
+    /**
+     * 读取一个量化的颜色值，16位是小端存储，右移bitMask去掉多余的低位
+     * @param buffer
+     * @param index
+     * @return
+     */
+    private int readColor(ByteBuffer buffer, int index) {
+        if (byteCount == 1) {
+            return buffer.get(index) & 0xFF;
+        }
+        int color = (buffer.get(index) & 0xFF) | (buffer.get(index + 1) & 0xFF) << 8;
+        return color >> bitMask;
+    }
+
+    private static int getBytesPerPixel(@OutputFormat int outputFormat) {
+        return outputFormat == OutputFormat.HALF_FLOAT ? 3 * 2 : 3 * Float.BYTES;
+    }
+
+    private class BandTask extends RecursiveAction {
+        private final int startRow;
+        private final int endRow;
+
+        BandTask(int startRow, int endRow) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            convertRows(startRow, endRow);
+        }
+    }
+}
@@ -76,12 +76,13 @@ class HDRToSDRShader(
         }
     }
 
-    override val code: String
+    /**
+     * 除了输入纹理和main之外的所有代码，转换流程封装成函数[METHOD_HDR_TO_SDR]
+     * 合并渲染时可以和其他片元代码拼在同一个shader里，GLSL 100和300 es都能用
+     */
+    val fusionCode: String
         get() =
             """
-            |precision highp float;
-            |varying highp vec2 textureCoordinate;
-            |uniform sampler2D inputImageTexture;
             |#define ${MetaDataParams.VIDEO_COLOR_SPACE}  $colorSpace
             |
             |${MetaDataParams.code}
@@ -100,20 +101,40 @@ class HDRToSDRShader(
             |
             |${toneMap.code}
             |
-            |void main()
+            |vec3 $METHOD_HDR_TO_SDR(vec3 rgb)
             |{
-            |  vec4 textureColor = texture2D(inputImageTexture, textureCoordinate);
-            |  vec3 rgb = textureColor.rgb;
             |  vec3 linearColor = ${gammaEOTF.methodGamma}(rgb);//转成线性
             |  linearColor = ${chromaCorrection.methodChromaCorrect}(linearColor);//色度矫正
             |  if($colorSpace != ${COLOR_SPACE_BT2020_LINEAR}){
             |     linearColor= ${toneMap.methodToneMap}(linearColor);//色调映射
             |  }
             |  vec3 gamutMapColor = ${gamutMap.methodGamutMap}(linearColor);//色域转换
-            |  vec3 finalColor = ${gammaOETF.methodGamma}(gamutMapColor);//gamma压缩
-            |  gl_FragColor.rgb = finalColor;
+            |  return ${gammaOETF.methodGamma}(gamutMapColor);//gamma压缩
+            |}
+            """.trimMargin()
+
+    override val code: String
+        get() =
+            """
+            |precision highp float;
+            |varying highp vec2 textureCoordinate;
+            |uniform sampler2D inputImageTexture;
+            |
+            |$fusionCode
+            |
+            |void main()
+            |{
+            |  vec4 textureColor = texture2D(inputImageTexture, textureCoordinate);
+            |  gl_FragColor.rgb = $METHOD_HDR_TO_SDR(textureColor.rgb);
             |  gl_FragColor.a = textureColor.a;
             |}
             """.trimMargin()
 
+    companion object {
+        /**
+         * HDR转SDR的函数名，输入输出都是vec3
+         */
+        const val METHOD_HDR_TO_SDR = "hdrToSDR"
+    }
+
 }
\ No newline at end of file
@@ -2,12 +2,18 @@ package com.norman.android.hdrsample.transform.shader
 
 import com.norman.android.hdrsample.opengl.GLShaderCode
 import com.norman.android.hdrsample.player.color.ColorSpace
+import com.norman.android.hdrsample.player.color.HDR10PlusMetadata
 
 object MetaDataParams : GLShaderCode() {
     const val MIN_DISPLAY_LUMINANCE ="MIN_DISPLAY_LUMINANCE"// 最小屏幕亮度
     const val MAX_DISPLAY_LUMINANCE ="MAX_DISPLAY_LUMINANCE"// 最大屏幕亮度
     const val CURRENT_DISPLAY_LUMINANCE ="CURRENT_DISPLAY_LUMINANCE"// 当前亮度
     const val HDR_PEAK_LUMINANCE ="HDR_PEAK_LUMINANCE"// 最大峰值亮度
+    const val HDR10_PLUS_SCENE_PEAK ="HDR10_PLUS_SCENE_PEAK"// HDR10+当前场景的峰值亮度，没有动态元数据时是0
+    const val HDR10_PLUS_KNEE_POINT ="HDR10_PLUS_KNEE_POINT"// HDR10+色调映射曲线的拐点
+    const val HDR10_PLUS_ANCHORS ="HDR10_PLUS_ANCHORS"// HDR10+贝塞尔曲线的锚点
+    const val HDR10_PLUS_ANCHOR_COUNT ="HDR10_PLUS_ANCHOR_COUNT"// HDR10+贝塞尔曲线的锚点个数，0表示没有曲线
+    const val HDR10_PLUS_MAX_ANCHOR_COUNT ="HDR10_PLUS_MAX_ANCHOR_COUNT"
     const val VIDEO_COLOR_SPACE ="VIDEO_COLOR_SPACE"//
     const val COLOR_SPACE_BT2020_PQ ="COLOR_SPACE_BT2020_PQ"//
     const val COLOR_SPACE_BT2020_HLG ="COLOR_SPACE_BT2020_HLG"//
@@ -23,6 +29,11 @@ object MetaDataParams : GLShaderCode() {
               uniform float $MAX_DISPLAY_LUMINANCE;// 最大屏幕亮度
               uniform float $CURRENT_DISPLAY_LUMINANCE;// 当前亮度
               uniform float $HDR_PEAK_LUMINANCE;// 最大亮度
+              #define $HDR10_PLUS_MAX_ANCHOR_COUNT ${HDR10PlusMetadata.MAX_BEZIER_CURVE_ANCHOR_COUNT}
+              uniform float $HDR10_PLUS_SCENE_PEAK;// HDR10+场景峰值亮度
+              uniform vec2 $HDR10_PLUS_KNEE_POINT;// HDR10+拐点
+              uniform float $HDR10_PLUS_ANCHORS[$HDR10_PLUS_MAX_ANCHOR_COUNT];// HDR10+锚点
+              uniform int $HDR10_PLUS_ANCHOR_COUNT;// HDR10+锚点个数
               #define $COLOR_SPACE_BT2020_PQ ${ColorSpace.VIDEO_BT2020_PQ}
               #define $COLOR_SPACE_BT2020_HLG ${ColorSpace.VIDEO_BT2020_HLG}
               #define $COLOR_SPACE_BT2020_LINEAR ${ColorSpace.VIDEO_BT2020_LINEAR}
@@ -236,7 +236,9 @@ class GamutMapAdaptiveL0Cusp : GamutMap() {
 
                float L = lab.x;
                float eps = 0.00001;
-               float C = max(eps, sqrt(lab.y * lab.y + lab.z * lab.z));
+               float C = sqrt(lab.y * lab.y + lab.z * lab.z);
+               // 灰色没有色调，a_和b_都是0，find_cusp会出现0除以0，直接截断亮度
+               if (C < eps) return clamp(rgb, 0.0, 1.0);
                float a_ = lab.y / C;
                float b_ = lab.z / C;
 
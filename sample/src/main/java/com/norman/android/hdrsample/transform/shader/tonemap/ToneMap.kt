@@ -39,6 +39,9 @@ abstract class ToneMap: GLShaderCode() {
 
         @JvmField
         val  HABLE = ToneMappingHable()
+
+        @JvmField
+        val  HDR10_PLUS = ToneMapHDR10Plus()
     }
 
 
@@ -0,0 +1,102 @@
+package com.norman.android.hdrsample.transform.shader.tonemap
+
+import com.norman.android.hdrsample.transform.shader.ColorConversion.methodBt2020ToXYZ
+import com.norman.android.hdrsample.transform.shader.ColorConversion.methodXYZToBt2020
+import com.norman.android.hdrsample.transform.shader.MetaDataParams.COLOR_SPACE_BT2020_HLG
+import com.norman.android.hdrsample.transform.shader.MetaDataParams.HDR10_PLUS_ANCHORS
+import com.norman.android.hdrsample.transform.shader.MetaDataParams.HDR10_PLUS_ANCHOR_COUNT
+import com.norman.android.hdrsample.transform.shader.MetaDataParams.HDR10_PLUS_KNEE_POINT
+import com.norman.android.hdrsample.transform.shader.MetaDataParams.HDR10_PLUS_MAX_ANCHOR_COUNT
+import com.norman.android.hdrsample.transform.shader.MetaDataParams.HDR10_PLUS_SCENE_PEAK
+import com.norman.android.hdrsample.transform.shader.MetaDataParams.HDR_PEAK_LUMINANCE
+import com.norman.android.hdrsample.transform.shader.MetaDataParams.HLG_MAX_LUMINANCE
+import com.norman.android.hdrsample.transform.shader.MetaDataParams.MAX_DISPLAY_LUMINANCE
+import com.norman.android.hdrsample.transform.shader.MetaDataParams.VIDEO_COLOR_SPACE
+import com.norman.android.hdrsample.transform.shader.ReScale
+
+/**
+ * HDR10+(SMPTE ST 2094-40)动态元数据的色调映射，和Android13一样按maxRGB计算增益
+ * x是相对场景峰值亮度归一化的亮度，小于拐点时线性映射，大于拐点时用贝塞尔曲线：
+ * y = ky + (1 - ky) * B((x - kx) / (1 - kx))，B的控制点是P0=0、P1...PN-1=锚点、PN=1
+ * y是相对目标屏幕亮度归一化的，这里直接乘当前屏幕的最大亮度，没有按目标屏幕和实际屏幕的差异再调整曲线
+ * 没有动态元数据(烘焙LUT时也是)用静态的峰值亮度，没有曲线时用一个锚点的默认曲线：
+ * 拐点ky=0.65，拐点以下亮度不变，锚点保证拐点处斜率连续
+ */
+class ToneMapHDR10Plus : ToneMap() {
+
+    override val code: String
+        get() = """
+            |float hdr10PlusBezier(float t, float kx, float ky) {
+            |    if (t <= 0.0) {
+            |        return 0.0;
+            |    }
+            |    if (t >= 1.0) {
+            |        return 1.0;
+            |    }
+            |    float order;
+            |    float anchor1;
+            |    if ($HDR10_PLUS_ANCHOR_COUNT > 0) {
+            |        order = float($HDR10_PLUS_ANCHOR_COUNT + 1);
+            |        anchor1 = 0.0;
+            |    } else {
+            |        order = 2.0;//拐点处斜率连续的二次曲线
+            |        anchor1 = clamp(ky * (1.0 - kx) / (2.0 * kx * (1.0 - ky)), 0.0, 1.0);
+            |    }
+            |    float result = 0.0;
+            |    float binomial = 1.0;
+            |    for (int i = 1; i <= $HDR10_PLUS_MAX_ANCHOR_COUNT + 1; i++) {
+            |        float k = float(i);
+            |        if (k > order) {
+            |            break;
+            |        }
+            |        binomial = binomial * (order - k + 1.0) / k;
+            |        float anchor = 1.0;
+            |        if (k < order) {
+            |            anchor = $HDR10_PLUS_ANCHOR_COUNT > 0 ? $HDR10_PLUS_ANCHORS[i - 1] : anchor1;
+            |        }
+            |        result += binomial * pow(t, k) * pow(1.0 - t, order - k) * anchor;
+            |    }
+            |    return result;
+            |}
+            |
+            |float hdr10PlusTargetNits(float maxRGB) {
+            |    if ($VIDEO_COLOR_SPACE == $COLOR_SPACE_BT2020_HLG) {//HLG没有HDR10+元数据，和Android13一样按屏幕最大亮度缩放
+            |        return maxRGB * $MAX_DISPLAY_LUMINANCE / $HLG_MAX_LUMINANCE;
+            |    }
+            |    float scenePeak = $HDR10_PLUS_SCENE_PEAK > 0.0 ? $HDR10_PLUS_SCENE_PEAK : $HDR_PEAK_LUMINANCE;
+            |    float maxOutLumi = $MAX_DISPLAY_LUMINANCE;
+            |    if (scenePeak <= maxOutLumi) {//场景亮度屏幕能显示，不需要压缩
+            |        return maxRGB;
+            |    }
+            |    float kx;
+            |    float ky;
+            |    if ($HDR10_PLUS_ANCHOR_COUNT > 0) {
+            |        kx = $HDR10_PLUS_KNEE_POINT.x;
+            |        ky = $HDR10_PLUS_KNEE_POINT.y;
+            |    } else {
+            |        ky = 0.65;
+            |        kx = ky * maxOutLumi / scenePeak;
+            |    }
+            |    float x = min(maxRGB / scenePeak, 1.0);
+            |    float y;
+            |    if (x < kx) {
+            |        y = ky * x / kx;
+            |    } else {
+            |        y = ky + (1.0 - ky) * hdr10PlusBezier((x - kx) / max(1.0 - kx, 1e-6), kx, ky);
+            |    }
+            |    return y * maxOutLumi;
+            |}
+            |
+            |vec3 $methodToneMap(vec3 rgb)
+            |{
+            |    rgb = ${ReScale.methodScaleToMaster}(rgb);
+            |    vec3 xyz = $methodBt2020ToXYZ(rgb);
+            |    float maxRGB = max(rgb.r, max(rgb.g, rgb.b));
+            |    float gain = maxRGB <= 0.0 ? 1.0 : hdr10PlusTargetNits(maxRGB) / maxRGB;
+            |    xyz = xyz * gain;
+            |    rgb = $methodXYZToBt2020(xyz);
+            |    rgb = ${ReScale.methodNormalizeDisplay}(rgb);
+            |    return rgb;
+            |}
+        """.trimMargin()
+}
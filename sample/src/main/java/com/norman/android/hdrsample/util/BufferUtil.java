@@ -3,10 +3,43 @@ package com.norman.android.hdrsample.util;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 
 public class BufferUtil {
     private static final int FLOAT_SIZE = 4;//float的字节大小位4
 
+    /**
+     * 缓存池最小的一档是4KB，更小的也按4KB分配
+     */
+    private static final int MIN_POOL_CLASS_SHIFT = 12;
+
+    /**
+     * 缓存池最大的一档是32MB，更大的直接分配不缓存
+     */
+    private static final int MAX_POOL_CLASS_SHIFT = 25;
+
+    /**
+     * 每一档最多缓存的个数
+     */
+    private static final int MAX_POOL_COUNT_PER_CLASS = 2;
+
+    /**
+     * 缓存池总共最多缓存的字节数
+     */
+    private static final long MAX_POOL_BYTES = 32L * 1024 * 1024;
+
+    private static final List<ArrayDeque<ByteBuffer>> DIRECT_BUFFER_POOL = new ArrayList<>();
+
+    private static long pooledBytes;
+
+    static {
+        for (int shift = MIN_POOL_CLASS_SHIFT; shift <= MAX_POOL_CLASS_SHIFT; shift++) {
+            DIRECT_BUFFER_POOL.add(new ArrayDeque<>());
+        }
+    }
+
     public static FloatBuffer createDirectFloatBuffer(float[] data) {
         FloatBuffer buffer = ByteBuffer
                 .allocateDirect(data.length * FLOAT_SIZE)
@@ -35,7 +68,9 @@ public class BufferUtil {
     }
 
     /***
-     * 扩容，
+     * 扩容，DirectByteBuffer从缓存池获取，用完以后调用{@link #releaseDirectBuffer(ByteBuffer)}
+     * 旧的Buffer不会放回缓存池，它可能不是缓存池分配的，要不要放回由调用方决定
+     * 从缓存池获取的capacity可能比newCapacity大
      * @param byteBuffer
      * @param newCapacity 新的大小
      * @return
@@ -46,8 +81,9 @@ public class BufferUtil {
             throw new IllegalArgumentException("new capacity must greater than old");
         }
         final ByteBuffer outBuffer = byteBuffer.isDirect() ?
-                ByteBuffer.allocateDirect(newCapacity) :
+                obtainDirectBuffer(newCapacity) :
                 ByteBuffer.allocate(newCapacity);
+        outBuffer.order(byteBuffer.order());
 
         final int oldPos = byteBuffer.position();
         final int oldLimit = byteBuffer.limit();
@@ -62,4 +98,90 @@ public class BufferUtil {
         return outBuffer;
     }
 
+    /**
+     * 从缓存池获取本地字节序的DirectByteBuffer，用完要调用{@link #releaseDirectBuffer(ByteBuffer)}放回去
+     * 按2的幂分档，capacity可能比size大，position是0，limit是size，里面的数据是不确定的
+     * 适合纹理上传、glReadPixels这种临时使用的Buffer，避免每次都分配新的native内存
+     * @param size 需要的字节数
+     * @return
+     */
+    public static ByteBuffer obtainDirectBuffer(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative " + size);
+        }
+        int classShift = getPoolClassShift(size);
+        ByteBuffer byteBuffer = null;
+        if (classShift > 0) {
+            synchronized (DIRECT_BUFFER_POOL) {
+                byteBuffer = DIRECT_BUFFER_POOL.get(classShift - MIN_POOL_CLASS_SHIFT).pollLast();
+                if (byteBuffer != null) {
+                    pooledBytes -= byteBuffer.capacity();
+                }
+            }
+        }
+        if (byteBuffer == null) {
+            byteBuffer = ByteBuffer.allocateDirect(classShift > 0 ? 1 << classShift : size);
+        }
+        byteBuffer.order(ByteOrder.nativeOrder());
+        byteBuffer.clear();
+        byteBuffer.limit(size);
+        return byteBuffer;
+    }
+
+    /**
+     * 把{@link #obtainDirectBuffer(int)}得到的Buffer放回缓存池，放回后调用方不能再使用
+     * 只能放回缓存池分配的Buffer，自己分配的、wrap的或者别人传进来的Buffer放进来会被其他地方拿去覆盖
+     * 不是缓存池大小的Buffer或者缓存池已经满了会直接丢弃，由GC回收
+     * @param byteBuffer
+     */
+    public static void releaseDirectBuffer(ByteBuffer byteBuffer) {
+        if (byteBuffer == null || !byteBuffer.isDirect() || byteBuffer.isReadOnly()) {
+            return;
+        }
+        int capacity = byteBuffer.capacity();
+        int classShift = getPoolClassShift(capacity);
+        if (classShift <= 0 || capacity != 1 << classShift) {
+            return;
+        }
+        synchronized (DIRECT_BUFFER_POOL) {
+            ArrayDeque<ByteBuffer> classPool = DIRECT_BUFFER_POOL.get(classShift - MIN_POOL_CLASS_SHIFT);
+            if (classPool.size() >= MAX_POOL_COUNT_PER_CLASS
+                    || pooledBytes + capacity > MAX_POOL_BYTES) {
+                return;
+            }
+            for (ByteBuffer pooledBuffer : classPool) {
+                if (pooledBuffer == byteBuffer) {//重复放回
+                    return;
+                }
+            }
+            classPool.addLast(byteBuffer);
+            pooledBytes += capacity;
+        }
+    }
+
+    /**
+     * 清空缓存池，譬如内存不足的时候
+     */
+    public static void clearDirectBufferPool() {
+        synchronized (DIRECT_BUFFER_POOL) {
+            for (ArrayDeque<ByteBuffer> classPool : DIRECT_BUFFER_POOL) {
+                classPool.clear();
+            }
+            pooledBytes = 0;
+        }
+    }
+
+    /**
+     * 大小对应的缓存池档位
+     * @param size
+     * @return 档位是2的几次幂，超过最大档位返回0
+     */
+    private static int getPoolClassShift(int size) {
+        if (size > 1 << MAX_POOL_CLASS_SHIFT) {
+            return 0;
+        }
+        int shift = size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.max(shift, MIN_POOL_CLASS_SHIFT);
+    }
+
 }
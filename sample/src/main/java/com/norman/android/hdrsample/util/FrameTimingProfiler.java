@@ -0,0 +1,316 @@
+package com.norman.android.hdrsample.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 统计播放流程中每个阶段的耗时，用来定位卡顿是解封装、解码、上传纹理、某个Transform还是上屏引起的
+ * 每个阶段一个直方图，记录时只用原子操作不加锁，可以在解码、渲染等多个线程同时记录
+ * 直方图按2的幂分段，每段再平均分成16个桶，百分位的误差不超过1/16
+ * 渲染相关的阶段是CPU提交OpenGL命令的耗时，GPU实际的耗时要用GPU计时
+ */
+public class FrameTimingProfiler {
+
+    /**
+     * 解码器输入回调从解封装器取数据的耗时，包括等待预读
+     */
+    public static final String STAGE_EXTRACTOR_READ = "extractorRead";
+
+    /**
+     * 预读线程readSampleData的耗时
+     */
+    public static final String STAGE_EXTRACTOR_PREFETCH = "extractorPrefetch";
+
+    /**
+     * 从送入MediaCodec到解码输出的耗时
+     */
+    public static final String STAGE_CODEC_DECODE = "codecDecode";
+
+    /**
+     * VideoOutput.onDecodeBufferAvailable的耗时，buffer模式下包括上传YUV
+     */
+    public static final String STAGE_BUFFER_AVAILABLE = "bufferAvailable";
+
+    /**
+     * 单个Transform的耗时，后面接Transform的类名和实例序号
+     */
+    public static final String STAGE_TRANSFORM_PREFIX = "transform:";
+
+    /**
+     * 单个Transform在GPU上执行的耗时，后面接Transform的类名和实例序号，需要开启Transform的GPU计时
+     */
+    public static final String STAGE_GPU_TRANSFORM_PREFIX = "gpuTransform:";
+
+    /**
+     * 合并渲染时Transform和输入纹理采样一起绘制到屏幕的耗时，和screenRender是同一次绘制，只在有Transform合并时记录
+     */
+    public static final String STAGE_FUSION_RENDER = "fusionRender";
+
+    /**
+     * 合并渲染的绘制在GPU上执行的耗时，后面接输出的实例序号，需要开启合并的Transform中任意一个的GPU计时
+     */
+    public static final String STAGE_GPU_FUSION_RENDER = "gpuFusionRender";
+
+    /**
+     * 最后一次渲染到屏幕的耗时，合并渲染时包括所有Transform
+     */
+    public static final String STAGE_SCREEN_RENDER = "screenRender";
+
+    /**
+     * swapBuffers的耗时
+     */
+    public static final String STAGE_SWAP_BUFFERS = "swapBuffers";
+
+    private static final ConcurrentHashMap<String, Histogram> HISTOGRAM_MAP = new ConcurrentHashMap<>();
+
+    private static final AtomicLong INSTANCE_NUMBER = new AtomicLong();
+
+    private static volatile boolean enable = true;
+
+    public static void setEnable(boolean enable) {
+        FrameTimingProfiler.enable = enable;
+    }
+
+    public static boolean isEnable() {
+        return enable;
+    }
+
+    /**
+     * 记录一次耗时
+     * @param stage 阶段名称
+     * @param costNs 耗时纳秒
+     */
+    public static void record(String stage, long costNs) {
+        if (!enable) {
+            return;
+        }
+        Histogram histogram = HISTOGRAM_MAP.get(stage);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram();
+            histogram = HISTOGRAM_MAP.putIfAbsent(stage, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        histogram.record(costNs);
+    }
+
+    /**
+     * 阶段名称后面加上全局递增的序号，同一个类的多个实例分开统计，不会混在一个直方图里
+     * 在创建实例时调用一次，不要每帧调用，实例销毁时调用{@link #remove}
+     * @param stage 阶段名称
+     * @return 譬如transform:CubeLutVideoTransform#3
+     */
+    public static String createInstanceStage(String stage) {
+        return stage + '#' + INSTANCE_NUMBER.incrementAndGet();
+    }
+
+    /**
+     * 移除阶段的直方图，{@link #createInstanceStage}创建的阶段在实例销毁时要移除，否则每个实例都会留下一个直方图
+     * 移除以后再记录会重新创建
+     * @param stage 阶段名称
+     */
+    public static void remove(String stage) {
+        HISTOGRAM_MAP.remove(stage);
+    }
+
+    /**
+     * 阶段的直方图，还没有记录过返回null
+     * @param stage
+     * @return
+     */
+    public static Histogram getHistogram(String stage) {
+        return HISTOGRAM_MAP.get(stage);
+    }
+
+    /**
+     * 所有记录过的阶段，按名称排序
+     * @return
+     */
+    public static List<String> getStageList() {
+        List<String> stageList = new ArrayList<>(HISTOGRAM_MAP.keySet());
+        Collections.sort(stageList);
+        return stageList;
+    }
+
+    public static void reset() {
+        for (Histogram histogram : HISTOGRAM_MAP.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * 所有阶段的统计，单位是微秒
+     * @return
+     */
+    public static String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "%-40s %8s %10s %10s %10s %10s %10s%n",
+                "stage", "count", "avg(us)", "p50(us)", "p95(us)", "p99(us)", "max(us)"));
+        for (String stage : getStageList()) {
+            Histogram histogram = HISTOGRAM_MAP.get(stage);
+            long count = histogram.getCount();
+            builder.append(String.format(Locale.US, "%-40s %8d %10d %10d %10d %10d %10d%n",
+                    stage,
+                    count,
+                    TimeUtil.nanoToMicro(histogram.getAverageNs()),
+                    TimeUtil.nanoToMicro(histogram.getPercentileNs(50)),
+                    TimeUtil.nanoToMicro(histogram.getPercentileNs(95)),
+                    TimeUtil.nanoToMicro(histogram.getPercentileNs(99)),
+                    TimeUtil.nanoToMicro(histogram.getMaxNs())));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 把{@link #dump()}的结果写到文件
+     * @param file
+     * @return 是否写入成功
+     */
+    public static boolean dumpToFile(File file) {
+        File parentFile = file.getParentFile();
+        if (parentFile != null && !parentFile.isDirectory() && !parentFile.mkdirs()) {
+            return false;
+        }
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+            writer.write(dump());
+            return true;
+        } catch (IOException e) {
+            LogUtil.w("frame timing dump fail " + e.getMessage());
+            return false;
+        } finally {
+            try {
+                if (writer != null) {
+                    writer.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 无锁的耗时直方图
+     */
+    public static class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 4;
+
+        private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+        /**
+         * 最大统计到2^40纳秒(约18分钟)，更大的算到最后一个桶
+         */
+        private static final int MAX_VALUE_BITS = 40;
+
+        private static final int BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+        private final AtomicLongArray bucketArray = new AtomicLongArray(BUCKET_COUNT);
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong sum = new AtomicLong();
+
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long valueNs) {
+            if (valueNs < 0) {
+                valueNs = 0;
+            }
+            bucketArray.incrementAndGet(getBucketIndex(valueNs));
+            count.incrementAndGet();
+            sum.addAndGet(valueNs);
+            long currentMax;
+            while (valueNs > (currentMax = max.get())) {
+                if (max.compareAndSet(currentMax, valueNs)) {
+                    break;
+                }
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                bucketArray.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getAverageNs() {
+            long currentCount = count.get();
+            return currentCount == 0 ? 0 : sum.get() / currentCount;
+        }
+
+        public long getMaxNs() {
+            return max.get();
+        }
+
+        /**
+         * 百分位耗时，返回所在桶的上限，记录的同时读取得到的是近似值
+         * @param percentile 0到100
+         * @return
+         */
+        public long getPercentileNs(float percentile) {
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                total += bucketArray.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100.0));
+            long accumulate = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                accumulate += bucketArray.get(i);
+                if (accumulate >= target) {
+                    return Math.min(getBucketUpperValue(i), getMaxNs());
+                }
+            }
+            return getMaxNs();
+        }
+
+        /**
+         * 小于SUB_BUCKET_COUNT的值每个值一个桶，更大的值按最高位分段，段内取最高位后面的SUB_BUCKET_BITS位
+         * @param value
+         * @return
+         */
+        private static int getBucketIndex(long value) {
+            if (value < SUB_BUCKET_COUNT) {
+                return (int) value;
+            }
+            int highestBit = 63 - Long.numberOfLeadingZeros(value);
+            if (highestBit > MAX_VALUE_BITS) {
+                return BUCKET_COUNT - 1;
+            }
+            int shift = highestBit - SUB_BUCKET_BITS;
+            int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+            return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+        }
+
+        private static long getBucketUpperValue(int index) {
+            if (index < SUB_BUCKET_COUNT) {
+                return index;
+            }
+            int shift = index / SUB_BUCKET_COUNT - 1;
+            int subBucket = index % SUB_BUCKET_COUNT;
+            return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+        }
+    }
+}
@@ -58,6 +58,8 @@ public class GLESUtil {
 
     private static boolean EGL_COLOR_SPACE_LOADED = false;
 
+    private static volatile boolean PROGRAM_BINARY_CACHE_ENABLE = true;
+
     /**
      * OPENGL硬件是否支持PQ
      */
@@ -141,18 +143,52 @@ public class GLESUtil {
         return GLES20.glCreateProgram();
     }
 
+    /**
+     * 是否把program二进制保存到缓存目录，下次启动直接加载
+     * @param enable
+     */
+    public static void setProgramBinaryCacheEnable(boolean enable) {
+        PROGRAM_BINARY_CACHE_ENABLE = enable;
+    }
+
+    public static boolean isProgramBinaryCacheEnable() {
+        return PROGRAM_BINARY_CACHE_ENABLE;
+    }
+
+    /**
+     * 删除保存的所有program二进制缓存
+     */
+    public static void clearProgramBinaryCache() {
+        GLProgramBinaryCache.clear();
+    }
+
     public static int createProgramId(String vertCode, String fragCode) {
+        String binaryKey = null;
+        if (PROGRAM_BINARY_CACHE_ENABLE && GLProgramBinaryCache.isSupport()) {
+            binaryKey = GLProgramBinaryCache.getKey(vertCode, fragCode);
+            if (binaryKey != null) {
+                int programId = GLProgramBinaryCache.loadProgram(binaryKey);
+                if (programId > 0) {
+                    return programId;
+                }
+            }
+        }
         int programId = GLESUtil.createProgramId();
         int vertexShaderId = GLESUtil.createVertexShader(vertCode);
         int fragmentShaderId = GLESUtil.createFragmentShader(fragCode);
         // 把vertexShader和fragmentShader关联在program上
         GLES20.glAttachShader(programId, vertexShaderId);
         GLES20.glAttachShader(programId, fragmentShaderId);
+        if (binaryKey != null) {// 告诉驱动链接后要获取二进制数据
+            GLES30.glProgramParameteri(programId, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+        }
         GLES20.glLinkProgram(programId);
         int[] linkStatus = new int[1];
         GLES20.glGetProgramiv(programId, GLES20.GL_LINK_STATUS, linkStatus, 0);
         if (linkStatus[0] != GLES20.GL_TRUE) {
             LogUtil.e(TAG, "could not link program: \n" + GLES20.glGetProgramInfoLog(programId));
+        } else if (binaryKey != null) {
+            GLProgramBinaryCache.saveProgram(binaryKey, programId);
         }
         //虽然删除了ShaderId但是program还是可以运行的
         deleteShaderId(vertexShaderId);
@@ -401,6 +437,24 @@ public class GLESUtil {
     }
 
 
+    /**
+     * 当前OpenGL环境是否支持某个扩展，必须在有OpenGL环境的线程调用
+     * @param extension 扩展名称，譬如GL_OES_texture_float_linear
+     * @return
+     */
+    public static boolean isSupportExtension(String extension) {
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        if (extensions == null) {
+            return false;
+        }
+        for (String name : extensions.split(" ")) {
+            if (name.equals(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * OpenGL硬件是否支持BT2020PQ
      * @return
@@ -0,0 +1,273 @@
+package com.norman.android.hdrsample.util;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.norman.android.hdrsample.handler.MessageHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 把链接好的program用glGetProgramBinary保存到缓存目录，下次启动用glProgramBinary直接加载，省去编译链接的时间
+ * 文件名是顶点shader、片元shader、GL_RENDERER、GL_VERSION一起算出的SHA-256，换了GPU驱动就是不同的文件
+ * 加载失败(譬如驱动升级后格式不兼容)会删除缓存文件，由调用方重新编译
+ * 保存时只在GL线程读取二进制数据，写文件在后台线程，不阻塞渲染线程和提前编译的线程
+ * 文件格式如下，头部都是大端序
+ *  int    魔数 GLPB
+ *  int    版本号
+ *  int    binaryFormat
+ *  int    program二进制数据长度
+ *  byte[] program二进制数据
+ */
+class GLProgramBinaryCache {
+
+    private static final String CACHE_DIR_NAME = "gl_program";
+
+    private static final String CACHE_FILE_SUFFIX = ".bin";
+
+    private static final int CACHE_MAGIC = 0x474C5042;
+
+    private static final int CACHE_VERSION = 1;
+
+    private static final int CACHE_HEADER_LENGTH = 16;
+
+    private static final String SAVE_THREAD_NAME = "GLProgramBinarySaveThread";
+
+    /**
+     * 写缓存文件的后台线程，所有文件都在这个线程按顺序写
+     */
+    private static MessageHandler saveHandler;
+
+    /**
+     * 当前OpenGL环境是否支持program二进制，需要OpenGL ES 3.0并且驱动至少支持一种格式
+     * @return
+     */
+    static boolean isSupport() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        if (version == null || !version.startsWith("OpenGL ES 3")) {
+            return false;
+        }
+        int[] formatCount = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formatCount, 0);
+        return formatCount[0] > 0;
+    }
+
+    /**
+     * 缓存文件的key
+     * @param vertCode
+     * @param fragCode
+     * @return
+     */
+    static String getKey(String vertCode, String fragCode) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            messageDigest.update(vertCode.getBytes(StandardCharsets.UTF_8));
+            messageDigest.update((byte) 0);
+            messageDigest.update(fragCode.getBytes(StandardCharsets.UTF_8));
+            messageDigest.update((byte) 0);
+            messageDigest.update(String.valueOf(GLES20.glGetString(GLES20.GL_RENDERER)).getBytes(StandardCharsets.UTF_8));
+            messageDigest.update((byte) 0);
+            messageDigest.update(String.valueOf(GLES20.glGetString(GLES20.GL_VERSION)).getBytes(StandardCharsets.UTF_8));
+            byte[] digest = messageDigest.digest();
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte value : digest) {
+                builder.append(Character.forDigit((value >> 4) & 0xF, 16));
+                builder.append(Character.forDigit(value & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 从缓存文件加载program
+     * @param key
+     * @return 失败返回0
+     */
+    static int loadProgram(String key) {
+        File cacheFile = getCacheFile(key);
+        if (!cacheFile.isFile()) {
+            return 0;
+        }
+        FileInputStream inputStream = null;
+        int programId = 0;
+        try {
+            inputStream = new FileInputStream(cacheFile);
+            FileChannel fileChannel = inputStream.getChannel();
+            long fileLength = fileChannel.size();
+            if (fileLength < CACHE_HEADER_LENGTH) {
+                throw new IOException("file length " + fileLength);
+            }
+            ByteBuffer headerBuffer = ByteBuffer.allocate(CACHE_HEADER_LENGTH).order(ByteOrder.BIG_ENDIAN);
+            readFully(fileChannel, headerBuffer);
+            headerBuffer.flip();
+            int magic = headerBuffer.getInt();
+            int version = headerBuffer.getInt();
+            int binaryFormat = headerBuffer.getInt();
+            int binaryLength = headerBuffer.getInt();
+            if (magic != CACHE_MAGIC
+                    || version != CACHE_VERSION
+                    || binaryLength <= 0
+                    || binaryLength != fileLength - CACHE_HEADER_LENGTH) {
+                throw new IOException("header not match");
+            }
+            ByteBuffer binaryBuffer = ByteBuffer.allocateDirect(binaryLength).order(ByteOrder.nativeOrder());
+            readFully(fileChannel, binaryBuffer);
+            binaryBuffer.flip();
+
+            programId = GLES20.glCreateProgram();
+            GLES30.glProgramBinary(programId, binaryFormat, binaryBuffer, binaryLength);
+            int[] linkStatus = new int[1];
+            GLES20.glGetProgramiv(programId, GLES20.GL_LINK_STATUS, linkStatus, 0);
+            if (linkStatus[0] != GLES20.GL_TRUE) {
+                throw new IOException("program binary rejected by driver");
+            }
+            return programId;
+        } catch (IOException e) {
+            LogUtil.w("gl program binary load fail " + e.getMessage());
+            GLESUtil.delProgramId(programId);
+            //glProgramBinary失败会产生GL错误，清掉避免影响后面的checkGLError
+            int error;
+            do {
+                error = GLES20.glGetError();
+            } while (error != GLES20.GL_NO_ERROR);
+            if (!cacheFile.delete()) {
+                LogUtil.w("gl program binary delete fail " + cacheFile);
+            }
+            return 0;
+        } finally {
+            try {
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 把链接成功的program保存到缓存文件，链接前需要设置GL_PROGRAM_BINARY_RETRIEVABLE_HINT
+     * 在GL线程读取二进制数据后马上返回，文件在后台线程写
+     * @param key
+     * @param programId
+     */
+    static void saveProgram(final String key, int programId) {
+        int[] binaryLength = new int[1];
+        GLES20.glGetProgramiv(programId, GLES30.GL_PROGRAM_BINARY_LENGTH, binaryLength, 0);
+        if (binaryLength[0] <= 0) {
+            return;
+        }
+        final ByteBuffer binaryBuffer = ByteBuffer.allocateDirect(binaryLength[0]).order(ByteOrder.nativeOrder());
+        int[] length = new int[1];
+        int[] binaryFormat = new int[1];
+        GLES30.glGetProgramBinary(programId, binaryLength[0], length, 0, binaryFormat, 0, binaryBuffer);
+        if (length[0] <= 0) {
+            return;
+        }
+        binaryBuffer.limit(length[0]);
+        final int format = binaryFormat[0];
+        getSaveHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                writeCacheFile(key, format, binaryBuffer);
+            }
+        });
+    }
+
+    private static synchronized MessageHandler getSaveHandler() {
+        if (saveHandler == null || saveHandler.isFinish()) {
+            saveHandler = MessageHandler.obtain(SAVE_THREAD_NAME);
+        }
+        return saveHandler;
+    }
+
+    /**
+     * 写缓存文件，在后台线程调用
+     * @param key
+     * @param binaryFormat
+     * @param binaryBuffer program二进制数据
+     */
+    private static void writeCacheFile(String key, int binaryFormat, ByteBuffer binaryBuffer) {
+        File cacheFile = getCacheFile(key);
+        File cacheDir = cacheFile.getParentFile();
+        if (cacheDir == null || (!cacheDir.isDirectory() && !cacheDir.mkdirs())) {
+            return;
+        }
+        // 先写临时文件再重命名，读取时不会读到写了一半的文件
+        File tempFile = new File(cacheDir, cacheFile.getName() + ".tmp");
+        FileOutputStream outputStream = null;
+        try {
+            ByteBuffer headerBuffer = ByteBuffer.allocate(CACHE_HEADER_LENGTH).order(ByteOrder.BIG_ENDIAN);
+            headerBuffer.putInt(CACHE_MAGIC);
+            headerBuffer.putInt(CACHE_VERSION);
+            headerBuffer.putInt(binaryFormat);
+            headerBuffer.putInt(binaryBuffer.remaining());
+            headerBuffer.flip();
+
+            outputStream = new FileOutputStream(tempFile);
+            FileChannel fileChannel = outputStream.getChannel();
+            while (headerBuffer.hasRemaining()) {
+                fileChannel.write(headerBuffer);
+            }
+            while (binaryBuffer.hasRemaining()) {
+                fileChannel.write(binaryBuffer);
+            }
+            outputStream.close();
+            outputStream = null;
+            if (!tempFile.renameTo(cacheFile)) {
+                LogUtil.w("gl program binary rename fail " + cacheFile);
+            }
+        } catch (IOException e) {
+            LogUtil.w("gl program binary save fail " + e.getMessage());
+        } finally {
+            try {
+                if (outputStream != null) {
+                    outputStream.close();
+                }
+            } catch (IOException ignored) {
+            }
+            if (tempFile.exists() && !tempFile.delete()) {
+                LogUtil.w("gl program binary delete temp fail " + tempFile);
+            }
+        }
+    }
+
+    /**
+     * 删除所有缓存文件
+     */
+    static void clear() {
+        File cacheDir = new File(AppUtil.getAppContext().getCacheDir(), CACHE_DIR_NAME);
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                LogUtil.w("gl program binary delete fail " + file);
+            }
+        }
+    }
+
+    private static File getCacheFile(String key) {
+        File cacheDir = new File(AppUtil.getAppContext().getCacheDir(), CACHE_DIR_NAME);
+        return new File(cacheDir, key + CACHE_FILE_SUFFIX);
+    }
+
+    private static void readFully(FileChannel fileChannel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+    }
+}
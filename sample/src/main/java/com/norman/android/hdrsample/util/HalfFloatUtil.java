@@ -0,0 +1,68 @@
+package com.norman.android.hdrsample.util;
+
+/**
+ * float和16位半精度浮点数(IEEE 754 binary16)互相转换
+ * android.util.Half要Android 8.0才支持，所以自己实现
+ * 半精度格式：1位符号 5位指数 10位尾数
+ */
+public class HalfFloatUtil {
+
+    /**
+     * float转半精度，按四舍六入五成双处理尾数，超出范围变成无穷大，太小变成0
+     * @param value
+     * @return
+     */
+    public static short toHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+        if (exponent == 0xFF) {//无穷大和NaN
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1F) {//超过半精度最大值
+            return (short) (sign | 0x7C00);
+        }
+        if (halfExponent <= 0) {//半精度的非规格化数
+            if (halfExponent < -10) {
+                return (short) sign;
+            }
+            mantissa |= 0x800000;//加上隐藏的1
+            int shift = 14 - halfExponent;
+            int halfMantissa = mantissa >> shift;
+            int roundBit = 1 << (shift - 1);
+            // 舍去部分大于一半，或者等于一半并且结果是奇数时进位
+            if ((mantissa & roundBit) != 0 && (mantissa & (3 * roundBit - 1)) != 0) {
+                halfMantissa++;
+            }
+            return (short) (sign | halfMantissa);
+        }
+        int halfBits = sign | (halfExponent << 10) | (mantissa >> 13);
+        int roundBit = 0x1000;
+        if ((mantissa & roundBit) != 0 && (mantissa & (3 * roundBit - 1)) != 0) {
+            halfBits++;//尾数进位溢出时会自动进到指数位
+        }
+        return (short) halfBits;
+    }
+
+    /**
+     * 半精度转float
+     * @param half
+     * @return
+     */
+    public static float toFloat(short half) {
+        int bits = half & 0xFFFF;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1F;
+        int mantissa = bits & 0x3FF;
+        if (exponent == 0) {//非规格化数，值是mantissa * 2^-24
+            float value = mantissa * (1.0f / (1 << 24));
+            return sign != 0 ? -value : value;
+        }
+        if (exponent == 0x1F) {//无穷大和NaN
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
@@ -228,4 +228,24 @@ public class MediaFormatUtil {
     public static int getColorSpace(MediaFormat mediaFormat) {
         return MediaFormatUtil.getInteger(mediaFormat, KEY_COLOR_SPACE, ColorSpace.VIDEO_SDR);
     }
+
+    /***
+     * 根据色域和传递函数判断ColorSpace
+     * @param mediaFormat
+     * @return
+     */
+    @ColorSpace
+    public static int parseColorSpace(MediaFormat mediaFormat) {
+        int colorStandard = getColorStandard(mediaFormat);
+        int colorTransfer = getColorTransfer(mediaFormat);
+        if (colorStandard == ColorStandard.BT2020 && colorTransfer == ColorTransfer.HLG) {
+            return ColorSpace.VIDEO_BT2020_HLG;
+        } else if (colorStandard == ColorStandard.BT2020 && colorTransfer == ColorTransfer.ST2084) {
+            return ColorSpace.VIDEO_BT2020_PQ;
+        } else if (colorStandard == ColorStandard.BT2020 && colorTransfer == ColorTransfer.LINEAR) {
+            return ColorSpace.VIDEO_BT2020_LINEAR;
+        } else {
+            return ColorSpace.VIDEO_SDR;
+        }
+    }
 }
@@ -0,0 +1,147 @@
+package com.norman.android.hdrsample.player;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class VideoFrameSchedulerTest {
+
+    private static final long START_NS = 1000_000_000L;
+
+    /**
+     * 100Hz，方便手算
+     */
+    private static final long PERIOD_NS = 10_000_000L;
+
+    private FakeClock clock;
+
+    private VideoFrameScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        clock.nowNs = START_NS;
+        clock.lastVsyncNs = START_NS;
+        scheduler = new VideoFrameScheduler(clock);
+    }
+
+    @Test
+    public void framesSnapToNearestVsync() {
+        assertEquals(0, scheduler.schedule(0));
+        assertEquals(START_NS, scheduler.getPresentTimeNs());
+
+        // 30帧视频在100Hz屏幕上，33ms吸附到30ms，中间重复显示2个vsync
+        assertEquals(30_000_000L, scheduler.schedule(33_000));
+        assertEquals(START_NS + 30_000_000L, scheduler.getPresentTimeNs());
+        assertEquals(2, scheduler.getRepeatedCount());
+
+        // 66ms吸附到70ms
+        assertEquals(70_000_000L, scheduler.schedule(66_000));
+        assertEquals(START_NS + 70_000_000L, scheduler.getPresentTimeNs());
+        assertEquals(5, scheduler.getRepeatedCount());
+        assertEquals(3, scheduler.getRenderedCount());
+        assertEquals(0, scheduler.getDroppedCount());
+    }
+
+    @Test
+    public void renderCostMovesDeadlineEarlier() {
+        scheduler.schedule(0);
+        scheduler.onRenderCost(4_000_000L);
+        assertEquals(10_000_000L - 4_000_000L, scheduler.schedule(10_000));
+    }
+
+    @Test
+    public void frameOnSameVsyncAsPreviousIsDropped() {
+        assertEquals(0, scheduler.schedule(0));
+        // 250帧视频，4ms吸附到上一帧的vsync
+        assertEquals(VideoFrameScheduler.DROP_FRAME, scheduler.schedule(4_000));
+        assertEquals(10_000_000L, scheduler.schedule(8_000));
+        assertEquals(1, scheduler.getDroppedCount());
+        assertEquals(0, scheduler.getLateCount());
+    }
+
+    @Test
+    public void lateFrameIsDroppedAndTimeRealignsAfterConsecutiveDrops() {
+        assertEquals(0, scheduler.schedule(0));
+        clock.nowNs = START_NS + 200_000_000L;
+        clock.lastVsyncNs = clock.nowNs;
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(VideoFrameScheduler.DROP_FRAME, scheduler.schedule(i * 10_000L));
+        }
+        assertEquals(4, scheduler.getDroppedCount());
+        assertEquals(4, scheduler.getLateCount());
+
+        // 连续丢了4帧，这一帧重新对齐到当前的vsync
+        assertEquals(0, scheduler.schedule(50_000));
+        assertEquals(clock.nowNs, scheduler.getPresentTimeNs());
+        assertEquals(5, scheduler.getLateCount());
+        assertEquals(10_000_000L, scheduler.schedule(60_000));
+    }
+
+    @Test
+    public void lateWithinOnePeriodMovesToNextVsync() {
+        scheduler.schedule(0);
+        clock.nowNs = START_NS + 15_000_000L;
+        clock.lastVsyncNs = START_NS + 10_000_000L;
+        // 目标10ms已经过了5ms，不到一个周期，改到下一个vsync并马上渲染
+        assertEquals(0, scheduler.schedule(10_000));
+        assertEquals(START_NS + 20_000_000L, scheduler.getPresentTimeNs());
+        assertEquals(1, scheduler.getLateCount());
+        assertEquals(0, scheduler.getDroppedCount());
+    }
+
+    @Test
+    public void flushResetsAlignmentForSeek() {
+        scheduler.schedule(0);
+        scheduler.schedule(10_000);
+        scheduler.flush();
+        // seek到5秒，重新对齐，不会等5秒也不会因为vsync已经被占用而丢弃
+        assertEquals(0, scheduler.schedule(5_000_000));
+        assertEquals(START_NS, scheduler.getPresentTimeNs());
+        assertEquals(0, scheduler.getDroppedCount());
+        assertEquals(3, scheduler.getRenderedCount());
+
+        scheduler.reset();
+        assertEquals(0, scheduler.getRenderedCount());
+        assertEquals(-1, scheduler.getPresentTimeNs());
+    }
+
+    @Test
+    public void noVsyncYetUsesTargetTime() {
+        clock.lastVsyncNs = 0;
+        assertEquals(0, scheduler.schedule(0));
+        assertEquals(33_000_000L, scheduler.schedule(33_000));
+        assertEquals(START_NS + 33_000_000L, scheduler.getPresentTimeNs());
+    }
+
+    private static class FakeClock implements VideoFrameScheduler.Clock {
+
+        long nowNs;
+
+        long lastVsyncNs;
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public long nowNs() {
+            return nowNs;
+        }
+
+        @Override
+        public long getLastVsyncNs() {
+            return lastVsyncNs;
+        }
+
+        @Override
+        public long getVsyncPeriodNs() {
+            return PERIOD_NS;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.norman.android.hdrsample.player.decode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 用假的解码器测试AsyncCodecController的状态和暂停时缓存的Buffer
+ * 并发测试按MediaCodecAsyncAdapter的方式调用：修改状态的方法在同一个锁里，flush结束和恢复Buffer在消息线程中执行
+ */
+public class AsyncCodecControllerTest {
+
+    private static final int GENERATION_SHIFT = 16;
+
+    /**
+     * 并发测试的操作次数，flush最多占全部，要小于2^15保证generation放在index的高位不会溢出
+     */
+    private static final int OPERATION_COUNT = 20000;
+
+    @Test
+    public void pauseBuffersAndResumeInOrder() {
+        FakeCodec fakeCodec = new FakeCodec();
+        AsyncCodecController controller = new AsyncCodecController(fakeCodec);
+        controller.configure();
+        controller.start();
+        assertEquals(AsyncCodecController.CALLBACK_DISPATCH, controller.onInputBufferAvailable(1));
+        controller.pause();
+        assertEquals(AsyncCodecController.CALLBACK_RESUME, controller.onInputBufferAvailable(2));
+        assertEquals(AsyncCodecController.CALLBACK_RESUME, controller.onOutputBufferAvailable(3, 0, 100, 33_000, 0));
+        // 暂停中不能取出来
+        assertEquals(ResumeBuffer.NO_INDEX, controller.pollResumeInput());
+        assertTrue(controller.resume());
+        assertEquals(2, controller.pollResumeInput());
+        assertEquals(ResumeBuffer.NO_INDEX, controller.pollResumeInput());
+        ResumeBuffer.OutputInfo outputInfo = new ResumeBuffer.OutputInfo();
+        assertEquals(3, controller.pollResumeOutput(outputInfo));
+        assertEquals(100, outputInfo.size);
+        assertEquals(33_000, outputInfo.presentationTimeUs);
+    }
+
+    @Test
+    public void flushDropsBuffersUntilFinished() {
+        FakeCodec fakeCodec = new FakeCodec();
+        AsyncCodecController controller = new AsyncCodecController(fakeCodec);
+        controller.configure();
+        controller.start();
+        controller.pause();
+        controller.onInputBufferAvailable(1);
+        assertTrue(controller.flush());
+        assertEquals(1, fakeCodec.flushCount);
+        assertFalse(fakeCodec.started);
+        // flush还没结束，回调都是脏数据
+        assertEquals(AsyncCodecController.CALLBACK_DROP, controller.onInputBufferAvailable(2));
+        controller.finishFlush();
+        assertTrue(fakeCodec.started);
+        assertTrue(controller.resume());
+        assertEquals(ResumeBuffer.NO_INDEX, controller.pollResumeInput());
+    }
+
+    /**
+     * 没到时间的输出放回最前面，之后回调的输出要排在它后面
+     */
+    @Test
+    public void deferredOutputKeepsOrder() {
+        FakeCodec fakeCodec = new FakeCodec();
+        AsyncCodecController controller = new AsyncCodecController(fakeCodec);
+        controller.configure();
+        controller.start();
+        assertEquals(AsyncCodecController.CALLBACK_DISPATCH, controller.onOutputBufferAvailable(1, 0, 1, 0, 0));
+        assertTrue(controller.deferOutputBuffer(1, 0, 1, 0, 0));
+        assertEquals(AsyncCodecController.CALLBACK_RESUME, controller.onOutputBufferAvailable(2, 0, 1, 33_000, 0));
+        ResumeBuffer.OutputInfo outputInfo = new ResumeBuffer.OutputInfo();
+        assertEquals(1, controller.pollResumeOutput(outputInfo));
+        // 取出后还没到时间，放回去仍然在2的前面
+        assertTrue(controller.deferOutputBuffer(1, 0, 1, 0, 0));
+        assertEquals(1, controller.pollResumeOutput(outputInfo));
+        assertEquals(2, controller.pollResumeOutput(outputInfo));
+        assertEquals(AsyncCodecController.CALLBACK_DISPATCH, controller.onOutputBufferAvailable(3, 0, 1, 66_000, 0));
+        controller.flush();
+        assertFalse(controller.deferOutputBuffer(3, 0, 1, 66_000, 0));
+    }
+
+    @Test
+    public void flushTwiceStartsAfterLastFinish() {
+        FakeCodec fakeCodec = new FakeCodec();
+        AsyncCodecController controller = new AsyncCodecController(fakeCodec);
+        controller.configure();
+        controller.start();
+        controller.flush();
+        controller.flush();
+        controller.finishFlush();
+        assertFalse(fakeCodec.started);
+        assertTrue(controller.isDirtyCallback());
+        controller.finishFlush();
+        assertTrue(fakeCodec.started);
+        assertFalse(controller.isDirtyCallback());
+    }
+
+    /**
+     * 回调读到暂停状态以后，在加入缓存前flush已经修改状态并清空，这个回调的Buffer不能再放进缓存
+     * 测试线程先持有resumeBuffer的锁让回调停在读状态以后，再在锁里flush
+     */
+    @Test
+    public void callbackBeforeFlushNotResumed() throws Exception {
+        FakeCodec fakeCodec = new FakeCodec();
+        final AsyncCodecController controller = new AsyncCodecController(fakeCodec);
+        controller.configure();
+        controller.start();
+        controller.pause();
+        final AtomicInteger callbackResult = new AtomicInteger(-1);
+        Thread callbackThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                callbackResult.set(controller.onInputBufferAvailable(7));
+            }
+        });
+        synchronized (controller.resumeBuffer) {
+            callbackThread.start();
+            while (callbackThread.getState() != Thread.State.BLOCKED) {
+                assertTrue(callbackThread.isAlive());
+                Thread.yield();
+            }
+            controller.flush();
+        }
+        callbackThread.join();
+        assertEquals(AsyncCodecController.CALLBACK_DROP, callbackResult.get());
+        controller.finishFlush();
+        assertTrue(controller.resume());
+        assertEquals(ResumeBuffer.NO_INDEX, controller.pollResumeInput());
+    }
+
+    /**
+     * 解码器回调、暂停恢复、flush同时进行，恢复时取出的Buffer不能是flush前的
+     * 回调在flush修改状态前读到暂停状态，flush清空以后回调才放进缓存，就会在恢复时取到flush前的Buffer
+     */
+    @Test
+    public void concurrentFlushNeverResumesStaleBuffer() throws Exception {
+        final FakeCodec fakeCodec = new FakeCodec();
+        final AsyncCodecController controller = new AsyncCodecController(fakeCodec);
+        final Object adapterLock = new Object();
+        final ExecutorService looper = Executors.newSingleThreadExecutor();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger staleCount = new AtomicInteger();
+        final AtomicInteger resumeCount = new AtomicInteger();
+        final ResumeBuffer.OutputInfo outputInfo = new ResumeBuffer.OutputInfo();
+
+        final Runnable finishFlushRunnable = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (adapterLock) {
+                    controller.finishFlush();
+                }
+            }
+        };
+        final Runnable resumeRunnable = new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    // 和解码器的回调互斥，取出时的generation就是解码器当前的generation
+                    synchronized (fakeCodec) {
+                        int index = controller.pollResumeInput();
+                        if (index == ResumeBuffer.NO_INDEX) {
+                            index = controller.pollResumeOutput(outputInfo);
+                        }
+                        if (index == ResumeBuffer.NO_INDEX) {
+                            return;
+                        }
+                        resumeCount.incrementAndGet();
+                        if ((index >>> GENERATION_SHIFT) != fakeCodec.generation) {
+                            staleCount.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        };
+
+        synchronized (adapterLock) {
+            controller.configure();
+            controller.start();
+        }
+
+        Thread[] callbackThreads = new Thread[2];
+        for (int i = 0; i < callbackThreads.length; i++) {
+            callbackThreads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int next = 0;
+                    while (running.get()) {
+                        fakeCodec.deliver(controller, next++ & 0xFFFF);
+                        Thread.yield();
+                    }
+                }
+            }, "FakeCodecCallback" + i);
+            callbackThreads[i].start();
+        }
+
+        Random random = new Random(20231018);
+        // 次数固定而不是按时间，flush的次数不会超过index高位能保存的generation，不会回绕成负数
+        for (int operationCount = 0; operationCount < OPERATION_COUNT; operationCount++) {
+            synchronized (adapterLock) {
+                switch (random.nextInt(3)) {
+                    case 0:
+                        controller.pause();
+                        break;
+                    case 1:
+                        if (controller.resume()) {
+                            looper.execute(resumeRunnable);
+                        }
+                        break;
+                    default:
+                        if (controller.flush()) {
+                            looper.execute(finishFlushRunnable);
+                        }
+                        break;
+                }
+            }
+            Thread.yield();
+        }
+        running.set(false);
+        for (Thread callbackThread : callbackThreads) {
+            callbackThread.join();
+        }
+        looper.shutdown();
+        assertTrue(looper.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertTrue("no buffer resumed", resumeCount.get() > 0);
+        assertEquals("stale buffers resumed after flush", 0, staleCount.get());
+    }
+
+    /**
+     * 和MediaCodec一样，flush以后要重新start才会回调，flush返回以后不会再回调flush前的Buffer
+     */
+    static class FakeCodec implements AsyncCodecController.Codec {
+
+        volatile int generation;
+
+        volatile boolean started;
+
+        int flushCount;
+
+        /**
+         * 模拟一次回调，index的高位保存回调时的generation
+         */
+        synchronized void deliver(AsyncCodecController controller, int id) {
+            if (!started) {
+                return;
+            }
+            int index = (generation << GENERATION_SHIFT) | id;
+            controller.onInputBufferAvailable(index);
+            controller.onOutputBufferAvailable(index, 0, 1, id, 0);
+        }
+
+        @Override
+        public synchronized void start() {
+            started = true;
+        }
+
+        @Override
+        public synchronized void flush() {
+            started = false;
+            generation++;
+            flushCount++;
+        }
+
+        @Override
+        public synchronized void stop() {
+            started = false;
+        }
+
+        @Override
+        public synchronized void reset() {
+            started = false;
+        }
+
+        @Override
+        public synchronized void release() {
+            started = false;
+        }
+    }
+}
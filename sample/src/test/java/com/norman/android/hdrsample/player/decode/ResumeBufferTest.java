@@ -0,0 +1,106 @@
+package com.norman.android.hdrsample.player.decode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * ResumeBuffer的顺序、扩容和暂停恢复时的内存分配
+ */
+public class ResumeBufferTest {
+
+    /**
+     * 一次暂停中回调的Buffer个数，大于初始容量保证会扩容
+     */
+    private static final int BUFFER_COUNT = 40;
+
+    private static final int PAUSE_RESUME_COUNT = 20000;
+
+    @Test
+    public void pollInOrderAfterGrow() {
+        ResumeBuffer resumeBuffer = new ResumeBuffer();
+        ResumeBuffer.OutputInfo outputInfo = new ResumeBuffer.OutputInfo();
+        // 先取出几个让head不在0，扩容时要按环形的顺序拷贝
+        for (int i = 0; i < 5; i++) {
+            resumeBuffer.addInput(i);
+            resumeBuffer.addOutput(i, i, i * 2, i * 1000L, 0);
+        }
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, resumeBuffer.pollInput());
+            assertEquals(i, resumeBuffer.pollOutput(outputInfo));
+        }
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            resumeBuffer.addInput(i);
+            resumeBuffer.addOutput(i, i, i * 2, i * 1000L, i % 3);
+        }
+        assertEquals(BUFFER_COUNT, resumeBuffer.getInputCount());
+        assertEquals(BUFFER_COUNT, resumeBuffer.getOutputCount());
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            assertEquals(i, resumeBuffer.pollInput());
+            assertEquals(i, resumeBuffer.pollOutput(outputInfo));
+            assertEquals(i, outputInfo.offset);
+            assertEquals(i * 2, outputInfo.size);
+            assertEquals(i * 1000L, outputInfo.presentationTimeUs);
+            assertEquals(i % 3, outputInfo.flags);
+        }
+        assertEquals(ResumeBuffer.NO_INDEX, resumeBuffer.pollInput());
+        assertEquals(ResumeBuffer.NO_INDEX, resumeBuffer.pollOutput(outputInfo));
+    }
+
+    @Test
+    public void clearDropsBuffers() {
+        ResumeBuffer resumeBuffer = new ResumeBuffer();
+        resumeBuffer.addInput(1);
+        resumeBuffer.addOutput(2, 0, 10, 0, 0);
+        resumeBuffer.clear();
+        assertEquals(ResumeBuffer.NO_INDEX, resumeBuffer.pollInput());
+        assertEquals(ResumeBuffer.NO_INDEX, resumeBuffer.pollOutput(new ResumeBuffer.OutputInfo()));
+    }
+
+    /**
+     * 扩容到解码器的Buffer个数以后，反复暂停恢复不应该再分配内存
+     */
+    @Test
+    public void pauseResumeWithoutAllocation() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        assumeTrue(allocationMXBean.isThreadAllocatedMemorySupported());
+        allocationMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        ResumeBuffer resumeBuffer = new ResumeBuffer();
+        ResumeBuffer.OutputInfo outputInfo = new ResumeBuffer.OutputInfo();
+        long threadId = Thread.currentThread().getId();
+        // 第一轮扩容，之后的轮次都复用
+        long checksum = pauseResume(resumeBuffer, outputInfo, 1);
+        long startBytes = allocationMXBean.getThreadAllocatedBytes(threadId);
+        checksum += pauseResume(resumeBuffer, outputInfo, PAUSE_RESUME_COUNT);
+        long allocatedBytes = allocationMXBean.getThreadAllocatedBytes(threadId) - startBytes;
+        assertTrue(checksum > 0);
+        // 每次分配哪怕一个对象都会有几百KB，这里只留给MXBean自己的少量分配
+        assertTrue("allocated " + allocatedBytes + " bytes", allocatedBytes < 4096);
+    }
+
+    private static long pauseResume(ResumeBuffer resumeBuffer, ResumeBuffer.OutputInfo outputInfo, int count) {
+        long checksum = 0;
+        for (int n = 0; n < count; n++) {
+            for (int i = 0; i < BUFFER_COUNT; i++) {
+                resumeBuffer.addInput(i);
+                resumeBuffer.addOutput(i, 0, 1024, n * 33_000L + i, 0);
+            }
+            int index;
+            while ((index = resumeBuffer.pollInput()) != ResumeBuffer.NO_INDEX) {
+                checksum += index;
+            }
+            while ((index = resumeBuffer.pollOutput(outputInfo)) != ResumeBuffer.NO_INDEX) {
+                checksum += index + outputInfo.size;
+            }
+            resumeBuffer.clear();
+        }
+        return checksum;
+    }
+}
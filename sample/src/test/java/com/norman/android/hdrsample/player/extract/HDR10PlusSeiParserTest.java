@@ -0,0 +1,212 @@
+package com.norman.android.hdrsample.player.extract;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.norman.android.hdrsample.player.color.HDR10PlusMetadata;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 用构造的MP4长度格式sample测试HDR10+ SEI的解析，sample和BufferUtil.obtainDirectBuffer一样是本地字节序的
+ */
+public class HDR10PlusSeiParserTest {
+
+    @Test
+    public void parseLengthPrefixedSampleInLittleEndianBuffer() {
+        ByteBuffer sample = createSample(ByteOrder.LITTLE_ENDIAN, 4, 0);
+        HDR10PlusMetadata metadata = new HDR10PlusMetadata();
+        assertTrue(new HDR10PlusSeiParser(4).parse(sample, sample.limit(), metadata));
+        assertMetadata(metadata);
+        assertEquals(0, sample.position());
+    }
+
+    /**
+     * 第一个NAL长度在256到511之间时，4字节长度是00 00 01 xx，看起来和起始码一样
+     */
+    @Test
+    public void parseSampleWhoseLengthLooksLikeStartCode() {
+        ByteBuffer sample = createSample(ByteOrder.nativeOrder(), 4, 300);
+        assertEquals(0, sample.get(0));
+        assertEquals(0, sample.get(1));
+        assertEquals(1, sample.get(2));
+        HDR10PlusMetadata metadata = new HDR10PlusMetadata();
+        assertTrue(new HDR10PlusSeiParser(4).parse(sample, sample.limit(), metadata));
+        assertMetadata(metadata);
+    }
+
+    @Test
+    public void parseTwoByteLengthSample() {
+        ByteBuffer sample = createSample(ByteOrder.nativeOrder(), 2, 300);
+        HDR10PlusMetadata metadata = new HDR10PlusMetadata();
+        assertTrue(new HDR10PlusSeiParser(2).parse(sample, sample.limit(), metadata));
+        assertMetadata(metadata);
+    }
+
+    @Test
+    public void parseAnnexBSample() {
+        ByteBuffer sample = createSample(ByteOrder.nativeOrder(), HDR10PlusSeiParser.ANNEX_B, 300);
+        HDR10PlusMetadata metadata = new HDR10PlusMetadata();
+        assertTrue(new HDR10PlusSeiParser(HDR10PlusSeiParser.ANNEX_B).parse(sample, sample.limit(), metadata));
+        assertMetadata(metadata);
+    }
+
+    @Test
+    public void nalLengthSizeFromCsd() {
+        byte[] hvcc = new byte[23];
+        hvcc[0] = 1;//configurationVersion
+        hvcc[21] = (byte) 0xFD;//保留位都是1，lengthSizeMinusOne是1
+        assertEquals(2, HDR10PlusSeiParser.getNalLengthSize(ByteBuffer.wrap(hvcc)));
+        hvcc[21] = (byte) 0xFF;
+        assertEquals(4, HDR10PlusSeiParser.getNalLengthSize(ByteBuffer.wrap(hvcc)));
+        byte[] annexB = {0, 0, 0, 1, 0x40, 0x01, 0x0C, 0x01, (byte) 0xFF, (byte) 0xFF, 0x01, 0x60,
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        assertEquals(HDR10PlusSeiParser.ANNEX_B, HDR10PlusSeiParser.getNalLengthSize(ByteBuffer.wrap(annexB)));
+        assertEquals(HDR10PlusSeiParser.ANNEX_B, HDR10PlusSeiParser.getNalLengthSize(null));
+    }
+
+    @Test
+    public void ringReusesSlotsAndCopiesOut() {
+        ByteBuffer sample = createSample(ByteOrder.nativeOrder(), 4, 0);
+        HDR10PlusSeiParser parser = new HDR10PlusSeiParser(4);
+        HDR10PlusMetadataRing ring = new HDR10PlusMetadataRing();
+        HDR10PlusMetadata first = ring.obtain();
+        for (int i = 0; i < 100; i++) {
+            HDR10PlusMetadata metadata = ring.obtain();
+            if (i % 64 == 0) {
+                assertSame(first, metadata);//转一圈以后还是预先分配的同一个对象
+            }
+            assertTrue(parser.parse(sample, sample.limit(), metadata));
+            ring.commit(metadata, i * 33_000L);
+        }
+        HDR10PlusMetadata metadata = new HDR10PlusMetadata();
+        assertFalse(ring.get(0, metadata));//已经被覆盖
+        assertTrue(ring.get(99 * 33_000L, metadata));
+        assertEquals(400, metadata.targetedSystemDisplayMaximumLuminance);
+        ring.clear();
+        assertFalse(ring.get(99 * 33_000L, metadata));
+    }
+
+    private static void assertMetadata(HDR10PlusMetadata metadata) {
+        assertEquals(400, metadata.targetedSystemDisplayMaximumLuminance);
+        assertEquals(1000f, metadata.maxscl[0], 0);
+        assertEquals(3000f, metadata.maxscl[2], 0);
+        assertEquals(500f, metadata.averageMaxrgb, 0);
+        assertTrue(metadata.toneMappingEnable);
+        assertEquals(2, metadata.bezierCurveAnchorCount);
+        assertEquals(1f, metadata.bezierCurveAnchors[1], 0);
+    }
+
+    /**
+     * 可选的填充NAL，一个HDR10+的SEI NAL，再加一个VCL NAL
+     * @param nalLengthSize NAL前面大端长度的字节数，{@link HDR10PlusSeiParser#ANNEX_B}时用起始码
+     * @param fillerLength 填充NAL的长度，0表示没有
+     */
+    private static ByteBuffer createSample(ByteOrder order, int nalLengthSize, int fillerLength) {
+        BitWriter payload = new BitWriter();
+        payload.write(8, 0xB5);
+        payload.write(16, 0x003C);
+        payload.write(16, 0x0001);
+        payload.write(8, 4);
+        payload.write(8, 1);
+        payload.write(2, 1);//num_windows
+        payload.write(27, 400);
+        payload.write(1, 0);
+        payload.write(17, 10000);
+        payload.write(17, 20000);
+        payload.write(17, 30000);
+        payload.write(17, 5000);
+        payload.write(4, 0);
+        payload.write(10, 0);
+        payload.write(1, 0);
+        payload.write(1, 1);//tone_mapping_flag
+        payload.write(12, 2048);
+        payload.write(12, 1024);
+        payload.write(4, 2);
+        payload.write(10, 512);
+        payload.write(10, 1023);
+        payload.write(1, 0);
+        byte[] t35 = payload.toByteArray();
+
+        ByteArrayOutputStream rbsp = new ByteArrayOutputStream();
+        rbsp.write(4);//user_data_registered_itu_t_t35
+        rbsp.write(t35.length);
+        rbsp.write(t35, 0, t35.length);
+        rbsp.write(0x80);
+        ByteArrayOutputStream seiNal = new ByteArrayOutputStream();
+        seiNal.write(39 << 1);
+        seiNal.write(1);
+        int zeroCount = 0;
+        for (byte value : rbsp.toByteArray()) {//加上防竞争字节
+            if (zeroCount >= 2 && (value & 0xFF) <= 3) {
+                seiNal.write(3);
+                zeroCount = 0;
+            }
+            seiNal.write(value);
+            zeroCount = value == 0 ? zeroCount + 1 : 0;
+        }
+        byte[] sei = seiNal.toByteArray();
+        byte[] vcl = {1 << 1, 1, 0x11, 0x22};
+
+        byte[] filler = new byte[fillerLength];
+        if (fillerLength > 0) {
+            filler[0] = 38 << 1;//FD_NUT
+            filler[1] = 1;
+            for (int i = 2; i < fillerLength; i++) {
+                filler[i] = (byte) 0xFF;
+            }
+        }
+
+        int prefixSize = nalLengthSize == HDR10PlusSeiParser.ANNEX_B ? 4 : nalLengthSize;
+        ByteBuffer sample = ByteBuffer.allocateDirect(prefixSize * 3 + filler.length + sei.length + vcl.length).order(order);
+        for (byte[] nal : new byte[][]{filler, sei, vcl}) {
+            if (nal.length == 0) {
+                continue;
+            }
+            putNalPrefix(sample, nalLengthSize, nal.length);
+            sample.put(nal);
+        }
+        sample.flip();
+        return sample;
+    }
+
+    private static void putNalPrefix(ByteBuffer sample, int nalLengthSize, int length) {
+        if (nalLengthSize == HDR10PlusSeiParser.ANNEX_B) {
+            sample.put(new byte[]{0, 0, 0, 1});
+            return;
+        }
+        for (int i = nalLengthSize - 1; i >= 0; i--) {//大端
+            sample.put((byte) (length >>> (i * 8)));
+        }
+    }
+
+    private static class BitWriter {
+        private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        private int current;
+        private int bitCount;
+
+        void write(int count, int value) {
+            for (int i = count - 1; i >= 0; i--) {
+                current = (current << 1) | ((value >>> i) & 1);
+                if (++bitCount == 8) {
+                    outputStream.write(current);
+                    current = 0;
+                    bitCount = 0;
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            while (bitCount != 0) {
+                write(1, 0);
+            }
+            return outputStream.toByteArray();
+        }
+    }
+}
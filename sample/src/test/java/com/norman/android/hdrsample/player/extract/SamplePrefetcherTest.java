@@ -0,0 +1,111 @@
+package com.norman.android.hdrsample.player.extract;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class SamplePrefetcherTest {
+
+    @Test(timeout = 5000)
+    public void sourceErrorIsRethrownAfterPrefetchedSamples() {
+        FakeSampleSource source = new FakeSampleSource(10, 2);
+        SamplePrefetcher prefetcher = new SamplePrefetcher(source, 1024);
+        try {
+            assertTrue(prefetcher.advance());
+            assertTrue(prefetcher.advance());
+            try {
+                prefetcher.advance();
+                fail();
+            } catch (IllegalStateException e) {
+                assertSame(source.error, e.getCause());
+            }
+            try {
+                prefetcher.advance();//一直保持出错，不会卡住
+                fail();
+            } catch (IllegalStateException e) {
+                assertSame(source.error, e.getCause());
+            }
+        } finally {
+            prefetcher.release();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void seekClearsError() {
+        FakeSampleSource source = new FakeSampleSource(3, 0);
+        SamplePrefetcher prefetcher = new SamplePrefetcher(source, 1024);
+        try {
+            try {
+                prefetcher.advance();
+                fail();
+            } catch (IllegalStateException ignored) {
+            }
+            source.errorIndex = -1;
+            prefetcher.seekTo(0, 0);
+            assertTrue(prefetcher.advance());
+            assertTrue(prefetcher.advance());
+            assertTrue(prefetcher.advance());
+            assertFalse(prefetcher.advance());//结尾
+        } finally {
+            prefetcher.release();
+        }
+    }
+
+    /**
+     * 每个sample 16字节，读到errorIndex时readSampleData抛出异常
+     */
+    private static class FakeSampleSource implements SampleSource {
+
+        final IllegalStateException error = new IllegalStateException("extractor released");
+
+        final int sampleCount;
+
+        volatile int errorIndex;
+
+        int index;
+
+        FakeSampleSource(int sampleCount, int errorIndex) {
+            this.sampleCount = sampleCount;
+            this.errorIndex = errorIndex;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer, int offset) {
+            if (index == errorIndex) {
+                throw error;
+            }
+            if (index >= sampleCount) {
+                return -1;
+            }
+            buffer.position(offset);
+            buffer.put(new byte[16]);
+            return 16;
+        }
+
+        @Override
+        public long getSampleTime() {
+            return index < sampleCount ? index * 33_000L : -1;
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return 0;
+        }
+
+        @Override
+        public boolean advance() {
+            index++;
+            return index < sampleCount;
+        }
+
+        @Override
+        public void seekTo(long timeUs, int mode) {
+            index = (int) (timeUs / 33_000L);
+        }
+    }
+}
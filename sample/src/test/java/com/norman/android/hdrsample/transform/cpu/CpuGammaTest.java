@@ -0,0 +1,83 @@
+package com.norman.android.hdrsample.transform.cpu;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * 参考值来自BT.2100、BT.709的公式手算，PQ的信号值对应的亮度查ST 2084的表
+ */
+public class CpuGammaTest {
+
+    @Test
+    public void pqEOTFMatchesReferenceLuminance() {
+        assertEquals(0.0f, CpuGamma.pqEOTF(0.0f), 1e-7f);
+        assertEquals(1.0f, CpuGamma.pqEOTF(1.0f), 1e-5f);
+        // 100亮度是0.50807842，1000亮度是0.75182693
+        assertEquals(100 / 10000f, CpuGamma.pqEOTF(0.50807842f), 1e-5f);
+        assertEquals(1000 / 10000f, CpuGamma.pqEOTF(0.75182693f), 1e-4f);
+        assertEquals(0.50807842f, CpuGamma.pqInverseEOTF(100 / 10000f), 1e-4f);
+    }
+
+    @Test
+    public void pqRoundTrip() {
+        for (int i = 0; i <= 20; i++) {
+            float x = i / 20.0f;
+            assertEquals("x " + x, x, CpuGamma.pqInverseEOTF(CpuGamma.pqEOTF(x)), 1e-4f);
+        }
+    }
+
+    @Test
+    public void bt709OETF() {
+        assertEquals(0.0f, CpuGamma.oetf(CpuGamma.OETF_BT709, 0.0f), 1e-7f);
+        // 线性段4.5倍
+        assertEquals(0.045f, CpuGamma.oetf(CpuGamma.OETF_BT709, 0.01f), 1e-6f);
+        // 1.099*0.18^0.45-0.099
+        assertEquals(0.40885f, CpuGamma.oetf(CpuGamma.OETF_BT709, 0.18f), 1e-4f);
+        assertEquals(1.0f, CpuGamma.oetf(CpuGamma.OETF_BT709, 1.0f), 1e-6f);
+        for (int i = 0; i <= 20; i++) {
+            float x = i / 20.0f;
+            float y = CpuGamma.oetf(CpuGamma.OETF_BT709, x);
+            assertEquals("x " + x, x, CpuGamma.eotf(CpuGamma.EOTF_BT709, y), 1e-5f);
+        }
+    }
+
+    @Test
+    public void hlgSceneEOTF() {
+        // x<0.5是x*x/3，0.5正好是1/12，1是1
+        assertEquals(0.0625f / 3.0f, CpuGamma.eotf(CpuGamma.EOTF_HLG_SCENE, 0.25f), 1e-6f);
+        assertEquals(1.0f / 12.0f, CpuGamma.eotf(CpuGamma.EOTF_HLG_SCENE, 0.5f), 1e-5f);
+        assertEquals(1.0f, CpuGamma.eotf(CpuGamma.EOTF_HLG_SCENE, 1.0f), 1e-4f);
+        for (int i = 0; i <= 20; i++) {
+            float x = i / 20.0f;
+            float y = CpuGamma.eotf(CpuGamma.EOTF_HLG_SCENE, x);
+            assertEquals("x " + x, x, CpuGamma.oetf(CpuGamma.OETF_HLG_SCENE, y), 1e-4f);
+        }
+    }
+
+    @Test
+    public void hlgSystemGamma() {
+        assertEquals(1.2f, CpuGamma.hlgGamma(1000), 1e-6f);
+        // 1.2+0.42*log10(2)
+        assertEquals(1.32643f, CpuGamma.hlgGamma(2000), 1e-5f);
+        // 低于500按500算
+        assertEquals(CpuGamma.hlgGamma(500), CpuGamma.hlgGamma(100), 1e-6f);
+        assertEquals(1.07357f, CpuGamma.hlgGamma(500), 1e-5f);
+    }
+
+    @Test
+    public void hlgDisplayKeepsNeutralGray() {
+        // 1000亮度的显示，灰色的OOTF是Y^1.2，三个通道相同
+        float[] rgb = {0.75f, 0.75f, 0.75f};
+        CpuGamma.eotf(CpuGamma.EOTF_HLG_DISPLAY, rgb, 0, 1000, 0);
+        float scene = CpuGamma.eotf(CpuGamma.EOTF_HLG_SCENE, 0.75f);
+        float expect = (float) Math.pow(scene, 1.2f);
+        for (float value : rgb) {
+            assertEquals(expect, value, 1e-4f);
+        }
+        CpuGamma.oetf(CpuGamma.OETF_HLG_DISPLAY, rgb, 0, 1000, 0);
+        for (float value : rgb) {
+            assertEquals(0.75f, value, 1e-4f);
+        }
+    }
+}
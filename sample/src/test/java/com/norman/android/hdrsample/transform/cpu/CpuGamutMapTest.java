@@ -0,0 +1,79 @@
+package com.norman.android.hdrsample.transform.cpu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CpuGamutMapTest {
+
+    @Test
+    public void whiteStaysWhite() {
+        int[] types = {CpuGamutMap.CLIP, CpuGamutMap.COMPRESS, CpuGamutMap.ADAPTIVE_L0_CUSP};
+        for (int type : types) {
+            float[] rgb = {1, 1, 1};
+            CpuGamutMap.gamutMap(type, rgb, 0);
+            for (float value : rgb) {
+                assertEquals("type " + type, 1.0f, value, 1e-4f);
+            }
+        }
+    }
+
+    @Test
+    public void neutralColorIsClipped() {
+        // 灰色在OKLab里没有色调，不能出现NaN
+        float[][] colors = {{0, 0, 0}, {1.2f, 1.2f, 1.2f}};
+        float[] expects = {0, 1};
+        int[] types = {CpuGamutMap.CLIP, CpuGamutMap.ADAPTIVE_L0_CUSP};
+        for (int type : types) {
+            for (int i = 0; i < colors.length; i++) {
+                float[] rgb = colors[i].clone();
+                CpuColorConversion.bt709ToBt2020(rgb, 0);
+                CpuGamutMap.gamutMap(type, rgb, 0);
+                for (float value : rgb) {
+                    assertEquals("type " + type, expects[i], value, 1e-4f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bt2020RedToBt709() {
+        // BT2020的纯红在BT709里是(1.6605, -0.1246, -0.0182)，矩阵第一列
+        float[] rgb = {1, 0, 0};
+        CpuColorConversion.bt2020ToBt709(rgb, 0);
+        assertEquals(1.660491f, rgb[0], 1e-5f);
+        assertEquals(-0.12455047f, rgb[1], 1e-5f);
+        assertEquals(-0.01815076f, rgb[2], 1e-5f);
+
+        rgb = new float[]{1, 0, 0};
+        CpuGamutMap.gamutMap(CpuGamutMap.CLIP, rgb, 0);
+        assertEquals(1.0f, rgb[0], 1e-6f);
+        assertEquals(0.0f, rgb[1], 1e-6f);
+        assertEquals(0.0f, rgb[2], 1e-6f);
+    }
+
+    @Test
+    public void outOfGamutColorMappedIntoRange() {
+        float[][] colors = {{1, 0, 0}, {0, 1, 0}, {0, 0, 1}, {0, 1, 1}, {1, 0, 1}, {1, 1, 0}, {0.5f, 0.1f, 0.9f}};
+        int[] types = {CpuGamutMap.CLIP, CpuGamutMap.ADAPTIVE_L0_CUSP};
+        for (int type : types) {
+            for (float[] color : colors) {
+                float[] rgb = color.clone();
+                CpuGamutMap.gamutMap(type, rgb, 0);
+                for (float value : rgb) {
+                    assertTrue("type " + type + " value " + value, value >= -1e-4f && value <= 1 + 1e-4f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void noneDoesNothing() {
+        float[] rgb = {1.5f, -0.2f, 0.3f};
+        CpuGamutMap.gamutMap(CpuGamutMap.NONE, rgb, 0);
+        assertEquals(1.5f, rgb[0], 0);
+        assertEquals(-0.2f, rgb[1], 0);
+        assertEquals(0.3f, rgb[2], 0);
+    }
+}
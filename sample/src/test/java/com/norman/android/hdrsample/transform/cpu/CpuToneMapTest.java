@@ -0,0 +1,88 @@
+package com.norman.android.hdrsample.transform.cpu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.norman.android.hdrsample.player.color.ColorSpace;
+
+import org.junit.Test;
+
+/**
+ * 屏幕100亮度、内容1000亮度，参考值按各曲线的分段公式手算
+ * 输入是PQ线性值(1代表10000亮度)的灰色，输出按屏幕亮度归一化
+ */
+public class CpuToneMapTest {
+
+    private static final float MAX_DISPLAY_LUMINANCE = 100;
+
+    private static final float HDR_PEAK_LUMINANCE = 1000;
+
+    @Test
+    public void android8Curve() {
+        // 10亮度以下乘1.7
+        assertEquals(0.085f, toneMapGray(CpuToneMap.ANDROID8, 5), 1e-4f);
+        // 10到75亮度线性：17+(40-10)*(75-17)/(75-10)
+        assertEquals(0.43769f, toneMapGray(CpuToneMap.ANDROID8, 40), 1e-4f);
+        assertEquals(1.0f, toneMapGray(CpuToneMap.ANDROID8, 1000), 1e-4f);
+    }
+
+    @Test
+    public void android13Curve() {
+        // 65亮度以下不变
+        assertEquals(0.5f, toneMapGray(CpuToneMap.ANDROID13, 50), 1e-4f);
+        // 第二个节点65+(1000-65)*4/17=285亮度映射到90%
+        assertEquals(0.9f, toneMapGray(CpuToneMap.ANDROID13, 285), 1e-3f);
+        assertEquals(1.0f, toneMapGray(CpuToneMap.ANDROID13, 1000), 1e-4f);
+        assertEquals(1.0f, toneMapGray(CpuToneMap.ANDROID13, 4000), 1e-4f);
+    }
+
+    @Test
+    public void hableCurve() {
+        // 峰值亮度映射到1
+        assertEquals(1.0f, toneMapGray(CpuToneMap.HABLE, 1000), 1e-4f);
+        // 参考白203亮度：hable(1)/hable(1000/203)=0.220657/0.564565
+        assertEquals(0.39084f, toneMapGray(CpuToneMap.HABLE, 203), 1e-4f);
+    }
+
+    @Test
+    public void hableKeepsChannelRatio() {
+        float[] rgb = {0.1f, 0.05f, 0.025f};
+        CpuToneMap.toneMap(CpuToneMap.HABLE, rgb, 0, ColorSpace.VIDEO_BT2020_PQ,
+                MAX_DISPLAY_LUMINANCE, HDR_PEAK_LUMINANCE);
+        assertEquals(1.0f, rgb[0], 1e-4f);
+        assertEquals(0.5f, rgb[1], 1e-4f);
+        assertEquals(0.25f, rgb[2], 1e-4f);
+    }
+
+    @Test
+    public void bt2446CLinearSegment() {
+        // 拐点58.535/0.83802以下是K1倍，再除以超白1019/940，输入按参考白缩放
+        float nits = 20;
+        float expect = nits / 203 * 0.83802f / (1019.0f / 940.0f);
+        assertEquals(expect, toneMapGray(CpuToneMap.BT2446C, nits), 1e-4f);
+    }
+
+    @Test
+    public void curvesAreMonotonic() {
+        int[] types = {CpuToneMap.ANDROID8, CpuToneMap.ANDROID13, CpuToneMap.BT2446A,
+                CpuToneMap.BT2446A1, CpuToneMap.BT2446C, CpuToneMap.HABLE, CpuToneMap.HDR10_PLUS};
+        for (int type : types) {
+            float last = 0;
+            for (int nits = 1; nits <= 1000; nits++) {
+                float value = toneMapGray(type, nits);
+                assertTrue("type " + type + " nits " + nits, value >= last - 1e-5f);
+                last = value;
+            }
+        }
+    }
+
+    private static float toneMapGray(@CpuToneMap.Type int type, float nits) {
+        float value = nits / CpuColorConversion.PQ_MAX_LUMINANCE;
+        float[] rgb = {value, value, value};
+        CpuToneMap.toneMap(type, rgb, 0, ColorSpace.VIDEO_BT2020_PQ,
+                MAX_DISPLAY_LUMINANCE, HDR_PEAK_LUMINANCE);
+        assertEquals(rgb[0], rgb[1], 1e-4f);
+        assertEquals(rgb[0], rgb[2], 1e-4f);
+        return rgb[1];
+    }
+}
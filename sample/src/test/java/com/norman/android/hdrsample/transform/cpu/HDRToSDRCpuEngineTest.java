@@ -0,0 +1,132 @@
+package com.norman.android.hdrsample.transform.cpu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.norman.android.hdrsample.player.color.ColorSpace;
+import com.norman.android.hdrsample.transform.shader.HDRToSDRShader;
+import com.norman.android.hdrsample.transform.shader.chromacorrect.ChromaCorrection;
+import com.norman.android.hdrsample.transform.shader.gamma.GammaOETF;
+import com.norman.android.hdrsample.transform.shader.gamutmap.GamutMap;
+import com.norman.android.hdrsample.transform.shader.tonemap.ToneMap;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 用几个像素的小帧跑完整流程，灰阶的参考值按PQ EOTF -> Hable -> BT709 OETF手算
+ */
+public class HDRToSDRCpuEngineTest {
+
+    @Test
+    public void hableGrayFrame() {
+        HDRToSDRCpuEngine engine = new HDRToSDRCpuEngine(new HDRToSDRShader(ColorSpace.VIDEO_BT2020_PQ,
+                ChromaCorrection.NONE, ToneMap.HABLE, GamutMap.CLIP, GammaOETF.BT709, true));
+        // RGBA，alpha不修改
+        float[] frame = {
+                pq(1000), pq(1000), pq(1000), 0.5f,
+                pq(203), pq(203), pq(203), 0.5f,
+                pq(4000), pq(4000), pq(4000), 0.5f,
+        };
+        engine.process(frame, 0, 3, 4);
+        // 峰值亮度到1
+        assertPixel(frame, 0, 1.0f);
+        // hable(1)/hable(1000/203)=0.39084，BT709 OETF后是0.62100
+        assertPixel(frame, 4, 0.62100f);
+        // 超过峰值的被截断
+        assertPixel(frame, 8, 1.0f);
+        assertEquals(0.5f, frame[3], 0);
+        assertEquals(0.5f, frame[7], 0);
+        assertEquals(0.5f, frame[11], 0);
+    }
+
+    @Test
+    public void android13GrayRamp() {
+        // 不做色度矫正，灰色经过整个流程还是灰色
+        HDRToSDRCpuEngine engine = new HDRToSDRCpuEngine(new HDRToSDRShader(ColorSpace.VIDEO_BT2020_PQ,
+                ChromaCorrection.NONE, ToneMap.ANDROID13, GamutMap.ADAPTIVE_L0_CUSP, GammaOETF.BT709, true));
+        int size = 64;
+        float[] frame = new float[size * 3];
+        for (int i = 0; i < size; i++) {
+            float value = i / (size - 1.0f);
+            frame[i * 3] = value;
+            frame[i * 3 + 1] = value;
+            frame[i * 3 + 2] = value;
+        }
+        engine.process(frame, 0, size, 3);
+        // 黑还是黑，1000亮度以上是白
+        assertPixel(frame, 0, 0.0f);
+        assertPixel(frame, (size - 1) * 3, 1.0f);
+        float last = 0;
+        for (int i = 0; i < size; i++) {
+            float value = frame[i * 3 + 1];
+            assertTrue("index " + i, value >= last - 1e-4f && value <= 1 + 1e-4f);
+            last = value;
+        }
+        // 50亮度在65亮度的拐点以下不压缩，BT709 OETF(0.5)
+        float[] pixel = {pq(50), pq(50), pq(50)};
+        engine.process(pixel, 0);
+        assertPixel(pixel, 0, CpuGamma.oetf(CpuGamma.OETF_BT709, 0.5f));
+    }
+
+    @Test
+    public void blackStaysBlack() {
+        HDRToSDRCpuEngine engine = createDefaultEngine();
+        float[] pixel = {0, 0, 0};
+        engine.process(pixel, 0);
+        assertPixel(pixel, 0, 0.0f);
+    }
+
+    @Test
+    public void saturatedColorsStayInRange() {
+        HDRToSDRCpuEngine engine = createDefaultEngine();
+        float[] frame = {
+                1, 0, 0,
+                0, 1, 0,
+                0, 0, 1,
+                0.8f, 0.2f, 0.6f,
+                0.3f, 0.7f, 0.9f,
+        };
+        engine.process(frame, 0, frame.length / 3, 3);
+        for (float value : frame) {
+            assertTrue("value " + value, value >= -1e-4f && value <= 1 + 1e-4f);
+        }
+    }
+
+    @Test
+    public void lutMatchesProcess() {
+        HDRToSDRCpuEngine engine = createDefaultEngine();
+        int lutSize = 3;
+        ByteBuffer rgbBuffer = engine.createLutRgbBuffer(lutSize);
+        assertEquals(lutSize * lutSize * lutSize * 3 * Float.BYTES, rgbBuffer.remaining());
+        // r变化最快，然后是g，最后是b
+        for (int b = 0; b < lutSize; b++) {
+            for (int g = 0; g < lutSize; g++) {
+                for (int r = 0; r < lutSize; r++) {
+                    float[] pixel = {r * 0.5f, g * 0.5f, b * 0.5f};
+                    engine.process(pixel, 0);
+                    int index = ((b * lutSize + g) * lutSize + r) * 3 * Float.BYTES;
+                    assertEquals(pixel[0], rgbBuffer.getFloat(index), 0);
+                    assertEquals(pixel[1], rgbBuffer.getFloat(index + Float.BYTES), 0);
+                    assertEquals(pixel[2], rgbBuffer.getFloat(index + 2 * Float.BYTES), 0);
+                }
+            }
+        }
+    }
+
+    private static HDRToSDRCpuEngine createDefaultEngine() {
+        return new HDRToSDRCpuEngine(new HDRToSDRShader(ColorSpace.VIDEO_BT2020_PQ,
+                ChromaCorrection.BT2446C, ToneMap.ANDROID13, GamutMap.ADAPTIVE_L0_CUSP, GammaOETF.BT709, true));
+    }
+
+    private static float pq(float nits) {
+        return CpuGamma.pqInverseEOTF(nits / CpuColorConversion.PQ_MAX_LUMINANCE);
+    }
+
+    private static void assertPixel(float[] pixels, int offset, float expect) {
+        assertEquals(expect, pixels[offset], 1e-3f);
+        assertEquals(expect, pixels[offset + 1], 1e-3f);
+        assertEquals(expect, pixels[offset + 2], 1e-3f);
+    }
+}
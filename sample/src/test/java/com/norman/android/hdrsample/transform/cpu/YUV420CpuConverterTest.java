@@ -0,0 +1,187 @@
+package com.norman.android.hdrsample.transform.cpu;
+
+import static org.junit.Assert.assertEquals;
+
+import com.norman.android.hdrsample.player.color.YUV420Type;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 用手工排列的YUV420 Buffer验证平面布局和裁剪，矩阵设置成单位矩阵，输出的RGB就是归一化的YUV
+ * Y是10*行+列+1，U是100+10*色度行+色度列，V是200+10*色度行+色度列，每个像素都能看出是从哪里采样的
+ */
+public class YUV420CpuConverterTest {
+
+    private static final float[] IDENTITY_MATRIX = {
+            1, 0, 0, 0,
+            0, 1, 0, 0,
+            0, 0, 1, 0,
+            0, 0, 0, 1
+    };
+
+    private static final int STRIDE_WIDTH = 8;
+
+    private static final int SLICE_HEIGHT = 4;
+
+    @Test
+    public void convertYV21() {
+        assertConvert(YUV420Type.YV21, 0, 0, 8, 4);
+    }
+
+    @Test
+    public void convertYV12() {
+        assertConvert(YUV420Type.YV12, 0, 0, 8, 4);
+    }
+
+    @Test
+    public void convertNV12() {
+        assertConvert(YUV420Type.NV12, 0, 0, 8, 4);
+    }
+
+    @Test
+    public void convertNV21() {
+        assertConvert(YUV420Type.NV21, 0, 0, 8, 4);
+    }
+
+    @Test
+    public void convertCroppedDisplay() {
+        assertConvert(YUV420Type.YV21, 2, 2, 6, 4);
+        assertConvert(YUV420Type.NV12, 3, 1, 7, 3);
+    }
+
+    @Test
+    public void convert10BitNV12() {
+        // P010：16位小端，10位有效值在高位
+        int width = 2;
+        int height = 2;
+        int strideWidth = width * 2;
+        ByteBuffer yuvBuffer = ByteBuffer.allocate(strideWidth * height * 3 / 2).order(ByteOrder.LITTLE_ENDIAN);
+        yuvBuffer.putShort(0, (short) (64 << 6));
+        yuvBuffer.putShort(2, (short) (1023 << 6));
+        yuvBuffer.putShort(4, (short) (512 << 6));
+        yuvBuffer.putShort(6, (short) (0));
+        yuvBuffer.putShort(8, (short) (256 << 6));//U
+        yuvBuffer.putShort(10, (short) (768 << 6));//V
+
+        YUV420CpuConverter converter = new YUV420CpuConverter();
+        converter.setYuvToRgbMatrix(IDENTITY_MATRIX);
+        converter.setBufferFormat(strideWidth, height, 10, 0, 0, width, height, YUV420Type.NV12);
+        ByteBuffer rgbBuffer = ByteBuffer.allocate(converter.getOutputBufferSize(YUV420CpuConverter.OutputFormat.FLOAT));
+        converter.convert(yuvBuffer, rgbBuffer, YUV420CpuConverter.OutputFormat.FLOAT);
+        rgbBuffer.order(ByteOrder.nativeOrder());
+
+        float[] expectLuma = {64, 1023, 512, 0};
+        for (int i = 0; i < expectLuma.length; i++) {
+            assertEquals(expectLuma[i] / 1023f, rgbBuffer.getFloat(i * 12), 1e-6f);
+            assertEquals(256 / 1023f, rgbBuffer.getFloat(i * 12 + 4), 1e-6f);
+            assertEquals(768 / 1023f, rgbBuffer.getFloat(i * 12 + 8), 1e-6f);
+        }
+    }
+
+    @Test
+    public void parallelMatchesSerial() {
+        int width = 64;
+        int height = 96;
+        ByteBuffer yuvBuffer = ByteBuffer.allocate(width * height * 3 / 2);
+        for (int i = 0; i < yuvBuffer.capacity(); i++) {
+            yuvBuffer.put(i, (byte) (i * 31));
+        }
+        YUV420CpuConverter converter = new YUV420CpuConverter();
+        converter.setBufferFormat(width, height, 8, 0, 0, width, height, YUV420Type.NV12);
+        int outputSize = converter.getOutputBufferSize(YUV420CpuConverter.OutputFormat.HALF_FLOAT);
+        ByteBuffer serialBuffer = ByteBuffer.allocate(outputSize);
+        ByteBuffer parallelBuffer = ByteBuffer.allocate(outputSize);
+        converter.setParallelEnable(false);
+        converter.convert(yuvBuffer, serialBuffer, YUV420CpuConverter.OutputFormat.HALF_FLOAT);
+        converter.setParallelEnable(true);
+        for (int i = 0; i < 3; i++) {//分块任务重复使用
+            parallelBuffer.clear();
+            converter.convert(yuvBuffer, parallelBuffer, YUV420CpuConverter.OutputFormat.HALF_FLOAT);
+            assertEquals(serialBuffer, parallelBuffer);
+        }
+    }
+
+    private static void assertConvert(@YUV420Type int yuv420Type, int left, int top, int right, int bottom) {
+        ByteBuffer yuvBuffer = createYuvBuffer(yuv420Type);
+        YUV420CpuConverter converter = new YUV420CpuConverter();
+        converter.setYuvToRgbMatrix(IDENTITY_MATRIX);
+        converter.setParallelEnable(false);
+        converter.setBufferFormat(STRIDE_WIDTH, SLICE_HEIGHT, 8, left, top, right, bottom, yuv420Type);
+        assertEquals(yuvBuffer.capacity(), converter.getBufferSize());
+        int width = right - left;
+        int height = bottom - top;
+        assertEquals(width, converter.getOutputWidth());
+        assertEquals(height, converter.getOutputHeight());
+        ByteBuffer rgbBuffer = ByteBuffer.allocate(converter.getOutputBufferSize(YUV420CpuConverter.OutputFormat.FLOAT));
+        converter.convert(yuvBuffer, rgbBuffer, YUV420CpuConverter.OutputFormat.FLOAT);
+        rgbBuffer.order(ByteOrder.nativeOrder());
+        for (int row = 0; row < height; row++) {
+            for (int x = 0; x < width; x++) {
+                int bufferRow = top + row;
+                int bufferColumn = left + x;
+                int index = (row * width + x) * 12;
+                String message = "type " + yuv420Type + " pixel (" + bufferColumn + ", " + bufferRow + ")";
+                assertEquals(message, getY(bufferRow, bufferColumn) / 255f, rgbBuffer.getFloat(index), 1e-6f);
+                assertEquals(message, getU(bufferRow / 2, bufferColumn / 2) / 255f, rgbBuffer.getFloat(index + 4), 1e-6f);
+                assertEquals(message, getV(bufferRow / 2, bufferColumn / 2) / 255f, rgbBuffer.getFloat(index + 8), 1e-6f);
+            }
+        }
+    }
+
+    /**
+     * 按MediaCodec的布局排列：Y平面之后，YV21是U平面再V平面，YV12是V平面再U平面，NV12是UV交错，NV21是VU交错
+     */
+    private static ByteBuffer createYuvBuffer(@YUV420Type int yuv420Type) {
+        int lumaSize = STRIDE_WIDTH * SLICE_HEIGHT;
+        int chromaWidth = STRIDE_WIDTH / 2;
+        int chromaHeight = SLICE_HEIGHT / 2;
+        ByteBuffer buffer = ByteBuffer.allocate(lumaSize + chromaWidth * chromaHeight * 2);
+        for (int row = 0; row < SLICE_HEIGHT; row++) {
+            for (int column = 0; column < STRIDE_WIDTH; column++) {
+                buffer.put(row * STRIDE_WIDTH + column, (byte) getY(row, column));
+            }
+        }
+        for (int row = 0; row < chromaHeight; row++) {
+            for (int column = 0; column < chromaWidth; column++) {
+                byte u = (byte) getU(row, column);
+                byte v = (byte) getV(row, column);
+                int planeIndex = row * chromaWidth + column;
+                int interleaveIndex = lumaSize + row * STRIDE_WIDTH + column * 2;
+                switch (yuv420Type) {
+                    case YUV420Type.YV21:
+                        buffer.put(lumaSize + planeIndex, u);
+                        buffer.put(lumaSize + chromaWidth * chromaHeight + planeIndex, v);
+                        break;
+                    case YUV420Type.YV12:
+                        buffer.put(lumaSize + planeIndex, v);
+                        buffer.put(lumaSize + chromaWidth * chromaHeight + planeIndex, u);
+                        break;
+                    case YUV420Type.NV12:
+                        buffer.put(interleaveIndex, u);
+                        buffer.put(interleaveIndex + 1, v);
+                        break;
+                    default:
+                        buffer.put(interleaveIndex, v);
+                        buffer.put(interleaveIndex + 1, u);
+                        break;
+                }
+            }
+        }
+        return buffer;
+    }
+
+    private static int getY(int row, int column) {
+        return 10 * row + column + 1;
+    }
+
+    private static int getU(int chromaRow, int chromaColumn) {
+        return 100 + 10 * chromaRow + chromaColumn;
+    }
+
+    private static int getV(int chromaRow, int chromaColumn) {
+        return 200 + 10 * chromaRow + chromaColumn;
+    }
+}
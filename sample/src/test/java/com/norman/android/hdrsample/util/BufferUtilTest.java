@@ -0,0 +1,46 @@
+package com.norman.android.hdrsample.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class BufferUtilTest {
+
+    @Before
+    public void setUp() {
+        BufferUtil.clearDirectBufferPool();
+    }
+
+    @Test
+    public void growCapacityDoesNotPoolCallerBuffer() {
+        ByteBuffer callerBuffer = ByteBuffer.allocateDirect(4096).order(ByteOrder.nativeOrder());
+        callerBuffer.putInt(0, 0x12345678);
+        callerBuffer.position(4);
+        ByteBuffer grownBuffer = BufferUtil.growCapacity(callerBuffer);
+        assertEquals(8192, grownBuffer.capacity());
+        assertEquals(4, grownBuffer.position());
+        assertEquals(0x12345678, grownBuffer.getInt(0));
+
+        // 调用方的Buffer还是调用方的，缓存池不会把它分配出去
+        ByteBuffer obtainBuffer = BufferUtil.obtainDirectBuffer(4096);
+        assertNotSame(callerBuffer, obtainBuffer);
+        assertEquals(0x12345678, callerBuffer.getInt(0));
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        ByteBuffer buffer = BufferUtil.obtainDirectBuffer(5000);
+        assertEquals(8192, buffer.capacity());
+        assertEquals(5000, buffer.limit());
+        BufferUtil.releaseDirectBuffer(buffer);
+        BufferUtil.releaseDirectBuffer(buffer);//重复放回只算一次
+        assertSame(buffer, BufferUtil.obtainDirectBuffer(6000));
+        assertNotSame(buffer, BufferUtil.obtainDirectBuffer(6000));
+    }
+}